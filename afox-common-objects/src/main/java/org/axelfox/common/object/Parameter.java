@@ -2,7 +2,7 @@ package org.axelfox.common.object;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.Objects;
+import java.util.Locale;
 
 /**
  * Generic parameter type.
@@ -18,6 +18,7 @@ public class Parameter<V extends Object>
     private final boolean ignoreCase;
     private final Class<V> type;
     private V value;
+    private transient int hash;
     
     public Parameter(final String name) { this(name, false); }
     
@@ -75,12 +76,21 @@ public class Parameter<V extends Object>
     @Override
     public boolean isIgnoreCase() { return ignoreCase; }
 
+    /**
+     * Hash of the case folded name, so that it is consistent with 
+     * {@link #equals(java.lang.Object)} ignoring case.
+     */
     @Override
     public int hashCode()
     {
-        int hash = 7;
-        hash = 97 * hash + Objects.hashCode(name());
-        return hash;
+        int h = hash;
+        if(h==0)
+        {
+            h = 7;
+            h = 97 * h + name().toLowerCase(Locale.ROOT).hashCode();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -1,9 +1,24 @@
 package org.axelfox.common.object;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
 import org.axelfox.common.object.exception.ParameterExistException;
 
+/**
+ * Parameter specification; a set of {@link Parameter}s in insertion order, 
+ * looked up by name (or index).
+ * <p>
+ * Lookups are indexed: parameters by name, {@link Parameter#isIgnoreCase() 
+ * ignoring case} ones also by case folded name, and all of them by position 
+ * in an insertion order array; removing shifts the positions after.
+ * @author christopher
+ */
 public class ParameterSpec
        extends LinkedHashSet<Parameter>
        implements org.axelfox.common.object.inf.ParameterSpec<ParameterSpec, Parameter>
@@ -11,6 +26,10 @@ public class ParameterSpec
     private static final long serialVersionUID = -1120819747109480354L;
     
     private boolean silenceException;
+    private transient Map<String, Slot> names = new HashMap<>();
+    private transient Map<String, Slot> foldedNames = new HashMap<>();
+    private transient Slot[] order = new Slot[16];
+    private transient int ordered;
 
     public boolean isSilenceException() { return silenceException; }
     public ParameterSpec setSilenceException(final boolean silenceException) { this.silenceException = silenceException; return this; }
@@ -18,58 +37,30 @@ public class ParameterSpec
     @Override
     public int indexOf(final Object object)
     {
-        int i = -1;
-        for(Iterator<Parameter> iter=super.iterator();iter.hasNext();)
-        {
-            i++;
-            final Parameter p = iter.next();
-            if(object instanceof Number) // get by index
-            {
-                if(i==((Number)object).intValue())
-                    return i;
-            }
-            if(p.equals(object)) // get by parameter name
-                return i;
-        }
-        return -1;
+        final Slot slot = slot(object);
+        return slot!=null?slot.index:-1;
     }
     
     @Override
     public Parameter get(final Object object)
     {
-        int i = -1;
-        for(Iterator<Parameter> iter=super.iterator();iter.hasNext();)
-        {
-            i++;
-            final Parameter p = iter.next();
-            if(object instanceof Number) // get by index
-            {
-                if(i==((Number)object).intValue())
-                    return p;
-            }
-            if(p.equals(object)) // get by parameter name
-                return p;
-        }
-        return null;
+        final Slot slot = slot(object);
+        return slot!=null?slot.parameter:null;
     }
     
     @Override
     public boolean contains(final Object object)
     {
-        int i = -1;
-        for(Iterator<Parameter> iter=super.iterator();iter.hasNext();)
-        {
-            i++;
-            final Parameter p = iter.next();
-            if(object instanceof Number) // get by index
-            {
-                if(i==((Number)object).intValue())
-                    return true;
-            }
-            if(p.equals(object)) // get by parameter name
-                return true;
-        }
-        return false;
+        return slot(object)!=null;
+    }
+
+    @Override
+    public boolean add(final Parameter parameter)
+    {
+        if(!super.add(parameter))
+            return false;
+        index(parameter);
+        return true;
     }
 
     @Override
@@ -77,10 +68,58 @@ public class ParameterSpec
     {
         if(object==null)
             return false;
-        Parameter p = get(object);
-        if(p==null) // not found, assumed removed
+        final Slot slot = slot(object);
+        if(slot==null) // not found, assumed removed
             return true;
-        return super.remove(p);
+        if(!super.remove(slot.parameter))
+            return false;
+        unindex(slot);
+        return true;
+    }
+
+    @Override
+    public Iterator<Parameter> iterator()
+    {
+        final Iterator<Parameter> iter = super.iterator();
+        return new Iterator<Parameter>()
+        {
+            private Parameter last;
+            
+            @Override
+            public boolean hasNext() { return iter.hasNext(); }
+
+            @Override
+            public Parameter next() { return last = iter.next(); }
+
+            @Override
+            public void remove()
+            {
+                iter.remove();
+                // by identity; an equal one ignoring case may come first
+                final Slot slot = names.get(last.name());
+                if(slot!=null&&slot.parameter==last)
+                    unindex(slot);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public void clear()
+    {
+        super.clear();
+        names.clear();
+        foldedNames.clear();
+        Arrays.fill(order, 0, ordered, null);
+        ordered = 0;
+    }
+
+    @Override
+    public Object clone()
+    {
+        final ParameterSpec clone = (ParameterSpec)super.clone();
+        clone.reindex();
+        return clone;
     }
 
     @Override
@@ -104,7 +143,7 @@ public class ParameterSpec
                 throw new ParameterExistException(parameter);
             return false;
         }
-        if(!super.add(parameter.value(value)))
+        if(!add(parameter.value(value)))
         {
             if(!isSilenceException())
                 throw new ParameterExistException(parameter);
@@ -126,12 +165,14 @@ public class ParameterSpec
                        final Object value)
     {
         final Parameter parameter = new Parameter(name, type);
-        if(contains(parameter))
+        final Slot slot = slot(parameter);
+        if(slot!=null)
         {
-            if(!remove(parameter)) // can't remove
+            if(!super.remove(slot.parameter)) // can't remove
                 return false;
+            unindex(slot);
         }
-        return super.add(parameter.value(value));
+        return add(parameter.value(value));
     }
     
     protected <T> T getter(final String argname,
@@ -177,4 +218,86 @@ public class ParameterSpec
         set(argname, argtype, argvalue);
         return this;
     }
+    
+    /**
+     * Find the slot of a parameter by index ({@link Number}), or by name 
+     * ({@link String} or {@link Parameter}); the first in order of the 
+     * parameters equal to it.
+     */
+    private Slot slot(final Object object)
+    {
+        if(object instanceof Number) // get by index
+        {
+            final int i = ((Number)object).intValue();
+            return i>=0&&i<ordered?order[i]:null;
+        }
+        final String name;
+        if(object instanceof String)
+            name = (String)object;
+        else if(object instanceof Parameter)
+            name = ((Parameter)object).name();
+        else
+            return null;
+        // get by parameter name; exactly, or ignoring case
+        Slot slot = names.get(name);
+        if(slot!=null&&!slot.parameter.equals(object))
+            slot = null;
+        final Slot folded = foldedNames.isEmpty()?null:foldedNames.get(name.toLowerCase(Locale.ROOT));
+        if(folded!=null&&folded.parameter.equals(object)&&(slot==null||folded.index<slot.index))
+            slot = folded;
+        return slot;
+    }
+    
+    private void index(final Parameter parameter)
+    {
+        if(ordered==order.length)
+            order = Arrays.copyOf(order, ordered*2);
+        final Slot slot = new Slot(parameter, ordered);
+        order[ordered++] = slot;
+        names.put(parameter.name(), slot);
+        if(parameter.isIgnoreCase())
+            foldedNames.put(parameter.name().toLowerCase(Locale.ROOT), slot);
+    }
+    
+    private void unindex(final Slot slot)
+    {
+        System.arraycopy(order, slot.index+1, order, slot.index, ordered-slot.index-1);
+        order[--ordered] = null;
+        for(int i=slot.index;i<ordered;i++)
+            order[i].index = i;
+        if(names.get(slot.parameter.name())==slot)
+            names.remove(slot.parameter.name());
+        if(slot.parameter.isIgnoreCase())
+            foldedNames.remove(slot.parameter.name().toLowerCase(Locale.ROOT));
+    }
+    
+    private void reindex()
+    {
+        names = new HashMap<>();
+        foldedNames = new HashMap<>();
+        order = new Slot[Math.max(16, super.size())];
+        ordered = 0;
+        for(Iterator<Parameter> iter=super.iterator();iter.hasNext();)
+            index(iter.next());
+    }
+    
+    private void readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        reindex();
+    }
+    
+    private static final class Slot
+    {
+        private final Parameter parameter;
+        private int index;
+        
+        private Slot(final Parameter parameter,
+                     final int index)
+        {
+            this.parameter = parameter;
+            this.index = index;
+        }
+    }
 }
@@ -0,0 +1,126 @@
+package org.axelfox.junit.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import org.axelfox.common.object.Parameter;
+import org.axelfox.common.object.ParameterSpec;
+import org.axelfox.common.object.exception.ParameterExistException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ParameterSpecJUnitTest
+{
+    public ParameterSpecJUnitTest() {}
+
+    @BeforeClass
+    public static void setUpClass() {}
+
+    @AfterClass
+    public static void tearDownClass() {}
+
+    @Before
+    public void setUp() {}
+
+    @After
+    public void tearDown() {}
+
+    @Test
+    public void testParameterSpec()
+    {
+        try
+        {
+            final ParameterSpec spec = new ParameterSpec();
+            for(int i=0;i<40;i++)
+                assertTrue(spec.add("arg"+i, Integer.class, i));
+            assertEquals(40, spec.size());
+            assertEquals(Integer.valueOf(17), spec.get("arg17").value());
+            assertEquals("arg17", spec.get(17).name());
+            assertEquals(17, spec.indexOf("arg17"));
+            assertEquals(17, spec.indexOf(new Parameter("arg17", Integer.class)));
+            assertTrue(spec.contains("arg39"));
+            assertTrue(spec.contains(39));
+            assertFalse(spec.contains(40));
+            assertFalse(spec.contains("ARG17"));
+            assertNull(spec.get(-1));
+            assertEquals(1, spec.indexOf(Long.valueOf(1l)));
+            assertEquals(-1, spec.indexOf(40));
+            try
+            {
+                spec.add("arg3", Integer.class);
+                fail("ERROR: Added an existing parameter");
+            }
+            catch(ParameterExistException e)
+            {
+            }
+
+            // set replaces, to the end; remove shifts the positions after
+            assertTrue(spec.set("arg3", Integer.class, 300));
+            assertEquals(40, spec.size());
+            assertEquals(39, spec.indexOf("arg3"));
+            assertEquals(Integer.valueOf(300), spec.get(39).value());
+            assertEquals("arg4", spec.get(3).name());
+            assertTrue(spec.remove("arg0"));
+            assertEquals(38, spec.indexOf("arg3"));
+            assertEquals("arg4", spec.get(2).name());
+            assertNull(spec.get("arg0"));
+            for(Iterator<Parameter> iter=spec.iterator();iter.hasNext();)
+            {
+                if(iter.next().name().endsWith("5"))
+                    iter.remove();
+            }
+            assertEquals(35, spec.size());
+            assertNull(spec.get("arg25"));
+            assertEquals("arg6", spec.get(3).name());
+            int i = 0;
+            for(Parameter parameter:spec)
+                assertEquals(i++, spec.indexOf(parameter.name()));
+
+            // ignoring case; the hash is of the case folded name
+            final Parameter<String> ignoreCase = new Parameter<>("Mode", String.class, true);
+            assertEquals(ignoreCase.hashCode(), new Parameter<>("MODE", String.class).hashCode());
+            assertTrue(spec.add(ignoreCase.value("fast")));
+            assertFalse(spec.add(new Parameter<>("mODe", String.class, true)));
+            assertSame(ignoreCase, spec.get("MODE"));
+            assertSame(ignoreCase, spec.get("mode"));
+            assertEquals(35, spec.indexOf("mode"));
+            // set replaces it with a case sensitive one
+            assertTrue(spec.set("mode", String.class, "slow"));
+            assertEquals(36, spec.size());
+            assertEquals("slow", spec.get("mode").value());
+            assertEquals(35, spec.indexOf("mode"));
+            assertNull(spec.get("MODE"));
+
+            // serialized and cloned with their own indexes
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(spec);
+            out.close();
+            final ParameterSpec copy = (ParameterSpec)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+            final ParameterSpec clone = (ParameterSpec)spec.clone();
+            for(ParameterSpec other:new ParameterSpec[]{copy, clone})
+            {
+                assertEquals(spec.size(), other.size());
+                assertEquals(35, other.indexOf("mode"));
+                assertEquals(Integer.valueOf(300), other.get("arg3").value());
+                assertEquals("arg6", other.get(3).name());
+            }
+            clone.clear();
+            assertTrue(clone.isEmpty());
+            assertNull(clone.get(0));
+            assertNull(clone.get("arg3"));
+            assertEquals("arg6", spec.get(3).name());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: "+t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.axelfox.common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket latency histogram in nanoseconds; cheap enough to record
+ * every call. Buckets are log linear: eight per power of two, so a
+ * percentile is off by at most 12.5%; values past {@link #MAX_NANOS} go in
+ * the last bucket (the max. is still exact). Counts are striped
+ * {@link LongAdder}s, so concurrent recording does not contend.
+ * @author christopher
+ */
+public final class LatencyHistogram
+{
+    /** Largest value told apart, about 1.2 hours. */
+    public static final long MAX_NANOS = 1l<<42;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+    private static final int BUCKETS = index(MAX_NANOS)+1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram()
+    {
+        for(int i=0;i<buckets.length;i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Record a latency; negative values count as 0.
+     * @param nanos                             Latency in nanoseconds.
+     */
+    public void record(final long nanos)
+    {
+        final long value = Math.max(0l, nanos);
+        buckets[index(Math.min(value, MAX_NANOS))].increment();
+        count.increment();
+        sum.add(value);
+        long _max = max.get();
+        while(value>_max&&!max.compareAndSet(_max, value))
+            _max = max.get();
+    }
+
+    public long getCount() { return count.sum(); }
+
+    public long getSumNanos() { return sum.sum(); }
+
+    public long getMaxNanos() { return max.get(); }
+
+    public long getMeanNanos()
+    {
+        final long _count = count.sum();
+        return _count>0l?sum.sum()/_count:0l;
+    }
+
+    /**
+     * Get the latency at a percentile; the upper bound of its bucket, but
+     * never above the max.
+     * @param percentile                        Percentile, e.g. {@code 99.9}.
+     * @return                                  Latency in nanoseconds; 0 if
+     *                                          nothing was recorded.
+     */
+    public long getPercentileNanos(final double percentile)
+    {
+        if(percentile<0d||percentile>100d)
+            throw new IllegalArgumentException("Bad parameter [percentile] ["+percentile+
+            "] is not a valid percentile; expecting [0] to [100]");
+        final long[] counts = new long[buckets.length];
+        long total = 0l;
+        for(int i=0;i<buckets.length;i++)
+            total += counts[i] = buckets[i].sum();
+        if(total==0l)
+            return 0l;
+        final long rank = Math.max(1l, (long)Math.ceil(total*percentile/100d));
+        long seen = 0l;
+        for(int i=0;i<counts.length;i++)
+        {
+            seen += counts[i];
+            if(seen>=rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for(LongAdder bucket:buckets)
+            bucket.reset();
+        count.reset();
+        sum.reset();
+        max.set(0l);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count "+getCount()+", p50 "+getPercentileNanos(50d)+" ns, p99 "+getPercentileNanos(99d)+
+        " ns, p99.9 "+getPercentileNanos(99.9d)+" ns, max "+getMaxNanos()+" ns";
+    }
+
+    private static int index(final long value)
+    {
+        if(value<SUB_BUCKETS)
+            return (int)value;
+        // octave above the sub-buckets, then the next bits below the leading one
+        final int exponent = 63-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+        return ((exponent+1)<<SUB_BUCKET_BITS)+(int)((value>>>exponent)&(SUB_BUCKETS-1));
+    }
+
+    private static long upperBound(final int index)
+    {
+        if(index<SUB_BUCKETS)
+            return index;
+        final int exponent = (index>>>SUB_BUCKET_BITS)-1;
+        final long mantissa = SUB_BUCKETS+(index&(SUB_BUCKETS-1));
+        return ((mantissa+1l)<<exponent)-1l;
+    }
+}
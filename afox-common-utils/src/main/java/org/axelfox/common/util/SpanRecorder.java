@@ -0,0 +1,224 @@
+package org.axelfox.common.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size, lock free ring buffer of ended {@link TraceSpan}s; once full,
+ * the oldest spans are overwritten. Recording a span is one atomic increment
+ * and one store, whatever the number of threads.
+ * <p>
+ * Spans can be taken as a {@link #snapshot()}, written out as a JSON trace
+ * (the Chrome trace event format, as read by {@code chrome://tracing} and
+ * Perfetto), and, where the JDK has it, also committed as JDK Flight Recorder
+ * events ({@code org.axelfox.TraceSpan}) while a recording is running.
+ * @author christopher
+ */
+public final class SpanRecorder
+{
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final SpanRecorder defaultRecorder = new SpanRecorder(DEFAULT_CAPACITY).setEnabled(false);
+    private static final boolean jfrAvailable = jfrAvailable();
+    // wall clock of nano time 0, for exported timestamps
+    private static final long epochOffsetNanos = System.currentTimeMillis()*1000000l-System.nanoTime();
+
+    private final AtomicReferenceArray<TraceSpan> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private volatile boolean enabled = true;
+    private volatile boolean jfrEnabled;
+
+    /**
+     * New, enabled recorder.
+     * @param capacity                          Number of spans kept; rounded up
+     *                                          to a power of two.
+     */
+    public SpanRecorder(final int capacity)
+    {
+        if(capacity<1||capacity>(1<<30))
+            throw new IllegalArgumentException("Bad parameter [capacity] ["+capacity+
+            "] is not a valid capacity; expecting [1] to ["+(1<<30)+"]");
+        final int size = Integer.highestOneBit(capacity)==capacity?capacity:Integer.highestOneBit(capacity)<<1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size-1;
+    }
+
+    /**
+     * The process wide recorder; disabled until {@link #setEnabled(boolean) enabled}.
+     */
+    public static SpanRecorder getDefault() { return defaultRecorder; }
+
+    /**
+     * Determine if the JDK has the flight recorder.
+     */
+    public static boolean isJfrAvailable() { return jfrAvailable; }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * Enable or disable; spans started while disabled are {@link TraceSpan#NOOP}.
+     */
+    public SpanRecorder setEnabled(final boolean enabled) { this.enabled = enabled; return this; }
+
+    public boolean isJfrEnabled() { return jfrEnabled; }
+
+    /**
+     * Also commit spans as flight recorder events; ignored where the JDK has
+     * no flight recorder. Events are only written while a recording with the
+     * {@code org.axelfox.TraceSpan} event enabled is running.
+     */
+    public SpanRecorder setJfrEnabled(final boolean jfrEnabled) { this.jfrEnabled = jfrEnabled&&jfrAvailable; return this; }
+
+    public int getCapacity() { return slots.length(); }
+
+    /**
+     * Number of spans recorded so far, including those overwritten.
+     */
+    public long getRecorded() { return next.get(); }
+
+    /**
+     * Number of spans overwritten so far.
+     */
+    public long getDropped() { return Math.max(0l, next.get()-slots.length()); }
+
+    void record(final TraceSpan span)
+    {
+        final long sequence = next.getAndIncrement();
+        span.sequence = sequence;
+        slots.set((int)(sequence&mask), span);
+    }
+
+    /**
+     * Get the spans kept, oldest first; spans recorded meanwhile may or may
+     * not be in it.
+     * @return                                  Ended spans.
+     */
+    public List<TraceSpan> snapshot()
+    {
+        final long end = next.get();
+        final long start = Math.max(0l, end-slots.length());
+        final List<TraceSpan> spans = new ArrayList<>((int)(end-start));
+        for(long sequence=start;sequence<end;sequence++)
+        {
+            final TraceSpan span = slots.get((int)(sequence&mask));
+            // not yet stored, or already overwritten by a newer one
+            if(span!=null&&span.sequence==sequence)
+                spans.add(span);
+        }
+        return spans;
+    }
+
+    /**
+     * Drop the spans kept, and start counting the recorded and dropped ones
+     * over; spans recorded meanwhile may or may not be kept.
+     */
+    public void clear()
+    {
+        next.set(0l);
+        for(int i=0;i<slots.length();i++)
+            slots.set(i, null);
+    }
+
+    /**
+     * Get the spans kept as a JSON trace; see {@link #writeJson(Appendable)}.
+     */
+    public String toJson()
+    {
+        final StringBuilder json = new StringBuilder();
+        try { writeJson(json); }
+        catch(IOException e) { throw new IllegalStateException(e); }
+        return json.toString();
+    }
+
+    /**
+     * Write the spans kept as a JSON trace in the Chrome trace event format;
+     * one complete event per span, timestamps in microseconds since the epoch,
+     * trace, span and parent span IDs and the detail as arguments.
+     * @param out                               Where to write to.
+     * @throws IOException                      If writing fails.
+     */
+    public void writeJson(final Appendable out)
+           throws IOException
+    {
+        if(out==null)
+            throw new IllegalArgumentException("Bad parameter [out] is null; expecting ["+
+            Appendable.class.getName()+"] object type");
+        out.append("{\"traceEvents\":[");
+        boolean first = true;
+        for(TraceSpan span:snapshot())
+        {
+            if(!first)
+                out.append(',');
+            first = false;
+            out.append("\n{\"name\":");
+            quote(out, span.getName());
+            out.append(",\"cat\":\"afox\",\"ph\":\"X\",\"ts\":");
+            micros(out, epochOffsetNanos+span.getStartNanos());
+            out.append(",\"dur\":");
+            micros(out, span.getDurationNanos());
+            out.append(",\"pid\":1,\"tid\":").append(Long.toString(span.getThreadId()));
+            out.append(",\"args\":{\"traceId\":");
+            quote(out, span.getTraceId().getId());
+            out.append(",\"spanId\":\"").append(Long.toHexString(span.getSpanId()));
+            out.append("\",\"parentId\":\"").append(Long.toHexString(span.getParentId())).append('"');
+            if(span.getDetail()!=null)
+            {
+                out.append(",\"detail\":");
+                quote(out, span.getDetail());
+            }
+            out.append("}}");
+        }
+        out.append("\n],\"displayTimeUnit\":\"ns\"}");
+    }
+
+    private static void micros(final Appendable out,
+                               final long nanos)
+           throws IOException
+    {
+        final long fraction = nanos%1000l;
+        out.append(Long.toString(nanos/1000l)).append('.');
+        if(fraction<100l)
+            out.append('0');
+        if(fraction<10l)
+            out.append('0');
+        out.append(Long.toString(fraction));
+    }
+
+    private static void quote(final Appendable out,
+                              final String value)
+           throws IOException
+    {
+        out.append('"');
+        for(int i=0;i<value.length();i++)
+        {
+            final char c = value.charAt(i);
+            switch(c)
+            {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if(c<0x20)
+                        out.append(String.format("\\u%04x", (int)c));
+                    else
+                        out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static boolean jfrAvailable()
+    {
+        try { return TraceSpanEvent.isAvailable(); }
+        catch(Throwable t)
+        {
+            return false;
+        }
+    }
+}
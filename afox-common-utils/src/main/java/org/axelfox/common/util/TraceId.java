@@ -1,67 +1,217 @@
 package org.axelfox.common.util;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Trace ID; 128 bit (or 64 bit, see {@link #random64()}) random, drawn from
+ * {@link ThreadLocalRandom} so that generating IDs neither locks nor
+ * contends. Trace IDs are for correlating log lines, not secrets.
+ * <p>
+ * The hex string form is only rendered on first use and cached; start and
+ * end are taken with {@link System#nanoTime()} (the start also with the
+ * wall clock, for {@link #getStart()}). {@link #toString()} is the ID and
+ * has no side effects; {@link #markEnd()} is explicit.
+ * @author christopher
+ */
 public final class TraceId
        implements Serializable
 {
-    private static final long serialVersionUID = -4316750556415102144L;
-    
-    private final String traceId;
-    private final Date start;
-    
-    private volatile Date end;
-    
-    public static String generateId() { return Integer.toHexString(UUID.randomUUID().toString().hashCode())+Long.toHexString(System.nanoTime()); }
-    
+    private static final long serialVersionUID = 2210871520546384925L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long NOT_ENDED = -1l;
+
+    private final long high;
+    private final long low;
+    private final long startMillis;
+    private final long startNanos;
+
+    private volatile long elapsedNanos = NOT_ENDED;
+    // rendered lazily; a racy single check is safe, strings being immutable
+    private String traceId;
+
+    public static String generateId() { return new TraceId().getId(); }
+
+    /**
+     * New 64 bit trace ID; its string form is 16 hex characters.
+     * @return                                  Trace ID.
+     */
+    public static TraceId random64()
+    {
+        long _low;
+        do { _low = ThreadLocalRandom.current().nextLong(); } while(_low==0l);
+        return new TraceId(0l, _low, null);
+    }
+
+    /**
+     * Trace ID of the given binary form; the string form is 16 hex characters
+     * if the high bits are 0, 32 otherwise.
+     * @param high                              High 64 bits, 0 for a 64 bit ID.
+     * @param low                               Low 64 bits.
+     * @return                                  Trace ID.
+     */
+    public static TraceId of(final long high,
+                             final long low)
+    {
+        if(high==0l&&low==0l)
+            throw new IllegalArgumentException("Bad parameter [high, low] are both 0; expecting a non zero trace ID");
+        return new TraceId(high, low, null);
+    }
+
     public TraceId(final Object... traceId)
     {
-        if(traceId==null||traceId.length==0)
-            this.traceId = TraceId.generateId();
-        else
+        String id = null;
+        TraceId ref = null;
+        if(traceId!=null)
         {
-            String id = null;
             for(Object _traceId:traceId)
             {
                 if(_traceId instanceof CharSequence)
                     id = ((CharSequence)_traceId).toString();
                 else if(_traceId instanceof TraceId)
-                    id = ((TraceId)_traceId).getId();
+                {
+                    ref = (TraceId)_traceId;
+                    id = ref.getId();
+                }
                 if(id!=null&&!id.trim().equals(""))
                     break;
+                ref = null;
             }
-            if(id==null||id.trim().equals(""))
-                id = TraceId.generateId();
+        }
+        if(ref!=null)
+        {
+            this.high = ref.high;
+            this.low = ref.low;
+            this.traceId = id;
+        }
+        else if(id!=null&&!id.trim().equals(""))
+        {
+            // keep the binary form of IDs that are hex renderings themselves
+            final boolean hex = (id.length()==16||id.length()==32)&&isHex(id);
+            this.high = hex&&id.length()==32?Long.parseUnsignedLong(id.substring(0, 16), 16):0l;
+            this.low = hex?Long.parseUnsignedLong(id.substring(id.length()-16), 16):0l;
             this.traceId = id;
         }
-        this.start = Calendar.getInstance().getTime();
+        else
+        {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            long _high;
+            do { _high = random.nextLong(); } while(_high==0l);
+            this.high = _high;
+            this.low = random.nextLong();
+        }
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    private TraceId(final long high,
+                    final long low,
+                    final String traceId)
+    {
+        this.high = high;
+        this.low = low;
+        this.traceId = traceId;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
     }
 
-    public String getId() { return traceId; }
-    
-    public Date getStart() { return start; }
-    
-    public Date getEnd() { return end; }
-    
-    public synchronized long getElapsedMillis()
+    public String getId()
     {
-        if(end==null)
-            markEnd();
-        return markEnd().getEnd().getTime()-getStart().getTime();
+        String id = traceId;
+        if(id==null)
+            traceId = id = render(high, low);
+        return id;
     }
-    
-    public synchronized TraceId markEnd() { this.end = Calendar.getInstance().getTime(); return this; }
+
+    /**
+     * High 64 bits of the binary form; 0 for 64 bit IDs, and for IDs given
+     * as strings other than 16 or 32 hex characters.
+     */
+    public long getHigh() { return high; }
+
+    /**
+     * Low 64 bits of the binary form; 0 for IDs given as strings other than
+     * 16 or 32 hex characters.
+     */
+    public long getLow() { return low; }
+
+    /**
+     * Binary form, big endian; 8 bytes for 64 bit IDs, 16 otherwise.
+     * @return                                  Trace ID bytes.
+     */
+    public byte[] toBytes()
+    {
+        final byte[] bytes = new byte[high==0l?8:16];
+        int i = 0;
+        if(high!=0l)
+            for(int shift=56;shift>=0;shift-=8)
+                bytes[i++] = (byte)(high>>>shift);
+        for(int shift=56;shift>=0;shift-=8)
+            bytes[i++] = (byte)(low>>>shift);
+        return bytes;
+    }
+
+    public Date getStart() { return new Date(startMillis); }
+
+    public Date getEnd()
+    {
+        final long elapsed = elapsedNanos;
+        return elapsed==NOT_ENDED?null:new Date(startMillis+elapsed/1000000l);
+    }
+
+    /**
+     * Mark the end now and return the time elapsed since the start.
+     * @return                                  Elapsed milliseconds.
+     */
+    public long getElapsedMillis() { return markEnd().elapsedNanos/1000000l; }
+
+    /**
+     * Time elapsed up to the end mark, or up to now if not marked; does not
+     * mark the end.
+     * @return                                  Elapsed nanoseconds.
+     */
+    public long getElapsedNanos()
+    {
+        final long elapsed = elapsedNanos;
+        return elapsed==NOT_ENDED?System.nanoTime()-startNanos:elapsed;
+    }
+
+    public TraceId markEnd() { this.elapsedNanos = Math.max(0l, System.nanoTime()-startNanos); return this; }
 
     @Override
-    public String toString()
+    public String toString() { return getId(); }
+
+    private void writeObject(final ObjectOutputStream out)
+            throws IOException
+    {
+        getId();
+        out.defaultWriteObject();
+    }
+
+    private static String render(final long high,
+                                 final long low)
+    {
+        final char[] chars = new char[high==0l?16:32];
+        int i = 0;
+        if(high!=0l)
+            for(int shift=60;shift>=0;shift-=4)
+                chars[i++] = HEX[(int)(high>>>shift)&0xf];
+        for(int shift=60;shift>=0;shift-=4)
+            chars[i++] = HEX[(int)(low>>>shift)&0xf];
+        return new String(chars);
+    }
+
+    private static boolean isHex(final String id)
     {
-        synchronized(this)
+        for(int i=0;i<id.length();i++)
         {
-            markEnd();
-            return getId();
+            final char c = id.charAt(i);
+            if(!((c>='0'&&c<='9')||(c>='a'&&c<='f')||(c>='A'&&c<='F')))
+                return false;
         }
+        return true;
     }
 }
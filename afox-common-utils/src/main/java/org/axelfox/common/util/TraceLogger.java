@@ -0,0 +1,121 @@
+package org.axelfox.common.util;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Level gated {@link Logger} facade for trace logging; messages come out as
+ * <code># traceId # method() : message</code>, as they always have.
+ * <p>
+ * Nothing is formatted unless the level is loggable: the trace ID, the
+ * message and the source are only put together past the level check, and
+ * {@link Supplier} messages are only built then. On hot paths, guard the
+ * call with {@link #isLoggable(Level)} (or {@link #isFine()} etc.) so that
+ * even the supplier is not allocated.
+ * <p>
+ * Levels as used in this module: {@link Level#INFO} once per run or call,
+ * {@link Level#FINE} once per file, {@link Level#FINER} for method
+ * enters/exits, {@link Level#FINEST} for payload dumps (header content,
+ * extension lists).
+ * @author christopher
+ */
+public final class TraceLogger
+{
+    private final Logger logger;
+    private final String sourceClass;
+
+    private TraceLogger(final Class<?> type)
+    {
+        this.logger = Logger.getLogger(type.getName());
+        this.sourceClass = type.getName();
+    }
+
+    public static TraceLogger getLogger(final Class<?> type)
+    {
+        if(type==null)
+            throw new IllegalArgumentException("Bad parameter [type] is null; expecting ["+
+            Class.class.getName()+"] object type");
+        return new TraceLogger(type);
+    }
+
+    public Logger getLogger() { return logger; }
+
+    public boolean isLoggable(final Level level) { return logger.isLoggable(level); }
+
+    public boolean isInfo() { return logger.isLoggable(Level.INFO); }
+
+    public boolean isFine() { return logger.isLoggable(Level.FINE); }
+
+    public boolean isFinest() { return logger.isLoggable(Level.FINEST); }
+
+    public void log(final Level level,
+                    final TraceId traceId,
+                    final String method,
+                    final String message)
+    {
+        if(logger.isLoggable(level))
+            logger.logp(level, sourceClass, method, format(traceId, method, message));
+    }
+
+    public void log(final Level level,
+                    final TraceId traceId,
+                    final String method,
+                    final String message,
+                    final Throwable t)
+    {
+        if(logger.isLoggable(level))
+            logger.logp(level, sourceClass, method, format(traceId, method, message), t);
+    }
+
+    public void log(final Level level,
+                    final TraceId traceId,
+                    final String method,
+                    final Supplier<String> message)
+    {
+        if(logger.isLoggable(level))
+            logger.logp(level, sourceClass, method, format(traceId, method, message.get()));
+    }
+
+    public void log(final Level level,
+                    final TraceId traceId,
+                    final String method,
+                    final Supplier<String> message,
+                    final Throwable t)
+    {
+        if(logger.isLoggable(level))
+            logger.logp(level, sourceClass, method, format(traceId, method, message.get()), t);
+    }
+
+    public void severe(final TraceId traceId, final String method, final String message, final Throwable t) { log(Level.SEVERE, traceId, method, message, t); }
+
+    public void warning(final TraceId traceId, final String method, final String message) { log(Level.WARNING, traceId, method, message); }
+
+    public void warning(final TraceId traceId, final String method, final String message, final Throwable t) { log(Level.WARNING, traceId, method, message, t); }
+
+    public void info(final TraceId traceId, final String method, final String message) { log(Level.INFO, traceId, method, message); }
+
+    public void info(final TraceId traceId, final String method, final Supplier<String> message) { log(Level.INFO, traceId, method, message); }
+
+    public void fine(final TraceId traceId, final String method, final String message) { log(Level.FINE, traceId, method, message); }
+
+    public void fine(final TraceId traceId, final String method, final Supplier<String> message) { log(Level.FINE, traceId, method, message); }
+
+    public void finest(final TraceId traceId, final String method, final String message) { log(Level.FINEST, traceId, method, message); }
+
+    public void finest(final TraceId traceId, final String method, final Supplier<String> message) { log(Level.FINEST, traceId, method, message); }
+
+    public void enters(final TraceId traceId, final String method) { log(Level.FINER, traceId, method, "enters"); }
+
+    public void exits(final TraceId traceId, final String method) { log(Level.FINER, traceId, method, "exits"); }
+
+    private static String format(final TraceId traceId,
+                                 final String method,
+                                 final String message)
+    {
+        return new StringBuilder(message.length()+method.length()+40)
+            .append("# ").append(traceId!=null?traceId.getId():null).append(" # ")
+            .append(method).append("() : ").append(message)
+            .toString();
+    }
+}
@@ -0,0 +1,184 @@
+package org.axelfox.common.util;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Span of a trace; a named, timed step of a {@link TraceId} run, child of
+ * another span unless it is the root one. Spans are timed with
+ * {@link System#nanoTime()} and recorded to their {@link SpanRecorder} on
+ * {@link #end()}, once.
+ * <p>
+ * With no (or a disabled) recorder {@link #NOOP} is handed out instead; it
+ * is never timed nor recorded and its children are {@link #NOOP} again, so
+ * instrumented code costs next to nothing while tracing is off.
+ * @author christopher
+ */
+public final class TraceSpan
+       implements Closeable
+{
+    /** Span that records nothing. */
+    public static final TraceSpan NOOP = new TraceSpan(null, null, 0l, 0l, null, null, 0l, false);
+
+    private static final long NOT_ENDED = -1l;
+    private static final AtomicLongFieldUpdater<TraceSpan> DURATION =
+    AtomicLongFieldUpdater.newUpdater(TraceSpan.class, "durationNanos");
+
+    private final SpanRecorder recorder;
+    private final TraceId traceId;
+    private final long spanId;
+    private final long parentId;
+    private final String name;
+    private final String detail;
+    private final long startNanos;
+    private final long threadId;
+    private final Object event; // flight recorder event, begun with the span
+    private volatile long durationNanos = NOT_ENDED;
+    long sequence; // set by the recorder
+
+    private TraceSpan(final SpanRecorder recorder,
+                      final TraceId traceId,
+                      final long spanId,
+                      final long parentId,
+                      final String name,
+                      final String detail,
+                      final long startNanos,
+                      final boolean live)
+    {
+        this.recorder = recorder;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.name = name;
+        this.detail = detail;
+        this.startNanos = startNanos;
+        this.threadId = recorder!=null?Thread.currentThread().getId():0l;
+        this.event = live&&recorder!=null&&recorder.isJfrEnabled()?TraceSpanEvent.startEvent():null;
+    }
+
+    /**
+     * Start a root span.
+     * @param recorder                          Recorder to record to; {@code null}
+     *                                          (or disabled) for {@link #NOOP}.
+     * @param traceId                           Trace the span is a step of.
+     * @param name                              Span name, e.g. the step or method.
+     * @param detail                            Optional detail, e.g. the file path.
+     * @return                                  Started span.
+     */
+    public static TraceSpan start(final SpanRecorder recorder,
+                                  final TraceId traceId,
+                                  final String name,
+                                  final String detail)
+    {
+        if(recorder==null||!recorder.isEnabled())
+            return NOOP;
+        if(traceId==null)
+            throw new IllegalArgumentException("Bad parameter [traceId] is null; expecting ["+
+            TraceId.class.getName()+"] object type");
+        if(name==null)
+            throw new IllegalArgumentException("Bad parameter [name] is null; expecting span name");
+        return new TraceSpan(recorder, traceId, nextId(), 0l, name, detail, System.nanoTime(), true);
+    }
+
+    /**
+     * Start a child span of this one.
+     * @param name                              Span name.
+     * @param detail                            Optional detail.
+     * @return                                  Started span; {@link #NOOP} if
+     *                                          this one is.
+     */
+    public TraceSpan child(final String name,
+                           final String detail)
+    {
+        if(recorder==null)
+            return NOOP;
+        return new TraceSpan(recorder, traceId, nextId(), spanId, name, detail, System.nanoTime(), true);
+    }
+
+    /**
+     * Record a child span of this one for a step timed elsewhere, e.g. on a
+     * background thread.
+     * @param name                              Span name.
+     * @param detail                            Optional detail.
+     * @param startNanos                        Start, as of {@link System#nanoTime()}.
+     * @param durationNanos                     Duration.
+     */
+    public void record(final String name,
+                       final String detail,
+                       final long startNanos,
+                       final long durationNanos)
+    {
+        if(recorder==null)
+            return;
+        final TraceSpan span = new TraceSpan(recorder, traceId, nextId(), spanId, name, detail, startNanos, false);
+        span.durationNanos = Math.max(0l, durationNanos);
+        recorder.record(span);
+    }
+
+    /**
+     * End and record the span; only the first call counts.
+     * @return                                  Duration in nanoseconds.
+     */
+    public long end()
+    {
+        if(recorder==null)
+            return 0l;
+        final long duration = Math.max(0l, System.nanoTime()-startNanos);
+        if(!DURATION.compareAndSet(this, NOT_ENDED, duration))
+            return durationNanos;
+        if(event!=null)
+            TraceSpanEvent.commitEvent(event, this);
+        recorder.record(this);
+        return duration;
+    }
+
+    @Override
+    public void close() { end(); }
+
+    /**
+     * Determine if the span is timed and recorded, i.e. not {@link #NOOP}.
+     */
+    public boolean isRecording() { return recorder!=null; }
+
+    public TraceId getTraceId() { return traceId; }
+
+    public long getSpanId() { return spanId; }
+
+    /**
+     * Parent span ID; 0 for the root span.
+     */
+    public long getParentId() { return parentId; }
+
+    public String getName() { return name; }
+
+    public String getDetail() { return detail; }
+
+    /**
+     * Start, as of {@link System#nanoTime()}.
+     */
+    public long getStartNanos() { return startNanos; }
+
+    /**
+     * Duration; -1 until ended.
+     */
+    public long getDurationNanos() { return durationNanos; }
+
+    /**
+     * ID of the thread the span was started on.
+     */
+    public long getThreadId() { return threadId; }
+
+    @Override
+    public String toString()
+    {
+        return "["+name+(detail!=null?" "+detail:"")+"] "+(durationNanos!=NOT_ENDED?durationNanos+" ns":"(running)");
+    }
+
+    private static long nextId()
+    {
+        long id;
+        do { id = ThreadLocalRandom.current().nextLong(); } while(id==0l);
+        return id;
+    }
+}
@@ -0,0 +1,154 @@
+package org.axelfox.common.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flight recorder event of a {@link TraceSpan} ({@code org.axelfox.TraceSpan}).
+ * <p>
+ * The event type is defined with {@code jdk.jfr.EventFactory} and driven by
+ * reflection, so that nothing here links against {@code jdk.jfr} and the
+ * module still compiles and runs on a 1.8 JDK without the flight recorder;
+ * there {@link #isAvailable()} is {@code false}.
+ * @author christopher
+ */
+final class TraceSpanEvent
+{
+    private static final int NAME = 0;
+    private static final int DETAIL = 1;
+    private static final int TRACE_ID = 2;
+    private static final int SPAN_ID = 3;
+    private static final int PARENT_ID = 4;
+    private static final int SPAN_DURATION = 5;
+
+    private static final Object factory;
+    private static final Method newEvent;
+    private static final Method isEnabled;
+    private static final Method begin;
+    private static final Method end;
+    private static final Method shouldCommit;
+    private static final Method set;
+    private static final Method commit;
+
+    static
+    {
+        Object _factory = null;
+        Method _newEvent = null, _isEnabled = null, _begin = null, _end = null, _shouldCommit = null, _set = null, _commit = null;
+        try
+        {
+            final Class<?> eventType = Class.forName("jdk.jfr.Event");
+            final Class<?> factoryType = Class.forName("jdk.jfr.EventFactory");
+            final List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation("jdk.jfr.Name", "org.axelfox.TraceSpan"));
+            annotations.add(annotation("jdk.jfr.Label", "Trace Span"));
+            annotations.add(annotation("jdk.jfr.Category", new String[]{"AxelFox", "Trace"}));
+            annotations.add(annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+            // in the order of the field indexes
+            final List<Object> fields = Arrays.asList(
+                field(String.class, "name", "Name", null),
+                field(String.class, "detail", "Detail", null),
+                field(String.class, "traceId", "Trace ID", null),
+                field(long.class, "spanId", "Span ID", null),
+                field(long.class, "parentId", "Parent Span ID", null),
+                field(long.class, "spanDuration", "Span Duration", "NANOSECONDS")
+            );
+            _factory = factoryType.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            _newEvent = factoryType.getMethod("newEvent");
+            _isEnabled = eventType.getMethod("isEnabled");
+            _begin = eventType.getMethod("begin");
+            _end = eventType.getMethod("end");
+            _shouldCommit = eventType.getMethod("shouldCommit");
+            _set = eventType.getMethod("set", int.class, Object.class);
+            _commit = eventType.getMethod("commit");
+        }
+        catch(Throwable t)
+        {
+            _factory = null; // no flight recorder in this JDK
+        }
+        factory = _factory;
+        newEvent = _newEvent;
+        isEnabled = _isEnabled;
+        begin = _begin;
+        end = _end;
+        shouldCommit = _shouldCommit;
+        set = _set;
+        commit = _commit;
+    }
+
+    private TraceSpanEvent() {}
+
+    /**
+     * Determine if the JDK has the flight recorder event API.
+     */
+    static boolean isAvailable() { return factory!=null; }
+
+    /**
+     * Begin an event for a span being started.
+     * @return                                  The event, or {@code null} if
+     *                                          no recording wants it.
+     */
+    static Object startEvent()
+    {
+        if(factory==null)
+            return null;
+        try
+        {
+            final Object event = newEvent.invoke(factory);
+            if(!(Boolean)isEnabled.invoke(event))
+                return null;
+            begin.invoke(event);
+            return event;
+        }
+        catch(Throwable t)
+        {
+            return null;
+        }
+    }
+
+    static void commitEvent(final Object event,
+                            final TraceSpan span)
+    {
+        try
+        {
+            end.invoke(event);
+            if(!(Boolean)shouldCommit.invoke(event))
+                return;
+            set.invoke(event, NAME, span.getName());
+            set.invoke(event, DETAIL, span.getDetail());
+            set.invoke(event, TRACE_ID, span.getTraceId().getId());
+            set.invoke(event, SPAN_ID, span.getSpanId());
+            set.invoke(event, PARENT_ID, span.getParentId());
+            set.invoke(event, SPAN_DURATION, span.getDurationNanos());
+            commit.invoke(event);
+        }
+        catch(Throwable t) {} // tracing never fails the traced
+    }
+
+    private static Object annotation(final String type,
+                                     final Object value)
+            throws Exception
+    {
+        final Class<?> elementType = Class.forName("jdk.jfr.AnnotationElement");
+        final Constructor<?> constructor = elementType.getConstructor(Class.class, Object.class);
+        return constructor.newInstance(Class.forName(type), value);
+    }
+
+    private static Object field(final Class<?> type,
+                                final String name,
+                                final String label,
+                                final String timespan)
+            throws Exception
+    {
+        final List<Object> annotations = new ArrayList<>();
+        annotations.add(annotation("jdk.jfr.Label", label));
+        if(timespan!=null)
+            annotations.add(annotation("jdk.jfr.Timespan", timespan));
+        final Class<?> descriptorType = Class.forName("jdk.jfr.ValueDescriptor");
+        final Constructor<?> constructor = descriptorType.getConstructor(Class.class, String.class, List.class);
+        return constructor.newInstance(type, name, Collections.unmodifiableList(annotations));
+    }
+}
@@ -0,0 +1,306 @@
+package org.axelfox.common.util.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Chunked views of content, for reading inputs of any size with a constant
+ * heap:
+ * <ul>
+ *   <li>{@link #of(FileChannel, long, long, int, boolean)} splits a file into
+ *       fixed size chunks, read with positional reads (or mapped) so that the
+ *       chunks can be split off and read in parallel;</li>
+ *   <li>{@link #of(ReadableByteChannel, int)} reads any channel in order;</li>
+ *   <li>{@link #decode(Spliterator, Charset)} decodes byte chunks to character
+ *       chunks, carrying byte sequences cut by a chunk boundary over to the
+ *       next chunk.</li>
+ * </ul>
+ * Every chunk is a buffer of its own, position to limit; the channels are
+ * never closed here.
+ * @author christopher
+ */
+public final class ContentChunks
+{
+    private ContentChunks() {}
+
+    /**
+     * Splittable chunks of a file region.
+     * @param channel                           File channel; positional reads
+     *                                          only, so it may be shared.
+     * @param from                              Region start offset.
+     * @param to                                Region end offset (exclusive).
+     * @param chunkSize                         Chunk size in bytes.
+     * @param mapped                            {@code true} for read-only
+     *                                          mapped chunks, {@code false}
+     *                                          for heap copies.
+     * @return                                  Byte chunks.
+     */
+    public static Spliterator<ByteBuffer> of(final FileChannel channel,
+                                             final long from,
+                                             final long to,
+                                             final int chunkSize,
+                                             final boolean mapped)
+    {
+        if(channel==null)
+            throw new IllegalArgumentException("Bad parameter [channel] is null; expecting ["+
+            FileChannel.class.getName()+"] object type");
+        if(chunkSize<=0)
+            throw new IllegalArgumentException("Bad parameter [chunkSize] is not a valid size ["+
+            chunkSize+"]; expecting [1] or greater");
+        if(from<0||to<from)
+            throw new IllegalArgumentException("Bad parameter [from, to] is not a valid region ["+
+            from+", "+to+"]");
+        return new FileChunks(channel, from, to, chunkSize, mapped);
+    }
+
+    /**
+     * Sequential chunks of a channel, read until the end of stream.
+     * @param channel                           Channel to read.
+     * @param chunkSize                         Maximum chunk size in bytes.
+     * @return                                  Byte chunks.
+     */
+    public static Spliterator<ByteBuffer> of(final ReadableByteChannel channel,
+                                             final int chunkSize)
+    {
+        if(channel==null)
+            throw new IllegalArgumentException("Bad parameter [channel] is null; expecting ["+
+            ReadableByteChannel.class.getName()+"] object type");
+        if(chunkSize<=0)
+            throw new IllegalArgumentException("Bad parameter [chunkSize] is not a valid size ["+
+            chunkSize+"]; expecting [1] or greater");
+        return new ChannelChunks(channel, chunkSize);
+    }
+
+    /**
+     * Decode byte chunks to character chunks, in order; malformed input is
+     * replaced.
+     * @param bytes                             Byte chunks.
+     * @param charset                           Content charset.
+     * @return                                  Character chunks.
+     */
+    public static Spliterator<CharBuffer> decode(final Spliterator<ByteBuffer> bytes,
+                                                 final Charset charset)
+    {
+        if(bytes==null)
+            throw new IllegalArgumentException("Bad parameter [bytes] is null; expecting ["+
+            Spliterator.class.getName()+"] object type");
+        if(charset==null)
+            throw new IllegalArgumentException("Bad parameter [charset] is null; expecting ["+
+            Charset.class.getName()+"] object type");
+        return new CharChunks(bytes, charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * Quietly close the channel; for {@link java.util.stream.Stream#onClose(Runnable)}.
+     */
+    public static Runnable closer(final Closeable channel)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run() { try { channel.close(); } catch(Throwable t) {} }
+        };
+    }
+
+    private static final class FileChunks
+            implements Spliterator<ByteBuffer>
+    {
+        private final FileChannel channel;
+        private final int chunkSize;
+        private final boolean mapped;
+        private long position;
+        private final long end;
+
+        private FileChunks(final FileChannel channel,
+                           final long position,
+                           final long end,
+                           final int chunkSize,
+                           final boolean mapped)
+        {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.mapped = mapped;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super ByteBuffer> action)
+        {
+            if(position>=end)
+                return false;
+            final int length = (int)Math.min(chunkSize, end-position);
+            ByteBuffer chunk;
+            try
+            {
+                if(mapped)
+                    chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                else
+                {
+                    chunk = ByteBuffer.allocate(length);
+                    while(chunk.hasRemaining())
+                    {
+                        if(channel.read(chunk, position+chunk.position())<0)
+                            break; // shrunk while reading
+                    }
+                    chunk.flip();
+                }
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            position += length;
+            action.accept(chunk);
+            return true;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit()
+        {
+            // split on a chunk boundary so that both halves yield the same chunks as a whole
+            final long chunks = estimateSize();
+            if(chunks<2)
+                return null;
+            final long middle = position+(chunks/2)*chunkSize;
+            final FileChunks prefix = new FileChunks(channel, position, middle, chunkSize, mapped);
+            position = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() { return (end-position+chunkSize-1)/chunkSize; }
+
+        @Override
+        public int characteristics() { return ORDERED|SIZED|SUBSIZED|NONNULL|IMMUTABLE; }
+    }
+
+    private static final class ChannelChunks
+            implements Spliterator<ByteBuffer>
+    {
+        private final ReadableByteChannel channel;
+        private final int chunkSize;
+        private boolean ended;
+
+        private ChannelChunks(final ReadableByteChannel channel,
+                              final int chunkSize)
+        {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super ByteBuffer> action)
+        {
+            if(ended)
+                return false;
+            final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+            try
+            {
+                while(chunk.hasRemaining())
+                {
+                    if(channel.read(chunk)<0)
+                    {
+                        ended = true;
+                        break;
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            chunk.flip();
+            if(!chunk.hasRemaining())
+                return false;
+            action.accept(chunk);
+            return true;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() { return null; }
+
+        @Override
+        public long estimateSize() { return Long.MAX_VALUE; }
+
+        @Override
+        public int characteristics() { return ORDERED|NONNULL; }
+    }
+
+    private static final class CharChunks
+            implements Spliterator<CharBuffer>, Consumer<ByteBuffer>
+    {
+        private final Spliterator<ByteBuffer> bytes;
+        private final CharsetDecoder decoder;
+        private ByteBuffer next;
+        private ByteBuffer carry;
+        private boolean ended;
+
+        private CharChunks(final Spliterator<ByteBuffer> bytes,
+                           final CharsetDecoder decoder)
+        {
+            this.bytes = bytes;
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void accept(final ByteBuffer chunk) { next = chunk; }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super CharBuffer> action)
+        {
+            while(!ended)
+            {
+                next = null;
+                final boolean endOfInput = !bytes.tryAdvance(this);
+                ByteBuffer in = next!=null?next:ByteBuffer.allocate(0);
+                if(carry!=null&&carry.hasRemaining())
+                {
+                    // a sequence cut by the previous chunk boundary; a few bytes at most
+                    final ByteBuffer joined = ByteBuffer.allocate(carry.remaining()+in.remaining());
+                    joined.put(carry).put(in).flip();
+                    in = joined;
+                }
+                final CharBuffer out = CharBuffer.allocate((int)(in.remaining()*(double)decoder.maxCharsPerByte())+4);
+                decoder.decode(in, out, endOfInput);
+                if(endOfInput)
+                {
+                    decoder.flush(out);
+                    decoder.reset();
+                    ended = true;
+                }
+                carry = in.hasRemaining()?ByteBuffer.allocate(in.remaining()).put(in):null;
+                if(carry!=null)
+                    carry.flip();
+                out.flip();
+                if(out.hasRemaining())
+                {
+                    action.accept(out);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<CharBuffer> trySplit() { return null; }
+
+        @Override
+        public long estimateSize() { return bytes.estimateSize(); }
+
+        @Override
+        public int characteristics() { return ORDERED|NONNULL; }
+    }
+}
@@ -0,0 +1,271 @@
+package org.axelfox.common.util.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Pure Java text/binary sniffer; only a small prefix of the file is read and
+ * checked, in order, for:
+ * <ol>
+ *   <li>a byte order mark (UTF-8, UTF-16 or UTF-32): text in that charset;</li>
+ *   <li>NUL bytes: binary;</li>
+ *   <li>valid UTF-8 (ASCII included): text in UTF-8;</li>
+ *   <li>otherwise text in an unknown 8-bit charset, unless more than one in
+ *       ten bytes are control characters: binary.</li>
+ * </ol>
+ * The line separator style is taken from the first line break in the prefix,
+ * in code units of the charset. Verdicts are cached by path and re-sniffed
+ * when the file size or last modified time change.
+ * @author christopher
+ */
+public final class ContentTypeSniffer
+{
+    private static final TraceLogger log = TraceLogger.getLogger(ContentTypeSniffer.class);
+    private static final int prefixSize = 4*1024;
+    private static final int cacheCapacity = 64*1024;
+    private static final ConcurrentMap<String, Verdict> cache = new ConcurrentHashMap<>();
+    private static final ThreadLocal<ByteBuffer> prefixBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue() { return ByteBuffer.allocate(prefixSize); }
+    };
+
+    public static final String MIMETYPE_TEXT = "text/plain";
+    public static final String MIMETYPE_BINARY = "application/octet-stream";
+
+    public static final Verdict BINARY = new Verdict(false, null, 0, null, -1l, -1l);
+    public static final Verdict TEXT = new Verdict(true, null, 0, null, -1l, -1l);
+
+    private ContentTypeSniffer() {}
+
+    /**
+     * Immutable sniffing verdict.
+     */
+    public static final class Verdict
+    {
+        private final boolean text;
+        private final Charset charset;
+        private final int bomLength;
+        private final String newline;
+        private final long size;
+        private final long lastModified;
+
+        private Verdict(final boolean text,
+                        final Charset charset,
+                        final int bomLength,
+                        final String newline,
+                        final long size,
+                        final long lastModified)
+        {
+            this.text = text;
+            this.charset = charset;
+            this.bomLength = bomLength;
+            this.newline = newline;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isText() { return text; }
+
+        public String getMimeType() { return text?MIMETYPE_TEXT:MIMETYPE_BINARY; }
+
+        /**
+         * Charset as per the byte order mark or UTF-8 validity; {@code null}
+         * if unknown (or binary).
+         */
+        public Charset getCharset() { return charset; }
+
+        /**
+         * Length of the byte order mark, {@code 0} if there's none.
+         */
+        public int getBomLength() { return bomLength; }
+
+        /**
+         * Line separator of the first line break, {@code \r\n}, {@code \n} or
+         * {@code \r}; {@code null} if there's none in the prefix (or binary).
+         */
+        public String getNewline() { return newline; }
+
+        private Verdict of(final long size,
+                           final long lastModified)
+        {
+            return new Verdict(text, charset, bomLength, newline, size, lastModified);
+        }
+
+        @Override
+        public String toString()
+        {
+            return getMimeType()+(charset!=null?"; charset="+charset.name():"")+
+            (bomLength>0?"; bom="+bomLength:"")+
+            (newline!=null?"; newline="+(newline.equals("\r\n")?"CRLF":newline.equals("\r")?"CR":"LF"):"");
+        }
+    }
+
+    /**
+     * Sniff the file, from cache if unchanged since last sniffed.
+     * @param traceIdRef                        Trace ID reference.
+     * @param file                              File to sniff.
+     * @return                                  Verdict.
+     * @throws IOException                      If the file can't be read.
+     */
+    public static Verdict sniff(final TraceId traceIdRef,
+                                final Path file)
+           throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        final long size = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final String key = file.toAbsolutePath().toString();
+        final Verdict cached = cache.get(key);
+        if(cached!=null&&cached.size==size&&cached.lastModified==lastModified)
+            return cached;
+
+        final ByteBuffer prefix = prefixBuffer.get();
+        prefix.clear();
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            while(prefix.hasRemaining()&&channel.read(prefix)>=0);
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+        prefix.flip();
+        final Verdict verdict = sniff(prefix, size>prefix.limit()).of(size, lastModified);
+        if(cache.size()>=cacheCapacity) // a run over a huge tree; start over rather than grow
+            cache.clear();
+        cache.put(key, verdict);
+        if(log.isFine())
+            log.fine(traceIdRef, "sniff", "File ["+file+"] sniffed as ["+verdict+"]");
+        return verdict;
+    }
+
+    /**
+     * Sniff the content prefix; absolute gets, the buffer is left untouched.
+     * @param prefix                            Content prefix, position to limit.
+     * @param truncated                         {@code true} if there's more
+     *                                          content after the prefix.
+     * @return                                  Verdict.
+     */
+    public static Verdict sniff(final ByteBuffer prefix,
+                                final boolean truncated)
+    {
+        final int from = prefix.position();
+        final int n = prefix.limit()-from;
+        if(n==0)
+            return TEXT;
+
+        // byte order marks; UTF-32LE before UTF-16LE as they share FF FE
+        final int b0 = n>0?prefix.get(from)&0xff:-1;
+        final int b1 = n>1?prefix.get(from+1)&0xff:-1;
+        final int b2 = n>2?prefix.get(from+2)&0xff:-1;
+        final int b3 = n>3?prefix.get(from+3)&0xff:-1;
+        if(b0==0xef&&b1==0xbb&&b2==0xbf)
+            return new Verdict(true, Charset.forName("UTF-8"), 3, newline(prefix, from+3, 1, false), -1l, -1l);
+        if(b0==0x00&&b1==0x00&&b2==0xfe&&b3==0xff)
+            return new Verdict(true, Charset.forName("UTF-32BE"), 4, newline(prefix, from+4, 4, true), -1l, -1l);
+        if(b0==0xff&&b1==0xfe&&b2==0x00&&b3==0x00)
+            return new Verdict(true, Charset.forName("UTF-32LE"), 4, newline(prefix, from+4, 4, false), -1l, -1l);
+        if(b0==0xfe&&b1==0xff)
+            return new Verdict(true, Charset.forName("UTF-16BE"), 2, newline(prefix, from+2, 2, true), -1l, -1l);
+        if(b0==0xff&&b1==0xfe)
+            return new Verdict(true, Charset.forName("UTF-16LE"), 2, newline(prefix, from+2, 2, false), -1l, -1l);
+
+        int controls = 0;
+        boolean utf8 = true;
+        for(int i=from;i<from+n;)
+        {
+            final int b = prefix.get(i)&0xff;
+            if(b==0x00)
+                return BINARY;
+            if(b<0x80)
+            {
+                if(b<0x20&&b!='\t'&&b!='\n'&&b!='\r'&&b!='\f'&&b!='\b'&&b!=0x1b)
+                    controls++;
+                i++;
+                continue;
+            }
+            if(!utf8)
+            {
+                i++;
+                continue;
+            }
+            // lead byte; overlongs (C0, C1) and beyond U+10FFFF (F5+) are invalid
+            final int length = b>=0xc2&&b<=0xdf?2:b>=0xe0&&b<=0xef?3:b>=0xf0&&b<=0xf4?4:0;
+            if(length==0)
+            {
+                utf8 = false;
+                i++;
+                continue;
+            }
+            if(i+length>from+n) // cut by the prefix; only an error if that's the end of the file
+            {
+                for(int j=i+1;j<from+n;j++)
+                    if((prefix.get(j)&0xc0)!=0x80)
+                        utf8 = false;
+                if(!truncated)
+                    utf8 = false;
+                break;
+            }
+            for(int j=1;j<length;j++)
+            {
+                if((prefix.get(i+j)&0xc0)!=0x80)
+                {
+                    utf8 = false;
+                    break;
+                }
+            }
+            i += utf8?length:1;
+        }
+        if(controls*10>n)
+            return BINARY;
+        return new Verdict(true, utf8?Charset.forName("UTF-8"):null, 0, newline(prefix, from, 1, false), -1l, -1l);
+    }
+
+    /**
+     * The first line break, in code units of {@code unit} bytes; CR and LF are
+     * single units in every charset we detect.
+     */
+    private static String newline(final ByteBuffer prefix,
+                                  final int from,
+                                  final int unit,
+                                  final boolean bigEndian)
+    {
+        final int to = prefix.limit()-prefix.limit()%unit;
+        for(int i=from;i+unit<=to;i+=unit)
+        {
+            final int c = unit(prefix, i, unit, bigEndian);
+            if(c=='\n')
+                return "\n";
+            if(c=='\r')
+            {
+                if(i+2*unit>to) // can't tell; CR at the end of the prefix
+                    return null;
+                return unit(prefix, i+unit, unit, bigEndian)=='\n'?"\r\n":"\r";
+            }
+        }
+        return null;
+    }
+
+    private static int unit(final ByteBuffer prefix,
+                            final int index,
+                            final int unit,
+                            final boolean bigEndian)
+    {
+        int c = 0;
+        for(int i=0;i<unit;i++)
+            c |= (prefix.get(index+i)&0xff)<<(8*(bigEndian?unit-1-i:i));
+        return c;
+    }
+}
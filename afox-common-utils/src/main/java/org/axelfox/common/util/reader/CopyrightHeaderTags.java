@@ -0,0 +1,224 @@
+package org.axelfox.common.util.reader;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The supported copyright header <code>{...}</code> tags:
+ * <ul>
+ *   <li>static tags, the same for every target; <code>{current.year}</code>
+ *       and a handful of system properties (e.g. <code>{user.name}</code>);</li>
+ *   <li>file tags, resolved per target file; <code>{file.name}</code>,
+ *       <code>{file.extension}</code>, <code>{file.created.year}</code> and
+ *       <code>{file.modified.year}</code>.</li>
+ * </ul>
+ * Values are resolved lazily; only the tags a template actually uses are
+ * ever resolved, and static tags are resolved again on every lookup so that
+ * e.g. the current year is current for long running processes.
+ * <p>
+ * Note that writing a header gives the target new file times, so a header
+ * using the time based file tags renders differently on a re-run; the writer
+ * therefore recognizes a header with file tags already in a target by its
+ * other content, whatever the file tag values.
+ * @author christopher
+ */
+public final class CopyrightHeaderTags
+{
+    /**
+     * Static tag value provider.
+     */
+    public interface StaticTag
+    {
+        String resolve();
+    }
+
+    /**
+     * Per target file tag value provider.
+     */
+    public interface FileTag
+    {
+        /**
+         * @param file                      Target file.
+         * @param attributes                Target file attributes.
+         * @return                          Tag value, or {@code null} if it
+         *                                  does not apply to the file.
+         */
+        String resolve(Path file,
+                       BasicFileAttributes attributes);
+    }
+
+    private static final Map<String, StaticTag> staticTags;
+    private static final Map<String, FileTag> fileTags;
+    private static final Map<String, String> staticTagValues;
+
+    static
+    {
+        final Map<String, StaticTag> _staticTags = new LinkedHashMap<>();
+        _staticTags.put("{current.year}", new StaticTag()
+        {
+            @Override
+            public String resolve() { return String.valueOf(Calendar.getInstance().get(Calendar.YEAR)); }
+        });
+        // https://docs.oracle.com/javase/tutorial/essential/environment/sysprop.html
+        final String[] sysprops = {
+            "file.separator",
+            "java.class.path",
+            "java.home",
+            "java.vendor",
+            "java.vendor.url",
+            "java.version",
+            "line.separator",
+            "os.arch",
+            "os.name",
+            "os.version",
+            "path.separator",
+            "user.dir",
+            "user.home",
+            "user.name",
+        };
+        for(final String sysprop:sysprops)
+        {
+            _staticTags.put("{"+sysprop+"}", new StaticTag()
+            {
+                @Override
+                public String resolve() { return System.getProperty(sysprop); }
+            });
+        }
+        staticTags = Collections.unmodifiableMap(_staticTags);
+
+        final Map<String, FileTag> _fileTags = new LinkedHashMap<>();
+        _fileTags.put("{file.name}", new FileTag()
+        {
+            @Override
+            public String resolve(final Path file,
+                                  final BasicFileAttributes attributes)
+            {
+                return file.getFileName()!=null?file.getFileName().toString():null;
+            }
+        });
+        _fileTags.put("{file.extension}", new FileTag()
+        {
+            @Override
+            public String resolve(final Path file,
+                                  final BasicFileAttributes attributes)
+            {
+                final String name = file.getFileName()!=null?file.getFileName().toString():"";
+                final int extIdx = name.lastIndexOf('.');
+                return extIdx>=0?name.substring(extIdx+1):null;
+            }
+        });
+        _fileTags.put("{file.created.year}", new FileTag()
+        {
+            @Override
+            public String resolve(final Path file,
+                                  final BasicFileAttributes attributes)
+            {
+                return year(attributes!=null?attributes.creationTime():null);
+            }
+        });
+        _fileTags.put("{file.modified.year}", new FileTag()
+        {
+            @Override
+            public String resolve(final Path file,
+                                  final BasicFileAttributes attributes)
+            {
+                return year(attributes!=null?attributes.lastModifiedTime():null);
+            }
+        });
+        fileTags = Collections.unmodifiableMap(_fileTags);
+
+        staticTagValues = new StaticTagValues();
+    }
+
+    private CopyrightHeaderTags() {}
+
+    /**
+     * Read-only view of the static tags (braces included) to their values;
+     * a value is only resolved when it is looked up.
+     */
+    public static Map<String, String> getStaticTags() { return staticTagValues; }
+
+    public static Set<String> getFileTags() { return fileTags.keySet(); }
+
+    public static boolean isFileTag(final String tag) { return fileTags.containsKey(tag); }
+
+    /**
+     * Resolve a file tag.
+     * @param tag                               File tag, braces included.
+     * @param file                              Target file.
+     * @param attributes                        Target file attributes.
+     * @return                                  Tag value, or {@code null} if
+     *                                          not a file tag or it does not
+     *                                          apply to the file.
+     */
+    public static String resolve(final String tag,
+                                 final Path file,
+                                 final BasicFileAttributes attributes)
+    {
+        final FileTag fileTag = fileTags.get(tag);
+        return fileTag!=null?fileTag.resolve(file, attributes):null;
+    }
+
+    private static String year(final FileTime time)
+    {
+        if(time==null)
+            return null;
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time.toMillis());
+        return String.valueOf(calendar.get(Calendar.YEAR));
+    }
+
+    private static final class StaticTagValues
+            extends AbstractMap<String, String>
+    {
+        @Override
+        public boolean containsKey(final Object key) { return staticTags.containsKey(key); }
+
+        @Override
+        public String get(final Object key)
+        {
+            final StaticTag staticTag = staticTags.get(key);
+            return staticTag!=null?staticTag.resolve():null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet()
+        {
+            return new AbstractSet<Map.Entry<String, String>>()
+            {
+                @Override
+                public int size() { return staticTags.size(); }
+
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator()
+                {
+                    final Iterator<Map.Entry<String, StaticTag>> iterator = staticTags.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, String>>()
+                    {
+                        @Override
+                        public boolean hasNext() { return iterator.hasNext(); }
+
+                        @Override
+                        public Map.Entry<String, String> next()
+                        {
+                            final Map.Entry<String, StaticTag> entry = iterator.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue().resolve());
+                        }
+
+                        @Override
+                        public void remove() { throw new UnsupportedOperationException(); }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.axelfox.common.util.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Immutable, parsed copyright header template file:
+ * <pre>
+ *   &#64;&#64;CWT|java,js&#64;&#64;
+ *   /&#42;&#42;
+ *    &#42; Copyright [2006] - [{current.year}] ...
+ * </pre>
+ * i.e. its mime type verdict, the {@code @@CWT|...@@} header line and the
+ * extensions it binds, the body and the positions of the <code>{...}</code> tags
+ * in it. The file is read once; templates are cached by path and re-parsed
+ * only when the file size or last modified time change, so that the content
+ * filter and the writer share the same parse. Templates bundled as classpath
+ * resources (e.g. in a jar) are parsed once per resource URL.
+ * @author christopher
+ */
+public final class CopyrightHeaderTemplate
+       implements Serializable
+{
+    private static final long serialVersionUID = 4625309021671503417L;
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightHeaderTemplate.class);
+    private static final Pattern headerPattern = Pattern.compile("^(@@((CWT)\\|(.*))@@)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern tagPattern = Pattern.compile("\\{[^{}\\r\\n]+\\}");
+    private static final Charset charset = Charset.forName("UTF-8");
+    private static final String newline = System.getProperty("line.separator");
+    private static final String mimePlainTextType = "text/plain";
+    private static final ConcurrentMap<String, CopyrightHeaderTemplate> cache = new ConcurrentHashMap<>();
+
+    /**
+     * A <code>{...}</code> tag in the body.
+     */
+    public static final class Tag
+           implements Serializable
+    {
+        private static final long serialVersionUID = -1954021383304839418L;
+
+        private final String name;
+        private final int start;
+        private final int end;
+
+        private Tag(final String name,
+                    final int start,
+                    final int end)
+        {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * The tag as written, braces included; e.g. <code>{current.year}</code>.
+         */
+        public String getName() { return name; }
+
+        /**
+         * Index of the opening brace in the body.
+         */
+        public int getStart() { return start; }
+
+        /**
+         * Index past the closing brace in the body.
+         */
+        public int getEnd() { return end; }
+
+        @Override
+        public String toString() { return name+"@"+start; }
+    }
+
+    private final File file;
+    private final String location;
+    private final long size;
+    private final long lastModified;
+    private final String mimeType;
+    private final boolean plainText;
+    private final String headerLine;
+    private final Set<String> extensions;
+    private final String body;
+    private final List<Tag> tags;
+
+    private CopyrightHeaderTemplate(final File file,
+                                    final String location,
+                                    final long size,
+                                    final long lastModified,
+                                    final String mimeType,
+                                    final boolean plainText,
+                                    final String headerLine,
+                                    final Set<String> extensions,
+                                    final String body,
+                                    final List<Tag> tags)
+    {
+        this.file = file;
+        this.location = location;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.mimeType = mimeType;
+        this.plainText = plainText;
+        this.headerLine = headerLine;
+        this.extensions = extensions;
+        this.body = body;
+        this.tags = tags;
+    }
+
+    /**
+     * Get the template for the file, parsed from cache if the file is unchanged.
+     * @param traceIdRef                        Trace ID reference.
+     * @param templateFile                      Template file.
+     * @return                                  Parsed template.
+     * @throws IOException                      If the file can't be read.
+     */
+    public static CopyrightHeaderTemplate of(final TraceId traceIdRef,
+                                             final File templateFile)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(templateFile==null)
+            throw new IllegalArgumentException("Bad parameter [templateFile] is null; expecting ["+
+            File.class.getName()+"] object type");
+        final File file = templateFile.getCanonicalFile();
+        final String path = file.getPath();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+        final CopyrightHeaderTemplate cached = cache.get(path);
+        if(cached!=null&&cached.size==size&&cached.lastModified==lastModified)
+            return cached;
+        // the mime type is sniffed from a small prefix; the content is only read for plain text
+        final String mimeType = new CopyrightReaderContentHeader(traceId, file).getMimeType();
+        final CopyrightHeaderTemplate template = parse(traceId, file, path, size, lastModified, mimeType,
+        isPlainText(mimeType)?Files.readAllBytes(file.toPath()):null);
+        cache.put(path, template);
+        return template;
+    }
+
+    /**
+     * Get the template for a resource; resources other than {@code file:} ones
+     * (e.g. jar entries) are read once and cached by URL.
+     * @param traceIdRef                        Trace ID reference.
+     * @param resource                          Template resource URL.
+     * @return                                  Parsed template.
+     * @throws IOException                      If the resource can't be read.
+     */
+    public static CopyrightHeaderTemplate of(final TraceId traceIdRef,
+                                             final URL resource)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(resource==null)
+            throw new IllegalArgumentException("Bad parameter [resource] is null; expecting ["+
+            URL.class.getName()+"] object type");
+        if("file".equalsIgnoreCase(resource.getProtocol()))
+        {
+            try { return of(traceId, new File(resource.toURI())); }
+            catch(URISyntaxException e) { throw new IOException("Bad resource URL ["+resource+"]", e); }
+        }
+        final String location = resource.toExternalForm();
+        final CopyrightHeaderTemplate cached = cache.get(location);
+        if(cached!=null)
+            return cached;
+        final URLConnection connection = resource.openConnection();
+        connection.setUseCaches(false);
+        final byte[] content;
+        final InputStream is = connection.getInputStream();
+        try
+        {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int n;
+            while((n=is.read(buffer))>=0)
+                bos.write(buffer, 0, n);
+            content = bos.toByteArray();
+        }
+        finally
+        {
+            try { is.close(); } catch(Throwable t) {}
+        }
+        final String mimeType = ContentTypeSniffer.sniff(ByteBuffer.wrap(content), false).getMimeType();
+        final CopyrightHeaderTemplate template = parse(traceId, null, location, content.length,
+        connection.getLastModified(), mimeType, isPlainText(mimeType)?content:null);
+        cache.put(location, template);
+        return template;
+    }
+
+    private static boolean isPlainText(final String mimeType)
+    {
+        return mimeType!=null&&mimeType.regionMatches(true, 0, mimePlainTextType, 0, mimePlainTextType.length());
+    }
+
+    private static CopyrightHeaderTemplate parse(final TraceId traceId,
+                                                 final File file,
+                                                 final String location,
+                                                 final long size,
+                                                 final long lastModified,
+                                                 final String mimeType,
+                                                 final byte[] bytes)
+    {
+        if(bytes==null) // not a template; not read
+        {
+            if(log.isFine())
+                log.fine(traceId, "parse", "File ["+location+"] mimetype \""+
+                mimeType+"\" is not expected; expecting \""+mimePlainTextType+"\" mimetype");
+            return new CopyrightHeaderTemplate(file, location, size, lastModified, mimeType, false, null,
+            Collections.<String>emptySet(), "", Collections.<Tag>emptyList());
+        }
+        final String text = new String(bytes, charset);
+
+        // lines as per BufferedReader.readLine(), re-joined with the platform line separator
+        final StringBuilder content = new StringBuilder(text.length()+64);
+        String firstLine = null;
+        int lineStart = 0;
+        for(int i=0;i<=text.length();i++)
+        {
+            final char c = i<text.length()?text.charAt(i):'\n';
+            if(c!='\n'&&c!='\r')
+                continue;
+            if(i==text.length()&&lineStart==i) // no trailing partial line
+                break;
+            final String line = text.substring(lineStart, i);
+            if(firstLine==null)
+                firstLine = line;
+            content.append(line).append(newline);
+            if(c=='\r'&&i+1<text.length()&&text.charAt(i+1)=='\n')
+                i++;
+            lineStart = i+1;
+        }
+
+        String headerLine = null;
+        final Set<String> extensions = new LinkedHashSet<>();
+        String body = content.toString();
+        final Matcher headerMatcher = headerPattern.matcher(firstLine!=null?firstLine:"");
+        if(headerMatcher.find())
+        {
+            headerLine = headerMatcher.group(1);
+            for(String extension:headerMatcher.group(4).split(","))
+                extensions.add(extension.trim().toLowerCase());
+            body = body.substring(headerMatcher.end());
+        }
+        else
+            log.warning(traceId, "parse", "First line of template file ["+
+            location+"] did not match to pattern ["+headerPattern.pattern()+"] --- \n\t"+firstLine);
+        body = body.trim();
+
+        final List<Tag> tags = new ArrayList<>();
+        final Matcher tagMatcher = tagPattern.matcher(body);
+        while(tagMatcher.find())
+            tags.add(new Tag(tagMatcher.group(), tagMatcher.start(), tagMatcher.end()));
+        if(log.isFine())
+            log.fine(traceId, "parse", "Parsed template file ["+location+"]; mimetype \""+
+            mimeType+"\", extensions "+extensions+", ["+body.length()+"] body chars, tags "+tags);
+        return new CopyrightHeaderTemplate(file, location, size, lastModified, mimeType, true, headerLine,
+        Collections.unmodifiableSet(extensions), body, Collections.unmodifiableList(tags));
+    }
+
+    /**
+     * The template file; {@code null} for a resource that is not a file.
+     */
+    public File getFile() { return file; }
+
+    /**
+     * Where the template was read from; the canonical file path, or the
+     * resource URL.
+     */
+    public String getLocation() { return location; }
+
+    public long getSize() { return size; }
+
+    public long getLastModified() { return lastModified; }
+
+    public String getMimeType() { return mimeType; }
+
+    /**
+     * Determine if the mime type is {@code text/plain}; only such templates
+     * bind extensions.
+     */
+    public boolean isPlainText() { return plainText; }
+
+    /**
+     * The {@code @@CWT|...@@} header line, or {@code null} if there's none.
+     */
+    public String getHeaderLine() { return headerLine; }
+
+    /**
+     * Bound file extensions (lower case), in order; empty if none.
+     */
+    public Set<String> getExtensions() { return extensions; }
+
+    /**
+     * The body with tags as written; lines separated by the platform line
+     * separator and the whole trimmed.
+     */
+    public String getBody() { return body; }
+
+    public List<Tag> getTags() { return tags; }
+
+    /**
+     * Render the body with tags substituted; unknown tags are left as is.
+     * @param tagValues                         Tag (braces included) to value.
+     * @return                                  Rendered header content.
+     */
+    public String render(final Map<String, String> tagValues)
+    {
+        if(tags.isEmpty()||tagValues==null||tagValues.isEmpty())
+            return body;
+        final StringBuilder rendered = new StringBuilder(body.length()+32);
+        int position = 0;
+        for(Tag tag:tags)
+        {
+            final String value = tagValues.get(tag.name);
+            if(value==null)
+                continue;
+            rendered.append(body, position, tag.start).append(value);
+            position = tag.end;
+        }
+        return rendered.append(body, position, body.length()).toString().trim();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CopyrightHeaderTemplate["+location+", "+mimeType+", "+extensions+", tags "+tags+"]";
+    }
+}
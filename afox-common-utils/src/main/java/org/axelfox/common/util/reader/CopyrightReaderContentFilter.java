@@ -3,9 +3,8 @@ package org.axelfox.common.util.reader;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
 
 /**
  * A default {@link CopyrightWriter} content file filter to use to lookup for 
@@ -15,7 +14,7 @@ import org.axelfox.common.util.TraceId;
 public class CopyrightReaderContentFilter
        implements FileFilter
 {
-    private static final Logger log = Logger.getLogger(CopyrightReaderContentFilter.class.getName());
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightReaderContentFilter.class);
     
     private final TraceId traceIdRef;
     
@@ -25,7 +24,7 @@ public class CopyrightReaderContentFilter
     public boolean accept(final File file)
     {
         final TraceId traceId = new TraceId(traceIdRef);
-        log.info("# "+traceId+" # accept() : enters");
+        log.enters(traceId, "accept");
         boolean accept = false;
         try
         {
@@ -42,12 +41,13 @@ public class CopyrightReaderContentFilter
                 if(!file.isDirectory()) 
                 {
                     if(!file.canRead())
-                        log.warning("# "+traceId+" # accept() : Unable to gain READ access to file ["+
+                        log.warning(traceId, "accept", "Unable to gain READ access to file ["+
                         file.getPath()+"]; can't read file header info");
                     else
                     {
-                        log.info("# "+traceId+" # accept() : Preparing to read file ["+
-                        file.getPath()+"] header info");
+                        if(log.isFine())
+                            log.fine(traceId, "accept", "Preparing to read file ["+
+                            file.getPath()+"] header info");
                         
                         final CopyrightReaderContentHeader copyrightWriterContentHeader = 
                         new CopyrightReaderContentHeader(traceIdRef, file);
@@ -55,21 +55,25 @@ public class CopyrightReaderContentFilter
                         if(bindedFileExtensions.isEmpty())
                         {
                             accept = false;
-                            log.info("# "+traceId+" # accept() : Not accepting file ["+
-                            file.getPath()+"], no binded file extensions found");
+                            if(log.isFine())
+                                log.fine(traceId, "accept", "Not accepting file ["+
+                                file.getPath()+"], no binded file extensions found");
                         }
                         else
                         {
                             accept = true;
-                            final StringBuilder dbgBindedFileExtensions = new StringBuilder();
-                            for(String bindedFileExtension:bindedFileExtensions)
+                            if(log.isFinest())
                             {
-                                dbgBindedFileExtensions.append("\n\t");
-                                dbgBindedFileExtensions.append(bindedFileExtension);
+                                final StringBuilder dbgBindedFileExtensions = new StringBuilder();
+                                for(String bindedFileExtension:bindedFileExtensions)
+                                {
+                                    dbgBindedFileExtensions.append("\n\t");
+                                    dbgBindedFileExtensions.append(bindedFileExtension);
+                                }
+                                log.finest(traceId, "accept", "Accepting file ["+
+                                file.getPath()+"], found ["+bindedFileExtensions.size()+
+                                "] binded file extensions --- "+dbgBindedFileExtensions);
                             }
-                            log.info("# "+traceId+" # accept() : Accepting file ["+
-                            file.getPath()+"], found ["+bindedFileExtensions.size()+
-                            "] binded file extensions --- "+dbgBindedFileExtensions);
                         }
                     }
                 }
@@ -77,23 +81,25 @@ public class CopyrightReaderContentFilter
                 else
                 {
                     accept = true;
-                    log.info("# "+traceId+" # accept() : Explicitly accepting directory type ["+
-                    file.getPath()+"]");
+                    if(log.isFine())
+                        log.fine(traceId, "accept", "Explicitly accepting directory type ["+
+                        file.getPath()+"]");
                 }
             }
             else
-                log.warning("# "+traceId+" # accept() : Parameter [file] is null; expecting ["+
+                log.warning(traceId, "accept", "Parameter [file] is null; expecting ["+
                 File.class.getName()+"] object type");
         }
         catch(Throwable t)
         {
-            log.log(Level.SEVERE, "# "+traceId+" # accept() : Failed to process file ["+
+            log.severe(traceId, "accept", "Failed to process file ["+
             (file!=null?file.getPath():null)+"] to determine if it is accepted", t);
         }
         finally
         {
-            log.info("# "+traceId+" # accept() : Returning is accepted ["+accept+"]");
-            log.info("# "+traceId+" # accept() : exits");
+            if(log.isFine())
+                log.fine(traceId, "accept", "Returning is accepted ["+accept+"]");
+            log.exits(traceId, "accept");
         }
         return accept;
     }
@@ -0,0 +1,265 @@
+package org.axelfox.common.util.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Streams the files of a directory tree to a consumer through a bounded queue.
+ * The tree is walked with {@link Files#walkFileTree(Path, java.util.Set, int, java.nio.file.FileVisitor)}
+ * on a background thread that blocks while the queue is full, so memory stays
+ * flat regardless of the tree size and the consumer can start work as soon as
+ * the first file is found.
+ * <p>
+ * The {@link FileFilter} is applied to files, and to sub-directories to decide
+ * whether to descend into them (the root itself is never filtered). Entries
+ * that can't be read are logged and skipped.
+ * @author christopher
+ */
+public class FileTreeWalker
+       implements Closeable
+{
+    private static final TraceLogger log = TraceLogger.getLogger(FileTreeWalker.class);
+    private static final File endOfWalk = new File(".end-of-walk");
+    private static final AtomicInteger walkerNo = new AtomicInteger();
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TraceId traceIdRef;
+    private final File root;
+    private final FileFilter fileFilter;
+    private final BlockingQueue<File> queue;
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile boolean ended;
+    private volatile Throwable failure;
+    private volatile long startedNanos;
+    private volatile long endedNanos;
+    private Thread thread;
+
+    public FileTreeWalker(final TraceId traceIdRef,
+                          final File root,
+                          final FileFilter fileFilter)
+    {
+        this(traceIdRef, root, fileFilter, DEFAULT_CAPACITY);
+    }
+
+    public FileTreeWalker(final TraceId traceIdRef,
+                          final File root,
+                          final FileFilter fileFilter,
+                          final int capacity)
+    {
+        if(root==null)
+            throw new IllegalArgumentException("Bad parameter [root] is null; expecting ["+
+            File.class.getName()+"] object type");
+        if(capacity<=0)
+            throw new IllegalArgumentException("Bad parameter [capacity] is not a valid capacity ["+
+            capacity+"]; expecting greater than [0]");
+        this.traceIdRef = traceIdRef!=null?new TraceId(traceIdRef):new TraceId();
+        this.root = root;
+        this.fileFilter = fileFilter;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public File getRoot() { return root; }
+
+    /**
+     * Number of files handed to the queue so far.
+     */
+    public long getFound() { return found.get(); }
+
+    /**
+     * Number of entries that could not be visited so far.
+     */
+    public long getFailed() { return failed.get(); }
+
+    /**
+     * When walking started, as of {@link System#nanoTime()}; 0 if not yet.
+     */
+    public long getStartedNanos() { return startedNanos; }
+
+    /**
+     * Time spent walking so far (until done, if done), in nanoseconds.
+     */
+    public long getElapsedNanos()
+    {
+        final long started = startedNanos;
+        if(started==0l)
+            return 0l;
+        final long ended = endedNanos;
+        return (ended!=0l?ended:System.nanoTime())-started;
+    }
+
+    /**
+     * Start walking on a background daemon thread.
+     * @return                                  Chaining reference.
+     */
+    public synchronized FileTreeWalker start()
+    {
+        if(thread!=null)
+            throw new IllegalStateException("Walker for root ["+root.getPath()+"] already started");
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { walk(); }
+        }, "file-tree-walker-"+walkerNo.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Take the next file, blocking until one is available.
+     * @return                                  The next file, or {@code null}
+     *                                          when the walk is complete.
+     * @throws IOException                      If the walk itself failed (e.g.
+     *                                          the root can't be read).
+     * @throws InterruptedException             If interrupted while waiting.
+     */
+    public File take()
+           throws IOException, InterruptedException
+    {
+        if(ended)
+            return null;
+        final File file = queue.take();
+        if(file==endOfWalk)
+        {
+            ended = true;
+            if(failure instanceof IOException)
+                throw (IOException)failure;
+            if(failure!=null)
+                throw new IOException("Failed to walk file tree ["+root.getPath()+"]", failure);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Stop walking; pending files are discarded.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        queue.clear();
+    }
+
+    private void walk()
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        startedNanos = System.nanoTime();
+        try
+        {
+            Files.walkFileTree(root.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+            new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir,
+                                                         final BasicFileAttributes attrs)
+                {
+                    if(closed)
+                        return FileVisitResult.TERMINATE;
+                    if(fileFilter!=null&&!dir.equals(root.toPath())&&!fileFilter.accept(dir.toFile()))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                                                 final BasicFileAttributes attrs)
+                       throws IOException
+                {
+                    if(closed)
+                        return FileVisitResult.TERMINATE;
+                    if(attrs.isDirectory())
+                        return FileVisitResult.CONTINUE;
+                    final File _file = file.toFile();
+                    if(fileFilter==null||fileFilter.accept(_file))
+                    {
+                        if(!put(_file))
+                            return FileVisitResult.TERMINATE;
+                        found.incrementAndGet();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file,
+                                                       final IOException exc)
+                {
+                    if(exc instanceof NoSuchFileException) // removed while walking
+                        return closed?FileVisitResult.TERMINATE:FileVisitResult.CONTINUE;
+                    failed.incrementAndGet();
+                    log.warning(traceId, "walk", "Unable to visit ["+
+                    file+"]; skipping --- "+exc, exc);
+                    return closed?FileVisitResult.TERMINATE:FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path dir,
+                                                          final IOException exc)
+                {
+                    if(exc!=null)
+                    {
+                        failed.incrementAndGet();
+                        log.warning(traceId, "walk", "Unable to list directory ["+
+                        dir+"] completely --- "+exc, exc);
+                    }
+                    return closed?FileVisitResult.TERMINATE:FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch(Throwable t)
+        {
+            log.severe(traceId, "walk", "Failed to walk file tree ["+
+            root.getPath()+"]", t);
+            failure = t;
+        }
+        finally
+        {
+            endedNanos = System.nanoTime();
+            if(log.isFine())
+                log.fine(traceId, "walk", "Walked file tree ["+root.getPath()+"]; found ["+
+                found.get()+"] files, failed ["+failed.get()+"] entries");
+            try { put(endOfWalk); } catch(InterruptedIOException e) {}
+        }
+    }
+
+    private boolean put(final File file)
+            throws InterruptedIOException
+    {
+        try
+        {
+            // never block forever on a consumer that went away
+            while(!closed)
+            {
+                if(queue.offer(file, 100l, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+            return false;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing file ["+file.getPath()+"]");
+        }
+    }
+}
@@ -1,31 +1,157 @@
 package org.axelfox.common.util.reader.inf;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.axelfox.common.util.reader.ContentChunks;
 
 /**
  * Content reader.
+ * <p>
+ * Besides {@link #getContent()}, which returns the whole content at once,
+ * the raw content can be streamed in chunks with a constant heap, split for
+ * parallel streams, or mapped read-only; file backed readers only need to
+ * return their {@link #getContentPath()}.
  * @author christopher
  */
 public interface ContentReader
        extends Serializable
 {
     /**
-     * Get the text content header. Usually text files have no content headers; 
+     * Get the text content header. Usually text files have no content headers;
      * unlike certain binary files.
      * @return                                  Text content header.
      */
     public String getHeader();
-    
+
     /**
      * Get the mime type of this content.
      * @return                                  Content mime type.
      */
     public String getMimeType();
-    
+
     /**
      * Get the content.
      * @param <T>                               Content type to be returned.
      * @return                                  Content {@link T} type.
      */
     public <T extends Serializable> T getContent();
+
+    /**
+     * Get the path of the raw content, if file backed.
+     * @return                                  Content path, or {@code null}
+     *                                          if not file backed.
+     */
+    public default Path getContentPath() { return null; }
+
+    /**
+     * Open a channel on the raw content; the file if file backed, otherwise
+     * {@link #getContent()} as UTF-8 text. The caller closes it.
+     * @return                                  Readable channel.
+     * @throws IOException                      If the content can't be opened.
+     */
+    public default ReadableByteChannel openChannel()
+           throws IOException
+    {
+        final Path path = getContentPath();
+        if(path!=null)
+            return FileChannel.open(path, StandardOpenOption.READ);
+        final Serializable content = getContent();
+        return Channels.newChannel(new ByteArrayInputStream(
+            content!=null?String.valueOf(content).getBytes(Charset.forName("UTF-8")):new byte[0]
+        ));
+    }
+
+    /**
+     * Stream the raw content in byte chunks, in order; splittable on chunk
+     * boundaries for parallel streams if file backed. The stream must be
+     * closed to release the channel.
+     * @param chunkSize                         Chunk size in bytes.
+     * @param mapped                            {@code true} for read-only
+     *                                          mapped chunks if file backed.
+     * @return                                  Byte chunks, each a buffer of
+     *                                          its own.
+     * @throws IOException                      If the content can't be opened.
+     */
+    public default Stream<ByteBuffer> byteChunks(final int chunkSize,
+                                                 final boolean mapped)
+           throws IOException
+    {
+        final ReadableByteChannel channel = openChannel();
+        try
+        {
+            final Spliterator<ByteBuffer> chunks = channel instanceof FileChannel?
+            ContentChunks.of((FileChannel)channel, 0l, ((FileChannel)channel).size(), chunkSize, mapped):
+            ContentChunks.of(channel, chunkSize);
+            return StreamSupport.stream(chunks, false).onClose(ContentChunks.closer(channel));
+        }
+        catch(Throwable t)
+        {
+            try { channel.close(); } catch(Throwable _t) {}
+            throw t;
+        }
+    }
+
+    /**
+     * Stream the raw content in character chunks, in order; malformed input
+     * is replaced. The stream must be closed to release the channel.
+     * @param charset                           Content charset.
+     * @param chunkSize                         Chunk size in bytes read.
+     * @return                                  Character chunks.
+     * @throws IOException                      If the content can't be opened.
+     */
+    public default Stream<CharBuffer> charChunks(final Charset charset,
+                                                 final int chunkSize)
+           throws IOException
+    {
+        final ReadableByteChannel channel = openChannel();
+        try
+        {
+            final Spliterator<ByteBuffer> chunks = ContentChunks.of(channel, chunkSize);
+            return StreamSupport.stream(ContentChunks.decode(chunks, charset), false).onClose(ContentChunks.closer(channel));
+        }
+        catch(Throwable t)
+        {
+            try { channel.close(); } catch(Throwable _t) {}
+            throw t;
+        }
+    }
+
+    /**
+     * Map a region of the raw content read-only; the mapping stays valid
+     * after the channel is closed.
+     * @param position                          Region start offset.
+     * @param size                              Region size, at most {@link Integer#MAX_VALUE}.
+     * @return                                  Read-only mapped region.
+     * @throws IOException                      If the content can't be mapped.
+     * @throws UnsupportedOperationException    If not file backed.
+     */
+    public default ByteBuffer map(final long position,
+                                  final long size)
+           throws IOException
+    {
+        final Path path = getContentPath();
+        if(path==null)
+            throw new UnsupportedOperationException("Content of ["+getClass().getName()+"] is not file backed; can't map");
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+    }
 }
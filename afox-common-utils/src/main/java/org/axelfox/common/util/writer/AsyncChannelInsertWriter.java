@@ -0,0 +1,506 @@
+package org.axelfox.common.util.writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Non-blocking counterpart of {@link ChannelPrependWriter#insert(TraceId, Path, long, ByteBuffer...)}
+ * for a header at a given line: the target is scanned block by block to find
+ * the line, and only the bytes where the header would be are read to check
+ * for it; then the original content up to the line, the header and the rest
+ * are streamed to a staging file that is swapped in, all through {@link AsynchronousFileChannel}
+ * completion handlers. No thread waits on the I/O, so the number of files in
+ * flight is not tied to the number of threads, and the memory held per file
+ * is bounded whatever the target size or line lengths.
+ * <p>
+ * Handlers run on the given executor; note that on platforms without native
+ * asynchronous file I/O (e.g. Linux) the JDK emulates it by running the
+ * reads and writes on that same executor.
+ * @author christopher
+ */
+final class AsyncChannelInsertWriter
+      implements CompletionHandler<Integer, AsyncChannelInsertWriter.Step>
+{
+    private static final TraceLogger log = TraceLogger.getLogger(AsyncChannelInsertWriter.class);
+    private static final Set<OpenOption> readOptions = Collections.<OpenOption>singleton(StandardOpenOption.READ);
+    private static final Set<OpenOption> writeOptions = Collections.<OpenOption>singleton(StandardOpenOption.WRITE);
+    private static final int scanSize = 8*1024;
+    private static final int copySize = 64*1024;
+
+    /**
+     * Outcome of an insert; exactly one method is called, once.
+     */
+    interface Callback
+    {
+        /** The header is already at the line; nothing written. */
+        void present();
+
+        /** Nothing written as planning only; the sizes are what would be. */
+        void planned(long headerBytes,
+                     long bytesWritten);
+
+        /** The header was inserted and the target swapped (committed). */
+        void inserted(long headerBytes,
+                      long bytesWritten);
+
+        /** The target is left intact. */
+        void failed(Throwable t);
+    }
+
+    static enum Step
+    {
+        SCAN,
+        HEAD,
+        TAIL,
+        WRITE,
+        COPY,
+        ;
+    }
+
+    private final TraceId traceId;
+    private final Path target;
+    private final ByteBuffer[] header;
+    private final ByteBuffer[] headerOnNewLine;
+    private final CompiledCopyrightHeader.Variant variant;
+    private final byte lineBreak;
+    private final int lineNo;
+    private final boolean plan;
+    private final ExecutorService executor;
+    private final DurableCommitter committer;
+    private final Callback callback;
+
+    private Path realTarget;
+    private AsynchronousFileChannel source;
+    private long size;
+    private ByteBuffer scan;
+    private long scanPosition;
+    private int remaining;
+    private long offset = -1l;
+    private long headerLength;
+    private long checkLength;
+    private ByteBuffer head;
+    private ByteBuffer tail;
+    private long tailStart;
+
+    private Path staging;
+    private AsynchronousFileChannel sink;
+    private ByteBuffer[] pending;
+    private int pendingIdx;
+    private ByteBuffer[] content;
+    private long readPosition;
+    private long copyLimit;
+    private long writePosition;
+    private ByteBuffer copy;
+    private ByteBuffer[] copyPending;
+    private boolean done;
+
+    private AsyncChannelInsertWriter(final TraceId traceId,
+                                     final Path target,
+                                     final int lineNo,
+                                     final int skip,
+                                     final ByteBuffer[] header,
+                                     final ByteBuffer[] headerOnNewLine,
+                                     final CompiledCopyrightHeader.Variant variant,
+                                     final boolean plan,
+                                     final ExecutorService executor,
+                                     final DurableCommitter committer,
+                                     final Callback callback)
+    {
+        this.traceId = traceId;
+        this.target = target;
+        this.header = header;
+        this.headerOnNewLine = headerOnNewLine;
+        this.variant = variant;
+        this.lineBreak = variant.getLineBreak().get(variant.getLineBreak().position());
+        this.lineNo = lineNo;
+        this.plan = plan;
+        this.executor = executor;
+        this.committer = committer;
+        this.callback = callback;
+        this.remaining = lineNo-1;
+        if(lineNo<=1)
+            this.offset = skip;
+        for(ByteBuffer buffer:header)
+            headerLength += buffer.remaining();
+        this.checkLength = variant.isPerFile()?variant.getPresenceLength():headerLength;
+    }
+
+    /**
+     * Start inserting; returns as soon as the first read is issued.
+     * @param traceIdRef                        Trace reference.
+     * @param target                            Target file.
+     * @param lineNo                            Line no. to insert at, starting
+     *                                          at {@code 1}; the end of the
+     *                                          file if it has fewer lines.
+     * @param skip                              Bytes to skip at line no. {@code 1};
+     *                                          the byte order mark, if any.
+     * @param header                            Header buffers (not consumed).
+     * @param headerOnNewLine                   Header buffers to use at the
+     *                                          end of a file not ending with
+     *                                          a line break.
+     * @param variant                           The header variant; matches
+     *                                          a header with file tags already
+     *                                          at the line, whatever their values.
+     * @param plan                              {@code true} to only check.
+     * @param executor                          Executor running the handlers.
+     * @param committer                         Commits the staged file.
+     * @param callback                          Outcome callback.
+     */
+    static void insertAtLine(final TraceId traceIdRef,
+                             final Path target,
+                             final int lineNo,
+                             final int skip,
+                             final ByteBuffer[] header,
+                             final ByteBuffer[] headerOnNewLine,
+                             final CompiledCopyrightHeader.Variant variant,
+                             final boolean plan,
+                             final ExecutorService executor,
+                             final DurableCommitter committer,
+                             final Callback callback)
+    {
+        new AsyncChannelInsertWriter(new TraceId(traceIdRef), target, lineNo, skip, header, headerOnNewLine,
+        variant, plan, executor, committer, callback).start();
+    }
+
+    private void start()
+    {
+        try
+        {
+            // resolve links so that we replace the file, not the link
+            realTarget = target.toRealPath();
+            source = AsynchronousFileChannel.open(realTarget, readOptions, executor);
+            size = source.size();
+            if(offset>=0)
+                readHead();
+            else
+            {
+                scan = ByteBuffer.allocate(scanSize).order(ByteOrder.LITTLE_ENDIAN);
+                scanNext();
+            }
+        }
+        catch(Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    @Override
+    public void completed(final Integer n,
+                          final Step step)
+    {
+        try
+        {
+            switch(step)
+            {
+                case SCAN:
+                    if(n<=0)
+                    {
+                        size = scanPosition; // shrunk while scanning
+                        scan = null;
+                        readHead();
+                        break;
+                    }
+                    final int found = LineOffsetScanner.scan(scan, 0, n, remaining);
+                    if(found>0)
+                    {
+                        offset = scanPosition+found;
+                        scan = null;
+                        readHead();
+                        break;
+                    }
+                    remaining = -found;
+                    scanPosition += n;
+                    scanNext();
+                    break;
+                case HEAD:
+                case TAIL:
+                    final ByteBuffer window = step==Step.HEAD?head:tail;
+                    if(n<0)
+                        window.limit(window.position()); // shrunk while reading
+                    readWindow(step);
+                    break;
+                case WRITE:
+                    writePosition += n;
+                    writeNext();
+                    break;
+                case COPY:
+                    if(n<0)
+                    {
+                        // shrunk while copying
+                        size = readPosition;
+                        copyLimit = readPosition;
+                    }
+                    else
+                    {
+                        readPosition += n;
+                        copy.flip();
+                        pending = copyPending;
+                        pendingIdx = 0;
+                    }
+                    writeNext();
+                    break;
+            }
+        }
+        catch(Throwable t)
+        {
+            fail(t);
+        }
+    }
+
+    @Override
+    public void failed(final Throwable t,
+                       final Step step)
+    {
+        fail(t);
+    }
+
+    private void scanNext()
+           throws IOException
+    {
+        if(scanPosition>=size)
+        {
+            // fewer lines than that
+            scan = null;
+            readHead();
+            return;
+        }
+        scan.clear();
+        source.read(scan, scanPosition, Step.SCAN, this);
+    }
+
+    private void readHead()
+           throws IOException
+    {
+        if(offset<0)
+        {
+            readTail();
+            return;
+        }
+        // where the header would be at the line
+        head = ByteBuffer.allocate((int)Math.max(0l, Math.min(checkLength, size-offset)));
+        readWindow(Step.HEAD);
+    }
+
+    private void readTail()
+           throws IOException
+    {
+        // where the header went when the target had fewer lines; only if it may start at or 
+        // before the line, and the last byte tells if it needs a line of its own
+        if(lineNo<=1||(offset>=0&&size-checkLength>offset))
+        {
+            decide();
+            return;
+        }
+        tailStart = Math.max(size-checkLength-1, 0l);
+        tail = ByteBuffer.allocate((int)(size-tailStart));
+        readWindow(Step.TAIL);
+    }
+
+    private void readWindow(final Step step)
+           throws IOException
+    {
+        final ByteBuffer window = step==Step.HEAD?head:tail;
+        if(window.hasRemaining())
+        {
+            source.read(window, (step==Step.HEAD?offset:tailStart)+window.position(), step, this);
+            return;
+        }
+        window.flip();
+        if(step==Step.HEAD)
+            readTail();
+        else
+            decide();
+    }
+
+    private void decide()
+           throws IOException
+    {
+        if(isPresent())
+        {
+            close();
+            done = true;
+            callback.present();
+            return;
+        }
+        ByteBuffer[] content = header;
+        if(offset<0)
+        {
+            // fewer lines than that; the header goes at the end, on a line of its own
+            offset = size;
+            if(tail.limit()>0&&tail.get(tail.limit()-1)!=lineBreak)
+                content = headerOnNewLine;
+        }
+        long headerBytes = 0l;
+        for(ByteBuffer buffer:content)
+            headerBytes += buffer.remaining();
+        if(plan)
+        {
+            close();
+            done = true;
+            callback.planned(headerBytes, headerBytes+size);
+            return;
+        }
+
+        staging = ChannelPrependWriter.createStagingFile(realTarget);
+        sink = AsynchronousFileChannel.open(staging, writeOptions, executor);
+
+        // the original content up to the line, the header, then the rest
+        this.content = content;
+        readPosition = 0l;
+        copyLimit = offset;
+        headerLength = headerBytes;
+        writeNext();
+    }
+
+    private void writeNext()
+           throws IOException
+    {
+        while(pending!=null&&pendingIdx<pending.length&&!pending[pendingIdx].hasRemaining())
+            pendingIdx++;
+        if(pending!=null&&pendingIdx<pending.length)
+        {
+            sink.write(pending[pendingIdx], writePosition, Step.WRITE, this);
+            return;
+        }
+        pending = null;
+        if(readPosition<copyLimit)
+        {
+            if(copy==null)
+            {
+                copy = ByteBuffer.allocate(copySize);
+                copyPending = new ByteBuffer[]{ copy };
+            }
+            copy.clear();
+            copy.limit((int)Math.min(copySize, copyLimit-readPosition));
+            source.read(copy, readPosition, Step.COPY, this);
+            return;
+        }
+        if(content!=null)
+        {
+            pending = new ByteBuffer[content.length];
+            for(int i=0;i<content.length;i++)
+                pending[i] = content[i].duplicate();
+            pendingIdx = 0;
+            content = null;
+            copyLimit = size;
+            writeNext();
+            return;
+        }
+        commit();
+    }
+
+    private void commit()
+           throws IOException
+    {
+        final AsynchronousFileChannel _source = source;
+        final AsynchronousFileChannel _sink = sink;
+        source = null;
+        sink = null;
+        _source.close();
+        try
+        {
+            if(committer.isForceOnStage())
+                _sink.force(true);
+        }
+        finally
+        {
+            _sink.close();
+        }
+        ChannelPrependWriter.copyPermissions(traceId, realTarget, staging);
+        
+        // the committer owns the staging file from here on
+        final Path _staging = staging;
+        staging = null;
+        done = true;
+        committer.commit(_staging, realTarget, new DurableCommitter.Listener()
+        {
+            @Override
+            public void committed()
+            {
+                if(log.isFine())
+                    log.fine(traceId, "commit", "Inserted ["+headerLength+
+                    "] bytes at offset ["+offset+"] to target file ["+realTarget+"]");
+                callback.inserted(headerLength, writePosition);
+            }
+            
+            @Override
+            public void failed(final Throwable t)
+            {
+                callback.failed(t);
+            }
+        });
+    }
+
+    private void fail(final Throwable t)
+    {
+        if(done) // the callback itself failed; never report twice
+        {
+            log.warning(traceId, "fail", "Callback failed for target file ["+
+            target+"]", t);
+            return;
+        }
+        done = true;
+        close();
+        if(staging!=null)
+        {
+            ChannelPrependWriter.deleteStagingFile(traceId, staging);
+            staging = null;
+        }
+        callback.failed(t);
+    }
+
+    private void close()
+    {
+        if(source!=null)
+            try { source.close(); } catch(Throwable t) {}
+        if(sink!=null)
+            try { sink.close(); } catch(Throwable t) {}
+        source = null;
+        sink = null;
+    }
+
+    private boolean isPresent()
+    {
+        if(!variant.isPerFile())
+        {
+            final long endOffset = lineNo<=1?-1l:ChannelPrependWriter.endPlacementOffset(offset, size, headerLength);
+            return (offset>=0&&matches(head, 0, header))||
+                   (endOffset>=0&&endOffset!=offset&&matches(tail, (int)(endOffset-tailStart), header));
+        }
+        
+        // a header with file tags; matched but for their values
+        if(offset>=0&&variant.matchPresent(head)>=0)
+            return true;
+        if(tail==null)
+            return false;
+        final int at = variant.matchPresentAtEnd(tail, tailStart==0l);
+        return at>=0&&(offset<0||tailStart+at<=offset);
+    }
+
+    private static boolean matches(final ByteBuffer window,
+                                   final int index,
+                                   final ByteBuffer[] content)
+    {
+        int i = index;
+        for(ByteBuffer buffer:content)
+        {
+            for(int j=buffer.position();j<buffer.limit();j++)
+            {
+                if(i<0||i>=window.limit()||window.get(i++)!=buffer.get(j))
+                    return false;
+            }
+        }
+        return true;
+    }
+}
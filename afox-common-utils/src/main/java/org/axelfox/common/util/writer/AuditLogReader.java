@@ -0,0 +1,246 @@
+package org.axelfox.common.util.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Reader of the audit segments of a {@link MappedSegmentAuditWriter}
+ * directory, as of when opened.
+ * <p>
+ * Segments are memory mapped, and so are their indexes; a lookup by trace ID
+ * or path takes the run of its hash in each segment index (one binary search
+ * of the fences on the heap, then at most {@value AuditSegmentIndex#FENCE_KEYS}
+ * mapped keys before the run) and reads only those records. A time range
+ * reads only the blocks of records whose time range overlaps it. Segments
+ * without an index (the live one, or one left by a crash) are indexed by
+ * scanning them once when opened.
+ * <p>
+ * Results are in the order written. A reader is safe for use by several
+ * threads.
+ * @author christopher
+ */
+public final class AuditLogReader
+       implements Closeable
+{
+    private static final TraceLogger log = TraceLogger.getLogger(AuditLogReader.class);
+
+    private final File directory;
+    private volatile List<Segment> segments;
+
+    private AuditLogReader(final File directory,
+                           final List<Segment> segments)
+    {
+        this.directory = directory;
+        this.segments = segments;
+    }
+
+    /**
+     * Open the segments of a directory.
+     * @param traceIdRef                        Trace ID reference.
+     * @param directory                         Directory of the segment files.
+     * @return                                  The reader.
+     * @throws IOException                      If a segment can't be mapped.
+     */
+    public static AuditLogReader open(final TraceId traceIdRef,
+                                      final File directory)
+           throws IOException
+    {
+        if(directory==null)
+            throw new IllegalArgumentException("Bad parameter [directory] is null; expecting ["+
+            File.class.getName()+"] object type");
+        final TraceId traceId = new TraceId(traceIdRef);
+        final List<Segment> segments = new ArrayList<>();
+        for(File file:MappedSegmentAuditWriter.segmentFiles(directory))
+        {
+            final Segment segment = Segment.open(traceId, file);
+            if(segment!=null)
+                segments.add(segment);
+        }
+        if(log.isFine())
+            log.fine(traceId, "open", "Opened ["+segments.size()+"] audit segments of ["+directory+"]");
+        return new AuditLogReader(directory, segments);
+    }
+
+    public File getDirectory() { return directory; }
+
+    public int getSegments() { return segments().size(); }
+
+    public long getRecords()
+    {
+        long records = 0l;
+        for(Segment segment:segments())
+            records += segment.index.records;
+        return records;
+    }
+
+    /**
+     * Records of a run: what did it change?
+     * @param traceId                           Trace ID of the run.
+     * @return                                  Its records.
+     */
+    public List<AuditRecord> findByTraceId(final String traceId)
+    {
+        final int hash = AuditSegmentIndex.hash(traceId);
+        final List<AuditRecord> records = new ArrayList<>();
+        for(Segment segment:segments())
+        {
+            for(int offset:segment.index.findTrace(hash))
+            {
+                final AuditRecord record = AuditRecord.decode(segment.data, offset);
+                if(traceId!=null?traceId.equals(record.getTraceId()):record.getTraceId()==null)
+                    records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Records of a file.
+     * @param path                              Path of the file, as audited.
+     * @return                                  Its records.
+     */
+    public List<AuditRecord> findByPath(final String path)
+    {
+        final int hash = AuditSegmentIndex.hash(path);
+        final List<AuditRecord> records = new ArrayList<>();
+        for(Segment segment:segments())
+        {
+            for(int offset:segment.index.findPath(hash))
+            {
+                final AuditRecord record = AuditRecord.decode(segment.data, offset);
+                if(record.getPath().equals(path))
+                    records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Last record of a file: when was it last stamped?
+     * @param path                              Path of the file, as audited.
+     * @return                                  Its last record; {@code null} if none.
+     */
+    public AuditRecord findLastByPath(final String path)
+    {
+        final int hash = AuditSegmentIndex.hash(path);
+        final List<Segment> _segments = segments();
+        for(int i=_segments.size()-1;i>=0;i--)
+        {
+            final Segment segment = _segments.get(i);
+            final int[] offsets = segment.index.findPath(hash);
+            for(int j=offsets.length-1;j>=0;j--)
+            {
+                final AuditRecord record = AuditRecord.decode(segment.data, offsets[j]);
+                if(record.getPath().equals(path))
+                    return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records of a time range.
+     * @param fromMillis                        From, inclusive, in milliseconds
+     *                                          since the epoch.
+     * @param toMillis                          To, exclusive.
+     * @return                                  Its records.
+     */
+    public List<AuditRecord> findByTime(final long fromMillis,
+                                        final long toMillis)
+    {
+        final List<AuditRecord> records = new ArrayList<>();
+        for(Segment segment:segments())
+        {
+            final AuditSegmentIndex index = segment.index;
+            if(!index.overlaps(fromMillis, toMillis))
+                continue;
+            for(int block=0;block<index.getBlocks();block++)
+            {
+                if(!index.overlaps(block, fromMillis, toMillis))
+                    continue;
+                final int end = block+1<index.getBlocks()?index.getBlockOffset(block+1):(int)index.dataLength;
+                for(int offset=index.getBlockOffset(block);offset<end;offset+=4+segment.data.getInt(offset))
+                {
+                    final AuditRecord record = AuditRecord.decode(segment.data, offset);
+                    if(record.getTime()>=fromMillis&&record.getTime()<toMillis)
+                        records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Release the segments; the mappings go once no longer reachable.
+     */
+    @Override
+    public void close()
+    {
+        segments = null;
+    }
+
+    private List<Segment> segments()
+    {
+        final List<Segment> _segments = segments;
+        if(_segments==null)
+            throw new IllegalStateException("Audit log reader of ["+directory+"] is closed");
+        return _segments;
+    }
+
+    private static final class Segment
+    {
+        private final MappedByteBuffer data;
+        private final AuditSegmentIndex index;
+
+        private Segment(final MappedByteBuffer data,
+                        final AuditSegmentIndex index)
+        {
+            this.data = data;
+            this.index = index;
+        }
+
+        private static Segment open(final TraceId traceId,
+                                    final File file)
+                throws IOException
+        {
+            final MappedByteBuffer data;
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try
+            {
+                if(channel.size()<AuditSegmentIndex.HEADER_BYTES)
+                    return null;
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0l, Math.min(channel.size(), Integer.MAX_VALUE));
+            }
+            finally
+            {
+                try { channel.close(); } catch(Throwable t) {}
+            }
+            AuditSegmentIndex index = null;
+            final File indexFile = MappedSegmentAuditWriter.indexFile(file);
+            if(indexFile.isFile())
+            {
+                try { index = AuditSegmentIndex.read(indexFile.toPath(), data.limit()); }
+                catch(Throwable t)
+                {
+                    log.warning(traceId, "open", "Unable to read audit segment index ["+indexFile+
+                    "]; scanning the segment", t);
+                }
+            }
+            if(index==null)
+            {
+                if(log.isFine())
+                    log.fine(traceId, "open", "Scanning audit segment ["+file+"] without an index");
+                index = AuditSegmentIndex.scan(data);
+            }
+            return new Segment(data, index);
+        }
+    }
+}
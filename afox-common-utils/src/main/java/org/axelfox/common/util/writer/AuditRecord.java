@@ -0,0 +1,286 @@
+package org.axelfox.common.util.writer;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audit record of a file modified by {@link CopyrightWriter}; what was done
+ * to which file, under which trace, its size before and after, and the hash
+ * of the header written.
+ * <p>
+ * Written as one line of tab separated fields ({@link #toLine()}); tabs,
+ * line breaks and backslashes in values are escaped. Audit segments hold
+ * the binary form: time, size before and after as longs, then trace ID,
+ * action and hash each as a short length and UTF-8 bytes ({@code -1} for
+ * {@code null}, {@code -2} for 32 lowercase hex digits as 16 bytes), then
+ * the path as an int length and UTF-8 bytes.
+ * @author christopher
+ */
+public final class AuditRecord
+       implements Serializable
+{
+    private static final long serialVersionUID = -6157372004186930251L;
+
+    /**
+     * Maximum length of the trace ID, action and hash.
+     */
+    public static final int MAX_FIELD_LENGTH = 8192;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long time;
+    private final String traceId;
+    private final String action;
+    private final String path;
+    private final long sizeBefore;
+    private final long sizeAfter;
+    private final String hash;
+
+    public AuditRecord(final String traceId,
+                       final String action,
+                       final String path,
+                       final long sizeBefore,
+                       final long sizeAfter,
+                       final String hash)
+    {
+        this(System.currentTimeMillis(), traceId, action, path, sizeBefore, sizeAfter, hash);
+    }
+
+    public AuditRecord(final long time,
+                       final String traceId,
+                       final String action,
+                       final String path,
+                       final long sizeBefore,
+                       final long sizeAfter,
+                       final String hash)
+    {
+        if(path==null)
+            throw new IllegalArgumentException("Bad parameter [path] is null; expecting the path of the file modified");
+        if(length(traceId)>MAX_FIELD_LENGTH||length(action)>MAX_FIELD_LENGTH||length(hash)>MAX_FIELD_LENGTH)
+            throw new IllegalArgumentException("Bad parameter [traceId], [action] or [hash] is longer than ["+
+            MAX_FIELD_LENGTH+"] characters");
+        this.time = time;
+        this.traceId = traceId;
+        this.action = action;
+        this.path = path;
+        this.sizeBefore = sizeBefore;
+        this.sizeAfter = sizeAfter;
+        this.hash = hash;
+    }
+
+    /**
+     * When the record was made, in milliseconds since the epoch.
+     */
+    public long getTime() { return time; }
+
+    public String getTraceId() { return traceId; }
+
+    /**
+     * What was done, e.g. {@code "APPENDED"} or {@code "UPDATED"}.
+     */
+    public String getAction() { return action; }
+
+    public String getPath() { return path; }
+
+    public long getSizeBefore() { return sizeBefore; }
+
+    public long getSizeAfter() { return sizeAfter; }
+
+    /**
+     * Hash of the header written.
+     */
+    public String getHash() { return hash; }
+
+    /**
+     * Get the record as a line, without the line break: time, trace ID,
+     * action, size before, size after, hash and path, tab separated; absent
+     * values are empty.
+     */
+    public String toLine()
+    {
+        final StringBuilder line = new StringBuilder(path.length()+96)
+            .append(time).append('\t');
+        escape(line, traceId).append('\t');
+        escape(line, action).append('\t')
+            .append(sizeBefore).append('\t')
+            .append(sizeAfter).append('\t');
+        escape(line, hash).append('\t');
+        return escape(line, path).toString();
+    }
+
+    /**
+     * Parse a line of {@link #toLine()}.
+     * @param line                              Line, without the line break.
+     * @return                                  Audit record.
+     * @throws IllegalArgumentException         If the line is not a record.
+     */
+    public static AuditRecord parse(final String line)
+    {
+        if(line==null)
+            throw new IllegalArgumentException("Bad parameter [line] is null; expecting an audit record line");
+        final List<String> fields = new ArrayList<>(7);
+        final StringBuilder field = new StringBuilder();
+        for(int i=0;i<line.length();i++)
+        {
+            final char c = line.charAt(i);
+            if(c=='\t')
+            {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else if(c=='\\'&&i+1<line.length())
+            {
+                final char escaped = line.charAt(++i);
+                field.append(escaped=='t'?'\t':escaped=='n'?'\n':escaped=='r'?'\r':escaped);
+            }
+            else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        if(fields.size()!=7)
+            throw new IllegalArgumentException("Bad parameter [line] has ["+fields.size()+
+            "] fields; expecting [7] tab separated audit record fields");
+        try
+        {
+            return new AuditRecord(
+                Long.parseLong(fields.get(0)),
+                empty(fields.get(1)),
+                empty(fields.get(2)),
+                fields.get(6),
+                Long.parseLong(fields.get(3)),
+                Long.parseLong(fields.get(4)),
+                empty(fields.get(5))
+            );
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Bad parameter [line] is not an audit record line; "+e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() { return toLine(); }
+
+    /**
+     * Encode the record in its binary form, less the length prefix.
+     * @param scratch                           Buffer to encode into if big
+     *                                          enough; may be {@code null}.
+     * @return                                  The buffer encoded into, flipped.
+     */
+    ByteBuffer encode(final ByteBuffer scratch)
+    {
+        // UTF-8 takes at most 3 bytes per char
+        final int bound = 24+6+3*(length(traceId)+length(action)+length(hash))+4+3*path.length();
+        final ByteBuffer buffer = scratch!=null&&scratch.capacity()>=bound?scratch:ByteBuffer.allocate(Math.max(bound, 256));
+        buffer.clear();
+        buffer.putLong(time).putLong(sizeBefore).putLong(sizeAfter);
+        put(buffer, traceId);
+        put(buffer, action);
+        put(buffer, hash);
+        final byte[] _path = path.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(_path.length).put(_path);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a record in its binary form.
+     * @param data                              Segment data.
+     * @param offset                            Offset of the record length prefix.
+     * @return                                  Audit record.
+     */
+    static AuditRecord decode(final ByteBuffer data,
+                              final int offset)
+    {
+        final ByteBuffer buffer = data.duplicate();
+        buffer.position(offset+4);
+        final long time = buffer.getLong();
+        final long sizeBefore = buffer.getLong();
+        final long sizeAfter = buffer.getLong();
+        final String traceId = get(buffer);
+        final String action = get(buffer);
+        final String hash = get(buffer);
+        final byte[] path = new byte[buffer.getInt()];
+        buffer.get(path);
+        return new AuditRecord(time, traceId, action, new String(path, StandardCharsets.UTF_8), sizeBefore, sizeAfter, hash);
+    }
+
+    private static void put(final ByteBuffer buffer,
+                            final String value)
+    {
+        if(value==null)
+            buffer.putShort((short)-1);
+        else if(isHex(value))
+        {
+            buffer.putShort((short)-2);
+            for(int i=0;i<value.length();i+=2)
+                buffer.put((byte)(Character.digit(value.charAt(i), 16)<<4|Character.digit(value.charAt(i+1), 16)));
+        }
+        else
+        {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short)bytes.length).put(bytes);
+        }
+    }
+
+    private static String get(final ByteBuffer buffer)
+    {
+        final short length = buffer.getShort();
+        if(length==-1)
+            return null;
+        if(length==-2)
+        {
+            final char[] hex = new char[32];
+            for(int i=0;i<hex.length;i+=2)
+            {
+                final int b = buffer.get()&0xff;
+                hex[i] = HEX[b>>>4];
+                hex[i+1] = HEX[b&0xf];
+            }
+            return new String(hex);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isHex(final String value)
+    {
+        if(value.length()!=32)
+            return false;
+        for(int i=0;i<value.length();i++)
+        {
+            final char c = value.charAt(i);
+            if((c<'0'||c>'9')&&(c<'a'||c>'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private static int length(final String value) { return value!=null?value.length():0; }
+
+    private static StringBuilder escape(final StringBuilder sb,
+                                        final String value)
+    {
+        if(value==null)
+            return sb;
+        for(int i=0;i<value.length();i++)
+        {
+            final char c = value.charAt(i);
+            switch(c)
+            {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private static String empty(final String value) { return value.isEmpty()?null:value; }
+}
@@ -0,0 +1,321 @@
+package org.axelfox.common.util.writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Index of an audit segment, kept next to it ({@code .idx}) once the segment
+ * is sealed, or built by scanning it otherwise.
+ * <p>
+ * A segment is an 8 byte header (magic, version) then records, each an int
+ * length and the {@link AuditRecord} binary form; a length of {@code 0}
+ * ends it. The index has the hash of the trace ID and of the path of every
+ * record, each keyed {@code hash<<32|offset} and sorted, so that the
+ * records of a hash are one run, in segment order; every
+ * {@value #FENCE_KEYS}th key is kept on the heap as a fence, the rest stay
+ * mapped. Records are also grouped in blocks of {@value #BLOCK_RECORDS} with
+ * their time range, for time range queries.
+ * @author christopher
+ */
+final class AuditSegmentIndex
+{
+    static final int SEGMENT_MAGIC = 0x41465841; // AFXA
+    static final int INDEX_MAGIC = 0x41465849; // AFXI
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int BLOCK_RECORDS = 64;
+    static final int FENCE_KEYS = 64;
+
+    private static final int INDEX_HEADER_BYTES = 4+4+8+4+8+8+4;
+    private static final int BLOCK_BYTES = 4+8+8;
+
+    final long dataLength;
+    final int records;
+    final long minTime;
+    final long maxTime;
+    private final int[] blockOffsets;
+    private final long[] blockMinTimes;
+    private final long[] blockMaxTimes;
+    private final LongBuffer traceKeys;
+    private final LongBuffer pathKeys;
+    private final long[] traceFences;
+    private final long[] pathFences;
+
+    private AuditSegmentIndex(final long dataLength,
+                              final int records,
+                              final long minTime,
+                              final long maxTime,
+                              final int[] blockOffsets,
+                              final long[] blockMinTimes,
+                              final long[] blockMaxTimes,
+                              final LongBuffer traceKeys,
+                              final LongBuffer pathKeys)
+    {
+        this.dataLength = dataLength;
+        this.records = records;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.blockOffsets = blockOffsets;
+        this.blockMinTimes = blockMinTimes;
+        this.blockMaxTimes = blockMaxTimes;
+        this.traceKeys = traceKeys;
+        this.pathKeys = pathKeys;
+        this.traceFences = fences(traceKeys);
+        this.pathFences = fences(pathKeys);
+    }
+
+    static int hash(final String value)
+    {
+        // spread String.hashCode; equal hashes are told apart by the records
+        int h = value!=null?value.hashCode():0;
+        h ^= h>>>16;
+        h *= 0x85ebca6b;
+        h ^= h>>>13;
+        h *= 0xc2b2ae35;
+        return h^h>>>16;
+    }
+
+    /**
+     * Offsets of the records of a trace ID hash, in segment order.
+     */
+    int[] findTrace(final int hash) { return find(traceKeys, traceFences, hash); }
+
+    /**
+     * Offsets of the records of a path hash, in segment order.
+     */
+    int[] findPath(final int hash) { return find(pathKeys, pathFences, hash); }
+
+    int getBlocks() { return blockOffsets.length; }
+
+    int getBlockOffset(final int block) { return blockOffsets[block]; }
+
+    /**
+     * Whether a block may hold records of {@code fromMillis} (inclusive) to
+     * {@code toMillis} (exclusive).
+     */
+    boolean overlaps(final int block,
+                     final long fromMillis,
+                     final long toMillis)
+    {
+        return blockMaxTimes[block]>=fromMillis&&blockMinTimes[block]<toMillis;
+    }
+
+    boolean overlaps(final long fromMillis,
+                     final long toMillis)
+    {
+        return records>0&&maxTime>=fromMillis&&minTime<toMillis;
+    }
+
+    /**
+     * Write the index to a file, replacing it whole.
+     */
+    void write(final Path file)
+         throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_BYTES+blockOffsets.length*BLOCK_BYTES+records*16);
+        buffer.putInt(INDEX_MAGIC).putInt(VERSION).putLong(dataLength).putInt(records).putLong(minTime).putLong(maxTime)
+            .putInt(blockOffsets.length);
+        for(int i=0;i<blockOffsets.length;i++)
+            buffer.putInt(blockOffsets[i]).putLong(blockMinTimes[i]).putLong(blockMaxTimes[i]);
+        for(int i=0;i<records;i++)
+            buffer.putLong(traceKeys.get(i));
+        for(int i=0;i<records;i++)
+            buffer.putLong(pathKeys.get(i));
+        buffer.flip();
+        final Path staging = file.resolveSibling(file.getFileName()+".tmp");
+        final FileChannel channel = FileChannel.open(staging, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+        try
+        {
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+        Files.move(staging, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read (map) the index file of a segment.
+     * @param file                              Index file.
+     * @param segmentLength                     Length of the segment file.
+     * @return                                  The index; {@code null} if not an
+     *                                          index or not of the segment as is.
+     */
+    static AuditSegmentIndex read(final Path file,
+                                  final long segmentLength)
+           throws IOException
+    {
+        final MappedByteBuffer buffer;
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            if(channel.size()<INDEX_HEADER_BYTES)
+                return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0l, channel.size());
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+        if(buffer.getInt()!=INDEX_MAGIC||buffer.getInt()!=VERSION)
+            return null;
+        final long dataLength = buffer.getLong();
+        final int records = buffer.getInt();
+        final long minTime = buffer.getLong();
+        final long maxTime = buffer.getLong();
+        final int blocks = buffer.getInt();
+        if(dataLength>segmentLength||records<0||blocks<0||
+           buffer.remaining()!=(long)blocks*BLOCK_BYTES+(long)records*16l)
+            return null;
+        final int[] blockOffsets = new int[blocks];
+        final long[] blockMinTimes = new long[blocks];
+        final long[] blockMaxTimes = new long[blocks];
+        for(int i=0;i<blocks;i++)
+        {
+            blockOffsets[i] = buffer.getInt();
+            blockMinTimes[i] = buffer.getLong();
+            blockMaxTimes[i] = buffer.getLong();
+        }
+        final LongBuffer keys = buffer.slice().asLongBuffer();
+        keys.limit(records);
+        final LongBuffer traceKeys = keys.slice();
+        keys.clear();
+        keys.position(records);
+        final LongBuffer pathKeys = keys.slice();
+        return new AuditSegmentIndex(dataLength, records, minTime, maxTime, blockOffsets, blockMinTimes, blockMaxTimes,
+            traceKeys, pathKeys);
+    }
+
+    /**
+     * Index a segment by scanning it, up to its first incomplete record.
+     * @param data                              Segment data.
+     * @return                                  The index.
+     */
+    static AuditSegmentIndex scan(final ByteBuffer data)
+    {
+        final Builder builder = new Builder();
+        if(data.limit()<HEADER_BYTES||data.getInt(0)!=SEGMENT_MAGIC||data.getInt(4)!=VERSION)
+            return builder.build(0l);
+        int offset = HEADER_BYTES;
+        while(offset+4<=data.limit())
+        {
+            final int length = data.getInt(offset);
+            if(length<=0||length>data.limit()-offset-4)
+                break;
+            builder.add(offset, AuditRecord.decode(data, offset));
+            offset += 4+length;
+        }
+        return builder.build(offset);
+    }
+
+    private static int[] find(final LongBuffer keys,
+                              final long[] fences,
+                              final int hash)
+    {
+        final long lo = (long)hash<<32;
+        final long hi = lo|0xffffffffl;
+        int fence = Arrays.binarySearch(fences, lo);
+        if(fence<0)
+            fence = -fence-1;
+        int[] offsets = new int[4];
+        int count = 0;
+        for(int i=Math.max(0, fence-1)*FENCE_KEYS;i<keys.limit();i++)
+        {
+            final long key = keys.get(i);
+            if(key<lo)
+                continue;
+            if(key>hi)
+                break;
+            if(count==offsets.length)
+                offsets = Arrays.copyOf(offsets, count*2);
+            offsets[count++] = (int)key;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private static long[] fences(final LongBuffer keys)
+    {
+        final long[] fences = new long[(keys.limit()+FENCE_KEYS-1)/FENCE_KEYS];
+        for(int i=0;i<fences.length;i++)
+            fences[i] = keys.get(i*FENCE_KEYS);
+        return fences;
+    }
+
+    /**
+     * Builds the index of a segment as records are added, in segment order.
+     */
+    static final class Builder
+    {
+        private int records;
+        private long[] traceKeys = new long[256];
+        private long[] pathKeys = new long[256];
+        private int blocks;
+        private int[] blockOffsets = new int[8];
+        private long[] blockMinTimes = new long[8];
+        private long[] blockMaxTimes = new long[8];
+
+        void add(final int offset,
+                 final AuditRecord record)
+        {
+            if(records==traceKeys.length)
+            {
+                traceKeys = Arrays.copyOf(traceKeys, records*2);
+                pathKeys = Arrays.copyOf(pathKeys, records*2);
+            }
+            traceKeys[records] = (long)hash(record.getTraceId())<<32|(offset&0xffffffffl);
+            pathKeys[records] = (long)hash(record.getPath())<<32|(offset&0xffffffffl);
+            if(records%BLOCK_RECORDS==0)
+            {
+                if(blocks==blockOffsets.length)
+                {
+                    blockOffsets = Arrays.copyOf(blockOffsets, blocks*2);
+                    blockMinTimes = Arrays.copyOf(blockMinTimes, blocks*2);
+                    blockMaxTimes = Arrays.copyOf(blockMaxTimes, blocks*2);
+                }
+                blockOffsets[blocks] = offset;
+                blockMinTimes[blocks] = Long.MAX_VALUE;
+                blockMaxTimes[blocks] = Long.MIN_VALUE;
+                blocks++;
+            }
+            // records are made by parallel writers; times are only nearly in order
+            blockMinTimes[blocks-1] = Math.min(blockMinTimes[blocks-1], record.getTime());
+            blockMaxTimes[blocks-1] = Math.max(blockMaxTimes[blocks-1], record.getTime());
+            records++;
+        }
+
+        int getRecords() { return records; }
+
+        /**
+         * @param dataLength                    Length of the segment data indexed.
+         */
+        AuditSegmentIndex build(final long dataLength)
+        {
+            final long[] _traceKeys = Arrays.copyOf(traceKeys, records);
+            final long[] _pathKeys = Arrays.copyOf(pathKeys, records);
+            Arrays.sort(_traceKeys);
+            Arrays.sort(_pathKeys);
+            long minTime = Long.MAX_VALUE;
+            long maxTime = Long.MIN_VALUE;
+            for(int i=0;i<blocks;i++)
+            {
+                minTime = Math.min(minTime, blockMinTimes[i]);
+                maxTime = Math.max(maxTime, blockMaxTimes[i]);
+            }
+            return new AuditSegmentIndex(dataLength, records, minTime, maxTime, Arrays.copyOf(blockOffsets, blocks),
+                Arrays.copyOf(blockMinTimes, blocks), Arrays.copyOf(blockMaxTimes, blocks), LongBuffer.wrap(_traceKeys),
+                LongBuffer.wrap(_pathKeys));
+        }
+    }
+}
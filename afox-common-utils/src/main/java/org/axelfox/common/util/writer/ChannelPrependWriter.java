@@ -0,0 +1,635 @@
+package org.axelfox.common.util.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.TraceSpan;
+
+/**
+ * Prepends (or inserts at an offset) content to a file using {@link FileChannel} 
+ * bulk transfers. The result is staged next to the target (same directory, 
+ * hence same file store) and swapped in with an atomic {@link Files#move(Path, Path, java.nio.file.CopyOption...)},
+ * so the original is read once, the result written once, and the target is
+ * never left half written. The staged file gets the target permissions, and
+ * its owner and group as far as the process may set them.
+ * <p>
+ * A target with other hard links is the exception: swapping would leave the
+ * other links with the old content, so the staged content is copied back over
+ * the target in place and forced instead; it is not atomic.
+ * @author christopher
+ */
+public final class ChannelPrependWriter
+{
+    private static final TraceLogger log = TraceLogger.getLogger(ChannelPrependWriter.class);
+    private static final String stagingFileSuffix = ".cwt";
+    private static final int fallbackBufferSize = 256*1024;
+    private static final ThreadLocal<ByteBuffer> prefixBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue() { return ByteBuffer.allocate(8*1024); }
+    };
+
+    private ChannelPrependWriter() {}
+
+    /**
+     * Prepend the {@code content} buffers (written in order) to the {@code target}
+     * file. The buffers are not consumed; their positions are left untouched.
+     * @param traceIdRef                        Trace reference.
+     * @param target                            Target file to prepend to.
+     * @param content                           Content to prepend.
+     * @return                                  Total bytes written to the new
+     *                                          target file.
+     * @throws IOException                      If staging, transferring or
+     *                                          swapping the file failed; the
+     *                                          original target is left intact.
+     */
+    public static long prepend(final TraceId traceIdRef,
+                               final Path target,
+                               final ByteBuffer... content)
+           throws IOException
+    {
+        return insert(traceIdRef, target, 0l, content);
+    }
+
+    /**
+     * Insert the {@code content} buffers (written in order) into the {@code target}
+     * file at byte {@code offset}. The bytes before and after the offset are 
+     * copied as is.
+     * @param traceIdRef                        Trace reference.
+     * @param target                            Target file to insert to.
+     * @param offset                            Byte offset to insert at; 
+     *                                          {@code 0} to prepend, the file
+     *                                          size to append.
+     * @param content                           Content to insert.
+     * @return                                  Total bytes written to the new
+     *                                          target file.
+     * @throws IOException                      If staging, transferring or
+     *                                          swapping the file failed; the
+     *                                          original target is left intact.
+     */
+    public static long insert(final TraceId traceIdRef,
+                              final Path target,
+                              final long offset,
+                              final ByteBuffer... content)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(target==null)
+            throw new IllegalArgumentException("Bad parameter [target] is null; expecting ["+
+            Path.class.getName()+"] object type");
+        if(offset<0)
+            throw new IllegalArgumentException("Bad parameter [offset] is not a valid offset ["+
+            offset+"]; expecting [0] or greater");
+
+        // resolve links so that we replace the file, not the link
+        final Path realTarget = target.toRealPath();
+        final Path staging = createStagingFile(realTarget);
+        boolean swapped = false;
+        try
+        {
+            final long written = stage(traceId, realTarget, staging, offset, false, content);
+            swap(staging, realTarget);
+            swapped = true;
+            if(log.isFine())
+                log.fine(traceId, "insert", "Inserted content at offset ["+offset+
+                "] to target file ["+realTarget+"]");
+            return written;
+        }
+        finally
+        {
+            if(!swapped)
+                deleteStagingFile(traceId, staging);
+        }
+    }
+
+    /**
+     * Write the (real) target content with {@code content} inserted at 
+     * {@code offset} to the staging file, and copy over the target permissions; 
+     * the target itself is not touched.
+     * @param force                             {@code true} to force the staged 
+     *                                          content to the device before 
+     *                                          returning.
+     * @return                                  Total bytes written.
+     */
+    static long stage(final TraceId traceId,
+                      final Path realTarget,
+                      final Path staging,
+                      final long offset,
+                      final boolean force,
+                      final ByteBuffer... content)
+           throws IOException
+    {
+        return stage(traceId, realTarget, staging, offset, 0l, force, TraceSpan.NOOP, content);
+    }
+
+    /**
+     * Write the (real) target content with the {@code replace} bytes at 
+     * {@code offset} replaced by {@code content} to the staging file, and 
+     * copy over the target permissions; the target itself is not touched.
+     * @param replace                           Number of target bytes at the 
+     *                                          offset left out; {@code 0} to 
+     *                                          insert.
+     * @param force                             {@code true} to force the staged 
+     *                                          content to the device before 
+     *                                          returning.
+     * @param span                              Span to time the force under.
+     * @return                                  Total bytes written.
+     */
+    static long stage(final TraceId traceId,
+                      final Path realTarget,
+                      final Path staging,
+                      final long offset,
+                      final long replace,
+                      final boolean force,
+                      final TraceSpan span,
+                      final ByteBuffer... content)
+           throws IOException
+    {
+        FileChannel source = null;
+        FileChannel sink = null;
+        try
+        {
+            source = FileChannel.open(realTarget, StandardOpenOption.READ);
+            sink = FileChannel.open(staging, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            final long size = source.size();
+            if(offset+replace>size)
+                throw new IOException("Bad parameter [offset] ["+offset+"] and [replace] ["+replace+
+                "] are beyond the end of target file ["+realTarget+"] size ["+size+"]");
+            long written = transfer(source, 0l, offset, sink);
+            written += write(sink, content);
+            written += transfer(source, offset+replace, size-offset-replace, sink);
+            if(force)
+            {
+                final TraceSpan fsync = span.child("fsync", null);
+                try { sink.force(true); }
+                finally { fsync.end(); }
+            }
+
+            try { source.close(); } finally { source = null; }
+            try { sink.close(); } finally { sink = null; }
+
+            copyPermissions(traceId, realTarget, staging);
+            return written;
+        }
+        finally
+        {
+            if(source!=null)
+                try { source.close(); } catch(Throwable t) {}
+            if(sink!=null)
+                try { sink.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Check if the {@code target} file already starts with the {@code content} 
+     * buffers (in order). Only the first {@code content} length bytes are read; 
+     * the file is never opened for writing.
+     * @param target                            Target file to check.
+     * @param content                           Expected leading content.
+     * @return                                  {@code true} if the target starts 
+     *                                          with the content, {@code false} 
+     *                                          otherwise.
+     * @throws IOException                      If the target can't be read.
+     */
+    public static boolean startsWith(final Path target,
+                                     final ByteBuffer... content)
+           throws IOException
+    {
+        return regionMatches(target, 0l, content);
+    }
+
+    /**
+     * Check if the {@code target} file contains the {@code content} buffers 
+     * (in order) at byte {@code offset}. Only the content length bytes are read; 
+     * the file is never opened for writing.
+     * @param target                            Target file to check.
+     * @param offset                            Byte offset to check at.
+     * @param content                           Expected content.
+     * @return                                  {@code true} if the target has 
+     *                                          the content at the offset, 
+     *                                          {@code false} otherwise.
+     * @throws IOException                      If the target can't be read.
+     */
+    public static boolean regionMatches(final Path target,
+                                        final long offset,
+                                        final ByteBuffer... content)
+           throws IOException
+    {
+        int length = 0;
+        if(content!=null)
+            for(ByteBuffer buffer:content)
+                if(buffer!=null)
+                    length += buffer.remaining();
+        if(length==0)
+            return true;
+        
+        final FileChannel source = FileChannel.open(target, StandardOpenOption.READ);
+        try
+        {
+            if(source.size()-offset<length)
+                return false;
+            ByteBuffer prefix = prefixBuffer.get();
+            if(prefix.capacity()<length)
+            {
+                prefix = ByteBuffer.allocate(Math.max(length, prefix.capacity()*2));
+                prefixBuffer.set(prefix);
+            }
+            prefix.clear();
+            prefix.limit(length);
+            while(prefix.hasRemaining())
+            {
+                if(source.read(prefix, offset+prefix.position())<0)
+                    return false;
+            }
+            // absolute gets only; the content buffers may be shared between threads
+            int i = 0;
+            for(ByteBuffer buffer:content)
+            {
+                if(buffer==null)
+                    continue;
+                for(int j=buffer.position();j<buffer.limit();j++)
+                {
+                    if(prefix.get(i++)!=buffer.get(j))
+                        return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            try { source.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Read up to {@code length} bytes of the {@code target} file at byte 
+     * {@code offset}; fewer if the file ends before.
+     * @return                                  The bytes read, position to limit.
+     * @throws IOException                      If the target can't be read.
+     */
+    static ByteBuffer read(final Path target,
+                           final long offset,
+                           final int length)
+           throws IOException
+    {
+        final FileChannel source = FileChannel.open(target, StandardOpenOption.READ);
+        try
+        {
+            final ByteBuffer region = ByteBuffer.allocate((int)Math.max(0l, Math.min(length, source.size()-offset)));
+            while(region.hasRemaining())
+            {
+                if(source.read(region, offset+region.position())<0)
+                    break;
+            }
+            region.flip();
+            return region;
+        }
+        finally
+        {
+            try { source.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Overwrite the {@code target} file bytes at {@code offset} with the 
+     * {@code content} buffers, in place with positional writes; nothing else 
+     * is read or copied. Not atomic; a crash may leave the region half written.
+     * @param force                             {@code true} to force the 
+     *                                          written content to the device 
+     *                                          before returning.
+     * @return                                  Total bytes written.
+     * @throws IOException                      If the target can't be written.
+     */
+    static long overwrite(final Path target,
+                          final long offset,
+                          final boolean force,
+                          final ByteBuffer... content)
+           throws IOException
+    {
+        final FileChannel sink = FileChannel.open(target, StandardOpenOption.WRITE);
+        try
+        {
+            long written = 0l;
+            for(ByteBuffer buffer:content)
+            {
+                if(buffer==null)
+                    continue;
+                final ByteBuffer _buffer = buffer.duplicate();
+                while(_buffer.hasRemaining())
+                    written += sink.write(_buffer, offset+written);
+            }
+            if(force)
+                sink.force(false);
+            return written;
+        }
+        finally
+        {
+            try { sink.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Get the byte offset at which line {@code lineNo} of the {@code target} 
+     * file starts. Only the prefix up to that line is scanned.
+     * @param target                            Target file to scan.
+     * @param lineNo                            Line no. starting at {@code 1}.
+     * @return                                  Byte offset of the line, or 
+     *                                          {@code -1} if the target has 
+     *                                          fewer lines.
+     * @throws IOException                      If the target can't be read.
+     */
+    public static long offsetOfLine(final Path target,
+                                    final int lineNo)
+           throws IOException
+    {
+        if(lineNo<=1)
+            return 0l;
+        final FileChannel source = FileChannel.open(target, StandardOpenOption.READ);
+        try { return LineOffsetScanner.offsetOf(source, lineNo); }
+        finally
+        {
+            try { source.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Where a header placed by an earlier run may sit other than at line no. 
+     * N: a target with fewer lines had it appended at its end, and the lines 
+     * it added move line no. N into (or right past) it. It is at the end, 
+     * starting at or before line no. N.
+     * @param lineOffset                        Byte offset of line no. N; 
+     *                                          {@code -1} if the target has 
+     *                                          fewer lines.
+     * @param size                              Size of the target.
+     * @param headerBytes                       Size of the header.
+     * @return                                  Byte offset to also look for the 
+     *                                          header at, or {@code -1} if none.
+     */
+    static long endPlacementOffset(final long lineOffset,
+                                   final long size,
+                                   final long headerBytes)
+    {
+        final long offset = size-headerBytes;
+        if(offset<0||(lineOffset>=0&&offset>lineOffset))
+            return -1l;
+        return offset;
+    }
+
+    /**
+     * Determine if the file is a staging file of an in-flight {@link #prepend(TraceId, Path, ByteBuffer...)}.
+     * @param file                              File to check.
+     * @return                                  {@code true} if it is a staging 
+     *                                          file, {@code false} otherwise.
+     */
+    public static boolean isStagingFile(final File file)
+    {
+        final String name = file!=null?file.getName():null;
+        return name!=null&&name.startsWith(".")&&name.endsWith(stagingFileSuffix);
+    }
+
+    /**
+     * Create an empty staging file next to the (real) target; see {@link #isStagingFile(File)}.
+     */
+    static Path createStagingFile(final Path realTarget)
+           throws IOException
+    {
+        return Files.createTempFile(realTarget.getParent(),
+            "."+realTarget.getFileName().toString()+".", stagingFileSuffix);
+    }
+
+    static long write(final FileChannel sink,
+                      final ByteBuffer... content)
+           throws IOException
+    {
+        long written = 0l;
+        if(content==null)
+            return written;
+        for(ByteBuffer buffer:content)
+        {
+            if(buffer==null)
+                continue;
+            final ByteBuffer _buffer = buffer.duplicate();
+            while(_buffer.hasRemaining())
+                written += sink.write(_buffer);
+        }
+        return written;
+    }
+
+    static long transfer(final FileChannel source,
+                         final long position,
+                         final long count,
+                         final FileChannel sink)
+           throws IOException
+    {
+        long transferred = 0l;
+        while(transferred<count)
+        {
+            final long n = source.transferTo(position+transferred, count-transferred, sink);
+            if(n<=0)
+                break;
+            transferred += n;
+        }
+        // some channel implementations may refuse to make progress; copy the remainder
+        if(transferred<count)
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(fallbackBufferSize);
+            while(transferred<count)
+            {
+                buffer.clear();
+                if(count-transferred<buffer.capacity())
+                    buffer.limit((int)(count-transferred));
+                final int n = source.read(buffer, position+transferred);
+                if(n<0)
+                    throw new IOException("Unexpected end of file at position ["+
+                    (position+transferred)+"]; expecting ["+(count-transferred)+"] more bytes");
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    sink.write(buffer);
+                transferred += n;
+            }
+        }
+        return transferred;
+    }
+
+    static void copyPermissions(final TraceId traceId,
+                                final Path from,
+                                final Path to)
+    {
+        // temp files are created owner-only, by this process; carry over the original permissions,
+        // owner and group
+        final PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if(view==null)
+        {
+            to.toFile().setExecutable(from.toFile().canExecute());
+            return;
+        }
+        final PosixFileAttributes fromAttrs;
+        final PosixFileAttributes toAttrs;
+        try
+        {
+            fromAttrs = Files.readAttributes(from, PosixFileAttributes.class);
+            toAttrs = view.readAttributes();
+            view.setPermissions(fromAttrs.permissions());
+        }
+        catch(Throwable t)
+        {
+            log.warning(traceId, "copyPermissions", "Unable to copy permissions from ["+
+            from+"] to ["+to+"]", t);
+            return;
+        }
+        
+        // best effort; only a privileged process may give a file away, or to a group it is not in
+        if(!fromAttrs.group().equals(toAttrs.group()))
+        {
+            try { view.setGroup(fromAttrs.group()); }
+            catch(Throwable t)
+            {
+                if(log.isFine())
+                    log.fine(traceId, "copyPermissions", "Unable to copy group ["+fromAttrs.group().getName()+
+                    "] from ["+from+"] to ["+to+"] --- "+t);
+            }
+        }
+        if(!fromAttrs.owner().equals(toAttrs.owner()))
+        {
+            try { view.setOwner(fromAttrs.owner()); }
+            catch(Throwable t)
+            {
+                if(log.isFine())
+                    log.fine(traceId, "copyPermissions", "Unable to copy owner ["+fromAttrs.owner().getName()+
+                    "] from ["+from+"] to ["+to+"] --- "+t);
+            }
+        }
+    }
+
+    static void deleteStagingFile(final TraceId traceId,
+                                  final Path staging)
+    {
+        try { Files.deleteIfExists(staging); }
+        catch(Throwable t)
+        {
+            log.warning(traceId, "deleteStagingFile", "Unable to delete staging file ["+
+            staging+"]", t);
+        }
+    }
+
+    /**
+     * Force the file content (and metadata) to the device.
+     */
+    static void force(final Path file)
+           throws IOException
+    {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        try { channel.force(true); }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+    }
+
+    /**
+     * Force a directory (i.e. the renames in it) to the device; not every 
+     * platform can open a directory, in which case this is a no-op.
+     * @return                                  {@code true} if forced, {@code false} 
+     *                                          if the directory can't be opened.
+     * @throws IOException                      If the directory was opened but 
+     *                                          can't be forced; the renames are 
+     *                                          not known to be durable.
+     */
+    static boolean forceDirectory(final Path directory)
+           throws IOException
+    {
+        final FileChannel channel;
+        try { channel = FileChannel.open(directory, StandardOpenOption.READ); }
+        catch(IOException e)
+        {
+            return false;
+        }
+        try
+        {
+            channel.force(true);
+            return true;
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+        }
+    }
+
+    static void swap(final Path staging,
+                     final Path target)
+           throws IOException
+    {
+        if(isHardLinked(target))
+        {
+            replaceInPlace(staging, target);
+            return;
+        }
+        try
+        {
+            Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException e)
+        {
+            Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Determine if the (real) target has other hard links; {@code false} where
+     * the platform can't tell.
+     */
+    static boolean isHardLinked(final Path target)
+    {
+        try
+        {
+            final Object nlink = Files.getAttribute(target, "unix:nlink");
+            return nlink instanceof Integer&&(Integer)nlink>1;
+        }
+        catch(Throwable t)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Copy the staged content over the (real) target, keeping its inode and so
+     * its other links, then force it and remove the staging file.
+     */
+    private static void replaceInPlace(final Path staging,
+                                       final Path target)
+           throws IOException
+    {
+        final FileChannel source = FileChannel.open(staging, StandardOpenOption.READ);
+        try
+        {
+            final FileChannel sink = FileChannel.open(target, StandardOpenOption.WRITE);
+            try
+            {
+                final long size = source.size();
+                transfer(source, 0l, size, sink);
+                sink.truncate(size);
+                sink.force(true);
+            }
+            finally
+            {
+                try { sink.close(); } catch(Throwable t) {}
+            }
+        }
+        finally
+        {
+            try { source.close(); } catch(Throwable t) {}
+        }
+        Files.delete(staging);
+    }
+}
@@ -0,0 +1,526 @@
+package org.axelfox.common.util.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.reader.CopyrightHeaderTags;
+import org.axelfox.common.util.reader.CopyrightHeaderTemplate;
+
+/**
+ * A {@link CopyrightHeaderTemplate} tag substituted and encoded once. Compiled
+ * headers are cached across runs by header file path and only re-built when
+ * the (cached) template is re-parsed or the values of the static tags it uses
+ * change.
+ * <p>
+ * The encoded header is held per charset and line separator {@link Variant};
+ * its buffers are read-only and shared between threads, so callers must
+ * never rely on (or move) their position. Templates using file tags (see
+ * {@link CopyrightHeaderTags}) are split into encoded literal segments and
+ * file tags, rendered per target with {@link Variant#render(Path, BasicFileAttributes, ByteBuffer)}.
+ * <p>
+ * A header written from an earlier rendering of the same template (e.g. last
+ * year's <code>{current.year}</code>) is recognized by its fingerprint, the
+ * template literals around every tag, whatever the tag values; see
+ * {@link Variant#match(ByteBuffer)}. The header itself is recognized byte for
+ * byte, but for the values of its file tags, which change with the target
+ * (e.g. its times, once the header is written); see {@link Variant#matchPresent(ByteBuffer)}.
+ * @author christopher
+ */
+final class CompiledCopyrightHeader
+{
+    private static final TraceLogger log = TraceLogger.getLogger(CompiledCopyrightHeader.class);
+    private static final ConcurrentMap<String, CompiledCopyrightHeader> cache = new ConcurrentHashMap<>();
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    private static final String platformNewline = System.getProperty("line.separator");
+    private static final int maxTagBytes = 256; // tag values are short and on one line
+
+    private final CopyrightHeaderTemplate template;
+    private final Map<String, String> staticTags;
+    private final String content;
+    private final String[] literals;
+    private final String[] fileTags;
+    private final String[] fingerprint;
+    private final String hash;
+    private final ConcurrentMap<String, Variant> variants = new ConcurrentHashMap<>();
+
+    private CompiledCopyrightHeader(final CopyrightHeaderTemplate template,
+                                    final Map<String, String> staticTags,
+                                    final String content,
+                                    final String[] literals,
+                                    final String[] fileTags,
+                                    final String[] fingerprint)
+    {
+        this.template = template;
+        this.staticTags = staticTags;
+        this.content = content;
+        this.literals = literals;
+        this.fileTags = fileTags;
+        this.fingerprint = fingerprint;
+        this.hash = CopyrightWriterManifest.hash(content.getBytes(utf8));
+    }
+
+    /**
+     * Encoded header for one charset and line separator.
+     */
+    static final class Variant
+    {
+        private final CompiledCopyrightHeader compiled;
+        private final Charset charset;
+        private final ByteBuffer newline;
+        private final ByteBuffer lineBreak;
+        private final ByteBuffer[] header;
+        private final ByteBuffer[] headerOnNewLine;
+        private final byte[][] literals;
+        private final byte[][] fingerprint;
+        private final byte[][] presence;
+        private final byte[] newlineBytes;
+        private final byte lineBreakByte;
+        private final int fingerprintLength;
+        private final int presenceLength;
+        private final long length;
+
+        private Variant(final CompiledCopyrightHeader compiled,
+                        final Charset charset,
+                        final String newline)
+        {
+            final ByteBuffer content = ByteBuffer.wrap(lines(compiled.content, newline).getBytes(charset)).asReadOnlyBuffer();
+            final ByteBuffer _newline = ByteBuffer.wrap(newline.getBytes(charset)).asReadOnlyBuffer();
+            this.compiled = compiled;
+            this.charset = charset;
+            this.newline = _newline;
+            final ByteBuffer lineBreak = _newline.duplicate();
+            lineBreak.position(Math.max(lineBreak.limit()-1, 0));
+            this.lineBreak = lineBreak.asReadOnlyBuffer();
+            this.header = new ByteBuffer[]{ content, _newline };
+            this.headerOnNewLine = new ByteBuffer[]{ _newline, content, _newline };
+            this.literals = new byte[compiled.literals.length][];
+            for(int i=0;i<literals.length;i++)
+                literals[i] = lines(compiled.literals[i], newline).getBytes(charset);
+            // the header is always followed by a line separator; so is its fingerprint
+            this.fingerprint = new byte[compiled.fingerprint.length][];
+            int fingerprintLength = 0;
+            for(int i=0;i<fingerprint.length;i++)
+            {
+                fingerprint[i] = (lines(compiled.fingerprint[i], newline)+(i==fingerprint.length-1?newline:"")).getBytes(charset);
+                fingerprintLength += fingerprint[i].length+(i>0?maxTagBytes:0);
+            }
+            this.fingerprintLength = fingerprintLength;
+            // the header as written; the literals with the static tag values, file tags in between
+            this.presence = new byte[literals.length][];
+            int presenceLength = 0;
+            for(int i=0;i<presence.length;i++)
+            {
+                final String segment = compiled.fileTags.length==0?compiled.content:compiled.literals[i];
+                presence[i] = (lines(segment, newline)+(i==presence.length-1?newline:"")).getBytes(charset);
+                presenceLength += presence[i].length+(i>0?maxTagBytes:0);
+            }
+            this.presenceLength = presenceLength;
+            this.newlineBytes = newline.getBytes(charset);
+            this.lineBreakByte = lineBreak.get(lineBreak.position());
+            this.length = content.remaining()+_newline.remaining();
+        }
+
+        String getContent() { return compiled.content; }
+
+        /**
+         * Determine if the header uses file tags; if so the header must be
+         * rendered per target with {@link #render(Path, BasicFileAttributes, ByteBuffer)}.
+         */
+        boolean isPerFile() { return compiled.fileTags.length>0; }
+
+        /**
+         * The header followed by a line separator; with file tags, as written.
+         */
+        ByteBuffer[] getHeader() { return header; }
+
+        /**
+         * The header on a line of its own, for targets not ending with one.
+         */
+        ByteBuffer[] getHeaderOnNewLine() { return headerOnNewLine; }
+
+        /**
+         * Length of {@link #getHeader()} in bytes.
+         */
+        long getLength() { return length; }
+
+        /**
+         * The header followed by a line separator, rendered for the target.
+         * @param header                        Rendered header as per
+         *                                      {@link #render(Path, BasicFileAttributes, ByteBuffer)}.
+         */
+        ByteBuffer[] getHeader(final ByteBuffer header) { return new ByteBuffer[]{ header, newline }; }
+
+        /**
+         * The header on a line of its own, rendered for the target.
+         */
+        ByteBuffer[] getHeaderOnNewLine(final ByteBuffer header) { return new ByteBuffer[]{ newline, header, newline }; }
+
+        /**
+         * Render the header for the target in a single pass over its segments,
+         * straight into the {@code buffer}; file tags that do not apply to
+         * the target are left as written.
+         * @param file                          Target file.
+         * @param attributes                    Target file attributes.
+         * @param buffer                        Buffer to render into, re-used
+         *                                      if large enough; may be {@code null}.
+         * @return                              The rendered header, position to
+         *                                      limit; {@code buffer} or a larger one.
+         */
+        ByteBuffer render(final Path file,
+                          final BasicFileAttributes attributes,
+                          final ByteBuffer buffer)
+        {
+            ByteBuffer rendered = buffer!=null?buffer:ByteBuffer.allocate((int)length*2);
+            rendered.clear();
+            for(int i=0;i<literals.length;i++)
+            {
+                rendered = put(rendered, literals[i]);
+                if(i<compiled.fileTags.length)
+                {
+                    final String fileTag = compiled.fileTags[i];
+                    final String value = CopyrightHeaderTags.resolve(fileTag, file, attributes);
+                    rendered = put(rendered, (value!=null?value:fileTag).getBytes(charset));
+                }
+            }
+            rendered.flip();
+            return rendered;
+        }
+
+        /**
+         * Max. length in bytes of a header matching the fingerprint, followed
+         * by a line separator.
+         */
+        int getFingerprintLength() { return fingerprintLength; }
+
+        /**
+         * Match the fingerprint of the header, followed by a line separator,
+         * at the start of the {@code region}: the template literals in order,
+         * each tag standing for any value of up to 256 bytes on one line.
+         * @param region                        Target bytes from where the
+         *                                      header would be; see {@link #getFingerprintLength()}.
+         *                                      Absolute gets only.
+         * @return                              Length in bytes of the matched
+         *                                      header, line separator included,
+         *                                      or {@code -1} if none.
+         */
+        int match(final ByteBuffer region) { return match(region, region.position(), fingerprint); }
+
+        /**
+         * Max. length in bytes of a header matching {@link #matchPresent(ByteBuffer)},
+         * followed by a line separator; the header length without file tags.
+         */
+        int getPresenceLength() { return presenceLength; }
+
+        /**
+         * Match the header, followed by a line separator, at the start of the
+         * {@code region}: byte for byte, but for the values of its file tags,
+         * each standing for any value of up to 256 bytes on one line.
+         * @param region                        Target bytes from where the
+         *                                      header would be; see {@link #getPresenceLength()}.
+         *                                      Absolute gets only.
+         * @return                              Length in bytes of the matched
+         *                                      header, line separator included,
+         *                                      or {@code -1} if none.
+         */
+        int matchPresent(final ByteBuffer region) { return match(region, region.position(), presence); }
+
+        /**
+         * Find the header, followed by a line separator, as {@link #matchPresent(ByteBuffer)}
+         * but running to the end of the {@code region}; where it went when
+         * the target had fewer lines than the header line no. With file tags
+         * it must start a line.
+         * @param region                        The last bytes of the target, 
+         *                                      and the one before them; see
+         *                                      {@link #getPresenceLength()}.
+         *                                      Absolute gets only.
+         * @param fromStart                     {@code true} if the region starts
+         *                                      at the start of the target.
+         * @return                              Index in the region the header
+         *                                      starts at, or {@code -1} if none.
+         */
+        int matchPresentAtEnd(final ByteBuffer region,
+                              final boolean fromStart)
+        {
+            if(!isPerFile())
+            {
+                final int at = region.limit()-presenceLength;
+                return at>=region.position()&&match(region, at, presence)==presenceLength?at:-1;
+            }
+            for(int at=region.position();at<region.limit();at++)
+            {
+                if(at==region.position()?!fromStart:region.get(at-1)!=lineBreakByte)
+                    continue;
+                if(match(region, at, presence)==region.limit()-at)
+                    return at;
+            }
+            return -1;
+        }
+
+        private int match(final ByteBuffer region,
+                          final int start,
+                          final byte[][] segments)
+        {
+            int position = start;
+            for(int i=0;i<segments.length;i++)
+            {
+                final byte[] segment = segments[i];
+                if(i==0)
+                {
+                    if(!matchesAt(region, position, segment))
+                        return -1;
+                    position += segment.length;
+                    continue;
+                }
+                if(segment.length==0)
+                    continue; // adjacent tags; one value
+                
+                // the tag value runs up to the first next literal on the same line
+                int found = -1;
+                for(int at=position;at<=position+maxTagBytes&&at+segment.length<=region.limit();at++)
+                {
+                    if(matchesAt(region, at, segment))
+                    {
+                        found = at;
+                        break;
+                    }
+                    if(matchesAt(region, at, newlineBytes))
+                        break;
+                }
+                if(found<0)
+                    return -1;
+                position = found+segment.length;
+            }
+            return position-start;
+        }
+
+        private static boolean matchesAt(final ByteBuffer region,
+                                         final int position,
+                                         final byte[] bytes)
+        {
+            if(position+bytes.length>region.limit())
+                return false;
+            for(int i=0;i<bytes.length;i++)
+            {
+                if(region.get(position+i)!=bytes[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Hash of the header content; the same for every variant, so that a
+         * manifest entry holds whatever the target encoding.
+         */
+        String getHash() { return compiled.hash; }
+
+        Charset getCharset() { return charset; }
+
+        /**
+         * The line separator, encoded; read-only.
+         */
+        ByteBuffer getNewline() { return newline; }
+
+        /**
+         * The last byte of the line separator; a target ending with it ends
+         * with a line break.
+         */
+        ByteBuffer getLineBreak() { return lineBreak; }
+
+        /**
+         * The same header in another charset and/or line separator.
+         */
+        Variant variant(final Charset charset,
+                        final String newline)
+        {
+            return compiled.variant(charset, newline);
+        }
+
+        /**
+         * Version of the header file the variant was compiled from.
+         */
+        long getVersion() { return compiled.template.getLastModified(); }
+
+        /**
+         * Template lines are joined with the platform line separator; re-join
+         * them with the variant one.
+         */
+        private static String lines(final String text,
+                                    final String newline)
+        {
+            return newline.equals(platformNewline)?text:text.replace(platformNewline, newline);
+        }
+
+        private static ByteBuffer put(final ByteBuffer buffer,
+                                      final byte[] bytes)
+        {
+            if(buffer.remaining()>=bytes.length)
+                return buffer.put(bytes);
+            final ByteBuffer _buffer = ByteBuffer.allocate(Math.max(buffer.capacity()*2, buffer.position()+bytes.length));
+            buffer.flip();
+            return _buffer.put(buffer).put(bytes);
+        }
+    }
+
+    /**
+     * Get the compiled header for the header file, from cache if the file is
+     * unchanged since it was compiled.
+     * @param traceIdRef                        Trace ID reference.
+     * @param headerFile                        Header file.
+     * @param staticTags                        Static tags to substitute; only
+     *                                          those the template uses are
+     *                                          looked up.
+     * @return                                  Compiled header, or {@code null}
+     *                                          if the file binds no extension
+     *                                          or has no content.
+     * @throws IOException                      If the file attributes can't
+     *                                          be read.
+     */
+    static CompiledCopyrightHeader compile(final TraceId traceIdRef,
+                                           final File headerFile,
+                                           final Map<String, String> staticTags)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        return compile(traceId, CopyrightHeaderTemplate.of(traceId, headerFile), staticTags);
+    }
+
+    /**
+     * Get the compiled header for the template, from cache if it was compiled
+     * from the same template.
+     * @param traceIdRef                        Trace ID reference.
+     * @param template                          Parsed template.
+     * @param staticTags                        Static tags to substitute; only
+     *                                          those the template uses are
+     *                                          looked up.
+     * @return                                  Compiled header, or {@code null}
+     *                                          if the template binds no
+     *                                          extension or has no content.
+     */
+    static CompiledCopyrightHeader compile(final TraceId traceIdRef,
+                                           final CopyrightHeaderTemplate template,
+                                           final Map<String, String> staticTags)
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        final String path = template.getLocation();
+        final CompiledCopyrightHeader cached = cache.get(path);
+        if(cached!=null&&cached.template==template&&cached.isCurrent(staticTags))
+        {
+            if(log.isFinest())
+                log.finest(traceId, "compile", "Using cached copyright header file ["+path+"]");
+            return cached;
+        }
+
+        if(template.getHeaderLine()==null||template.getExtensions().isEmpty())
+        {
+            log.warning(traceId, "compile", "Unable to determine file extension for copyright header file ["+
+            path+"]; can't extract extension");
+            return null;
+        }
+        
+        // one pass over the tags; static tags are substituted, file tags split the literal segments
+        final Map<String, String> usedStaticTags = new HashMap<>();
+        final List<String> literals = new ArrayList<>();
+        final List<String> fileTags = new ArrayList<>();
+        final List<String> fingerprint = new ArrayList<>();
+        final String body = template.getBody();
+        final StringBuilder literal = new StringBuilder(body.length()+32);
+        int position = 0;
+        for(CopyrightHeaderTemplate.Tag tag:template.getTags())
+        {
+            literal.append(body, position, tag.getStart());
+            fingerprint.add(body.substring(position, tag.getStart()));
+            position = tag.getEnd();
+            if(CopyrightHeaderTags.isFileTag(tag.getName()))
+            {
+                literals.add(literal.toString());
+                fileTags.add(tag.getName());
+                literal.setLength(0);
+                continue;
+            }
+            final String value = staticTags!=null?staticTags.get(tag.getName()):null;
+            usedStaticTags.put(tag.getName(), value);
+            literal.append(value!=null?value:tag.getName());
+        }
+        literal.append(body, position, body.length());
+        literals.add(literal.toString());
+        fingerprint.add(body.substring(position));
+        final String content = fileTags.isEmpty()?
+        template.render(usedStaticTags):
+        join(literals, fileTags);
+        
+        final CompiledCopyrightHeader compiled = new CompiledCopyrightHeader(
+            template,
+            Collections.unmodifiableMap(usedStaticTags),
+            content,
+            literals.toArray(new String[literals.size()]),
+            fileTags.toArray(new String[fileTags.size()]),
+            fingerprint.toArray(new String[fingerprint.size()])
+        );
+        cache.put(path, compiled);
+        if(log.isFine())
+            log.fine(traceId, "compile", "Compiled copyright header file ["+path+"]; file tags "+fileTags);
+        return compiled;
+    }
+
+    CopyrightHeaderTemplate getTemplate() { return template; }
+
+    Set<String> getExtensions() { return template.getExtensions(); }
+
+    /**
+     * The header content; file tags, if any, as written.
+     */
+    String getContent() { return content; }
+
+    Variant variant(final Charset charset,
+                    final String newline)
+    {
+        final String key = charset.name()+'|'+newline;
+        Variant variant = variants.get(key);
+        if(variant==null)
+        {
+            variant = new Variant(this, charset, newline);
+            final Variant _variant = variants.putIfAbsent(key, variant);
+            if(_variant!=null)
+                variant = _variant;
+        }
+        return variant;
+    }
+
+    private boolean isCurrent(final Map<String, String> staticTags)
+    {
+        // same template, so the same tags; only their values may have changed
+        for(Map.Entry<String, String> staticTag:this.staticTags.entrySet())
+        {
+            final String value = staticTags!=null?staticTags.get(staticTag.getKey()):null;
+            if(value==null?staticTag.getValue()!=null:!value.equals(staticTag.getValue()))
+                return false;
+        }
+        return true;
+    }
+
+    private static String join(final List<String> literals,
+                               final List<String> fileTags)
+    {
+        final StringBuilder joined = new StringBuilder();
+        for(int i=0;i<literals.size();i++)
+        {
+            joined.append(literals.get(i));
+            if(i<fileTags.size())
+                joined.append(fileTags.get(i));
+        }
+        return joined.toString();
+    }
+}
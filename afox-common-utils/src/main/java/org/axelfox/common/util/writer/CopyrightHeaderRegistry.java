@@ -0,0 +1,674 @@
+package org.axelfox.common.util.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.reader.CopyrightHeaderTemplate;
+import org.axelfox.common.util.reader.CopyrightReaderContentFilter;
+import org.axelfox.common.util.reader.FileTreeWalker;
+
+/**
+ * Long lived copyright header template registry: the templates under a
+ * directory (or a single template file), or bundled as classpath resources,
+ * loaded once and indexed by the file extensions they bind.
+ * <p>
+ * The index is an immutable snapshot, rebuilt whenever a template is added,
+ * changed or removed; extensions bound by more than one template go to the
+ * template with the lowest location (path or URL) in lexicographic order,
+ * whatever order the templates were found in.
+ * <p>
+ * {@link #shared(TraceId, File)} registries are shared across calls in the
+ * JVM and kept current by a single {@link WatchService} thread; templates
+ * added or removed are picked up incrementally as their events come in, and
+ * every {@link #getIndex()} re-checks the size and last modified time of the
+ * known templates, so a changed template is never used stale. Unwatched
+ * ({@link #load(TraceId, File, FileFilter)}) registries re-check the last
+ * modified time of the directories walked as well, and walk again only if one
+ * changed.
+ * @author christopher
+ */
+public final class CopyrightHeaderRegistry
+       implements Closeable
+{
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightHeaderRegistry.class);
+    private static final ConcurrentMap<String, CopyrightHeaderRegistry> shared = new ConcurrentHashMap<>();
+
+    private final TraceId traceId;
+    private final File root;
+    private final boolean directory;
+    private final FileFilter filter;
+    private final List<URL> resources;
+    private final Map<String, CopyrightHeaderTemplate> templates = new LinkedHashMap<>(); // key=path/URL as found
+    private final Map<String, long[]> rejected = new HashMap<>(); // key=path, value={size, last modified} when not a template
+    private final Map<String, Long> directories = new ConcurrentHashMap<>(); // key=path, value=last modified as walked
+    private volatile Map<String, CopyrightHeaderTemplate> index = Collections.emptyMap();
+    private volatile long version;
+    private volatile boolean watched;
+    private volatile boolean closed;
+    private Object watchDirKey; // identity of the watched directory, to tell a re-created one
+
+    private CopyrightHeaderRegistry(final TraceId traceId,
+                                    final File root,
+                                    final FileFilter filter,
+                                    final List<URL> resources)
+    {
+        this.traceId = traceId;
+        this.root = root;
+        this.directory = root!=null&&root.isDirectory();
+        this.filter = filter;
+        this.resources = resources;
+    }
+
+    /**
+     * Get the registry shared by every caller for the directory (or file),
+     * loading and watching it on first use; templates are accepted as per
+     * {@link CopyrightReaderContentFilter}.
+     * @param traceIdRef                        Trace ID reference.
+     * @param copyrightContentFile              Template directory or file.
+     * @return                                  Shared registry; not to be closed
+     *                                          unless no caller needs it anymore.
+     * @throws IOException                      If the templates can't be read.
+     */
+    public static CopyrightHeaderRegistry shared(final TraceId traceIdRef,
+                                                 final File copyrightContentFile)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(copyrightContentFile==null)
+            throw new IllegalArgumentException("Bad parameter [copyrightContentFile] is null; expecting ["+
+            File.class.getName()+"] object type");
+        final File root = copyrightContentFile.getCanonicalFile();
+        CopyrightHeaderRegistry registry = shared.get(root.getPath());
+        if(registry!=null&&!registry.closed)
+            return registry;
+        synchronized(shared)
+        {
+            registry = shared.get(root.getPath());
+            if(registry!=null&&!registry.closed)
+                return registry;
+            registry = load(traceId, root, null);
+            registry.watch();
+            shared.put(root.getPath(), registry);
+            return registry;
+        }
+    }
+
+    /**
+     * Load a private, unwatched registry for the directory (or file).
+     * @param traceIdRef                        Trace ID reference.
+     * @param copyrightContentFile              Template directory or file.
+     * @param filter                            Template file filter; {@code null}
+     *                                          for {@link CopyrightReaderContentFilter}.
+     * @return                                  Registry.
+     * @throws IOException                      If the templates can't be read.
+     */
+    public static CopyrightHeaderRegistry load(final TraceId traceIdRef,
+                                               final File copyrightContentFile,
+                                               final FileFilter filter)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(copyrightContentFile==null)
+            throw new IllegalArgumentException("Bad parameter [copyrightContentFile] is null; expecting ["+
+            File.class.getName()+"] object type");
+        final CopyrightHeaderRegistry registry = new CopyrightHeaderRegistry(
+            traceId,
+            copyrightContentFile.getCanonicalFile(),
+            filter!=null?filter:new CopyrightReaderContentFilter(traceId),
+            null
+        );
+        registry.reload();
+        return registry;
+    }
+
+    /**
+     * Load a registry of the templates bundled under a classpath resource
+     * directory, in every classpath entry (directories and jars) that has it.
+     * @param traceIdRef                        Trace ID reference.
+     * @param classLoader                       Class loader; {@code null} for
+     *                                          the context class loader.
+     * @param resourceDir                       Resource directory; e.g.
+     *                                          {@code "headers"}.
+     * @return                                  Registry.
+     * @throws IOException                      If the resources can't be read.
+     */
+    public static CopyrightHeaderRegistry load(final TraceId traceIdRef,
+                                               final ClassLoader classLoader,
+                                               final String resourceDir)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(resourceDir==null)
+            throw new IllegalArgumentException("Bad parameter [resourceDir] is null; expecting ["+
+            String.class.getName()+"] object type");
+        final ClassLoader loader = classLoader!=null?classLoader:Thread.currentThread().getContextClassLoader();
+        final String dir = resourceDir.replaceAll("^/+|/+$", "");
+        final List<URL> resources = new ArrayList<>();
+        final Enumeration<URL> dirs = loader.getResources(dir);
+        while(dirs.hasMoreElements())
+            resources.addAll(list(traceId, dirs.nextElement(), dir));
+        final CopyrightHeaderRegistry registry = new CopyrightHeaderRegistry(traceId, null, null, resources);
+        registry.reload();
+        return registry;
+    }
+
+    /**
+     * Get the extension (lower case) to template index; an immutable snapshot.
+     */
+    public Map<String, CopyrightHeaderTemplate> getIndex()
+    {
+        if(root!=null&&!watched)
+        {
+            // nothing tells us about added/removed templates but the directory times
+            refresh();
+            return index;
+        }
+        if(root!=null&&!equals(fileKey(watchDir()), watchDirKey))
+            rewatch(); // deleted and re-created under us; its watch keys are gone
+        else
+            validate();
+        return index;
+    }
+
+    /**
+     * Index version; incremented on every change to the index.
+     */
+    public long getVersion() { return version; }
+
+    public boolean isWatched() { return watched; }
+
+    /**
+     * Reload every template from scratch.
+     */
+    public synchronized void reload()
+    {
+        templates.clear();
+        rejected.clear();
+        directories.clear();
+        if(root!=null)
+        {
+            if(directory) // stamped before the walk, so a template added meanwhile shows as a change
+                directories.put(root.getPath(), root.lastModified());
+            walk(root);
+        }
+        else
+        {
+            for(URL resource:resources)
+            {
+                try
+                {
+                    final CopyrightHeaderTemplate template = CopyrightHeaderTemplate.of(traceId, resource);
+                    if(template.getHeaderLine()!=null&&!template.getExtensions().isEmpty())
+                        templates.put(resource.toExternalForm(), template);
+                }
+                catch(Throwable t)
+                {
+                    log.warning(traceId, "reload", "Unable to read template resource ["+
+                    resource+"]; skipping", t);
+                }
+            }
+        }
+        rebuild();
+    }
+
+    /**
+     * Stop watching; a shared registry is dropped, the next {@link #shared(TraceId, File)}
+     * loads it again.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        watched = false;
+        Watcher.cancel(this);
+        if(root!=null)
+            shared.remove(root.getPath(), this);
+    }
+
+    private Path watchDir() { return directory?root.toPath():root.toPath().getParent(); }
+
+    private synchronized void watch()
+    {
+        try
+        {
+            watchDirKey = fileKey(watchDir());
+            Watcher.get().register(this, watchDir());
+            watched = true;
+        }
+        catch(Throwable t)
+        {
+            // e.g. out of inotify watches; fall back to re-checking the directories on every use
+            log.warning(traceId, "watch", "Unable to watch copyright header directory ["+
+            root+"]; re-checking it on every use", t);
+            Watcher.cancel(this);
+            watched = false;
+        }
+    }
+
+    private synchronized void rewatch()
+    {
+        if(closed)
+            return;
+        Watcher.cancel(this);
+        reload();
+        watch();
+    }
+
+    /**
+     * The watched directory is gone; re-created already, or for good.
+     */
+    private synchronized void watchDirInvalid()
+    {
+        if(closed)
+            return;
+        if(root.exists())
+            rewatch();
+        else
+            close();
+    }
+
+    private static Object fileKey(final Path path)
+    {
+        try { return Files.readAttributes(path, BasicFileAttributes.class).fileKey(); }
+        catch(Throwable t) { return null; }
+    }
+
+    private static boolean equals(final Object o1,
+                                  final Object o2)
+    {
+        return o1==null?o2==null:o1.equals(o2);
+    }
+
+    /**
+     * Walk again if a directory changed (a template added or removed),
+     * validate the known templates otherwise.
+     */
+    private synchronized void refresh()
+    {
+        for(Map.Entry<String, Long> entry:directories.entrySet())
+        {
+            if(new File(entry.getKey()).lastModified()!=entry.getValue())
+            {
+                reload();
+                return;
+            }
+        }
+        validate();
+    }
+
+    private synchronized void validate()
+    {
+        boolean changed = false;
+        final List<String> stale = new ArrayList<>();
+        for(Iterator<Map.Entry<String, CopyrightHeaderTemplate>> iterator=templates.entrySet().iterator();iterator.hasNext();)
+        {
+            final Map.Entry<String, CopyrightHeaderTemplate> entry = iterator.next();
+            final CopyrightHeaderTemplate template = entry.getValue();
+            final File file = template.getFile();
+            if(file==null||(file.length()==template.getSize()&&file.lastModified()==template.getLastModified()))
+                continue;
+            changed = true;
+            stale.add(entry.getKey());
+            iterator.remove();
+        }
+        // files that were no template (e.g. caught half written) may be one by now
+        for(Iterator<Map.Entry<String, long[]>> iterator=rejected.entrySet().iterator();iterator.hasNext();)
+        {
+            final Map.Entry<String, long[]> entry = iterator.next();
+            final File file = new File(entry.getKey());
+            if(file.length()==entry.getValue()[0]&&file.lastModified()==entry.getValue()[1])
+                continue;
+            changed = true;
+            stale.add(entry.getKey());
+            iterator.remove();
+        }
+        if(changed)
+        {
+            for(String key:stale)
+            {
+                final File file = new File(key);
+                if(file.isFile())
+                    put(file);
+            }
+            rebuild();
+        }
+    }
+
+    /**
+     * A watched path changed.
+     */
+    private synchronized void changed(final Path path,
+                                      final WatchEvent.Kind<?> kind)
+    {
+        if(closed)
+            return;
+        final File file = path.toFile();
+        if(!directory&&!file.equals(root))
+            return;
+        if(kind==StandardWatchEventKinds.ENTRY_CREATE&&file.isDirectory())
+        {
+            // a new sub-directory; watch it and pick up whatever is in it already
+            try { Watcher.get().register(this, path); }
+            catch(Throwable t)
+            {
+                log.warning(traceId, "changed", "Unable to watch copyright header directory ["+
+                path+"]", t);
+            }
+            walk(file);
+        }
+        else
+        {
+            final String key = file.getPath();
+            templates.remove(key);
+            rejected.remove(key);
+            final String prefix = key+File.separator;
+            for(Iterator<String> iterator=templates.keySet().iterator();iterator.hasNext();)
+            {
+                if(iterator.next().startsWith(prefix)) // a removed directory
+                    iterator.remove();
+            }
+            for(Iterator<String> iterator=rejected.keySet().iterator();iterator.hasNext();)
+            {
+                if(iterator.next().startsWith(prefix))
+                    iterator.remove();
+            }
+            if(file.isFile())
+                put(file);
+        }
+        rebuild();
+    }
+
+    private void walk(final File dir)
+    {
+        // the filter only prunes directories here; put() filters the files so that it stamps the rejected ones
+        final FileTreeWalker walker = new FileTreeWalker(traceId, dir, new FileFilter()
+        {
+            @Override
+            public boolean accept(final File file)
+            {
+                if(!file.isDirectory())
+                    return true;
+                final long lastModified = file.lastModified();
+                if(!filter.accept(file))
+                    return false;
+                directories.put(file.getPath(), lastModified);
+                return true;
+            }
+        }).start();
+        try
+        {
+            File file;
+            while((file=walker.take())!=null)
+                put(file);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(Throwable t)
+        {
+            log.warning(traceId, "walk", "Unable to walk copyright header directory ["+
+            dir+"]", t);
+        }
+        finally
+        {
+            walker.close();
+        }
+    }
+
+    private void put(final File file)
+    {
+        // stamped before the filter reads it, so a write racing the read shows as a change
+        final long[] stamp = new long[]{file.length(), file.lastModified()};
+        try
+        {
+            if(!filter.accept(file))
+            {
+                rejected.put(file.getPath(), stamp);
+                return;
+            }
+            final CopyrightHeaderTemplate template = CopyrightHeaderTemplate.of(traceId, file);
+            if(template.getHeaderLine()!=null&&!template.getExtensions().isEmpty())
+                templates.put(file.getPath(), template);
+            else
+                rejected.put(file.getPath(), new long[]{template.getSize(), template.getLastModified()});
+        }
+        catch(Throwable t)
+        {
+            rejected.put(file.getPath(), stamp);
+            log.warning(traceId, "put", "Unable to read copyright header file ["+
+            file+"]; skipping", t);
+        }
+    }
+
+    private void rebuild()
+    {
+        // deterministic; the lowest location wins an extension whatever the walk order
+        final Map<String, CopyrightHeaderTemplate> sorted = new TreeMap<>();
+        for(CopyrightHeaderTemplate template:templates.values())
+            sorted.put(template.getLocation(), template);
+        final Map<String, CopyrightHeaderTemplate> _index = new LinkedHashMap<>();
+        for(CopyrightHeaderTemplate template:sorted.values())
+        {
+            for(String extension:template.getExtensions())
+            {
+                final CopyrightHeaderTemplate bound = _index.get(extension);
+                if(bound==null)
+                    _index.put(extension, template);
+                else
+                    log.warning(traceId, "rebuild", "Copyright header for file extension ["+
+                    extension+"] already bound to ["+bound.getLocation()+"]; ignoring ["+
+                    template.getLocation()+"]");
+            }
+        }
+        index = Collections.unmodifiableMap(_index);
+        version++;
+        if(log.isFine())
+            log.fine(traceId, "rebuild", "Indexed ["+templates.size()+"] copyright header templates, extensions "+
+            index.keySet()+"; version ["+version+"]");
+    }
+
+    private static List<URL> list(final TraceId traceId,
+                                  final URL dir,
+                                  final String resourceDir)
+           throws IOException
+    {
+        final List<URL> resources = new ArrayList<>();
+        if("file".equalsIgnoreCase(dir.getProtocol()))
+        {
+            final Path path;
+            try { path = new File(dir.toURI()).toPath(); }
+            catch(Throwable t) { throw new IOException("Bad resource URL ["+dir+"]", t); }
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                                                 final BasicFileAttributes attributes)
+                       throws IOException
+                {
+                    if(attributes.isRegularFile())
+                        resources.add(file.toUri().toURL());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return resources;
+        }
+        final URLConnection connection = dir.openConnection();
+        if(!(connection instanceof JarURLConnection))
+        {
+            log.warning(traceId, "list", "Unable to list resource directory ["+dir+"]; skipping");
+            return resources;
+        }
+        connection.setUseCaches(false);
+        final JarFile jar = ((JarURLConnection)connection).getJarFile();
+        try
+        {
+            final String base = dir.toExternalForm().substring(0, dir.toExternalForm().indexOf("!/")+2);
+            final Enumeration<JarEntry> entries = jar.entries();
+            while(entries.hasMoreElements())
+            {
+                final JarEntry entry = entries.nextElement();
+                if(!entry.isDirectory()&&entry.getName().startsWith(resourceDir+"/"))
+                    resources.add(new URL(base+entry.getName()));
+            }
+        }
+        finally
+        {
+            try { jar.close(); } catch(Throwable t) {}
+        }
+        return resources;
+    }
+
+    /**
+     * The one watch thread; routes events to the registries.
+     */
+    private static final class Watcher
+            implements Runnable
+    {
+        private static Watcher watcher;
+
+        private final WatchService watchService;
+        private final ConcurrentMap<WatchKey, Watched> keys = new ConcurrentHashMap<>();
+
+        private static final class Watched
+        {
+            private final CopyrightHeaderRegistry registry;
+            private final Path dir;
+
+            private Watched(final CopyrightHeaderRegistry registry,
+                            final Path dir)
+            {
+                this.registry = registry;
+                this.dir = dir;
+            }
+        }
+
+        private Watcher()
+                throws IOException
+        {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        }
+
+        private static synchronized Watcher get()
+                throws IOException
+        {
+            if(watcher==null)
+            {
+                watcher = new Watcher();
+                final Thread thread = new Thread(watcher, "copyright-header-registry-watch");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return watcher;
+        }
+
+        private static synchronized void cancel(final CopyrightHeaderRegistry registry)
+        {
+            if(watcher==null)
+                return;
+            for(Iterator<Map.Entry<WatchKey, Watched>> iterator=watcher.keys.entrySet().iterator();iterator.hasNext();)
+            {
+                final Map.Entry<WatchKey, Watched> entry = iterator.next();
+                if(entry.getValue().registry==registry)
+                {
+                    entry.getKey().cancel();
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Watch the directory and every directory under it.
+         */
+        private void register(final CopyrightHeaderRegistry registry,
+                              final Path dir)
+                throws IOException
+        {
+            final boolean recursive = registry.directory;
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path _dir,
+                                                         final BasicFileAttributes attributes)
+                       throws IOException
+                {
+                    final WatchKey key = _dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                    keys.put(key, new Watched(registry, _dir));
+                    return recursive?FileVisitResult.CONTINUE:FileVisitResult.SKIP_SUBTREE;
+                }
+            });
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                final WatchKey key;
+                try { key = watchService.take(); }
+                catch(InterruptedException|ClosedWatchServiceException e) { return; }
+                final Watched watched = keys.get(key);
+                try
+                {
+                    if(watched!=null)
+                    {
+                        for(WatchEvent<?> event:key.pollEvents())
+                        {
+                            if(event.kind()==StandardWatchEventKinds.OVERFLOW)
+                                watched.registry.reload(); // events were lost
+                            else
+                                watched.registry.changed(watched.dir.resolve((Path)event.context()), event.kind());
+                        }
+                    }
+                    else
+                        key.pollEvents();
+                }
+                catch(Throwable t)
+                {
+                    log.warning(watched!=null?watched.registry.traceId:null, "run", 
+                    "Failed to refresh copyright header registry", t);
+                }
+                if(!key.reset())
+                {
+                    // the directory is gone; a registry losing its root is dropped
+                    keys.remove(key);
+                    if(watched!=null&&watched.registry.watchDir().equals(watched.dir))
+                        watched.registry.watchDirInvalid();
+                }
+            }
+        }
+    }
+}
@@ -1,69 +1,163 @@
 package org.axelfox.common.util.writer;
 
-import org.axelfox.common.util.reader.CopyrightReaderContentFilter;
+import org.axelfox.common.util.reader.ContentTypeSniffer;
+import org.axelfox.common.util.reader.CopyrightHeaderTags;
+import org.axelfox.common.util.reader.CopyrightHeaderTemplate;
+import org.axelfox.common.util.reader.FileTreeWalker;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.axelfox.common.object.ParameterSpec;
+import org.axelfox.common.object.response.DefaultResponse;
+import org.axelfox.common.object.response.DefaultResponseCode;
+import org.axelfox.common.util.SpanRecorder;
 import org.axelfox.common.util.TraceId;
-import org.axelfox.common.util.reader.CopyrightReaderContentHeader;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.TraceSpan;
+import org.axelfox.common.util.writer.inf.AuditWriter;
 
 public final class CopyrightWriter
 {
-    private static final Logger log = Logger.getLogger(CopyrightWriter.class.getName());
-    private static final Map<String, String> SUPPORTED_STATIC_TAGS = new ConcurrentHashMap<>();
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightWriter.class);
+    private static final Map<String, String> SUPPORTED_STATIC_TAGS = CopyrightHeaderTags.getStaticTags(); // resolved lazily
+    private static final ThreadLocal<ByteBuffer> renderBuffer = new ThreadLocal<>();
     
-    static
+    private CopyrightWriter() {}
+    
+    /**
+     * How the target source files are processed.
+     */
+    public static enum ExecutionMode
     {
-        SUPPORTED_STATIC_TAGS.put("{current.year}", String.valueOf(Calendar.getInstance().get(Calendar.YEAR)));
-        // https://docs.oracle.com/javase/tutorial/essential/environment/sysprop.html
-        final String[] sysprops = {
-            "file.separator",
-            "java.class.path",
-            "java.home",
-            "java.vendor",
-            "java.vendor.url",
-            "java.version",
-            "line.separator",
-            "os.arch",
-            "os.name",
-            "os.version",
-            "path.separator",
-            "user.dir",
-            "user.home",
-            "user.name",
-        };
-        for(String sysprop:sysprops)
-            SUPPORTED_STATIC_TAGS.put("{"+sysprop+"}", System.getProperty(sysprop));
+        /** One after another on the calling thread (default). */
+        SEQUENTIAL,
+        /** Spread over a {@link ForkJoinPool} of {@code parallelism} workers. */
+        FORK_JOIN,
+        /** Spread over a fixed pool of {@code parallelism} worker threads. */
+        FIXED_POOL,
+        /** 
+         * {@link java.nio.channels.AsynchronousFileChannel} completion handlers 
+         * on a fixed pool of {@code parallelism} threads; up to {@code maxInflight} 
+         * files in flight (e.g. for network file systems).
+         */
+        ASYNC,
+        /** 
+         * One virtual thread per file, up to {@code maxInflight} in flight; 
+         * {@link #FIXED_POOL} on JDKs without virtual threads.
+         */
+        VIRTUAL_THREAD,
+        ;
     }
     
-    private CopyrightWriter() {}
+    /**
+     * How hard a written target file is pushed to the device before it is 
+     * reported as appended.
+     */
+    public static enum Durability
+    {
+        /** Left to the OS (default); a crash may lose or tear recent writes. */
+        NONE,
+        /** Each file and its directory forced as it is written. */
+        PER_FILE,
+        /** 
+         * Files committed in groups of {@code groupCommitFiles} or every 
+         * {@code groupCommitMillis}, one directory force per group.
+         */
+        GROUP,
+        ;
+    }
+    
+    /**
+     * How the header is encoded for a target source file; target file 
+     * content is always copied as is, never decoded.
+     */
+    public static enum TargetEncoding
+    {
+        /** 
+         * The platform charset and line separator for every target (default); 
+         * UTF-16 and UTF-32 targets are skipped.
+         */
+        PLATFORM,
+        /** 
+         * The charset and line separator sniffed from each target's prefix 
+         * (byte order mark, UTF-8 validity and first line break), falling back 
+         * to the platform ones; UTF-16 and UTF-32 targets only at line no. {@code 1}.
+         */
+        DETECT,
+        ;
+    }
+    
+    /**
+     * What happens to a target that already has a header from the same 
+     * template, rendered with other tag values (e.g. last year's).
+     */
+    public static enum WriteMode
+    {
+        /** Left as is; the new header is inserted (default). */
+        INSERT,
+        /** 
+         * The old header is replaced; in place if the new one has the same 
+         * length (the target content after it is not copied), otherwise 
+         * staged and swapped in as an insert would be. Targets without one 
+         * get the header inserted.
+         */
+        UPDATE,
+        ;
+    }
     
     public static final class CopyrighterWriterParameterSpec
            extends ParameterSpec
     {
         private static final long serialVersionUID = -8024414072198488653L;
         
+        public static final int DEFAULT_MAXINFLIGHT = 1024;
+        public static final int DEFAULT_GROUPCOMMITFILES = 64;
+        public static final long DEFAULT_GROUPCOMMITMILLIS = 100l;
+        public static final long DEFAULT_WATCHDEBOUNCEMILLIS = 250l;
+        public static final int DEFAULT_WATCHMAXBATCH = 4096;
+        public static final int DEFAULT_WATCHRESCANFILES = 10000;
+        
         private static final String ARGNAME_TRACEIDREF = "traceIdRef";
         private static final String ARGNAME_COPYRIGHTCONTENTFILE = "copyrightContentFile";
         private static final String ARGNAME_COPYRIGHTCONTENTFILEFILTER = "copyrightContentFileFilter";
+        private static final String ARGNAME_COPYRIGHTHEADERREGISTRY = "copyrightHeaderRegistry";
         private static final String ARGNAME_APPENDATLINENO = "appendAtLineNo";
         private static final String ARGNAME_APPENDTOTARGETFILE = "appendToTargetFile";
         private static final String ARGNAME_APPENDTOTARGETFILEFILTER = "appendToTargetFileFilter";
+        private static final String ARGNAME_EXECUTIONMODE = "executionMode";
+        private static final String ARGNAME_PARALLELISM = "parallelism";
+        private static final String ARGNAME_EXECUTORSERVICE = "executorService";
+        private static final String ARGNAME_MAXINFLIGHT = "maxInflight";
+        private static final String ARGNAME_MANIFESTFILE = "manifestFile";
+        private static final String ARGNAME_DURABILITY = "durability";
+        private static final String ARGNAME_GROUPCOMMITFILES = "groupCommitFiles";
+        private static final String ARGNAME_GROUPCOMMITMILLIS = "groupCommitMillis";
+        private static final String ARGNAME_TARGETENCODING = "targetEncoding";
+        private static final String ARGNAME_WRITEMODE = "writeMode";
+        private static final String ARGNAME_WATCHDEBOUNCEMILLIS = "watchDebounceMillis";
+        private static final String ARGNAME_WATCHMAXBATCH = "watchMaxBatch";
+        private static final String ARGNAME_WATCHRESCANFILES = "watchRescanFiles";
+        private static final String ARGNAME_SPANRECORDER = "spanRecorder";
+        private static final String ARGNAME_METRICS = "metrics";
+        private static final String ARGNAME_AUDITWRITER = "auditWriter";
         
         public TraceId getTraceIdRef() { return getter(ARGNAME_TRACEIDREF, TraceId.class); }
         public CopyrighterWriterParameterSpec setTraceIdRef(final TraceId traceIdRef) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_TRACEIDREF, TraceId.class, traceIdRef); }
@@ -80,6 +174,16 @@ public final class CopyrightWriter
         public FileFilter getCopyrightContentFileFilter() { return getter(ARGNAME_COPYRIGHTCONTENTFILEFILTER, FileFilter.class); }
         public CopyrighterWriterParameterSpec setCopyrightContentFileFilter(final FileFilter copyrightContentFileFilter) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_COPYRIGHTCONTENTFILEFILTER, FileFilter.class, copyrightContentFileFilter); }
 
+        /**
+         * Templates to use instead of {@link #getCopyrightContentFile()}; e.g.
+         * bundled ones from {@link CopyrightHeaderRegistry#load(TraceId, ClassLoader, String)}.
+         * Without one, the copyright content file templates come from the shared
+         * {@link CopyrightHeaderRegistry#shared(TraceId, File)} registry (unless
+         * a custom content file filter is set).
+         */
+        public CopyrightHeaderRegistry getCopyrightHeaderRegistry() { return getter(ARGNAME_COPYRIGHTHEADERREGISTRY, CopyrightHeaderRegistry.class); }
+        public CopyrighterWriterParameterSpec setCopyrightHeaderRegistry(final CopyrightHeaderRegistry copyrightHeaderRegistry) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_COPYRIGHTHEADERREGISTRY, CopyrightHeaderRegistry.class, copyrightHeaderRegistry); }
+
         public int getAppendAtLineNo() { return getter(ARGNAME_APPENDATLINENO, int.class); }
         public CopyrighterWriterParameterSpec setAppendAtLineNo(final int appendAtLineNo) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_APPENDATLINENO, int.class, appendAtLineNo); }
 
@@ -94,34 +198,314 @@ public final class CopyrightWriter
         
         public FileFilter getAppendToTargetFileFilter() { return getter(ARGNAME_APPENDTOTARGETFILEFILTER, FileFilter.class); }
         public CopyrighterWriterParameterSpec setAppendToTargetFileFilter(final FileFilter appendToTargetFileFilter) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_APPENDTOTARGETFILEFILTER, FileFilter.class, appendToTargetFileFilter); }
+        
+        public ExecutionMode getExecutionMode() { return getter(ARGNAME_EXECUTIONMODE, ExecutionMode.class); }
+        public CopyrighterWriterParameterSpec setExecutionMode(final ExecutionMode executionMode) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_EXECUTIONMODE, ExecutionMode.class, executionMode); }
+        
+        /**
+         * Number of worker threads; {@code 0} (default) uses the available 
+         * processors. Ignored for {@link ExecutionMode#SEQUENTIAL}.
+         */
+        public int getParallelism() { return getter(ARGNAME_PARALLELISM, int.class); }
+        public CopyrighterWriterParameterSpec setParallelism(final int parallelism) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_PARALLELISM, int.class, parallelism); }
+        
+        /**
+         * Max. number of files in flight; {@code 0} (default) uses twice the 
+         * parallelism for thread pools, or {@link #DEFAULT_MAXINFLIGHT} for 
+         * {@link ExecutionMode#ASYNC} and {@link ExecutionMode#VIRTUAL_THREAD}.
+         */
+        public int getMaxInflight() { return getter(ARGNAME_MAXINFLIGHT, int.class); }
+        public CopyrighterWriterParameterSpec setMaxInflight(final int maxInflight) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_MAXINFLIGHT, int.class, maxInflight); }
+        
+        /**
+         * Caller owned executor to use instead of the {@link ExecutionMode} one; 
+         * it will not be shut down.
+         */
+        public ExecutorService getExecutorService() { return getter(ARGNAME_EXECUTORSERVICE, ExecutorService.class); }
+        public CopyrighterWriterParameterSpec setExecutorService(final ExecutorService executorService) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_EXECUTORSERVICE, ExecutorService.class, executorService); }
+        
+        /**
+         * Optional incremental-run manifest; when set, target files left 
+         * unchanged since the previous run with the same header are skipped.
+         */
+        public File getManifestFile() { return getter(ARGNAME_MANIFESTFILE, File.class); }
+        public CopyrighterWriterParameterSpec setManifestFile(final File manifestFile) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_MANIFESTFILE, File.class, manifestFile); }
+        public CopyrighterWriterParameterSpec setManifestFile(final String manifestFilepath)
+        {
+            if(manifestFilepath!=null)
+                return setManifestFile(new File(manifestFilepath.trim().replaceAll("\\\\", "/")));
+            return setManifestFile((File)null);
+        }
+        
+        public Durability getDurability() { return getter(ARGNAME_DURABILITY, Durability.class); }
+        public CopyrighterWriterParameterSpec setDurability(final Durability durability) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_DURABILITY, Durability.class, durability); }
+        
+        /**
+         * Files per group for {@link Durability#GROUP}; {@code 0} (default) 
+         * uses {@link #DEFAULT_GROUPCOMMITFILES}.
+         */
+        public int getGroupCommitFiles() { return getter(ARGNAME_GROUPCOMMITFILES, int.class); }
+        public CopyrighterWriterParameterSpec setGroupCommitFiles(final int groupCommitFiles) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_GROUPCOMMITFILES, int.class, groupCommitFiles); }
+        
+        /**
+         * Max. time a file waits for its group for {@link Durability#GROUP}; 
+         * {@code 0} (default) uses {@link #DEFAULT_GROUPCOMMITMILLIS}.
+         */
+        public long getGroupCommitMillis() { return getter(ARGNAME_GROUPCOMMITMILLIS, long.class); }
+        public CopyrighterWriterParameterSpec setGroupCommitMillis(final long groupCommitMillis) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_GROUPCOMMITMILLIS, long.class, groupCommitMillis); }
+        
+        public TargetEncoding getTargetEncoding() { return getter(ARGNAME_TARGETENCODING, TargetEncoding.class); }
+        public CopyrighterWriterParameterSpec setTargetEncoding(final TargetEncoding targetEncoding) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_TARGETENCODING, TargetEncoding.class, targetEncoding); }
+        
+        public WriteMode getWriteMode() { return getter(ARGNAME_WRITEMODE, WriteMode.class); }
+        public CopyrighterWriterParameterSpec setWriteMode(final WriteMode writeMode) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_WRITEMODE, WriteMode.class, writeMode); }
+        
+        /**
+         * Watch mode quiet period; a batch is applied once no event came in 
+         * for that long. {@code 0} (default) uses {@link #DEFAULT_WATCHDEBOUNCEMILLIS}.
+         */
+        public long getWatchDebounceMillis() { return getter(ARGNAME_WATCHDEBOUNCEMILLIS, long.class); }
+        public CopyrighterWriterParameterSpec setWatchDebounceMillis(final long watchDebounceMillis) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_WATCHDEBOUNCEMILLIS, long.class, watchDebounceMillis); }
+        
+        /**
+         * Watch mode max. files per batch; a batch is applied as soon as it 
+         * is that big. {@code 0} (default) uses {@link #DEFAULT_WATCHMAXBATCH}.
+         */
+        public int getWatchMaxBatch() { return getter(ARGNAME_WATCHMAXBATCH, int.class); }
+        public CopyrighterWriterParameterSpec setWatchMaxBatch(final int watchMaxBatch) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_WATCHMAXBATCH, int.class, watchMaxBatch); }
+        
+        /**
+         * Watch mode max. files re-checked per directory when events were 
+         * lost. {@code 0} (default) uses {@link #DEFAULT_WATCHRESCANFILES}.
+         */
+        public int getWatchRescanFiles() { return getter(ARGNAME_WATCHRESCANFILES, int.class); }
+        public CopyrighterWriterParameterSpec setWatchRescanFiles(final int watchRescanFiles) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_WATCHRESCANFILES, int.class, watchRescanFiles); }
+        
+        /**
+         * Recorder of the run spans: the run, template, scan, and per file the 
+         * check, write, commit and fsync steps. {@code null} (default) records 
+         * to {@link SpanRecorder#getDefault()}, if enabled.
+         */
+        public SpanRecorder getSpanRecorder() { return getter(ARGNAME_SPANRECORDER, SpanRecorder.class); }
+        public CopyrighterWriterParameterSpec setSpanRecorder(final SpanRecorder spanRecorder) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_SPANRECORDER, SpanRecorder.class, spanRecorder); }
+        
+        /**
+         * Metrics to record runs to (plans are not). {@code null} (default) 
+         * records to {@link CopyrightWriterMetrics#getDefault()}.
+         */
+        public CopyrightWriterMetrics getMetrics() { return getter(ARGNAME_METRICS, CopyrightWriterMetrics.class); }
+        public CopyrighterWriterParameterSpec setMetrics(final CopyrightWriterMetrics metrics) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_METRICS, CopyrightWriterMetrics.class, metrics); }
+        
+        /**
+         * Audit writer to publish a record of every target file modified to 
+         * (plans are not); {@code null} (default) for none. It is not closed 
+         * by the writer.
+         */
+        public AuditWriter getAuditWriter() { return getter(ARGNAME_AUDITWRITER, AuditWriter.class); }
+        public CopyrighterWriterParameterSpec setAuditWriter(final AuditWriter auditWriter) { return (CopyrighterWriterParameterSpec)setter(ARGNAME_AUDITWRITER, AuditWriter.class, auditWriter); }
+    }
+    
+    /**
+     * Response of {@link CopyrightWriter#planCopyrightText(CopyrighterWriterParameterSpec)}; 
+     * the object is the (possibly partial) {@link CopyrightWriterReport}.
+     */
+    public static final class CopyrightWriterResponse
+           extends DefaultResponse<CopyrightWriterResponse, CopyrightWriterReport>
+    {
+        private static final long serialVersionUID = 5391826044773185921L;
+    }
+    
+    private static final class AppendContext
+    {
+        private final TraceId traceId;
+        private final CopyrighterWriterParameterSpec parameterSpec;
+        private final Map<String, CompiledCopyrightHeader.Variant> copyrightHeaders;
+        private final String newline;
+        private final CopyrightWriterManifest manifest;
+        private final CharSequence dbgCopyrightHeaderExtensions;
+        private final CopyrightWriterReport report;
+        private final DurableCommitter committer;
+        private final TraceSpan span;
+        private final AuditWriter auditWriter;
+        
+        private AppendContext(final TraceId traceId,
+                              final TraceSpan span,
+                              final CopyrighterWriterParameterSpec parameterSpec,
+                              final Map<String, CompiledCopyrightHeader.Variant> copyrightHeaders,
+                              final String newline,
+                              final CopyrightWriterManifest manifest,
+                              final CharSequence dbgCopyrightHeaderExtensions,
+                              final CopyrightWriterReport report,
+                              final DurableCommitter committer)
+        {
+            this.traceId = traceId;
+            this.span = span;
+            this.parameterSpec = parameterSpec;
+            this.copyrightHeaders = copyrightHeaders;
+            this.newline = newline;
+            this.manifest = manifest;
+            this.dbgCopyrightHeaderExtensions = dbgCopyrightHeaderExtensions;
+            this.report = report;
+            this.committer = committer;
+            this.auditWriter = report.isPlan()?null:parameterSpec.getAuditWriter();
+        }
+    }
+    
+    /**
+     * A target source file that passed the checks; the header as encoded for
+     * it and where its first line starts.
+     */
+    private static final class Target
+    {
+        private final CompiledCopyrightHeader.Variant variant;
+        private final int bomLength;
+        
+        private Target(final CompiledCopyrightHeader.Variant variant,
+                       final int bomLength)
+        {
+            this.variant = variant;
+            this.bomLength = bomLength;
+        }
+    }
+    
+    private static final class WorkerThreadFactory
+            implements ThreadFactory
+    {
+        private static final AtomicInteger poolNo = new AtomicInteger();
+        private final int pool = poolNo.incrementAndGet();
+        private final AtomicInteger threadNo = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            final Thread thread = new Thread(runnable, "copyright-writer-"+pool+"-"+threadNo.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
     
     public static boolean appendCopyrightText(final CopyrighterWriterParameterSpec parameterSpec)
            throws IOException
+    {
+        return appendCopyrightText(parameterSpec, new CopyrightWriterReport(false), null).isSuccess();
+    }
+    
+    /**
+     * Watch the target directory and append the copyright header to the source 
+     * files as they are created or modified, in debounced batches; same 
+     * parameters as {@link #appendCopyrightText(CopyrighterWriterParameterSpec)}, 
+     * files already there are left to a regular run.
+     * @param parameterSpec                     Run parameters, plus the watch ones.
+     * @return                                  Running watch; close it to stop.
+     * @throws IOException                      If the target can't be watched.
+     */
+    public static CopyrightWriterWatch watchCopyrightText(final CopyrighterWriterParameterSpec parameterSpec)
+           throws IOException
+    {
+        if(parameterSpec==null)
+            throw new IllegalArgumentException("Bad parameter [parameterSpec] is null; expecting ["+
+            CopyrighterWriterParameterSpec.class.getName()+"] object type");
+        if(parameterSpec.getAppendToTargetFile()==null||!parameterSpec.getAppendToTargetFile().isDirectory())
+            throw new IllegalArgumentException("Bad parameter ["+
+            CopyrighterWriterParameterSpec.ARGNAME_APPENDTOTARGETFILE+
+            "] is not a directory ["+parameterSpec.getAppendToTargetFile()+"]; expecting a target directory to watch");
+        if(parameterSpec.getWatchDebounceMillis()<0)
+            throw new IllegalArgumentException("Bad parameter ["+
+            CopyrighterWriterParameterSpec.ARGNAME_WATCHDEBOUNCEMILLIS+"] is not a valid quiet period ["+
+            parameterSpec.getWatchDebounceMillis()+"]; expecting [0] (default) or greater");
+        if(parameterSpec.getWatchMaxBatch()<0)
+            throw new IllegalArgumentException("Bad parameter ["+
+            CopyrighterWriterParameterSpec.ARGNAME_WATCHMAXBATCH+"] is not a valid batch size ["+
+            parameterSpec.getWatchMaxBatch()+"]; expecting [0] (default) or greater");
+        if(parameterSpec.getWatchRescanFiles()<0)
+            throw new IllegalArgumentException("Bad parameter ["+
+            CopyrighterWriterParameterSpec.ARGNAME_WATCHRESCANFILES+"] is not a valid rescan size ["+
+            parameterSpec.getWatchRescanFiles()+"]; expecting [0] (default) or greater");
+        return new CopyrightWriterWatch(parameterSpec).start();
+    }
+    
+    /**
+     * Append the copyright header to a batch of target source files under 
+     * the target directory; for {@link CopyrightWriterWatch}.
+     */
+    static CopyrightWriterReport appendCopyrightText(final CopyrighterWriterParameterSpec parameterSpec,
+                                                     final Collection<File> appendSourceFiles)
+           throws IOException
+    {
+        // the watch needs the outcome of each file of its (bounded) batch
+        return appendCopyrightText(parameterSpec, new CopyrightWriterReport(false, true), appendSourceFiles);
+    }
+    
+    /**
+     * Plan an {@link #appendCopyrightText(CopyrighterWriterParameterSpec)} run: 
+     * discovery, template matching and the presence checks are done, but 
+     * nothing is written (the manifest included).
+     * @param parameterSpec                     Same parameters as the run.
+     * @return                                  Response with the {@link CopyrightWriterReport} 
+     *                                          as object; {@link DefaultResponseCode#OK_SUCCESS} 
+     *                                          if no file would fail.
+     */
+    public static CopyrightWriterResponse planCopyrightText(final CopyrighterWriterParameterSpec parameterSpec)
+    {
+        final CopyrightWriterReport report = new CopyrightWriterReport(true);
+        final CopyrightWriterResponse response = new CopyrightWriterResponse().object(report);
+        try
+        {
+            appendCopyrightText(parameterSpec, report, null);
+            if(report.isSuccess())
+                response.code(DefaultResponseCode.OK_SUCCESS);
+            else
+                response.code(DefaultResponseCode.ERR_ILLEGAL_STATE).message("["+
+                report.getCount(CopyrightWriterReport.Outcome.FAILURE)+"] source file(s) would fail");
+        }
+        catch(IllegalArgumentException e)
+        {
+            response.code(DefaultResponseCode.ERR_ILLEGAL_ARGUMENT).message(e.getMessage());
+        }
+        catch(FileNotFoundException e)
+        {
+            response.code(DefaultResponseCode.WARN_NOT_FOUND).message(e.getMessage());
+        }
+        catch(Throwable t)
+        {
+            response.code(DefaultResponseCode.ERR_SYSTEM).message(t.getMessage());
+        }
+        return response;
+    }
+    
+    private static CopyrightWriterReport appendCopyrightText(final CopyrighterWriterParameterSpec parameterSpec,
+                                                             final CopyrightWriterReport report,
+                                                             final Collection<File> appendSourceFiles)
+            throws IOException
     {
         final TraceId traceId = parameterSpec!=null&&parameterSpec.getTraceIdRef()!=null?
         new TraceId(parameterSpec.getTraceIdRef()):new TraceId();
+        final long started = System.nanoTime();
+        final TraceSpan span = TraceSpan.start(
+            parameterSpec!=null&&parameterSpec.getSpanRecorder()!=null?parameterSpec.getSpanRecorder():SpanRecorder.getDefault(), 
+            traceId, 
+            "appendCopyrightText", 
+            parameterSpec!=null&&parameterSpec.getAppendToTargetFile()!=null?parameterSpec.getAppendToTargetFile().getPath():null
+        );
+        final CopyrightWriterMetrics metrics = report.isPlan()?null:
+        parameterSpec!=null&&parameterSpec.getMetrics()!=null?parameterSpec.getMetrics():CopyrightWriterMetrics.getDefault();
+        report.metrics(metrics);
         
-        final Set<File> appendSourceFiles = new LinkedHashSet<>(); // all source files to process
-        final Set<File> appendSourceSuccessFiles = new LinkedHashSet<>(); // success copyright appended ones
-        final Map<File, String> appendSourceIgnoreFiles = new LinkedHashMap<>(); // key=the file, value=reason why ignored
-        final Map<File, String> appendSourceFailureFiles = new LinkedHashMap<>(); // key=the file, value=reason why failed
-        
-        log.info("# "+traceId+" # appendCopyrightText() : enters");
+        log.enters(traceId, "appendCopyrightText");
         try
         {
             if(parameterSpec==null)
                 throw new IllegalArgumentException("Bad parameter [parameterSpec] is null; expecting ["+
                 CopyrighterWriterParameterSpec.class.getName()+"] object type");
-            if(parameterSpec.getCopyrightContentFile()==null)
+            if(parameterSpec.getCopyrightHeaderRegistry()==null&&parameterSpec.getCopyrightContentFile()==null)
                 throw new IllegalArgumentException("Bad parameter ["+
                 CopyrighterWriterParameterSpec.ARGNAME_COPYRIGHTCONTENTFILE+
                 "] is null; expecting ["+File.class.getName()+"] object type containing the copyright content template to use to append to the target file");
-            if(!parameterSpec.getCopyrightContentFile().exists())
+            if(parameterSpec.getCopyrightHeaderRegistry()==null&&!parameterSpec.getCopyrightContentFile().exists())
                 throw new FileNotFoundException("Bad parameter ["+
                 CopyrighterWriterParameterSpec.ARGNAME_COPYRIGHTCONTENTFILE+
                 "] is not found at path ["+parameterSpec.getCopyrightContentFile().getPath()+"]");
-            if(!parameterSpec.getCopyrightContentFile().canRead())
+            if(parameterSpec.getCopyrightHeaderRegistry()==null&&!parameterSpec.getCopyrightContentFile().canRead())
                 throw new SecurityException("Bad parameter ["+
                 CopyrighterWriterParameterSpec.ARGNAME_COPYRIGHTCONTENTFILE+
                 "] has no READ access at path ["+parameterSpec.getCopyrightContentFile().getPath()+"]");
@@ -141,302 +525,874 @@ public final class CopyrightWriter
                 throw new SecurityException("Bad parameter ["+
                 CopyrighterWriterParameterSpec.ARGNAME_APPENDTOTARGETFILE+
                 "] has no WRITE access at path ["+parameterSpec.getAppendToTargetFile().getPath()+"]");
-            if(parameterSpec.getAppendAtLineNo()==0)
+            if(parameterSpec.getAppendAtLineNo()<1)
                 throw new IllegalArgumentException("Bad parameter ["+
                 CopyrighterWriterParameterSpec.ARGNAME_APPENDATLINENO+"] is not a valid line no. ["+
                 parameterSpec.getAppendAtLineNo()+"]; line no. should start at [1]");
+            if(parameterSpec.getParallelism()<0)
+                throw new IllegalArgumentException("Bad parameter ["+
+                CopyrighterWriterParameterSpec.ARGNAME_PARALLELISM+"] is not a valid parallelism ["+
+                parameterSpec.getParallelism()+"]; expecting [0] (available processors) or greater");
+            if(parameterSpec.getMaxInflight()<0)
+                throw new IllegalArgumentException("Bad parameter ["+
+                CopyrighterWriterParameterSpec.ARGNAME_MAXINFLIGHT+"] is not a valid max. in flight ["+
+                parameterSpec.getMaxInflight()+"]; expecting [0] (default) or greater");
+            if(parameterSpec.getGroupCommitFiles()<0)
+                throw new IllegalArgumentException("Bad parameter ["+
+                CopyrighterWriterParameterSpec.ARGNAME_GROUPCOMMITFILES+"] is not a valid group size ["+
+                parameterSpec.getGroupCommitFiles()+"]; expecting [0] (default) or greater");
+            if(parameterSpec.getGroupCommitMillis()<0)
+                throw new IllegalArgumentException("Bad parameter ["+
+                CopyrighterWriterParameterSpec.ARGNAME_GROUPCOMMITMILLIS+"] is not a valid group time ["+
+                parameterSpec.getGroupCommitMillis()+"]; expecting [0] (default) or greater");
             
-            // let's get all the header files that we can use
-            final Set<File> copyrightHeaderFiles = new LinkedHashSet<>();
-            listFiles(parameterSpec.getCopyrightContentFile(), 
-                copyrightHeaderFiles,
-                (parameterSpec.getCopyrightContentFileFilter()!=null?
-                    parameterSpec.getCopyrightContentFileFilter():
-                    new CopyrightReaderContentFilter(traceId) // default this // default this
-                )
-            );
+            // let's get all the header templates that we can use; loaded once per 
+            // directory and kept current, unless the caller brings its own
+            final long templateStarted = System.nanoTime();
+            final TraceSpan templateSpan = span.child("template", null);
+            final CopyrightHeaderRegistry copyrightHeaderRegistry = 
+            parameterSpec.getCopyrightHeaderRegistry()!=null?parameterSpec.getCopyrightHeaderRegistry():
+            parameterSpec.getCopyrightContentFileFilter()!=null?
+            CopyrightHeaderRegistry.load(traceId, parameterSpec.getCopyrightContentFile(), parameterSpec.getCopyrightContentFileFilter()):
+            CopyrightHeaderRegistry.shared(traceId, parameterSpec.getCopyrightContentFile());
+            final boolean copyrightHeaderRegistryOwned = parameterSpec.getCopyrightHeaderRegistry()==null&&
+            parameterSpec.getCopyrightContentFileFilter()!=null;
+            final Map<String, CopyrightHeaderTemplate> copyrightHeaderIndex;
+            try { copyrightHeaderIndex = copyrightHeaderRegistry.getIndex(); }
+            finally
+            {
+                if(copyrightHeaderRegistryOwned)
+                    copyrightHeaderRegistry.close();
+            }
             // no header files to use
-            if(copyrightHeaderFiles.isEmpty())
-                log.warning("# "+traceId+" # appendCopyrightText() : No copyright header files found, require at least one (1) copyright header file to use as a reference");
+            if(copyrightHeaderIndex.isEmpty())
+            {
+                report.addPhaseNanos(CopyrightWriterReport.Phase.TEMPLATE, System.nanoTime()-templateStarted);
+                templateSpan.end();
+                log.warning(traceId, "appendCopyrightText", "No copyright header files found, require at least one (1) copyright header file to use as a reference");
+            }
             else
             {
-                log.info("# "+traceId+" # appendCopyrightText() : Found ["+
-                copyrightHeaderFiles.size()+"] copyright header files");
-
-                // let's get all the source files that we need to append the copyright headers
-                listFiles(
-                    parameterSpec.getAppendToTargetFile(), 
-                    appendSourceFiles,
-                    parameterSpec.getAppendToTargetFileFilter()
-                );
-                
-                // no source files to use
-                if(appendSourceFiles.isEmpty())
-                    log.warning("# "+traceId+" # appendCopyrightText() : No source files found, require at least one (1) source file");
-                else
-                {
-                    log.info("# "+traceId+" # appendCopyrightText() : Found ["+
-                    appendSourceFiles.size()+"] source files");
+                log.info(traceId, "appendCopyrightText", "Found ["+
+                copyrightHeaderIndex.size()+"] copyright header extensions; registry version ["+
+                copyrightHeaderRegistry.getVersion()+"]");
 
-                    // let's get the newline to use, go by system specific...so if somehow this was run on windows...it'll not be the same as *nix
-                    final String newline = System.getProperty("line.separator");
+                // let's get the newline to use, go by system specific...so if somehow this was run on windows...it'll not be the same as *nix
+                final String newline = System.getProperty("line.separator");
 
-                    // let's get the copyright string template to append
-                    final Map<String, String> copyrightHeaderContents = new LinkedHashMap<>(); // key=file extension, value=copyright content
-                    for(File copyrightHeaderFile:copyrightHeaderFiles)
+                // let's get the compiled copyright headers to append; encoded once, 
+                // and re-used across runs unless the header template changes
+                final Charset charset = Charset.defaultCharset();
+                final Map<String, CompiledCopyrightHeader.Variant> copyrightHeaders = new LinkedHashMap<>(); // key=file extension, value=encoded copyright header
+                final Map<CopyrightHeaderTemplate, CompiledCopyrightHeader.Variant> copyrightHeaderVariants = new IdentityHashMap<>();
+                final CopyrightWriterManifest manifest = parameterSpec.getManifestFile()!=null?
+                CopyrightWriterManifest.load(traceId, parameterSpec.getManifestFile()):null;
+                for(Map.Entry<String, CopyrightHeaderTemplate> copyrightHeaderEntry:copyrightHeaderIndex.entrySet())
+                {
+                    final CopyrightHeaderTemplate copyrightHeaderTemplate = copyrightHeaderEntry.getValue();
+                    CompiledCopyrightHeader.Variant copyrightHeaderVariant = copyrightHeaderVariants.get(copyrightHeaderTemplate);
+                    if(copyrightHeaderVariant==null&&!copyrightHeaderVariants.containsKey(copyrightHeaderTemplate))
                     {
-                        if(!copyrightHeaderFile.canRead())
-                        {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to gain READ access for copyright header file ["+
-                            copyrightHeaderFile.getPath()+"]; READ permission denied");
-                            continue;
-                        }
-
-                        // create the copyright content header
-                        final CopyrightReaderContentHeader copyrightWriterContentHeader = 
-                        new CopyrightReaderContentHeader(
-                            traceId, 
-                            copyrightHeaderFile, 
-                            SUPPORTED_STATIC_TAGS
-                        );
-                        final Set<String> copyrightWriterContentHeaderExtensions = 
-                        copyrightWriterContentHeader.getBindedFileExtensions();
-                        if(copyrightWriterContentHeaderExtensions.isEmpty())
-                        {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to determine file extension for copyright header file ["+
-                            copyrightHeaderFile.getPath()+"]; can't extract extension");
-                            continue;
-                        }
-                        log.info("# "+traceId+" # appendCopyrightText() : Found copyright header file ["+
-                        copyrightHeaderFile.getPath()+"] extensions size ["+
-                        copyrightWriterContentHeaderExtensions.size()+"] --- \n\t"+
-                        Arrays.toString(copyrightWriterContentHeaderExtensions.toArray(
-                        new String[copyrightWriterContentHeaderExtensions.size()])));
-
-                        // get the copyright header content; and replace it with the static contents that matches the tags
-                        final StringBuilder copyrightHeaderContent = copyrightWriterContentHeader.getContent();
-                        if(copyrightHeaderContent==null)
+                        final TraceSpan compileSpan = templateSpan.child("compile", copyrightHeaderTemplate.getLocation());
+                        final CompiledCopyrightHeader copyrightHeader;
+                        try
                         {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to get contenet for copyright header file ["+
-                            copyrightHeaderFile.getPath()+"] returned null; expecting ["+
-                            StringBuilder.class.getName()+"] object type. Check previous log for details");
-                            continue;
+                            copyrightHeader = CompiledCopyrightHeader.compile(
+                                traceId, 
+                                copyrightHeaderTemplate, 
+                                SUPPORTED_STATIC_TAGS
+                            );
+                            copyrightHeaderVariant = copyrightHeader!=null?copyrightHeader.variant(charset, newline):null;
                         }
-                        log.info("# "+traceId+" # appendCopyrightText() : Copyright header file ["+
-                        copyrightHeaderFile.getPath()+"] content --- \n\t"+copyrightHeaderContent);
-
-                        // add to the header file extension map
-                        for(String copyrightWriterContentHeaderExtension:copyrightWriterContentHeaderExtensions)
+                        finally
                         {
-                            if(copyrightHeaderContents.containsKey(copyrightWriterContentHeaderExtension.trim().toLowerCase()))
-                            {
-                                log.warning("# "+traceId+" # appendCopyrightText() : Copyright header for file extension ["+
-                                copyrightWriterContentHeaderExtension+"] already available; skipping to add extension binding content");
-                                continue;
-                            }
-                            copyrightHeaderContents.put(
-                                copyrightWriterContentHeaderExtension, 
-                                copyrightHeaderContent.toString()
-                            );
-                            log.info("# "+traceId+" # appendCopyrightText() : Header content added for --- \n\tFile Extension: "+
-                            copyrightWriterContentHeaderExtension+"\n\tHeader Content:\n"+
-                            copyrightHeaderContent+"\n\n");
+                            compileSpan.end();
                         }
+                        copyrightHeaderVariants.put(copyrightHeaderTemplate, copyrightHeaderVariant);
+                        if(copyrightHeader!=null&&log.isFinest())
+                            log.finest(traceId, "appendCopyrightText", "Found copyright header file ["+
+                            copyrightHeaderTemplate.getLocation()+"] extensions size ["+
+                            copyrightHeader.getExtensions().size()+"] --- \n\t"+
+                            Arrays.toString(copyrightHeader.getExtensions().toArray(
+                            new String[copyrightHeader.getExtensions().size()]))+
+                            "\n\tcontent --- \n\t"+copyrightHeader.getContent());
                     }
-                    final StringBuilder dbgCopyrightHeaderExtensions = new StringBuilder();
-                    for(String copyrightHeaderExtension:copyrightHeaderContents.keySet())
+                    if(copyrightHeaderVariant==null)
+                        continue;
+
+                    // add to the header file extension map; the registry settled conflicts
+                    copyrightHeaders.put(
+                        copyrightHeaderEntry.getKey(), 
+                        copyrightHeaderVariant
+                    );
+                    if(log.isFinest())
+                        log.finest(traceId, "appendCopyrightText", "Header content added for --- \n\tFile Extension: "+
+                        copyrightHeaderEntry.getKey()+"\n\tHeader Bytes: "+
+                        copyrightHeaderVariant.getLength()+"\n\n");
+                }
+                // the extension dump is only ever logged at FINEST
+                final StringBuilder dbgCopyrightHeaderExtensions = new StringBuilder();
+                if(log.isFinest())
+                {
+                    for(String copyrightHeaderExtension:copyrightHeaders.keySet())
                     {
                         dbgCopyrightHeaderExtensions.append("\n\t");
                         dbgCopyrightHeaderExtensions.append(copyrightHeaderExtension);
                     }
-                    log.info("# "+traceId+" # appendCopyrightText() : Copyright headers size ["+
-                    copyrightHeaderContents.size()+"]; supported extension(s) --- "+
+                    log.finest(traceId, "appendCopyrightText", "Copyright headers size ["+
+                    copyrightHeaders.size()+"]; supported extension(s) --- "+
                     dbgCopyrightHeaderExtensions);
+                }
+                else if(log.isInfo())
+                    log.info(traceId, "appendCopyrightText", "Copyright headers size ["+copyrightHeaders.size()+"]");
+                report.addPhaseNanos(CopyrightWriterReport.Phase.TEMPLATE, System.nanoTime()-templateStarted);
+                templateSpan.end();
 
-                    // ok, let's loop all the source files and find the matching header 
-                    // file extension that MUST MATCH the source extension
-                    for(File appendSourceFile:appendSourceFiles)
+                // ok, let's loop all the source files and find the matching header 
+                // file extension that MUST MATCH the source extension
+                final AppendContext context = new AppendContext(
+                    traceId,
+                    span,
+                    parameterSpec,
+                    copyrightHeaders,
+                    newline,
+                    manifest,
+                    dbgCopyrightHeaderExtensions,
+                    report,
+                    new DurableCommitter(
+                        traceId, 
+                        span, 
+                        parameterSpec.getDurability(), 
+                        parameterSpec.getGroupCommitFiles()>0?
+                        parameterSpec.getGroupCommitFiles():CopyrighterWriterParameterSpec.DEFAULT_GROUPCOMMITFILES, 
+                        parameterSpec.getGroupCommitMillis()>0?
+                        parameterSpec.getGroupCommitMillis():CopyrighterWriterParameterSpec.DEFAULT_GROUPCOMMITMILLIS
+                    )
+                );
+                
+                // stream the source files that we need to append the copyright headers; 
+                // scanning carries on in the background while they are written
+                final FileFilter appendToTargetFileFilter = parameterSpec.getAppendToTargetFileFilter();
+                final FileFilter appendSourceFilter = new FileFilter()
+                {
+                    @Override
+                    public boolean accept(final File file)
                     {
-                        if(!appendSourceFile.canRead())
-                        {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to gain READ access for target source file ["+
-                            appendSourceFile.getPath()+"]; READ permission denied");
-                            appendSourceFailureFiles.put(appendSourceFile, "READ PERMISSION DENIED");
-                            continue;
-                        }
-                        if(!appendSourceFile.canWrite())
-                        {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to gain WRITE access for target source file ["+
-                            appendSourceFile.getPath()+"]; WRITE permission denied");
-                            appendSourceFailureFiles.put(appendSourceFile, "WRITE PERMISSION DENIED");
-                            continue;
-                        }
-
-                        // determine the file extension
-                        final int sourceFileExtIdx = appendSourceFile.getName().lastIndexOf('.');
-                        if(sourceFileExtIdx<0)
-                        {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Unable to determine file extension type for target source file ["+
-                            appendSourceFile.getPath()+"]; index of '.' returned invalid index ["+
-                            sourceFileExtIdx+"], expecting greater or equals to [0]");
-                            appendSourceFailureFiles.put(appendSourceFile, "UNKNOWN FILE EXTENSION");
-                            continue;
-                        }
-                        final String sourceFileExt = appendSourceFile.getName().substring((sourceFileExtIdx+1)).toLowerCase();
-                        if(!copyrightHeaderContents.containsKey(sourceFileExt))
+                        // our own in-flight staging files live next to the targets
+                        if(ChannelPrependWriter.isStagingFile(file))
+                            return false;
+                        return appendToTargetFileFilter==null||appendToTargetFileFilter.accept(file);
+                    }
+                };
+                if(appendSourceFiles!=null)
+                {
+                    // a (small) batch of known files; one after another
+                    try
+                    {
+                        for(File appendSourceFile:appendSourceFiles)
                         {
-                            log.warning("# "+traceId+" # appendCopyrightText() : Target source file ["+
-                            appendSourceFile.getPath()+"] contains no copyright header content to append for file extension ["+
-                            sourceFileExt+"]; available copyright header content extensions are --- "+
-                            dbgCopyrightHeaderExtensions);
-                            appendSourceIgnoreFiles.put(appendSourceFile, "NO MATCHING COPYRIGHT HEADER CONTENT");
-                            continue;
+                            if(!appendSourceFile.isFile()||!appendSourceFilter.accept(appendSourceFile))
+                                continue;
+                            report.found();
+                            appendCopyrightText(context, appendSourceFile);
                         }
-                        final String copyrightHeaderContent = copyrightHeaderContents.get(sourceFileExt);
-                        log.info("# "+traceId+" # appendCopyrightText() : Got target source file ["+
-                        appendSourceFile.getPath()+"] extension ["+sourceFileExt+"], copyright header content to append --- \n"+
-                        copyrightHeaderContent+"\n");
-
-                        // https://stackoverflow.com/questions/16665124/java-how-to-append-text-to-top-of-file-txt
-                        final File tempSourceFile = File.createTempFile(appendSourceFile.getName(), ".bak");
-                        final FileOutputStream fos = new FileOutputStream(tempSourceFile);
-                        RandomAccessFile appendToTargetRndAcsFile = null;
-                        boolean sourceFileBackedup = false;
-                        try
+                    }
+                    finally
+                    {
+                        context.committer.close();
+                    }
+                }
+                else
+                {
+                    final FileTreeWalker appendSourceWalker = new FileTreeWalker(traceId, 
+                        parameterSpec.getAppendToTargetFile(), 
+                        appendSourceFilter
+                    ).start();
+                    try { appendCopyrightText(context, appendSourceWalker); }
+                    finally
+                    {
+                        // the last group is committed (and reported) before the manifest is saved
+                        context.committer.close();
+                        appendSourceWalker.close();
+                        report.addPhaseNanos(CopyrightWriterReport.Phase.SCAN, appendSourceWalker.getElapsedNanos());
+                        // walked on its own thread, alongside the writes
+                        if(appendSourceWalker.getStartedNanos()!=0l)
+                            span.record("scan", appendSourceWalker.getRoot().getPath(), 
+                            appendSourceWalker.getStartedNanos(), appendSourceWalker.getElapsedNanos());
+                    }
+                }
+                
+                // no source files to use
+                if(report.getFiles()==0&&appendSourceFiles==null)
+                    log.warning(traceId, "appendCopyrightText", "No source files found, require at least one (1) source file");
+                
+                // one batch for the whole run
+                if(manifest!=null&&!report.isPlan())
+                {
+                    try { manifest.save(traceId); }
+                    catch(Throwable t)
+                    {
+                        log.warning(traceId, "appendCopyrightText", "Unable to save manifest file ["+
+                        manifest.getFile()+"]; next run will re-check all files", t);
+                    }
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            log.severe(traceId, "appendCopyrightText", "Exception occurred", t);
+            if(t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            if(t instanceof IOException)
+                throw (IOException)t;
+            final IOException e = new IOException("Unable to append copyright text to target file ["+
+            (parameterSpec!=null&&parameterSpec.getAppendToTargetFile()!=null?parameterSpec.getAppendToTargetFile().getPath():null)+
+            "] at line no. ["+(parameterSpec!=null?parameterSpec.getAppendAtLineNo():null)+"]", t);
+            throw e;
+        }
+        finally
+        {
+            report.addPhaseNanos(CopyrightWriterReport.Phase.TOTAL, System.nanoTime()-started);
+            // the run summary; per-file lines are at FINE, payload dumps at FINEST
+            log.info(traceId, "appendCopyrightText", "Returning appended result ["+
+            report.isSuccess()+"] --- "+report);
+            log.exits(traceId, "appendCopyrightText");
+            span.end();
+            if(metrics!=null)
+                metrics.run();
+        }
+        return report;
+    }
+    
+    private static void appendCopyrightText(final AppendContext context,
+                                            final FileTreeWalker appendSourceWalker)
+            throws IOException, InterruptedException
+    {
+        final CopyrighterWriterParameterSpec parameterSpec = context.parameterSpec;
+        final ExecutionMode executionMode = parameterSpec.getExecutionMode()!=null?
+        parameterSpec.getExecutionMode():ExecutionMode.SEQUENTIAL;
+        final int parallelism = parameterSpec.getParallelism()>0?
+        parameterSpec.getParallelism():Runtime.getRuntime().availableProcessors();
+        
+        ExecutorService executor = parameterSpec.getExecutorService();
+        final boolean ownedExecutor = executor==null;
+        if(executor==null&&executionMode==ExecutionMode.SEQUENTIAL)
+        {
+            File appendSourceFile;
+            while((appendSourceFile=appendSourceWalker.take())!=null)
+            {
+                context.report.found();
+                appendCopyrightText(context, appendSourceFile);
+            }
+            return;
+        }
+        final boolean async = executionMode==ExecutionMode.ASYNC;
+        boolean virtual = false;
+        if(executor==null&&executionMode==ExecutionMode.VIRTUAL_THREAD)
+        {
+            executor = newVirtualThreadPerTaskExecutor();
+            virtual = executor!=null;
+            if(!virtual)
+                log.warning(context.traceId, "appendCopyrightText", "Virtual threads are not available on this JDK ["+
+                System.getProperty("java.version")+"]; falling back to execution mode ["+ExecutionMode.FIXED_POOL+"]");
+        }
+        if(executor==null)
+            executor = executionMode==ExecutionMode.FORK_JOIN?
+            new ForkJoinPool(parallelism):Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        
+        // bound the files in flight so the executor queue never holds the whole tree; 
+        // with no thread held per file that bound can be much larger
+        final int maxInflight = parameterSpec.getMaxInflight()>0?parameterSpec.getMaxInflight():
+        (async||virtual?CopyrighterWriterParameterSpec.DEFAULT_MAXINFLIGHT:parallelism*2);
+        final Semaphore inflight = new Semaphore(maxInflight);
+        log.info(context.traceId, "appendCopyrightText", "Processing source files under ["+
+        appendSourceWalker.getRoot().getPath()+"] with execution mode ["+(ownedExecutor?executionMode:"CALLER EXECUTOR")+
+        "], parallelism ["+(virtual?"VIRTUAL":parallelism)+"] and max. in flight ["+maxInflight+"]");
+        try
+        {
+            File _appendSourceFile;
+            while((_appendSourceFile=appendSourceWalker.take())!=null)
+            {
+                final File appendSourceFile = _appendSourceFile;
+                final ExecutorService _executor = executor;
+                context.report.found();
+                inflight.acquire();
+                try
+                {
+                    executor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
                         {
-                            // backup the original source before appending the copyright information
-                            appendToTargetRndAcsFile = new RandomAccessFile(appendSourceFile, "rw");
-                            int data = appendToTargetRndAcsFile.read();
-                            while(data!=-1)
-                            {
-                                fos.write(data);
-                                data = appendToTargetRndAcsFile.read();
-                            }
-                            try { fos.flush(); } catch(Throwable t) {}
-                            try { fos.close(); } catch(Throwable t) {}
-                            sourceFileBackedup = true;
-                            
-                            // write the copyright content first
-                            appendToTargetRndAcsFile.seek(0); // to the beginning
-                            appendToTargetRndAcsFile.write(copyrightHeaderContent.getBytes());
-                            appendToTargetRndAcsFile.write(newline.getBytes());
-                            
-                            // append back the original data
-                            final FileInputStream fis = new FileInputStream(tempSourceFile);
-                            try
-                            {
-                                data = fis.read();
-                                while(data!=-1)
-                                {
-                                    appendToTargetRndAcsFile.write(data);
-                                    data = fis.read();
-                                }
-                            }
-                            finally
+                            if(async) // released on completion
                             {
-                                try { fis.close(); } catch(Throwable t) {}
+                                appendCopyrightText(context, appendSourceFile, _executor, inflight);
+                                return;
                             }
-                            
-                            // mark success
-                            appendSourceSuccessFiles.add(appendSourceFile);
+                            try { appendCopyrightText(context, appendSourceFile); }
+                            finally { inflight.release(); }
                         }
-                        catch(Throwable t)
+                    });
+                }
+                catch(RejectedExecutionException e)
+                {
+                    inflight.release();
+                    log.severe(context.traceId, "appendCopyrightText", "Executor rejected target source file ["+
+                    appendSourceFile.getPath()+"]", e);
+                    context.report.failure(appendSourceFile, "REJECTED EXECUTION");
+                }
+            }
+            // wait for the stragglers
+            inflight.acquire(maxInflight);
+            inflight.release(maxInflight);
+        }
+        finally
+        {
+            if(ownedExecutor)
+                executor.shutdown();
+        }
+    }
+    
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        // JDK 21+ only; looked up so that the 1.8 baseline still builds and runs
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Throwable t)
+        {
+            return null;
+        }
+    }
+    
+    private static void appendCopyrightText(final AppendContext context,
+                                            final File appendSourceFile)
+    {
+        final long checkStarted = System.nanoTime();
+        long writeStarted = 0l;
+        // the file span covers this thread's work; a group commit records its fsync later
+        final TraceSpan fileSpan = context.span.child("file", appendSourceFile.getPath());
+        final TraceSpan checkSpan = fileSpan.child("check", null);
+        TraceSpan writeSpan = TraceSpan.NOOP;
+        try
+        {
+            final Target target = checkTarget(context, appendSourceFile);
+            if(target==null)
+                return;
+            final CompiledCopyrightHeader.Variant copyrightHeaderVariant = target.variant;
+            final Path appendSourcePath = appendSourceFile.toPath();
+            final String copyrightHeaderHash = copyrightHeaderVariant.getHash();
+            final long copyrightHeaderVersion = copyrightHeaderVariant.getVersion();
+            
+            // shared, pre-encoded header buffers; nothing is encoded or copied per file 
+            // unless the header has file tags, rendered into this thread's buffer
+            ByteBuffer[] copyrightHeader = copyrightHeaderVariant.getHeader();
+            ByteBuffer[] copyrightHeaderOnNewLine = copyrightHeaderVariant.getHeaderOnNewLine();
+            if(copyrightHeaderVariant.isPerFile())
+            {
+                final ByteBuffer rendered = copyrightHeaderVariant.render(
+                    appendSourcePath, 
+                    Files.readAttributes(appendSourcePath, BasicFileAttributes.class), 
+                    renderBuffer.get()
+                );
+                renderBuffer.set(rendered);
+                copyrightHeader = copyrightHeaderVariant.getHeader(rendered);
+                copyrightHeaderOnNewLine = copyrightHeaderVariant.getHeaderOnNewLine(rendered);
+            }
+            
+            // find where line no. N starts; only the prefix up to it is scanned, line no. 1 starts past the BOM
+            final int appendAtLineNo = context.parameterSpec.getAppendAtLineNo();
+            long appendAtOffset = appendAtLineNo<=1?target.bomLength:ChannelPrependWriter.offsetOfLine(appendSourcePath, appendAtLineNo);
+            
+            // re-runs must not stack headers; skip targets that already have it at that line, or at 
+            // the end where it went when the target had fewer lines
+            final long targetSize = appendAtLineNo<=1?-1l:Files.size(appendSourcePath);
+            if(isPresent(appendSourcePath, appendAtLineNo, appendAtOffset, targetSize, copyrightHeaderVariant, copyrightHeader))
+            {
+                if(log.isFine())
+                    log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                    appendSourceFile.getPath()+"] already has the copyright header content at line no. ["+
+                    appendAtLineNo+"]; skipping");
+                context.report.present(appendSourceFile, "ALREADY PRESENT");
+                if(!context.report.isPlan())
+                    recordManifest(context, appendSourceFile, copyrightHeaderHash, copyrightHeaderVersion);
+                return;
+            }
+            
+            final boolean atEnd = appendAtOffset<0;
+            if(atEnd)
+            {
+                // fewer lines than that; the header goes at the end, on a line of its own
+                appendAtOffset = targetSize;
+                if(appendAtOffset>0&&!ChannelPrependWriter.regionMatches(appendSourcePath, appendAtOffset-1, copyrightHeaderVariant.getLineBreak()))
+                    copyrightHeader = copyrightHeaderOnNewLine;
+                if(log.isFine())
+                    log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                    appendSourceFile.getPath()+"] has fewer than ["+appendAtLineNo+"] lines; appending copyright header at the end");
+            }
+            
+            // update mode; an earlier rendering of the same template is replaced, not stacked
+            final long headerBytes = remaining(copyrightHeader);
+            long replaceBytes = 0l;
+            if(!atEnd&&context.parameterSpec.getWriteMode()==WriteMode.UPDATE)
+            {
+                replaceBytes = Math.max(0, copyrightHeaderVariant.match(ChannelPrependWriter.read(
+                    appendSourcePath, 
+                    appendAtOffset, 
+                    copyrightHeaderVariant.getFingerprintLength()
+                )));
+                if(replaceBytes>0&&log.isFine())
+                    log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                    appendSourceFile.getPath()+"] has an older copyright header of ["+replaceBytes+
+                    "] bytes at line no. ["+appendAtLineNo+"]; replacing");
+            }
+            if(context.report.isPlan())
+            {
+                // the staged copy would be the header plus the whole original content, less the old header; 
+                // a same length update only writes the header
+                context.report.success(appendSourceFile, replaceBytes>0?"PLANNED UPDATE":"PLANNED", headerBytes, 
+                replaceBytes==headerBytes?headerBytes:headerBytes+Files.size(appendSourcePath)-replaceBytes);
+                return;
+            }
+            writeStarted = System.nanoTime();
+            checkSpan.end();
+            writeSpan = fileSpan.child("write", null);
+            if(replaceBytes>0&&replaceBytes==headerBytes)
+            {
+                // same length; positional writes over the old header, the rest of the target is not touched, 
+                // then committed (forced) as the durability policy has it
+                try
+                {
+                    final Path realTarget = appendSourcePath.toRealPath();
+                    final long written = ChannelPrependWriter.overwrite(
+                        realTarget, 
+                        appendAtOffset, 
+                        context.committer.isForceOnStage(), 
+                        copyrightHeader
+                    );
+                    writeSpan.end();
+                    context.committer.commitInPlace(realTarget, fileSpan, new DurableCommitter.Listener()
+                    {
+                        @Override
+                        public void committed()
                         {
-                            log.log(Level.SEVERE, "# "+traceId+" # appendCopyrightText() : Unable to WRITE copyright header to target source file ["+
-                            appendSourceFile.getPath()+"]; exception occurred --- "+t.getMessage(), t);
-                            appendSourceFailureFiles.put(appendSourceFile, "WRITE FAILURE COPYRIGHT HEADER CONTENT");
-                            
-                            // revert back the backup; overwrite the file
-                            if(sourceFileBackedup)
+                            if(log.isFine())
+                                log.fine(context.traceId, "appendCopyrightText", "Written ["+written+
+                                "] bytes in place to target source file ["+appendSourceFile.getPath()+"]");
+                            if(context.auditWriter!=null)
                             {
-                                final FileInputStream fisOri = new FileInputStream(tempSourceFile);
-                                final FileOutputStream fosOri = new FileOutputStream(appendSourceFile);
-                                try
-                                {
-                                    int data = fisOri.read();
-                                    while(data!=-1)
-                                    {
-                                        fosOri.write(data);
-                                        data = fisOri.read();
-                                    }
-                                }
-                                finally
-                                {
-                                    try { fosOri.flush(); } catch(Throwable t1) {}
-                                    try { fosOri.close(); } catch(Throwable t1) {}
-                                    try { fisOri.close(); } catch(Throwable t1) {}
-                                }
+                                final long size = appendSourceFile.length();
+                                audit(context, appendSourceFile, "UPDATED IN PLACE", size, size, copyrightHeaderHash);
                             }
+                            recordManifest(context, appendSourceFile, copyrightHeaderHash, copyrightHeaderVersion);
+                            context.report.success(appendSourceFile, "UPDATED IN PLACE", headerBytes, written);
                         }
-                        finally
+                        
+                        @Override
+                        public void failed(final Throwable t)
                         {
-                            try { fos.flush(); } catch(Throwable t) {}
-                            try { fos.close(); } catch(Throwable t) {}
-                            try
-                            {
-                                if(tempSourceFile.exists())
-                                {
-                                    if(tempSourceFile.delete())
-                                        log.info("# "+traceId+" # appendCopyrightText() : Deleted temporary source file ["+
-                                        tempSourceFile.getPath()+"]");
-                                    else
-                                        log.warning("# "+traceId+" # appendCopyrightText() : Unable to delete temporary source file ["+
-                                        tempSourceFile.getPath()+"]");
-                                }
-                            }
-                            catch(Throwable t) {}
-                            if(appendToTargetRndAcsFile!=null)
-                                try { appendToTargetRndAcsFile.close(); } catch(Throwable t) {}
+                            writeFailure(context, appendSourceFile, t);
                         }
-                    }
+                    });
                 }
+                catch(Throwable t)
+                {
+                    writeFailure(context, appendSourceFile, t);
+                }
+                return;
+            }
+
+            // stage the header + original content (less the old header) next to the target and have it committed (swapped in)
+            final long _replaceBytes = replaceBytes;
+            Path staging = null;
+            try
+            {
+                // resolve links so that we replace the file, not the link
+                final Path realTarget = appendSourcePath.toRealPath();
+                staging = ChannelPrependWriter.createStagingFile(realTarget);
+                final long written = ChannelPrependWriter.stage(
+                    context.traceId,
+                    realTarget,
+                    staging,
+                    appendAtOffset,
+                    _replaceBytes,
+                    context.committer.isForceOnStage(),
+                    writeSpan,
+                    copyrightHeader
+                );
+                writeSpan.end();
+                final Path _staging = staging;
+                staging = null; // the committer owns it from here on
+                context.committer.commit(_staging, realTarget, fileSpan, new DurableCommitter.Listener()
+                {
+                    @Override
+                    public void committed()
+                    {
+                        if(log.isFine())
+                            log.fine(context.traceId, "appendCopyrightText", "Written ["+written+
+                            "] bytes to target source file ["+appendSourceFile.getPath()+"]");
+                        
+                        audit(context, appendSourceFile, _replaceBytes>0?"UPDATED":"APPENDED", 
+                        written-headerBytes+_replaceBytes, written, copyrightHeaderHash);
+                        recordManifest(context, appendSourceFile, copyrightHeaderHash, copyrightHeaderVersion);
+                        
+                        // mark success; last, the file is reported once
+                        context.report.success(appendSourceFile, _replaceBytes>0?"UPDATED":"APPENDED", headerBytes, written);
+                    }
+                    
+                    @Override
+                    public void failed(final Throwable t)
+                    {
+                        writeFailure(context, appendSourceFile, t);
+                    }
+                });
+            }
+            catch(Throwable t)
+            {
+                if(staging!=null)
+                    ChannelPrependWriter.deleteStagingFile(context.traceId, staging);
+                writeFailure(context, appendSourceFile, t);
             }
         }
         catch(Throwable t)
         {
-            log.log(Level.SEVERE, "# "+traceId+" # appendCopyrightText() : Exception occurred", t);
-            if(t instanceof RuntimeException)
-                throw (RuntimeException)t;
-            if(t instanceof IOException)
-                throw (IOException)t;
-            final IOException e = new IOException("Unable to append copyright text to target file ["+
-            (parameterSpec!=null&&parameterSpec.getAppendToTargetFile()!=null?parameterSpec.getAppendToTargetFile().getPath():null)+
-            "] at line no. ["+(parameterSpec!=null?parameterSpec.getAppendAtLineNo():null)+"]", t);
-            throw e;
+            log.severe(context.traceId, "appendCopyrightText", "Unexpected failure processing target source file ["+
+            appendSourceFile.getPath()+"]", t);
+            context.report.failure(appendSourceFile, "UNEXPECTED FAILURE");
         }
         finally
         {
-            log.info("# "+traceId+" # appendCopyrightText() : Returning appended result ["+
-            (appendSourceFiles.size()==(appendSourceSuccessFiles.size()+appendSourceIgnoreFiles.size()))+
-            "] --- \n\tTotal Source File(s): "+appendSourceFiles.size()+
-            "\n\t[SUCCESS] Total Appended Source File(s): "+appendSourceSuccessFiles.size()+
-            "\n\t[IGNORED] Total Ignored Source File(s): "+appendSourceIgnoreFiles.size()+
-            "\n\t[FAILURE] Total Failed Source File(s): "+appendSourceFailureFiles.size());
-            log.info("# "+traceId+" # appendCopyrightText() : exits");
+            checkSpan.end();
+            writeSpan.end();
+            fileSpan.end();
+            final long ended = System.nanoTime();
+            if(writeStarted>0l)
+            {
+                context.report.addPhaseNanos(CopyrightWriterReport.Phase.CHECK, writeStarted-checkStarted);
+                context.report.addPhaseNanos(CopyrightWriterReport.Phase.WRITE, ended-writeStarted);
+            }
+            else
+                context.report.addPhaseNanos(CopyrightWriterReport.Phase.CHECK, ended-checkStarted);
+        }
+    }
+    
+    private static void appendCopyrightText(final AppendContext context,
+                                            final File appendSourceFile,
+                                            final ExecutorService executor,
+                                            final Semaphore inflight)
+    {
+        if(context.parameterSpec.getWriteMode()==WriteMode.UPDATE)
+        {
+            // replacing needs the old header matched first; done on this pool thread
+            try { appendCopyrightText(context, appendSourceFile); }
+            finally { inflight.release(); }
+            return;
+        }
+        final long checkStarted = System.nanoTime();
+        final TraceSpan fileSpan = context.span.child("file", appendSourceFile.getPath());
+        final TraceSpan checkSpan = fileSpan.child("check", null);
+        boolean started = false;
+        try
+        {
+            final Target target = checkTarget(context, appendSourceFile);
+            if(target==null)
+                return;
+            final CompiledCopyrightHeader.Variant copyrightHeaderVariant = target.variant;
+            ByteBuffer[] copyrightHeader = copyrightHeaderVariant.getHeader();
+            ByteBuffer[] copyrightHeaderOnNewLine = copyrightHeaderVariant.getHeaderOnNewLine();
+            if(copyrightHeaderVariant.isPerFile())
+            {
+                // its own buffer; it is in flight until the callback
+                final Path appendSourcePath = appendSourceFile.toPath();
+                final ByteBuffer rendered = copyrightHeaderVariant.render(
+                    appendSourcePath, 
+                    Files.readAttributes(appendSourcePath, BasicFileAttributes.class), 
+                    null
+                );
+                copyrightHeader = copyrightHeaderVariant.getHeader(rendered);
+                copyrightHeaderOnNewLine = copyrightHeaderVariant.getHeaderOnNewLine(rendered);
+            }
+            final long writeStarted = System.nanoTime();
+            context.report.addPhaseNanos(CopyrightWriterReport.Phase.CHECK, writeStarted-checkStarted);
+            checkSpan.end();
+            final TraceSpan writeSpan = fileSpan.child("write", null);
+            AsyncChannelInsertWriter.insertAtLine(
+                context.traceId, 
+                appendSourceFile.toPath(), 
+                context.parameterSpec.getAppendAtLineNo(), 
+                target.bomLength, 
+                copyrightHeader, 
+                copyrightHeaderOnNewLine, 
+                copyrightHeaderVariant, 
+                context.report.isPlan(), 
+                executor, 
+                context.committer, 
+                new AsyncChannelInsertWriter.Callback()
+                {
+                    @Override
+                    public void present()
+                    {
+                        if(log.isFine())
+                            log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                            appendSourceFile.getPath()+"] already has the copyright header content; skipping");
+                        context.report.present(appendSourceFile, "ALREADY PRESENT");
+                        if(!context.report.isPlan())
+                            recordManifest(context, appendSourceFile, copyrightHeaderVariant.getHash(), copyrightHeaderVariant.getVersion());
+                        done();
+                    }
+                    
+                    @Override
+                    public void planned(final long headerBytes,
+                                        final long bytesWritten)
+                    {
+                        context.report.success(appendSourceFile, "PLANNED", headerBytes, bytesWritten);
+                        done();
+                    }
+                    
+                    @Override
+                    public void inserted(final long headerBytes,
+                                         final long bytesWritten)
+                    {
+                        if(log.isFine())
+                            log.fine(context.traceId, "appendCopyrightText", "Written ["+bytesWritten+
+                            "] bytes to target source file ["+appendSourceFile.getPath()+"]");
+                        audit(context, appendSourceFile, "APPENDED", bytesWritten-headerBytes, bytesWritten, copyrightHeaderVariant.getHash());
+                        recordManifest(context, appendSourceFile, copyrightHeaderVariant.getHash(), copyrightHeaderVariant.getVersion());
+                        context.report.success(appendSourceFile, "APPENDED", headerBytes, bytesWritten);
+                        done();
+                    }
+                    
+                    @Override
+                    public void failed(final Throwable t)
+                    {
+                        writeFailure(context, appendSourceFile, t);
+                        done();
+                    }
+                    
+                    private void done()
+                    {
+                        context.report.addPhaseNanos(CopyrightWriterReport.Phase.WRITE, System.nanoTime()-writeStarted);
+                        writeSpan.end();
+                        fileSpan.end();
+                        inflight.release();
+                    }
+                }
+            );
+            started = true;
+        }
+        catch(Throwable t)
+        {
+            log.severe(context.traceId, "appendCopyrightText", "Unexpected failure processing target source file ["+
+            appendSourceFile.getPath()+"]", t);
+            context.report.failure(appendSourceFile, "UNEXPECTED FAILURE");
+        }
+        finally
+        {
+            if(!started)
+            {
+                context.report.addPhaseNanos(CopyrightWriterReport.Phase.CHECK, System.nanoTime()-checkStarted);
+                checkSpan.end();
+                fileSpan.end();
+                inflight.release();
+            }
+        }
+    }
+    
+    /**
+     * Permission, extension and manifest checks.
+     * @return                                  The header to append, or {@code null}
+     *                                          if the target was already recorded 
+     *                                          as not to be written.
+     */
+    private static Target checkTarget(final AppendContext context,
+                                      final File appendSourceFile)
+            throws IOException
+    {
+        if(!appendSourceFile.canRead())
+        {
+            log.warning(context.traceId, "appendCopyrightText", "Unable to gain READ access for target source file ["+
+            appendSourceFile.getPath()+"]; READ permission denied");
+            context.report.failure(appendSourceFile, "READ PERMISSION DENIED");
+            return null;
+        }
+        if(!appendSourceFile.canWrite())
+        {
+            log.warning(context.traceId, "appendCopyrightText", "Unable to gain WRITE access for target source file ["+
+            appendSourceFile.getPath()+"]; WRITE permission denied");
+            context.report.failure(appendSourceFile, "WRITE PERMISSION DENIED");
+            return null;
+        }
+
+        // determine the file extension
+        final int sourceFileExtIdx = appendSourceFile.getName().lastIndexOf('.');
+        if(sourceFileExtIdx<0)
+        {
+            if(log.isFine())
+                log.fine(context.traceId, "appendCopyrightText", "Unable to determine file extension type for target source file ["+
+                appendSourceFile.getPath()+"]; index of '.' returned invalid index ["+
+                sourceFileExtIdx+"], expecting greater or equals to [0]");
+            context.report.failure(appendSourceFile, "UNKNOWN FILE EXTENSION");
+            return null;
+        }
+        final String sourceFileExt = appendSourceFile.getName().substring((sourceFileExtIdx+1)).toLowerCase();
+        final CompiledCopyrightHeader.Variant copyrightHeaderVariant = context.copyrightHeaders.get(sourceFileExt);
+        if(copyrightHeaderVariant==null)
+        {
+            // common in mixed trees; the run summary has the count
+            if(log.isFine())
+                log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                appendSourceFile.getPath()+"] contains no copyright header content to append for file extension ["+
+                sourceFileExt+"]"+(log.isFinest()?"; available copyright header content extensions are --- "+
+                context.dbgCopyrightHeaderExtensions:""));
+            context.report.ignore(appendSourceFile, "NO MATCHING COPYRIGHT HEADER CONTENT");
+            return null;
+        }
+        if(log.isFinest())
+            log.finest(context.traceId, "appendCopyrightText", "Got target source file ["+
+            appendSourceFile.getPath()+"] extension ["+sourceFileExt+"], copyright header content to append --- \n"+
+            copyrightHeaderVariant.getContent()+"\n");
+
+        final Path appendSourcePath = appendSourceFile.toPath();
+        if(context.manifest!=null)
+        {
+            if(context.manifest.getFile().toAbsolutePath().equals(appendSourcePath.toAbsolutePath()))
+            {
+                context.report.ignore(appendSourceFile, "MANIFEST FILE");
+                return null;
+            }
+            final BasicFileAttributes attributes = Files.readAttributes(appendSourcePath, BasicFileAttributes.class);
+            if(context.manifest.isUnchanged(appendSourceFile, attributes, copyrightHeaderVariant.getHash(), copyrightHeaderVariant.getVersion()))
+            {
+                if(log.isFine())
+                    log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                    appendSourceFile.getPath()+"] unchanged since last run as per manifest; skipping");
+                context.report.present(appendSourceFile, "UNCHANGED SINCE LAST RUN");
+                return null;
+            }
+        }
+        
+        // never splice a header into binaries that happen to carry a bound extension
+        final ContentTypeSniffer.Verdict verdict = ContentTypeSniffer.sniff(context.traceId, appendSourcePath);
+        if(!verdict.isText())
+        {
+            // common in mixed trees; the run summary has the count
+            if(log.isFine())
+                log.fine(context.traceId, "appendCopyrightText", "Target source file ["+
+                appendSourceFile.getPath()+"] sniffed as ["+verdict+"]; skipping");
+            context.report.ignore(appendSourceFile, "BINARY CONTENT");
+            return null;
+        }
+        
+        // UTF-16/32 line breaks are not single bytes; only line no. 1 (past the BOM) can be found without decoding
+        final TargetEncoding targetEncoding = context.parameterSpec.getTargetEncoding()!=null?
+        context.parameterSpec.getTargetEncoding():TargetEncoding.PLATFORM;
+        final boolean wide = verdict.getBomLength()>0&&!"UTF-8".equals(verdict.getCharset().name());
+        if(wide&&(targetEncoding==TargetEncoding.PLATFORM||context.parameterSpec.getAppendAtLineNo()>1))
+        {
+            log.warning(context.traceId, "appendCopyrightText", "Target source file ["+
+            appendSourceFile.getPath()+"] sniffed as ["+verdict+"]; unsupported with target encoding ["+
+            targetEncoding+"] at line no. ["+context.parameterSpec.getAppendAtLineNo()+"]; skipping");
+            context.report.ignore(appendSourceFile, "UNSUPPORTED ENCODING");
+            return null;
         }
-        return (appendSourceFiles.size()==(appendSourceSuccessFiles.size()+appendSourceIgnoreFiles.size()));
+        if(targetEncoding==TargetEncoding.DETECT)
+        {
+            // encoded once per charset and line separator, then shared
+            return new Target(copyrightHeaderVariant.variant(
+                verdict.getCharset()!=null?verdict.getCharset():copyrightHeaderVariant.getCharset(), 
+                verdict.getNewline()!=null?verdict.getNewline():context.newline
+            ), verdict.getBomLength());
+        }
+        return new Target(copyrightHeaderVariant, verdict.getBomLength());
+    }
+    
+    /**
+     * Determine if the target already has the header at line no. N, or at its
+     * end where it went when the target had fewer lines. A header with file
+     * tags is matched but for their values, which change once it is written
+     * (e.g. the file times); see {@link CompiledCopyrightHeader.Variant#matchPresent(ByteBuffer)}.
+     */
+    private static boolean isPresent(final Path target,
+                                     final int lineNo,
+                                     final long lineOffset,
+                                     final long size,
+                                     final CompiledCopyrightHeader.Variant variant,
+                                     final ByteBuffer[] header)
+            throws IOException
+    {
+        if(!variant.isPerFile())
+        {
+            // the exact bytes; compared in place
+            final long endOffset = lineNo<=1?-1l:ChannelPrependWriter.endPlacementOffset(lineOffset, size, remaining(header));
+            return (lineOffset>=0&&ChannelPrependWriter.regionMatches(target, lineOffset, header))||
+                   (endOffset>=0&&endOffset!=lineOffset&&ChannelPrependWriter.regionMatches(target, endOffset, header));
+        }
+        if(lineOffset>=0&&variant.matchPresent(ChannelPrependWriter.read(target, lineOffset, variant.getPresenceLength()))>=0)
+            return true;
+        if(lineNo<=1)
+            return false;
+        
+        // the last bytes, and the one before them to tell a line start
+        final long start = Math.max(size-variant.getPresenceLength()-1, 0l);
+        final int at = variant.matchPresentAtEnd(ChannelPrependWriter.read(target, start, (int)(size-start)), start==0l);
+        return at>=0&&(lineOffset<0||start+at<=lineOffset);
+    }
+
+    private static long remaining(final ByteBuffer[] buffers)
+    {
+        long remaining = 0l;
+        for(ByteBuffer buffer:buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+    
+    private static void writeFailure(final AppendContext context,
+                                     final File appendSourceFile,
+                                     final Throwable t)
+    {
+        // the original target is untouched when staging/committing fails
+        log.severe(context.traceId, "appendCopyrightText", "Unable to WRITE copyright header to target source file ["+
+        appendSourceFile.getPath()+"]; exception occurred --- "+t.getMessage(), t);
+        context.report.failure(appendSourceFile, "WRITE FAILURE COPYRIGHT HEADER CONTENT");
+    }
+    
+    /**
+     * Publish an audit record of a modified target source file, if auditing; 
+     * never waits, a record dropped is counted by the audit writer.
+     */
+    private static void audit(final AppendContext context,
+                              final File appendSourceFile,
+                              final String action,
+                              final long sizeBefore,
+                              final long sizeAfter,
+                              final String copyrightHeaderHash)
+    {
+        if(context.auditWriter==null)
+            return;
+        if(!context.auditWriter.write(new AuditRecord(context.traceId.getId(), action, 
+        appendSourceFile.getPath(), sizeBefore, sizeAfter, copyrightHeaderHash))&&log.isFine())
+            log.fine(context.traceId, "audit", "Audit record of target source file ["+
+            appendSourceFile.getPath()+"] dropped");
     }
     
-    private static void listFiles(final File file,
-                                  final Collection<File> flattenFileStructure,
-                                  final FileFilter fileFilter)
+    private static void recordManifest(final AppendContext context,
+                                       final File appendSourceFile,
+                                       final String copyrightHeaderHash,
+                                       final long copyrightHeaderVersion)
     {
-        if(file==null)
+        if(context.manifest==null)
             return;
-        if(file.isFile())
+        try
         {
-            boolean accept = true;
-            if(fileFilter!=null)
-                accept = fileFilter.accept(file);
-            if(accept)
-                flattenFileStructure.add(file);
+            context.manifest.record(appendSourceFile, 
+            Files.readAttributes(appendSourceFile.toPath(), BasicFileAttributes.class), 
+            copyrightHeaderHash, copyrightHeaderVersion);
         }
-        else
+        catch(Throwable t)
         {
-            final File[] _dirFiles = fileFilter!=null?
-            file.listFiles(fileFilter):file.listFiles();
-            for(File _dirFile:_dirFiles)
-                listFiles(_dirFile, flattenFileStructure, fileFilter);
+            log.warning(context.traceId, "recordManifest", "Unable to record target source file ["+
+            appendSourceFile.getPath()+"] into the manifest; it will be re-checked next run", t);
         }
     }
 }
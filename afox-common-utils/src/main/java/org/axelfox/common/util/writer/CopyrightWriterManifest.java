@@ -0,0 +1,237 @@
+package org.axelfox.common.util.writer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * On-disk manifest of the target files a {@link CopyrightWriter} run has
+ * stamped; one tab separated line per file:
+ * <pre>
+ *   size \t mtime \t header hash \t template version \t path
+ * </pre>
+ * The file is append only; when a path shows up more than once the last line
+ * wins. New entries are written in a single batch by {@link #save(TraceId)},
+ * which compacts the file once stale lines outnumber live ones.
+ * @author christopher
+ */
+final class CopyrightWriterManifest
+{
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightWriterManifest.class);
+    private static final Charset charset = Charset.forName("UTF-8");
+    private static final String formatLine = "#CWT-MANIFEST|1";
+    private static final char separator = '\t';
+    private static final int fields = 5;
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    private final Path file;
+    private final Map<String, Entry> entries;
+    private final int lines;
+    private final Queue<Entry> updates = new ConcurrentLinkedQueue<>();
+
+    private CopyrightWriterManifest(final Path file,
+                                    final Map<String, Entry> entries,
+                                    final int lines)
+    {
+        this.file = file;
+        this.entries = entries;
+        this.lines = lines;
+    }
+
+    static final class Entry
+    {
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final String headerHash;
+        private final long templateVersion;
+
+        private Entry(final String path,
+                      final long size,
+                      final long mtime,
+                      final String headerHash,
+                      final long templateVersion)
+        {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.headerHash = headerHash;
+            this.templateVersion = templateVersion;
+        }
+
+        private StringBuilder appendTo(final StringBuilder sb)
+        {
+            return sb.append(size).append(separator)
+                .append(mtime).append(separator)
+                .append(headerHash).append(separator)
+                .append(templateVersion).append(separator)
+                .append(path).append('\n');
+        }
+    }
+
+    static CopyrightWriterManifest load(final TraceId traceIdRef,
+                                        final File manifestFile)
+           throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        final Path file = manifestFile.toPath();
+        final Map<String, Entry> entries = new HashMap<>();
+        int lines = 0;
+        if(Files.exists(file))
+        {
+            final BufferedReader reader = Files.newBufferedReader(file, charset);
+            try
+            {
+                String line = reader.readLine();
+                if(line!=null&&!formatLine.equals(line))
+                    throw new IOException("Unexpected manifest file ["+file+"] format line ["+
+                    line+"]; expecting ["+formatLine+"]");
+                while((line=reader.readLine())!=null)
+                {
+                    lines++;
+                    final String[] field = line.split(String.valueOf(separator), fields);
+                    if(field.length!=fields)
+                    {
+                        log.warning(traceId, "load", "Skipping malformed manifest line ["+
+                        lines+"] --- \n\t"+line);
+                        continue;
+                    }
+                    try
+                    {
+                        final Entry entry = new Entry(field[4], Long.parseLong(field[0]),
+                        Long.parseLong(field[1]), field[2], Long.parseLong(field[3]));
+                        entries.put(entry.path, entry);
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        log.warning(traceId, "load", "Skipping malformed manifest line ["+
+                        lines+"] --- \n\t"+line);
+                    }
+                }
+            }
+            finally
+            {
+                try { reader.close(); } catch(Throwable t) {}
+            }
+        }
+        if(log.isFine())
+            log.fine(traceId, "load", "Loaded ["+entries.size()+"] manifest entries from ["+
+            lines+"] lines of manifest file ["+file+"]");
+        return new CopyrightWriterManifest(file, entries, lines);
+    }
+
+    Path getFile() { return file; }
+
+    static String key(final File file) { return file.getAbsolutePath(); }
+
+    /**
+     * Determine if the file is exactly as it was left by a previous run using
+     * the same header and template.
+     */
+    boolean isUnchanged(final File file,
+                        final BasicFileAttributes attributes,
+                        final String headerHash,
+                        final long templateVersion)
+    {
+        final Entry entry = entries.get(key(file));
+        return entry!=null&&
+               entry.size==attributes.size()&&
+               entry.mtime==attributes.lastModifiedTime().toMillis()&&
+               entry.templateVersion==templateVersion&&
+               entry.headerHash.equals(headerHash);
+    }
+
+    void record(final File file,
+                final BasicFileAttributes attributes,
+                final String headerHash,
+                final long templateVersion)
+    {
+        final String path = key(file);
+        if(path.indexOf('\n')>=0||path.indexOf('\r')>=0) // can't be represented as a line
+            return;
+        updates.add(new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis(),
+        headerHash, templateVersion));
+    }
+
+    /**
+     * Append the recorded entries in one write; compacts the manifest instead
+     * when more than half of its lines would be stale.
+     */
+    void save(final TraceId traceIdRef)
+         throws IOException
+    {
+        final TraceId traceId = new TraceId(traceIdRef);
+        if(updates.isEmpty())
+            return;
+        final List<Entry> batch = new ArrayList<>(updates);
+        for(Entry entry:batch)
+            entries.put(entry.path, entry);
+
+        final StringBuilder sb = new StringBuilder();
+        final boolean compact = lines+batch.size()>2*entries.size();
+        if(compact||!Files.exists(file))
+        {
+            sb.append(formatLine).append('\n');
+            for(Entry entry:(compact?entries.values():batch))
+                entry.appendTo(sb);
+            final Path staging = Files.createTempFile(file.toAbsolutePath().getParent(),
+            "."+file.getFileName().toString()+".", ".tmp");
+            try
+            {
+                Files.write(staging, sb.toString().getBytes(charset));
+                ChannelPrependWriter.swap(staging, file);
+            }
+            finally
+            {
+                try { Files.deleteIfExists(staging); } catch(Throwable t) {}
+            }
+        }
+        else
+        {
+            for(Entry entry:batch)
+                entry.appendTo(sb);
+            Files.write(file, sb.toString().getBytes(charset), StandardOpenOption.APPEND);
+        }
+        updates.removeAll(batch);
+        if(log.isFine())
+            log.fine(traceId, "save", (compact?"Compacted":"Appended")+" ["+
+            batch.size()+"] entries to manifest file ["+file+"]; live entries ["+entries.size()+"]");
+    }
+
+    static String hash(final byte[]... content)
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for(byte[] _content:content)
+                digest.update(_content);
+            final byte[] hash = digest.digest();
+            final char[] hex = new char[hash.length*2];
+            for(int i=0;i<hash.length;i++)
+            {
+                hex[i*2] = hexDigits[(hash[i]>>4)&0xf];
+                hex[i*2+1] = hexDigits[hash[i]&0xf];
+            }
+            return new String(hex);
+        }
+        catch(Throwable t)
+        {
+            log.severe(null, "hash", "Unable to hash header content", t);
+            throw new IllegalStateException("Unable to hash header content", t);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.axelfox.common.util.writer;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.axelfox.common.util.LatencyHistogram;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Live {@link CopyrightWriter} metrics across runs: files per
+ * {@link CopyrightWriterReport.Outcome}, bytes written, and a
+ * {@link LatencyHistogram} per {@link CopyrightWriterReport.Phase} (per file
+ * for {@link CopyrightWriterReport.Phase#CHECK CHECK} and
+ * {@link CopyrightWriterReport.Phase#WRITE WRITE}, per run for the others).
+ * Counters are striped {@link LongAdder}s, so recording from parallel
+ * writers does not contend; it is on by default.
+ * <p>
+ * {@link #getDefault()} is published to the platform MBean server as
+ * {@value #OBJECT_NAME}. Plans are not recorded, nothing being written.
+ * @author christopher
+ */
+public final class CopyrightWriterMetrics
+       implements CopyrightWriterMetricsMXBean
+{
+    public static final String OBJECT_NAME = "org.axelfox.common.util:type=CopyrightWriterMetrics";
+
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightWriterMetrics.class);
+    private static final long MIN_RATE_NANOS = 1000000000l;
+    private static volatile CopyrightWriterMetrics defaultMetrics;
+
+    private final LongAdder runs = new LongAdder();
+    private final Map<CopyrightWriterReport.Outcome, LongAdder> outcomes = new EnumMap<>(CopyrightWriterReport.Outcome.class);
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Map<CopyrightWriterReport.Phase, LatencyHistogram> latencies = new EnumMap<>(CopyrightWriterReport.Phase.class);
+    private volatile boolean enabled = true;
+    // rates are taken over the time between reads
+    private long rateStartNanos = System.nanoTime();
+    private long rateFiles;
+    private long rateBytes;
+    private double filesPerSecond;
+    private double bytesPerSecond;
+
+    public CopyrightWriterMetrics()
+    {
+        for(CopyrightWriterReport.Outcome outcome:CopyrightWriterReport.Outcome.values())
+            outcomes.put(outcome, new LongAdder());
+        for(CopyrightWriterReport.Phase phase:CopyrightWriterReport.Phase.values())
+            latencies.put(phase, new LatencyHistogram());
+    }
+
+    /**
+     * The process wide metrics, published as {@value #OBJECT_NAME} on first use.
+     */
+    public static CopyrightWriterMetrics getDefault()
+    {
+        CopyrightWriterMetrics metrics = defaultMetrics;
+        if(metrics!=null)
+            return metrics;
+        synchronized(CopyrightWriterMetrics.class)
+        {
+            if(defaultMetrics==null)
+            {
+                metrics = new CopyrightWriterMetrics();
+                try
+                {
+                    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                    final ObjectName name = new ObjectName(OBJECT_NAME);
+                    if(!server.isRegistered(name))
+                        server.registerMBean(metrics, name);
+                }
+                catch(Throwable t)
+                {
+                    log.warning(new TraceId(), "getDefault", "Unable to register MBean ["+OBJECT_NAME+
+                    "]; metrics are still recorded", t);
+                }
+                defaultMetrics = metrics;
+            }
+            return defaultMetrics;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() { return enabled; }
+
+    @Override
+    public void setEnabled(final boolean enabled) { this.enabled = enabled; }
+
+    @Override
+    public long getRuns() { return runs.sum(); }
+
+    @Override
+    public long getFiles()
+    {
+        long files = 0l;
+        for(LongAdder outcome:outcomes.values())
+            files += outcome.sum();
+        return files;
+    }
+
+    public long getFiles(final CopyrightWriterReport.Outcome outcome) { return outcomes.get(outcome).sum(); }
+
+    @Override
+    public long getFilesSucceeded() { return getFiles(CopyrightWriterReport.Outcome.SUCCESS); }
+
+    @Override
+    public long getFilesPresent() { return getFiles(CopyrightWriterReport.Outcome.PRESENT); }
+
+    @Override
+    public long getFilesIgnored() { return getFiles(CopyrightWriterReport.Outcome.IGNORED); }
+
+    @Override
+    public long getFilesFailed() { return getFiles(CopyrightWriterReport.Outcome.FAILURE); }
+
+    @Override
+    public long getBytesWritten() { return bytesWritten.sum(); }
+
+    @Override
+    public double getFailureRate()
+    {
+        final long files = getFiles();
+        return files>0l?(double)getFilesFailed()/files:0d;
+    }
+
+    @Override
+    public double getFilesPerSecond() { rate(); synchronized(this) { return filesPerSecond; } }
+
+    @Override
+    public double getBytesPerSecond() { rate(); synchronized(this) { return bytesPerSecond; } }
+
+    public LatencyHistogram getLatency(final CopyrightWriterReport.Phase phase) { return latencies.get(phase); }
+
+    @Override
+    public Map<String, Long> getLatencyCount()
+    {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for(Map.Entry<CopyrightWriterReport.Phase, LatencyHistogram> latency:latencies.entrySet())
+            counts.put(latency.getKey().name(), latency.getValue().getCount());
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMeanMicros()
+    {
+        final Map<String, Long> means = new LinkedHashMap<>();
+        for(Map.Entry<CopyrightWriterReport.Phase, LatencyHistogram> latency:latencies.entrySet())
+            means.put(latency.getKey().name(), latency.getValue().getMeanNanos()/1000l);
+        return means;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Micros() { return percentileMicros(50d); }
+
+    @Override
+    public Map<String, Long> getLatencyP99Micros() { return percentileMicros(99d); }
+
+    @Override
+    public Map<String, Long> getLatencyP999Micros() { return percentileMicros(99.9d); }
+
+    @Override
+    public Map<String, Long> getLatencyMaxMicros()
+    {
+        final Map<String, Long> maxes = new LinkedHashMap<>();
+        for(Map.Entry<CopyrightWriterReport.Phase, LatencyHistogram> latency:latencies.entrySet())
+            maxes.put(latency.getKey().name(), latency.getValue().getMaxNanos()/1000l);
+        return maxes;
+    }
+
+    @Override
+    public void reset()
+    {
+        runs.reset();
+        for(LongAdder outcome:outcomes.values())
+            outcome.reset();
+        bytesWritten.reset();
+        for(LatencyHistogram latency:latencies.values())
+            latency.reset();
+        synchronized(this)
+        {
+            rateStartNanos = System.nanoTime();
+            rateFiles = 0l;
+            rateBytes = 0l;
+            filesPerSecond = 0d;
+            bytesPerSecond = 0d;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder()
+            .append("\n\t[METRICS]")
+            .append("\n\tRuns: ").append(getRuns())
+            .append("\n\tFiles: ").append(getFiles())
+        ;
+        for(Map.Entry<CopyrightWriterReport.Outcome, LongAdder> outcome:outcomes.entrySet())
+            sb.append("\n\t[").append(outcome.getKey()).append("] ").append(outcome.getValue().sum());
+        sb.append("\n\tBytes Written: ").append(getBytesWritten());
+        for(Map.Entry<CopyrightWriterReport.Phase, LatencyHistogram> latency:latencies.entrySet())
+            sb.append("\n\t[").append(latency.getKey()).append("] ").append(latency.getValue());
+        return sb.toString();
+    }
+
+    void run()
+    {
+        if(enabled)
+            runs.increment();
+    }
+
+    void outcome(final CopyrightWriterReport.Outcome outcome,
+                 final long bytes)
+    {
+        if(!enabled)
+            return;
+        outcomes.get(outcome).increment();
+        if(bytes!=0l)
+            bytesWritten.add(bytes);
+    }
+
+    /**
+     * An earlier outcome of a file (e.g. before its commit failed) is replaced.
+     */
+    void replaced(final CopyrightWriterReport.Outcome outcome,
+                  final long bytes)
+    {
+        if(!enabled)
+            return;
+        outcomes.get(outcome).decrement();
+        if(bytes!=0l)
+            bytesWritten.add(-bytes);
+    }
+
+    void latency(final CopyrightWriterReport.Phase phase,
+                 final long nanos)
+    {
+        if(enabled)
+            latencies.get(phase).record(nanos);
+    }
+
+    private void rate()
+    {
+        final long now = System.nanoTime();
+        final long files = getFiles();
+        final long bytes = getBytesWritten();
+        synchronized(this)
+        {
+            final long elapsed = now-rateStartNanos;
+            if(elapsed<MIN_RATE_NANOS)
+                return;
+            filesPerSecond = (files-rateFiles)*1e9d/elapsed;
+            bytesPerSecond = (bytes-rateBytes)*1e9d/elapsed;
+            rateStartNanos = now;
+            rateFiles = files;
+            rateBytes = bytes;
+        }
+    }
+
+    private Map<String, Long> percentileMicros(final double percentile)
+    {
+        final Map<String, Long> percentiles = new LinkedHashMap<>();
+        for(Map.Entry<CopyrightWriterReport.Phase, LatencyHistogram> latency:latencies.entrySet())
+            percentiles.put(latency.getKey().name(), latency.getValue().getPercentileNanos(percentile)/1000l);
+        return percentiles;
+    }
+}
@@ -0,0 +1,63 @@
+package org.axelfox.common.util.writer;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CopyrightWriterMetrics}; counts are totals
+ * since start (or the last {@link #reset()}), latencies are per
+ * {@link CopyrightWriterReport.Phase} name, in microseconds.
+ * @author christopher
+ */
+public interface CopyrightWriterMetricsMXBean
+{
+    public boolean isEnabled();
+
+    public void setEnabled(boolean enabled);
+
+    /**
+     * Number of runs (and watch batches) ended; plans are not counted.
+     */
+    public long getRuns();
+
+    public long getFiles();
+
+    public long getFilesSucceeded();
+
+    public long getFilesPresent();
+
+    public long getFilesIgnored();
+
+    public long getFilesFailed();
+
+    public long getBytesWritten();
+
+    /**
+     * Failed files over all files, from 0 to 1.
+     */
+    public double getFailureRate();
+
+    /**
+     * Files per second since the previous read of a rate (at least a second
+     * before; otherwise the rate then).
+     */
+    public double getFilesPerSecond();
+
+    /**
+     * Bytes written per second, as of {@link #getFilesPerSecond()}.
+     */
+    public double getBytesPerSecond();
+
+    public Map<String, Long> getLatencyCount();
+
+    public Map<String, Long> getLatencyMeanMicros();
+
+    public Map<String, Long> getLatencyP50Micros();
+
+    public Map<String, Long> getLatencyP99Micros();
+
+    public Map<String, Long> getLatencyP999Micros();
+
+    public Map<String, Long> getLatencyMaxMicros();
+
+    public void reset();
+}
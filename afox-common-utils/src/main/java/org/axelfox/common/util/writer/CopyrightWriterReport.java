@@ -0,0 +1,309 @@
+package org.axelfox.common.util.writer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Structured result of a {@link CopyrightWriter} run (or plan); running counts
+ * per {@link Outcome} and reason, the bytes written and per {@link Phase} timings,
+ * so that its size does not grow with the target tree. A plan, or a report
+ * created to keep them, also has one {@link Entry} per target file, ordered
+ * by path so that it is deterministic whatever the execution mode.
+ * @author christopher
+ */
+public class CopyrightWriterReport
+       implements Serializable
+{
+    private static final long serialVersionUID = 2968203529372045139L;
+
+    /**
+     * Per-file outcome.
+     */
+    public static enum Outcome
+    {
+        /** Header written (or, when planning, would be written). */
+        SUCCESS,
+        /** Header already there; the file is left as is. */
+        PRESENT,
+        /** Not a target for any header; the file is left as is. */
+        IGNORED,
+        /** Could not be processed. */
+        FAILURE,
+        ;
+    }
+
+    /**
+     * Run phase. {@link #CHECK} and {@link #WRITE} are summed over all files,
+     * so with parallel execution they may exceed the wall clock time.
+     */
+    public static enum Phase
+    {
+        /** Walking the target tree (background, overlaps the others). */
+        SCAN,
+        /** Discovering and compiling the header templates. */
+        TEMPLATE,
+        /** Per-file permission, extension, manifest and presence checks. */
+        CHECK,
+        /** Per-file header writes. */
+        WRITE,
+        /** The whole run. */
+        TOTAL,
+        ;
+    }
+
+    public static final class Entry
+           implements Serializable
+    {
+        private static final long serialVersionUID = -3390766328451872257L;
+
+        private final File file;
+        private final Outcome outcome;
+        private final String reason;
+        private final long headerBytes;
+        private final long bytesWritten;
+
+        private Entry(final File file,
+                      final Outcome outcome,
+                      final String reason,
+                      final long headerBytes,
+                      final long bytesWritten)
+        {
+            this.file = file;
+            this.outcome = outcome;
+            this.reason = reason;
+            this.headerBytes = headerBytes;
+            this.bytesWritten = bytesWritten;
+        }
+
+        public File getFile() { return file; }
+
+        public Outcome getOutcome() { return outcome; }
+
+        public String getReason() { return reason; }
+
+        /**
+         * Bytes of header inserted (or to be inserted).
+         */
+        public long getHeaderBytes() { return headerBytes; }
+
+        /**
+         * Bytes written (or to be written) to rewrite the file; the header plus
+         * the original content.
+         */
+        public long getBytesWritten() { return bytesWritten; }
+
+        @Override
+        public String toString()
+        {
+            return "["+outcome+"] "+file.getPath()+" --- "+reason+
+            (outcome==Outcome.SUCCESS?" (header "+headerBytes+" bytes, written "+bytesWritten+" bytes)":"");
+        }
+    }
+
+    private final boolean plan;
+    private final Map<File, Entry> entries;
+    private final AtomicLong files = new AtomicLong();
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+    private final ConcurrentMap<String, LongAdder> reasons = new ConcurrentHashMap<>();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Map<Phase, LongAdder> phases = new EnumMap<>(Phase.class);
+    private transient CopyrightWriterMetrics metrics;
+
+    /**
+     * @param plan                              {@code true} if nothing is
+     *                                          written; per-file entries are
+     *                                          kept.
+     */
+    public CopyrightWriterReport(final boolean plan)
+    {
+        this(plan, plan);
+    }
+
+    /**
+     * @param plan                              {@code true} if nothing is
+     *                                          written.
+     * @param keepEntries                       {@code true} to keep one {@link Entry}
+     *                                          per target file; memory grows
+     *                                          with the target tree.
+     */
+    public CopyrightWriterReport(final boolean plan,
+                                 final boolean keepEntries)
+    {
+        this.plan = plan;
+        this.entries = keepEntries?new ConcurrentSkipListMap<File, Entry>():null;
+        for(Outcome outcome:Outcome.values())
+            outcomes.put(outcome, new LongAdder());
+        for(Phase phase:Phase.values())
+            phases.put(phase, new LongAdder());
+    }
+
+    /**
+     * Determine if this is a plan, i.e. nothing was written.
+     */
+    public boolean isPlan() { return plan; }
+
+    /**
+     * Number of target files found.
+     */
+    public long getFiles() { return files.get(); }
+
+    /**
+     * Determine if per-file entries are kept; see {@link #getEntries()}.
+     */
+    public boolean isKeepingEntries() { return entries!=null; }
+
+    /**
+     * Per-file entries ordered by path; empty unless {@link #isKeepingEntries()}.
+     */
+    public Collection<Entry> getEntries()
+    {
+        return entries!=null?Collections.unmodifiableCollection(entries.values()):Collections.<Entry>emptyList();
+    }
+
+    /**
+     * Entry of a target file; {@code null} if none, or unless {@link #isKeepingEntries()}.
+     */
+    public Entry getEntry(final File file) { return entries!=null?entries.get(file):null; }
+
+    public long getCount(final Outcome outcome) { return outcomes.get(outcome).sum(); }
+
+    public long getPhaseNanos(final Phase phase) { return phases.get(phase).sum(); }
+
+    /**
+     * Total bytes written (or to be written) over all files.
+     */
+    public long getBytesWritten() { return bytesWritten.sum(); }
+
+    /**
+     * Number of target files per outcome and reason (e.g. {@code "IGNORED NO MATCHING COPYRIGHT HEADER CONTENT"}), 
+     * sorted; what the per-file log lines, at {@link java.util.logging.Level#FINE}, 
+     * add up to.
+     */
+    public Map<String, Long> getReasonCounts()
+    {
+        final Map<String, Long> reasonCounts = new TreeMap<>();
+        for(Map.Entry<String, LongAdder> reason:reasons.entrySet())
+        {
+            final long count = reason.getValue().sum();
+            if(count>0l)
+                reasonCounts.put(reason.getKey(), count);
+        }
+        return reasonCounts;
+    }
+
+    /**
+     * Determine if every target file was stamped, already stamped or ignored.
+     */
+    public boolean isSuccess()
+    {
+        return getFiles()==getCount(Outcome.SUCCESS)+getCount(Outcome.PRESENT)+getCount(Outcome.IGNORED);
+    }
+
+    long found() { return files.incrementAndGet(); }
+
+    /**
+     * Also record outcomes and timings to the metrics.
+     */
+    CopyrightWriterReport metrics(final CopyrightWriterMetrics metrics) { this.metrics = metrics; return this; }
+
+    void success(final File file,
+                 final String reason,
+                 final long headerBytes,
+                 final long bytesWritten)
+    {
+        put(new Entry(file, Outcome.SUCCESS, reason, headerBytes, bytesWritten));
+    }
+
+    void present(final File file,
+                 final String reason)
+    {
+        put(new Entry(file, Outcome.PRESENT, reason, 0l, 0l));
+    }
+
+    void ignore(final File file,
+                final String reason)
+    {
+        put(new Entry(file, Outcome.IGNORED, reason, 0l, 0l));
+    }
+
+    void failure(final File file,
+                 final String reason)
+    {
+        put(new Entry(file, Outcome.FAILURE, reason, 0l, 0l));
+    }
+
+    void addPhaseNanos(final Phase phase,
+                       final long nanos)
+    {
+        phases.get(phase).add(nanos);
+        final CopyrightWriterMetrics _metrics = metrics;
+        if(_metrics!=null)
+            _metrics.latency(phase, nanos);
+    }
+
+    private void put(final Entry entry)
+    {
+        // a later outcome replaces the earlier one, as far as entries are kept; the writer 
+        // reports each file once
+        final Entry previous = entries!=null?entries.put(entry.file, entry):null;
+        if(previous!=null)
+        {
+            outcomes.get(previous.outcome).decrement();
+            reason(previous).decrement();
+            bytesWritten.add(-previous.bytesWritten);
+        }
+        outcomes.get(entry.outcome).increment();
+        reason(entry).increment();
+        bytesWritten.add(entry.bytesWritten);
+        final CopyrightWriterMetrics _metrics = metrics;
+        if(_metrics!=null)
+        {
+            if(previous!=null)
+                _metrics.replaced(previous.outcome, previous.bytesWritten);
+            _metrics.outcome(entry.outcome, entry.bytesWritten);
+        }
+    }
+
+    private LongAdder reason(final Entry entry)
+    {
+        final String key = entry.outcome+(entry.reason!=null?" "+entry.reason:"");
+        LongAdder count = reasons.get(key);
+        if(count==null)
+        {
+            final LongAdder _count = reasons.putIfAbsent(key, count = new LongAdder());
+            if(_count!=null)
+                count = _count;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder()
+            .append("\n\t[REPORT]")
+            .append("\n\tPlan: ").append(plan)
+            .append("\n\tTotal Source File(s): ").append(getFiles())
+            .append("\n\t[SUCCESS] Total ").append(plan?"To Append":"Appended").append(" Source File(s): ").append(getCount(Outcome.SUCCESS))
+            .append("\n\t[PRESENT] Total Already Present Source File(s): ").append(getCount(Outcome.PRESENT))
+            .append("\n\t[IGNORED] Total Ignored Source File(s): ").append(getCount(Outcome.IGNORED))
+            .append("\n\t[FAILURE] Total Failed Source File(s): ").append(getCount(Outcome.FAILURE))
+            .append("\n\tTotal Bytes ").append(plan?"To Write":"Written").append(": ").append(getBytesWritten())
+        ;
+        for(Map.Entry<String, Long> reasonCount:getReasonCounts().entrySet())
+            sb.append("\n\t[").append(reasonCount.getKey()).append("] ").append(reasonCount.getValue());
+        for(Phase phase:Phase.values())
+            sb.append("\n\t[").append(phase).append("] ").append(getPhaseNanos(phase)/1000000l).append(" ms");
+        return sb.toString();
+    }
+}
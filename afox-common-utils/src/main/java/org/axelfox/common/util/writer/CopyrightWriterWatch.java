@@ -0,0 +1,354 @@
+package org.axelfox.common.util.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+
+/**
+ * Watch mode of {@link CopyrightWriter}; see {@link CopyrightWriter#watchCopyrightText(CopyrightWriter.CopyrighterWriterParameterSpec)}.
+ * <p>
+ * Every directory under the target directory is registered with one
+ * {@link WatchService}. Created and modified files are coalesced into a batch
+ * until no event came in for the quiet period (or the batch is full, or it
+ * has waited ten quiet periods), then the batch is appended to on the watch
+ * thread, one batch at a time. Files the previous batch wrote are not
+ * re-checked for the events of that write. Lost events (overflow) are made
+ * up for by re-checking the files of the directory, up to a bound.
+ * @author christopher
+ */
+public final class CopyrightWriterWatch
+       implements Closeable
+{
+    private static final TraceLogger log = TraceLogger.getLogger(CopyrightWriterWatch.class);
+    private static final AtomicInteger watchNo = new AtomicInteger();
+
+    private final TraceId traceId;
+    private final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec;
+    private final Path root;
+    private final long debounceMillis;
+    private final int maxBatch;
+    private final int rescanFiles;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> dirs = new HashSet<>();
+    private final Set<File> pending = new LinkedHashSet<>();
+    private final Map<File, Long> written = new HashMap<>(); // key=file, value=last modified as written
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong rescans = new AtomicLong();
+    private volatile CopyrightWriterReport lastReport;
+    private volatile boolean closed;
+    private Thread thread;
+
+    CopyrightWriterWatch(final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec)
+            throws IOException
+    {
+        this.traceId = parameterSpec.getTraceIdRef()!=null?new TraceId(parameterSpec.getTraceIdRef()):new TraceId();
+        this.parameterSpec = parameterSpec;
+        this.root = parameterSpec.getAppendToTargetFile().getCanonicalFile().toPath();
+        this.debounceMillis = parameterSpec.getWatchDebounceMillis()>0?
+        parameterSpec.getWatchDebounceMillis():CopyrightWriter.CopyrighterWriterParameterSpec.DEFAULT_WATCHDEBOUNCEMILLIS;
+        this.maxBatch = parameterSpec.getWatchMaxBatch()>0?
+        parameterSpec.getWatchMaxBatch():CopyrightWriter.CopyrighterWriterParameterSpec.DEFAULT_WATCHMAXBATCH;
+        this.rescanFiles = parameterSpec.getWatchRescanFiles()>0?
+        parameterSpec.getWatchRescanFiles():CopyrightWriter.CopyrighterWriterParameterSpec.DEFAULT_WATCHRESCANFILES;
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    synchronized CopyrightWriterWatch start()
+            throws IOException
+    {
+        try
+        {
+            register(root, false);
+        }
+        catch(IOException e)
+        {
+            try { watchService.close(); } catch(Throwable t) {}
+            throw e;
+        }
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { watch(); }
+        }, "copyright-writer-watch-"+watchNo.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        log.info(traceId, "start", "Watching ["+keys.size()+"] directories under ["+root+
+        "]; quiet period ["+debounceMillis+"] ms, max. batch ["+maxBatch+"]");
+        return this;
+    }
+
+    public File getRoot() { return root.toFile(); }
+
+    /**
+     * Number of batches applied so far.
+     */
+    public long getBatches() { return batches.get(); }
+
+    /**
+     * Number of target files checked so far, over all batches.
+     */
+    public long getFiles() { return files.get(); }
+
+    /**
+     * Number of directories re-checked for lost events so far.
+     */
+    public long getRescans() { return rescans.get(); }
+
+    /**
+     * Report of the last batch applied, if any.
+     */
+    public CopyrightWriterReport getLastReport() { return lastReport; }
+
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Stop watching; a pending batch is dropped.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        try { watchService.close(); } catch(Throwable t) {}
+        final Thread _thread = thread;
+        if(_thread!=null&&_thread!=Thread.currentThread())
+        {
+            try { _thread.join(); }
+            catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    private void watch()
+    {
+        long firstEvent = 0l;
+        long lastEvent = 0l;
+        try
+        {
+            while(!closed)
+            {
+                final WatchKey key;
+                if(pending.isEmpty())
+                    key = watchService.take();
+                else
+                    key = watchService.poll(Math.max(1l, debounceMillis-(System.currentTimeMillis()-lastEvent)), TimeUnit.MILLISECONDS);
+                if(key!=null)
+                {
+                    event(key);
+                    lastEvent = System.currentTimeMillis();
+                    if(firstEvent==0l)
+                        firstEvent = lastEvent;
+                }
+                if(pending.isEmpty())
+                {
+                    firstEvent = 0l;
+                    continue;
+                }
+                // quiet for long enough, full, or waited long enough under a steady stream
+                final long now = System.currentTimeMillis();
+                if(now-lastEvent>=debounceMillis||pending.size()>=maxBatch||now-firstEvent>=debounceMillis*10)
+                {
+                    apply();
+                    firstEvent = 0l;
+                }
+            }
+        }
+        catch(InterruptedException|ClosedWatchServiceException e)
+        {
+            // closed
+        }
+        catch(Throwable t)
+        {
+            log.severe(traceId, "watch", "Watch of ["+root+"] failed; stopping", t);
+        }
+        finally
+        {
+            closed = true;
+            try { watchService.close(); } catch(Throwable t) {}
+            log.info(traceId, "watch", "Stopped watching ["+root+"] after ["+batches.get()+
+            "] batches, ["+files.get()+"] files");
+        }
+    }
+
+    private void event(final WatchKey key)
+            throws IOException
+    {
+        final Path dir = keys.get(key);
+        for(WatchEvent<?> event:key.pollEvents())
+        {
+            if(dir==null)
+                continue;
+            if(event.kind()==StandardWatchEventKinds.OVERFLOW)
+            {
+                rescan(dir);
+                continue;
+            }
+            final Path path = dir.resolve((Path)event.context());
+            final File file = path.toFile();
+            if(event.kind()==StandardWatchEventKinds.ENTRY_DELETE)
+            {
+                pending.remove(file);
+                written.remove(file);
+                dirs.remove(path);
+            }
+            else if(Files.isDirectory(path))
+            {
+                // created (or moved in); files may already be there by the time it is registered
+                if(event.kind()==StandardWatchEventKinds.ENTRY_CREATE&&!dirs.contains(path))
+                    register(path, true);
+            }
+            else
+                changed(file);
+        }
+        if(!key.reset())
+        {
+            keys.remove(key);
+            dirs.remove(dir);
+            if(root.equals(dir))
+            {
+                log.warning(traceId, "event", "Watched target directory ["+root+"] is gone; stopping");
+                closed = true;
+            }
+        }
+    }
+
+    private void changed(final File file)
+    {
+        if(ChannelPrependWriter.isStagingFile(file))
+            return; // our own, in flight
+        final Long lastModified = written.remove(file);
+        if(lastModified!=null&&lastModified.longValue()==file.lastModified())
+            return; // the event of our own write
+        pending.add(file);
+    }
+
+    /**
+     * Register the directory and every directory under it; optionally queue
+     * the files found on the way, up to the rescan bound.
+     */
+    private void register(final Path dir,
+                          final boolean queue)
+            throws IOException
+    {
+        final int[] queued = new int[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path _dir,
+                                                     final BasicFileAttributes attributes)
+                   throws IOException
+            {
+                keys.put(_dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), _dir);
+                dirs.add(_dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                                             final BasicFileAttributes attributes)
+            {
+                if(queue&&attributes.isRegularFile()&&queued[0]++<rescanFiles)
+                    changed(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file,
+                                                   final IOException e)
+            {
+                log.warning(traceId, "register", "Unable to watch ["+file+"]", e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if(queued[0]>rescanFiles)
+            log.warning(traceId, "register", "Directory ["+dir+"] has more than ["+rescanFiles+
+            "] files; only the first ones were queued, leaving the rest to a regular run");
+    }
+
+    /**
+     * Events were lost; re-check the files of the directory (not below it,
+     * its sub-directories get their own overflow) and pick up new sub-directories.
+     */
+    private void rescan(final Path dir)
+            throws IOException
+    {
+        rescans.incrementAndGet();
+        int queued = 0;
+        final DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+        try
+        {
+            for(Path path:entries)
+            {
+                if(Files.isDirectory(path))
+                {
+                    if(!dirs.contains(path))
+                        register(path, true);
+                }
+                else if(queued++<rescanFiles)
+                    changed(path.toFile());
+            }
+        }
+        finally
+        {
+            try { entries.close(); } catch(Throwable t) {}
+        }
+        log.warning(traceId, "rescan", "Watch events lost for ["+dir+"]; re-checking ["+
+        Math.min(queued, rescanFiles)+"] files"+(queued>rescanFiles?" of ["+queued+"], leaving the rest to a regular run":""));
+    }
+
+    private void apply()
+    {
+        final List<File> batch = new ArrayList<>(pending);
+        pending.clear();
+        if(written.size()>maxBatch)
+            written.clear(); // the events of those writes never came; at worst they are re-checked
+        try
+        {
+            final CopyrightWriterReport report = CopyrightWriter.appendCopyrightText(parameterSpec, batch);
+            for(File file:batch)
+            {
+                final CopyrightWriterReport.Entry entry = report.getEntry(file);
+                if(entry!=null&&entry.getOutcome()==CopyrightWriterReport.Outcome.SUCCESS)
+                    written.put(file, file.lastModified());
+            }
+            lastReport = report;
+            files.addAndGet(report.getFiles());
+            if(log.isFine())
+                log.fine(traceId, "apply", "Applied batch of ["+batch.size()+"] files --- "+report);
+        }
+        catch(Throwable t)
+        {
+            log.severe(traceId, "apply", "Unable to apply batch of ["+batch.size()+"] files", t);
+        }
+        finally
+        {
+            batches.incrementAndGet();
+        }
+    }
+}
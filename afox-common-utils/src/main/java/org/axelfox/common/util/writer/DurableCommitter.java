@@ -0,0 +1,346 @@
+package org.axelfox.common.util.writer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.TraceSpan;
+import org.axelfox.common.util.writer.CopyrightWriter.Durability;
+
+/**
+ * Swaps fully staged files in according to a {@link Durability} policy:
+ * <ul>
+ *   <li>{@link Durability#NONE} swaps right away; the OS flushes when it sees fit.</li>
+ *   <li>{@link Durability#PER_FILE} has the staging file forced as it is
+ *       written, swaps, then forces the directory, for every file.</li>
+ *   <li>{@link Durability#GROUP} queues the staging files and commits them in
+ *       batches of {@code groupFiles}, or every {@code groupMillis}: all staging
+ *       files are forced, then swapped, then each directory is forced once.</li>
+ * </ul>
+ * Targets updated in place (same length headers, written over the old one)
+ * have no staging file; they are forced with their group, or as written for
+ * {@link Durability#PER_FILE}.
+ * <p>
+ * A file is only reported committed once its batch is durable, so a crash
+ * leaves each target either as it was or with its header, never torn. If a
+ * directory can't be forced after its renames (as opposed to not being
+ * openable at all on the platform), its files are reported failed.
+ * @author christopher
+ */
+class DurableCommitter
+      implements Closeable
+{
+    private static final TraceLogger log = TraceLogger.getLogger(DurableCommitter.class);
+
+    /**
+     * Commit outcome; exactly one method is called, once.
+     */
+    interface Listener
+    {
+        void committed();
+
+        /**
+         * The staging file is removed; the target is left intact, unless it 
+         * was swapped in but its directory could not be forced, or it was
+         * updated in place but could not be forced.
+         */
+        void failed(Throwable t);
+    }
+
+    private static final class Pending
+    {
+        private final Path staging;
+        private final Path target;
+        private final TraceSpan span;
+        private final Listener listener;
+
+        private Pending(final Path staging,
+                        final Path target,
+                        final TraceSpan span,
+                        final Listener listener)
+        {
+            this.staging = staging;
+            this.target = target;
+            this.span = span;
+            this.listener = listener;
+        }
+    }
+
+    private final TraceId traceId;
+    private final TraceSpan span;
+    private final Durability durability;
+    private final int groupFiles;
+    private final List<Pending> pending = new ArrayList<>();
+    private final ScheduledExecutorService timer;
+    private long commits;
+    private long groups;
+
+    DurableCommitter(final TraceId traceIdRef,
+                     final TraceSpan span,
+                     final Durability durability,
+                     final int groupFiles,
+                     final long groupMillis)
+    {
+        this.traceId = new TraceId(traceIdRef);
+        this.span = span!=null?span:TraceSpan.NOOP;
+        this.durability = durability!=null?durability:Durability.NONE;
+        this.groupFiles = groupFiles;
+        if(this.durability==Durability.GROUP)
+        {
+            this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable, "copyright-writer-group-commit");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.timer.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run() { flush(); }
+            }, groupMillis, groupMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+            this.timer = null;
+    }
+
+    Durability getDurability() { return durability; }
+
+    /**
+     * Determine if the staging channel must be forced before it is closed; 
+     * cheaper than re-opening the file to force it on {@link #commit(Path, Path, Listener)}.
+     */
+    boolean isForceOnStage() { return durability==Durability.PER_FILE; }
+
+    /**
+     * Commit a fully written and closed staging file over its (real) target;
+     * with {@link #isForceOnStage()} it must have been forced already.
+     */
+    void commit(final Path staging,
+                final Path target,
+                final Listener listener)
+    {
+        commit(staging, target, TraceSpan.NOOP, listener);
+    }
+
+    /**
+     * Commit as {@link #commit(Path, Path, Listener)}, timing the forces of
+     * the file under its span.
+     */
+    void commit(final Path staging,
+                final Path target,
+                final TraceSpan span,
+                final Listener listener)
+    {
+        if(durability==Durability.GROUP)
+        {
+            enqueue(new Pending(staging, target, span, listener));
+            return;
+        }
+        final TraceSpan commit = span.child("commit", null);
+        try
+        {
+            ChannelPrependWriter.swap(staging, target);
+            if(durability==Durability.PER_FILE)
+            {
+                final TraceSpan fsync = commit.child("fsync", target.getParent().toString());
+                try { forceDirectory(target.getParent()); }
+                finally { fsync.end(); }
+            }
+        }
+        catch(Throwable t)
+        {
+            ChannelPrependWriter.deleteStagingFile(traceId, staging);
+            listener.failed(t);
+            return;
+        }
+        finally
+        {
+            commit.end();
+        }
+        listener.committed();
+    }
+
+    /**
+     * Commit a (real) target written in place; with {@link #isForceOnStage()}
+     * it must have been forced already, with {@link Durability#GROUP} it is
+     * forced with its group.
+     */
+    void commitInPlace(final Path target,
+                       final TraceSpan span,
+                       final Listener listener)
+    {
+        if(durability==Durability.GROUP)
+        {
+            enqueue(new Pending(null, target, span, listener));
+            return;
+        }
+        listener.committed();
+    }
+
+    private void enqueue(final Pending _pending)
+    {
+        boolean full;
+        synchronized(pending)
+        {
+            pending.add(_pending);
+            full = pending.size()>=groupFiles;
+        }
+        if(full)
+            flush();
+    }
+
+    /**
+     * Commit the queued group now.
+     */
+    void flush()
+    {
+        final List<Pending> batch;
+        synchronized(pending)
+        {
+            if(pending.isEmpty())
+                return;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        // one group at a time, so directories are forced after all of its renames
+        synchronized(this)
+        {
+            final TraceSpan group = span.child("group commit", batch.size()+" files");
+            final List<Pending> forced = new ArrayList<>(batch.size());
+            for(Pending _pending:batch)
+            {
+                final TraceSpan fsync = _pending.span.child("fsync", null);
+                try
+                {
+                    ChannelPrependWriter.force(_pending.staging!=null?_pending.staging:_pending.target);
+                    forced.add(_pending);
+                }
+                catch(Throwable t)
+                {
+                    fail(_pending, t);
+                }
+                finally
+                {
+                    fsync.end();
+                }
+            }
+            final List<Pending> swapped = new ArrayList<>(forced.size());
+            final Set<Path> directories = new LinkedHashSet<>();
+            final Map<Path, Throwable> unforced = new HashMap<>();
+            for(Pending _pending:forced)
+            {
+                if(_pending.staging==null) // in place; nothing to rename
+                {
+                    swapped.add(_pending);
+                    continue;
+                }
+                try
+                {
+                    ChannelPrependWriter.swap(_pending.staging, _pending.target);
+                    swapped.add(_pending);
+                    directories.add(_pending.target.getParent());
+                }
+                catch(Throwable t)
+                {
+                    fail(_pending, t);
+                }
+            }
+            for(Path directory:directories)
+            {
+                final TraceSpan fsync = group.child("fsync", directory.toString());
+                try { forceDirectory(directory); }
+                catch(Throwable t)
+                {
+                    log.warning(traceId, "flush", "Unable to force directory ["+
+                    directory+"]; failing its files of the group", t);
+                    unforced.put(directory, t);
+                }
+                finally { fsync.end(); }
+            }
+            group.end();
+            if(!unforced.isEmpty())
+            {
+                for(Iterator<Pending> iter=swapped.iterator();iter.hasNext();)
+                {
+                    final Pending _pending = iter.next();
+                    final Throwable t = _pending.staging!=null?unforced.get(_pending.target.getParent()):null;
+                    if(t!=null)
+                    {
+                        iter.remove();
+                        fail(_pending, t);
+                    }
+                }
+            }
+            commits += swapped.size();
+            groups++;
+            if(log.isFine())
+                log.fine(traceId, "flush", "Committed group of ["+swapped.size()+
+                "] files over ["+directories.size()+"] directories");
+            for(Pending _pending:swapped)
+            {
+                try { _pending.listener.committed(); }
+                catch(Throwable t)
+                {
+                    log.warning(traceId, "flush", "Commit listener failed for target file ["+
+                    _pending.target+"]", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit whatever is queued and stop the group timer.
+     */
+    @Override
+    public void close()
+    {
+        if(timer!=null)
+        {
+            // let a running timed flush finish so that every listener is called on return
+            timer.shutdown();
+            try { timer.awaitTermination(1l, TimeUnit.MINUTES); }
+            catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        flush();
+        if(durability==Durability.GROUP)
+            log.info(traceId, "close", "Committed ["+commits+"] files in ["+groups+"] groups");
+    }
+
+    /**
+     * Force a directory after its renames; see {@link ChannelPrependWriter#forceDirectory(Path)}.
+     */
+    void forceDirectory(final Path directory)
+           throws IOException
+    {
+        ChannelPrependWriter.forceDirectory(directory);
+    }
+
+    private void fail(final Pending pending,
+                      final Throwable t)
+    {
+        if(pending.staging!=null)
+            ChannelPrependWriter.deleteStagingFile(traceId, pending.staging);
+        try { pending.listener.failed(t); }
+        catch(Throwable _t)
+        {
+            log.warning(traceId, "fail", "Commit listener failed for target file ["+
+            pending.target+"]", _t);
+        }
+    }
+}
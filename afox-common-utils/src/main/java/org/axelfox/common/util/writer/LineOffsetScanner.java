@@ -0,0 +1,101 @@
+package org.axelfox.common.util.writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the byte offset at which a given line starts by scanning only the
+ * prefix of a file for {@code '\n'} bytes (which also terminates {@code "\r\n"}
+ * lines). Content is never decoded; the prefix is read in blocks into a
+ * per-thread buffer and searched 8 bytes at a time.
+ * @author christopher
+ */
+final class LineOffsetScanner
+{
+    private static final int blockSize = 8*1024;
+    private static final long newlines = 0x0a0a0a0a0a0a0a0aL;
+    private static final long low7bits = 0x7f7f7f7f7f7f7f7fL;
+    private static final ThreadLocal<ByteBuffer> scanBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        // little endian so that the lowest set bit maps to the first byte in the file
+        @Override
+        protected ByteBuffer initialValue() { return ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN); }
+    };
+
+    private LineOffsetScanner() {}
+
+    /**
+     * Get the offset of the first byte of line {@code lineNo}.
+     * @param channel                           Channel to scan (positional
+     *                                          reads; its position is untouched).
+     * @param lineNo                            Line no. starting at {@code 1}.
+     * @return                                  Offset of the line, or {@code -1}
+     *                                          if the content has fewer lines.
+     * @throws IOException                      If reading failed.
+     */
+    static long offsetOf(final FileChannel channel,
+                         final int lineNo)
+           throws IOException
+    {
+        if(lineNo<=1)
+            return 0l;
+        int remaining = lineNo-1; // line breaks to skip
+        final ByteBuffer buffer = scanBuffer.get();
+        long position = 0l;
+        while(true)
+        {
+            buffer.clear();
+            final int n = channel.read(buffer, position);
+            if(n<=0)
+                return -1l;
+            final int found = scan(buffer, 0, n, remaining);
+            if(found>0)
+                return position+found;
+            remaining = -found;
+            position += n;
+        }
+    }
+
+    /**
+     * Scan {@code buffer} bytes {@code [from, to)} (absolute gets; the buffer 
+     * position is untouched) for the {@code remaining}-th line break.
+     * @param buffer                            Buffer to scan; must be
+     *                                          {@link ByteOrder#LITTLE_ENDIAN}
+     *                                          for the word-wise search.
+     * @param from                              First index to scan.
+     * @param to                                Index to scan up to (exclusive).
+     * @param remaining                         Line breaks left to skip; 
+     *                                          {@code 1} or greater.
+     * @return                                  Index just past that line break
+     *                                          (greater than {@code 0}), or the
+     *                                          line breaks still left to skip
+     *                                          negated if not found.
+     */
+    static int scan(final ByteBuffer buffer,
+                    final int from,
+                    final int to,
+                    int remaining)
+    {
+        int i = from;
+        for(;i+8<=to;i+=8)
+        {
+            // exact zero-byte detection on (word ^ '\n'); no carries across bytes
+            final long x = buffer.getLong(i)^newlines;
+            long found = ~(((x&low7bits)+low7bits)|x|low7bits);
+            while(found!=0l)
+            {
+                if(--remaining==0)
+                    return i+(Long.numberOfTrailingZeros(found)>>>3)+1;
+                found &= found-1;
+            }
+        }
+        for(;i<to;i++)
+        {
+            if(buffer.get(i)=='\n'&&--remaining==0)
+                return i+1;
+        }
+        return -remaining;
+    }
+}
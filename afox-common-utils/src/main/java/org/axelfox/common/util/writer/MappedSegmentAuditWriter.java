@@ -0,0 +1,396 @@
+package org.axelfox.common.util.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.writer.inf.AuditWriter;
+
+/**
+ * {@link AuditWriter} to append-only, memory mapped segment files.
+ * <p>
+ * Records are published to a bounded, lock free ring buffer: a publisher
+ * claims a slot with one compare-and-set and stores the record, nothing
+ * else; if the ring is full the record is dropped and counted rather than
+ * making the publisher wait. One background thread takes the records in
+ * order and appends them in their binary form to the current segment
+ * ({@code audit-<no.>.seg}, mapped at its full size; see
+ * {@link AuditSegmentIndex} for the format); a segment full rolls over to
+ * the next one. Segments are forced on {@link #flush()}, roll over and
+ * {@link #close()}; when rolled over or closed a segment is cut to the size
+ * written and its index ({@code audit-<no.>.idx}) written next to it. A
+ * segment left without an index (e.g. after a crash) is indexed by
+ * {@link AuditLogReader} when opened.
+ * @author christopher
+ */
+public final class MappedSegmentAuditWriter
+       implements AuditWriter
+{
+    private static final long serialVersionUID = 4650236913873384401L;
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_SEGMENTBYTES = 16l*1024l*1024l;
+    public static final String SEGMENT_PREFIX = "audit-";
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final TraceLogger log = TraceLogger.getLogger(MappedSegmentAuditWriter.class);
+    private static final long IDLE_NANOS = 100000000l;
+
+    private final TraceId traceId;
+    private final File directory;
+    private final long segmentBytes;
+    private final int mask;
+    private final transient AtomicReferenceArray<AuditRecord> slots;
+    private final transient AtomicLong head = new AtomicLong(); // next slot claimed by a publisher
+    private final transient LongAdder dropped = new LongAdder();
+    private final transient Object flushed = new Object();
+    private volatile long tail; // next slot taken by the writer thread; only it writes
+    private volatile long flushTo;
+    private volatile long durable; // records up to here are forced
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private volatile boolean stopped;
+    private volatile Throwable failure;
+    private transient Thread thread;
+    // writer thread only
+    private transient FileChannel channel;
+    private transient MappedByteBuffer segment;
+    private transient File segmentFile;
+    private transient AuditSegmentIndex.Builder index;
+    private transient ByteBuffer scratch;
+    private transient long segmentNo;
+    private transient long segments;
+
+    /**
+     * @param traceIdRef                        Trace ID reference.
+     * @param directory                         Directory of the segment files;
+     *                                          created if need be.
+     * @param segmentBytes                      Segment size, up to 2 GiB; {@code 0}
+     *                                          for {@link #DEFAULT_SEGMENTBYTES}.
+     * @param capacity                          Ring buffer capacity, rounded up
+     *                                          to a power of two; {@code 0} for
+     *                                          {@link #DEFAULT_CAPACITY}.
+     */
+    public MappedSegmentAuditWriter(final TraceId traceIdRef,
+                                    final File directory,
+                                    final long segmentBytes,
+                                    final int capacity)
+    {
+        if(directory==null)
+            throw new IllegalArgumentException("Bad parameter [directory] is null; expecting ["+
+            File.class.getName()+"] object type");
+        if(segmentBytes<0l||segmentBytes>Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bad parameter [segmentBytes] is not a valid segment size ["+
+            segmentBytes+"]; expecting [0] (default) to ["+Integer.MAX_VALUE+"]");
+        if(capacity<0||capacity>(1<<30))
+            throw new IllegalArgumentException("Bad parameter [capacity] is not a valid capacity ["+
+            capacity+"]; expecting [0] (default) to ["+(1<<30)+"]");
+        this.traceId = new TraceId(traceIdRef);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes>0l?segmentBytes:DEFAULT_SEGMENTBYTES;
+        final int _capacity = capacity>0?capacity:DEFAULT_CAPACITY;
+        final int size = Integer.highestOneBit(_capacity)==_capacity?_capacity:Integer.highestOneBit(_capacity)<<1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size-1;
+    }
+
+    /**
+     * Create the directory and start the writer thread; segments are
+     * numbered on from the ones already there.
+     * @return                                  Chaining reference.
+     * @throws IOException                      If the directory can't be created.
+     */
+    public synchronized MappedSegmentAuditWriter start()
+           throws IOException
+    {
+        if(thread!=null)
+            return this;
+        Files.createDirectories(directory.toPath());
+        for(File file:segmentFiles(directory))
+            segmentNo = Math.max(segmentNo, segmentNo(file));
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run() { drain(); }
+        }, "audit-writer");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public File getDirectory() { return directory; }
+
+    public long getSegmentBytes() { return segmentBytes; }
+
+    public int getCapacity() { return slots.length(); }
+
+    /**
+     * Number of records taken so far.
+     */
+    public long getPublished() { return head.get(); }
+
+    /**
+     * Number of records written to segments so far (not necessarily forced).
+     */
+    public long getWritten() { return tail; }
+
+    @Override
+    public long getDropped() { return dropped.sum(); }
+
+    /**
+     * Number of segments started by this writer so far.
+     */
+    public long getSegments() { return segments; }
+
+    @Override
+    public boolean write(final AuditRecord record)
+    {
+        if(record==null)
+            throw new IllegalArgumentException("Bad parameter [record] is null; expecting ["+
+            AuditRecord.class.getName()+"] object type");
+        if(closed)
+        {
+            dropped.increment();
+            return false;
+        }
+        long claimed;
+        do
+        {
+            claimed = head.get();
+            if(claimed-tail>=slots.length())
+            {
+                dropped.increment();
+                return false;
+            }
+        }
+        while(!head.compareAndSet(claimed, claimed+1l));
+        slots.set((int)(claimed&mask), record);
+        if(sleeping)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    @Override
+    public void flush()
+           throws IOException
+    {
+        final Thread _thread = thread;
+        if(_thread==null)
+            throw new IllegalStateException("Audit writer of ["+directory+"] is not started");
+        final long target = head.get();
+        synchronized(flushed)
+        {
+            if(flushTo<target)
+                flushTo = target;
+        }
+        LockSupport.unpark(_thread);
+        synchronized(flushed)
+        {
+            while(durable<target&&!stopped)
+            {
+                try { flushed.wait(IDLE_NANOS/1000000l); }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing audit records to ["+directory+"]", e);
+                }
+            }
+        }
+        if(durable<target)
+            throw new IOException("Unable to flush audit records to ["+directory+"]", failure);
+    }
+
+    @Override
+    public void close()
+           throws IOException
+    {
+        closed = true;
+        final Thread _thread = thread;
+        if(_thread==null)
+            return;
+        LockSupport.unpark(_thread);
+        try { _thread.join(); }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing audit writer of ["+directory+"]", e);
+        }
+        if(failure!=null)
+            throw new IOException("Unable to write audit records to ["+directory+"]", failure);
+    }
+
+    /**
+     * Read the records of the segments in a directory, in order.
+     * @param directory                         Directory of the segment files.
+     * @return                                  Audit records.
+     * @throws IOException                      If a segment can't be read.
+     * @see AuditLogReader
+     */
+    public static List<AuditRecord> read(final File directory)
+           throws IOException
+    {
+        final AuditLogReader reader = AuditLogReader.open(null, directory);
+        try { return reader.findByTime(Long.MIN_VALUE, Long.MAX_VALUE); }
+        finally { reader.close(); }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            while(true)
+            {
+                // take whatever is stored, in order
+                long _tail = tail;
+                AuditRecord record;
+                while((record=slots.get((int)(_tail&mask)))!=null)
+                {
+                    slots.set((int)(_tail&mask), null);
+                    append(record);
+                    tail = ++_tail;
+                }
+                final long _flushTo = flushTo;
+                if(_flushTo>durable&&_tail>=_flushTo)
+                {
+                    force();
+                    synchronized(flushed)
+                    {
+                        durable = _tail;
+                        flushed.notifyAll();
+                    }
+                }
+                if(closed&&_tail==head.get())
+                    break;
+                sleeping = true;
+                if(slots.get((int)(_tail&mask))==null&&!closed&&flushTo<=durable)
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                sleeping = false;
+            }
+        }
+        catch(Throwable t)
+        {
+            failure = t;
+            closed = true;
+            log.severe(traceId, "drain", "Unable to write audit records to ["+directory+
+            "]; dropping the rest", t);
+        }
+        finally
+        {
+            finish();
+            synchronized(flushed)
+            {
+                if(failure==null)
+                    durable = tail;
+                stopped = true;
+                flushed.notifyAll();
+            }
+        }
+    }
+
+    private void append(final AuditRecord record)
+            throws IOException
+    {
+        scratch = record.encode(scratch);
+        final int length = scratch.remaining();
+        if(segment==null||segment.remaining()<4+length)
+            roll(4+length);
+        // the length last, so that a reader of the live segment does not see a record in part
+        final int offset = segment.position();
+        segment.position(offset+4);
+        segment.put(scratch);
+        segment.putInt(offset, length);
+        index.add(offset, record);
+    }
+
+    private void roll(final int length)
+            throws IOException
+    {
+        finish();
+        segmentNo++;
+        final File file = new File(directory, String.format("%s%012d%s", SEGMENT_PREFIX, segmentNo, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0l, Math.max(segmentBytes, AuditSegmentIndex.HEADER_BYTES+length));
+        segment.putInt(AuditSegmentIndex.SEGMENT_MAGIC).putInt(AuditSegmentIndex.VERSION);
+        segmentFile = file;
+        index = new AuditSegmentIndex.Builder();
+        segments++;
+        if(log.isFine())
+            log.fine(traceId, "roll", "Started audit segment ["+file+"]");
+    }
+
+    private void force()
+    {
+        if(segment!=null)
+            segment.force();
+    }
+
+    private void finish()
+    {
+        if(channel==null)
+            return;
+        final int dataLength = segment.position();
+        try
+        {
+            segment.force();
+            // not every platform can cut a mapped file; readers stop at the first zero length then
+            try { channel.truncate(dataLength); } catch(Throwable t) {}
+        }
+        finally
+        {
+            try { channel.close(); } catch(Throwable t) {}
+            channel = null;
+            segment = null;
+        }
+        try { index.build(dataLength).write(indexFile(segmentFile).toPath()); }
+        catch(Throwable t)
+        {
+            log.warning(traceId, "finish", "Unable to write the index of audit segment ["+segmentFile+
+            "]; it is indexed when read", t);
+        }
+        index = null;
+    }
+
+    static File indexFile(final File segmentFile)
+    {
+        final String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.length()-SEGMENT_SUFFIX.length())+INDEX_SUFFIX);
+    }
+
+    static File[] segmentFiles(final File directory)
+    {
+        final File[] files = directory.listFiles();
+        if(files==null)
+            return new File[0];
+        final List<File> segmentFiles = new ArrayList<>();
+        for(File file:files)
+        {
+            if(file.isFile()&&segmentNo(file)>0l)
+                segmentFiles.add(file);
+        }
+        final File[] sorted = segmentFiles.toArray(new File[segmentFiles.size()]);
+        Arrays.sort(sorted); // zero padded numbers sort by name
+        return sorted;
+    }
+
+    private static long segmentNo(final File file)
+    {
+        final String name = file.getName();
+        if(!name.startsWith(SEGMENT_PREFIX)||!name.endsWith(SEGMENT_SUFFIX))
+            return 0l;
+        try { return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length())); }
+        catch(NumberFormatException e) { return 0l; }
+    }
+}
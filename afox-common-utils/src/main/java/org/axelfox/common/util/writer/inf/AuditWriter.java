@@ -1,9 +1,45 @@
 package org.axelfox.common.util.writer.inf;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
+import org.axelfox.common.util.writer.AuditRecord;
 
+/**
+ * Audit trail writer; records are published by the writers of the files
+ * audited, and must not hold them up.
+ * @author christopher
+ */
 public interface AuditWriter
-       extends Serializable
+       extends Serializable, Closeable
 {
-//    public void
+    /**
+     * Publish a record; never blocks.
+     * @param record                            Audit record.
+     * @return                                  {@code true} if taken, {@code false}
+     *                                          if dropped (full or closed).
+     */
+    public boolean write(AuditRecord record);
+
+    /**
+     * Wait until every record published before the call is written and
+     * forced to the device.
+     * @throws IOException                      If the records can't be written.
+     */
+    public void flush()
+           throws IOException;
+
+    /**
+     * Number of records dropped so far.
+     */
+    public long getDropped();
+
+    /**
+     * Write out what was published, then stop; records published after
+     * are dropped.
+     * @throws IOException                      If the records can't be written.
+     */
+    @Override
+    public void close()
+           throws IOException;
 }
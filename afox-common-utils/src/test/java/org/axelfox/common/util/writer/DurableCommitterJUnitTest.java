@@ -0,0 +1,192 @@
+package org.axelfox.common.util.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceSpan;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
+
+/**
+ * In the committer package to drive it directly; see {@link DurableCommitter#forceDirectory(Path)}.
+ */
+public class DurableCommitterJUnitTest
+{
+    public DurableCommitterJUnitTest() {}
+    
+    @BeforeClass
+    public static void setUpClass() { setUpLogging(); }
+    
+    @AfterClass
+    public static void tearDownClass() {}
+    
+    @Before
+    public void setUp() {}
+    
+    @After
+    public void tearDown() {}
+
+    @Test
+    public void appendCopyrightTextDurability()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Object[][] runs = {
+                { CopyrightWriter.Durability.PER_FILE, CopyrightWriter.ExecutionMode.SEQUENTIAL },
+                { CopyrightWriter.Durability.GROUP, CopyrightWriter.ExecutionMode.FIXED_POOL },
+                { CopyrightWriter.Durability.GROUP, CopyrightWriter.ExecutionMode.ASYNC },
+            };
+            final int sourceFiles = 30;
+            for(int r=0;r<runs.length;r++)
+            {
+                final Path sourcesDir = Files.createDirectories(workDir.resolve("run"+r));
+                for(int i=0;i<sourceFiles;i++)
+                {
+                    final Path packageDir = Files.createDirectories(sourcesDir.resolve("p"+(i%3)));
+                    Files.write(packageDir.resolve("Sample"+i+".java"), 
+                    ("public class Sample"+i+"\n{\n}\n").getBytes(StandardCharsets.UTF_8));
+                }
+                final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setDurability((CopyrightWriter.Durability)runs[r][0])
+                    .setExecutionMode((CopyrightWriter.ExecutionMode)runs[r][1])
+                    .setParallelism(2)
+                    .setMaxInflight(4) // fewer than a group; the group timer must kick in
+                    .setGroupCommitFiles(7)
+                    .setGroupCommitMillis(20l)
+                ;
+                assertTrue(Arrays.toString(runs[r]), CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(int i=0;i<sourceFiles;i++)
+                {
+                    final Path packageDir = sourcesDir.resolve("p"+(i%3));
+                    final String content = new String(Files.readAllBytes(
+                        packageDir.resolve("Sample"+i+".java")), StandardCharsets.UTF_8);
+                    assertTrue("Missing header in Sample"+i, content.startsWith("/**"));
+                    assertTrue("Body damaged in Sample"+i, content.endsWith("public class Sample"+i+"\n{\n}\n"));
+                    assertEquals("Staging files left in "+packageDir, sourceFiles/3, packageDir.toFile().list().length);
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text durably - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void unforcedDirectory()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path good = Files.createDirectories(workDir.resolve("good"));
+            final Path bad = Files.createDirectories(workDir.resolve("bad"));
+            final IOException unforced = new IOException("unforced");
+            final Set<Path> forced = Collections.synchronizedSet(new HashSet<Path>());
+            for(CopyrightWriter.Durability durability:new CopyrightWriter.Durability[]{ 
+                CopyrightWriter.Durability.GROUP, 
+                CopyrightWriter.Durability.PER_FILE 
+            })
+            {
+                // the renames in one directory can't be forced
+                final DurableCommitter committer = new DurableCommitter(new TraceId(), null, durability, 100, 60000l)
+                {
+                    @Override
+                    void forceDirectory(final Path directory)
+                           throws IOException
+                    {
+                        if(directory.equals(bad))
+                            throw unforced;
+                        forced.add(directory);
+                    }
+                };
+                final Map<Path, Object> outcomes = Collections.synchronizedMap(new HashMap<Path, Object>());
+                final Path[] targets = { 
+                    good.resolve("a-"+durability), good.resolve("b-"+durability), 
+                    bad.resolve("c-"+durability), bad.resolve("d-"+durability) 
+                };
+                try
+                {
+                    for(final Path target:targets)
+                    {
+                        Files.write(target, "old\n".getBytes(StandardCharsets.UTF_8));
+                        final Path staging = ChannelPrependWriter.createStagingFile(target);
+                        Files.write(staging, "new\n".getBytes(StandardCharsets.UTF_8));
+                        committer.commit(staging, target, listener(outcomes, target));
+                    }
+                    // updated in place; no rename to force
+                    final Path inPlace = bad.resolve("e-"+durability);
+                    Files.write(inPlace, "new\n".getBytes(StandardCharsets.UTF_8));
+                    committer.commitInPlace(inPlace, TraceSpan.NOOP, listener(outcomes, inPlace));
+                    committer.flush();
+                    
+                    // the other directory of the group commits; the files of the unforced one fail, 
+                    // though swapped in
+                    assertEquals(durability+" "+outcomes, 5, outcomes.size());
+                    for(Path target:targets)
+                    {
+                        assertEquals(durability+" "+target, target.getParent().equals(bad)?unforced:Boolean.TRUE, outcomes.get(target));
+                        assertEquals(durability+" "+target, "new\n", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+                    }
+                    assertEquals(Boolean.TRUE, outcomes.get(inPlace));
+                    assertEquals(Collections.singleton(good), forced);
+                }
+                finally
+                {
+                    committer.close();
+                }
+            }
+            for(Path directory:new Path[]{ good, bad })
+                for(File file:directory.toFile().listFiles())
+                    assertFalse("Staging file left "+file, ChannelPrependWriter.isStagingFile(file));
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to fail the files of an unforced directory - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    private static DurableCommitter.Listener listener(final Map<Path, Object> outcomes,
+                                                      final Path target)
+    {
+        return new DurableCommitter.Listener()
+        {
+            @Override
+            public void committed() { assertNull(outcomes.put(target, Boolean.TRUE)); }
+            
+            @Override
+            public void failed(final Throwable t) { assertNull(outcomes.put(target, t)); }
+        };
+    }
+}
@@ -0,0 +1,242 @@
+package org.axelfox.junit.test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.writer.AuditLogReader;
+import org.axelfox.common.util.writer.AuditRecord;
+import org.axelfox.common.util.writer.ChannelPrependWriter;
+import org.axelfox.common.util.writer.CopyrightWriter;
+import org.axelfox.common.util.writer.MappedSegmentAuditWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
+
+public class AuditWriterJUnitTest
+{
+    public AuditWriterJUnitTest() {}
+    
+    @BeforeClass
+    public static void setUpClass() { setUpLogging(); }
+    
+    @AfterClass
+    public static void tearDownClass() {}
+    
+    @Before
+    public void setUp() {}
+    
+    @After
+    public void tearDown() {}
+    
+    @Test
+    public void auditWriter()
+    {
+        Path workDir = null;
+        MappedSegmentAuditWriter auditWriter = null;
+        try
+        {
+            // tabs and line breaks survive a line
+            final AuditRecord record = new AuditRecord(1l, "t1", "APPENDED", "dir\tname/A\nB.java", 10l, 20l, null);
+            final AuditRecord parsed = AuditRecord.parse(record.toLine());
+            assertEquals(record.getPath(), parsed.getPath());
+            assertEquals(record.toLine(), parsed.toLine());
+            assertNull(parsed.getHash());
+            
+            workDir = Files.createTempDirectory("cwt");
+            final File auditDir = workDir.resolve("audit").toFile();
+            // small segments and ring; rolls over
+            auditWriter = new MappedSegmentAuditWriter(null, auditDir, 1024l, 1000).start();
+            assertEquals(1024, auditWriter.getCapacity());
+            int published = 0;
+            for(int i=0;i<100;i++)
+            {
+                if(auditWriter.write(new AuditRecord("t1", "APPENDED", "sources/Sample"+i+".java", i, i+100l, "h"+i)))
+                    published++;
+            }
+            auditWriter.flush();
+            assertEquals(published, auditWriter.getWritten());
+            assertEquals(100l, published+auditWriter.getDropped());
+            assertTrue(auditWriter.getSegments()>1l);
+            auditWriter.close();
+            assertFalse(auditWriter.write(record));
+            List<AuditRecord> records = MappedSegmentAuditWriter.read(auditDir);
+            assertEquals(published, records.size());
+            assertEquals("sources/Sample0.java", records.get(0).getPath());
+            assertEquals(100l, records.get(0).getSizeAfter());
+            for(File segment:auditDir.listFiles())
+                assertTrue(segment.getName(), segment.length()<=1024l);
+            
+            // a ring full drops rather than waits; the writer thread is not started
+            auditWriter = new MappedSegmentAuditWriter(null, workDir.resolve("full").toFile(), 0l, 2);
+            assertTrue(auditWriter.write(record));
+            assertTrue(auditWriter.write(record));
+            assertFalse(auditWriter.write(record));
+            assertEquals(1l, auditWriter.getDropped());
+            auditWriter.close();
+            
+            // a record per target file modified, numbered on after the segments there
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final byte[] content = "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8);
+            for(int i=0;i<4;i++)
+                Files.write(sourcesDir.resolve("Sample"+i+".java"), content);
+            auditWriter = new MappedSegmentAuditWriter(null, auditDir, 0l, 0).start();
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setAuditWriter(auditWriter)
+            ;
+            CopyrightWriter.planCopyrightText(parameterSpec);
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            auditWriter.flush();
+            assertEquals(4l, auditWriter.getWritten());
+            auditWriter.close();
+            records = MappedSegmentAuditWriter.read(auditDir);
+            assertEquals(published+4, records.size());
+            final Set<String> paths = new LinkedHashSet<>();
+            for(AuditRecord appended:records.subList(published, records.size()))
+            {
+                paths.add(appended.getPath());
+                assertEquals("APPENDED", appended.getAction());
+                assertNotNull(appended.getTraceId());
+                assertNotNull(appended.getHash());
+                assertEquals(content.length, appended.getSizeBefore());
+                assertEquals(Files.size(new File(appended.getPath()).toPath()), appended.getSizeAfter());
+            }
+            assertEquals(4, paths.size());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to write the audit trail - "+t.getMessage());
+        }
+        finally
+        {
+            if(auditWriter!=null)
+                try { auditWriter.close(); } catch(Throwable t) {}
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void auditLogReader()
+    {
+        Path workDir = null;
+        MappedSegmentAuditWriter auditWriter = null;
+        try
+        {
+            // binary form; hex trace IDs and hashes take 16 bytes
+            final String hexId = TraceId.generateId();
+            final AuditRecord record = new AuditRecord(7l, hexId, "UPDATED", "src/\u00e9t\u00e9.java", 10l, 20l, null);
+            
+            workDir = Files.createTempDirectory("cwt");
+            final File auditDir = workDir.resolve("audit").toFile();
+            auditWriter = new MappedSegmentAuditWriter(null, auditDir, 64l*1024l, 32768).start();
+            final long base = 1700000000000l;
+            final int n = 20000;
+            assertTrue(auditWriter.write(record));
+            for(int i=0;i<n;i++)
+            {
+                assertTrue(auditWriter.write(new AuditRecord(base+i, "run"+(i%200), "APPENDED", 
+                "sources/File"+(i%500)+".java", i, i+100l, hexId)));
+            }
+            auditWriter.close();
+            assertEquals(0l, auditWriter.getDropped());
+            assertTrue(auditWriter.getSegments()>10l);
+            
+            for(int pass=0;pass<2;pass++)
+            {
+                final AuditLogReader reader = AuditLogReader.open(null, auditDir);
+                try
+                {
+                    assertEquals(auditWriter.getSegments(), reader.getSegments());
+                    assertEquals(n+1l, reader.getRecords());
+                    final List<AuditRecord> run = reader.findByTraceId("run7");
+                    final List<AuditRecord> file = reader.findByPath("sources/File13.java");
+                    final AuditRecord last = reader.findLastByPath("sources/File13.java");
+                    final List<AuditRecord> range = reader.findByTime(base+1000l, base+1100l);
+                    assertEquals(n/200, run.size());
+                    for(int i=0;i<run.size();i++)
+                    {
+                        assertEquals("run7", run.get(i).getTraceId());
+                        assertEquals(base+7l+i*200l, run.get(i).getTime());
+                    }
+                    assertEquals(n/500, file.size());
+                    assertEquals(n-500+13, last.getSizeBefore());
+                    assertEquals(hexId, last.getHash());
+                    assertEquals(100, range.size());
+                    assertEquals(1000l, range.get(0).getSizeBefore());
+                    assertEquals(1099l, range.get(99).getSizeBefore());
+                    assertTrue(reader.findByTraceId("run200").isEmpty());
+                    assertNull(reader.findLastByPath("sources/File500.java"));
+                    final AuditRecord first = reader.findByTraceId(hexId).get(0);
+                    assertEquals(record.toLine(), first.toLine());
+                    assertEquals(n+1, reader.findByTime(Long.MIN_VALUE, Long.MAX_VALUE).size());
+                }
+                finally
+                {
+                    reader.close();
+                }
+                // unindexed segments are scanned
+                for(File index:auditDir.listFiles())
+                {
+                    if(index.getName().endsWith(MappedSegmentAuditWriter.INDEX_SUFFIX))
+                        Files.delete(index.toPath());
+                }
+            }
+            
+            // the live segment is read up to what's written
+            auditWriter = new MappedSegmentAuditWriter(null, auditDir, 0l, 0).start();
+            for(int i=0;i<10;i++)
+                assertTrue(auditWriter.write(new AuditRecord(base+n+i, "live", "APPENDED", "sources/Live.java", i, i, null)));
+            auditWriter.flush();
+            final AuditLogReader reader = AuditLogReader.open(null, auditDir);
+            try
+            {
+                assertEquals(n+11l, reader.getRecords());
+                assertEquals(10, reader.findByTraceId("live").size());
+                assertEquals(9l, reader.findLastByPath("sources/Live.java").getSizeBefore());
+            }
+            finally
+            {
+                reader.close();
+            }
+            try
+            {
+                reader.getRecords();
+                fail("ERROR: Read from a closed audit log reader");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to read the audit log - "+t.getMessage());
+        }
+        finally
+        {
+            if(auditWriter!=null)
+                try { auditWriter.close(); } catch(Throwable t) {}
+            delete(workDir);
+        }
+    }
+    
+    /**
+     * Throughput comparison of the legacy byte-at-a-time backup/restore loop 
+     * against {@link ChannelPrependWriter}. Run manually.
+     */
+}
@@ -0,0 +1,122 @@
+package org.axelfox.junit.test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.reader.CopyrightHeaderTemplate;
+import org.axelfox.common.util.reader.CopyrightReaderContentFilter;
+import org.axelfox.common.util.writer.CopyrightHeaderRegistry;
+import org.axelfox.common.util.writer.CopyrightWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
+
+public class CopyrightHeaderRegistryJUnitTest
+{
+    public CopyrightHeaderRegistryJUnitTest() {}
+    
+    @BeforeClass
+    public static void setUpClass() { setUpLogging(); }
+    
+    @AfterClass
+    public static void tearDownClass() {}
+    
+    @Before
+    public void setUp() {}
+    
+    @After
+    public void tearDown() {}
+    
+    @Test
+    public void copyrightHeaderRegistry()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("b.h.txt"), "@@CWT|sh,java@@\n# b\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(headersDir.resolve("a.h.txt"), "@@CWT|java@@\n// a\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(headersDir.resolve("e.h.txt"), "@@CW".getBytes(StandardCharsets.UTF_8)); // caught half written
+            
+            // loaded once and shared; conflicts go to the lowest location, whatever the walk order
+            final TraceId traceId = new TraceId();
+            final CopyrightHeaderRegistry registry = CopyrightHeaderRegistry.shared(traceId, headersDir.toFile());
+            assertSame(registry, CopyrightHeaderRegistry.shared(traceId, headersDir.toFile()));
+            assertTrue(registry.isWatched());
+            final Map<String, CopyrightHeaderTemplate> index = registry.getIndex();
+            assertEquals(2, index.size());
+            assertTrue(index.get("java").getLocation().endsWith("a.h.txt"));
+            assertTrue(index.get("sh").getLocation().endsWith("b.h.txt"));
+            assertSame(index, registry.getIndex());
+            
+            // the half written one was stamped as rejected by the load; finished, the next lookup has it
+            Files.write(headersDir.resolve("e.h.txt"), "@@CWT|rb@@\n# e\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(registry.getIndex().containsKey("rb"));
+            
+            // new templates are picked up without a re-walk
+            Files.write(Files.createDirectories(headersDir.resolve("more")).resolve("c.h.txt"), 
+            "@@CWT|py@@\n# c\n".getBytes(StandardCharsets.UTF_8));
+            final long deadline = System.currentTimeMillis()+30000l;
+            while(!registry.getIndex().containsKey("py")&&System.currentTimeMillis()<deadline)
+                Thread.sleep(50l);
+            assertTrue(registry.getIndex().containsKey("py"));
+            
+            // a private registry is walked by its load, then again only once a directory changed
+            final int[] accepted = new int[1];
+            final CopyrightHeaderRegistry loaded = CopyrightHeaderRegistry.load(traceId, headersDir.toFile(), new FileFilter()
+            {
+                private final FileFilter filter = new CopyrightReaderContentFilter(traceId);
+                
+                @Override
+                public boolean accept(final File file)
+                {
+                    if(file.isFile())
+                        accepted[0]++;
+                    return filter.accept(file);
+                }
+            });
+            assertFalse(loaded.isWatched());
+            final int walked = accepted[0];
+            assertTrue(loaded.getIndex().containsKey("py"));
+            assertEquals(walked, accepted[0]);
+            Files.write(headersDir.resolve("more").resolve("d.h.txt"), "@@CWT|go@@\n# d\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(loaded.getIndex().containsKey("go"));
+            assertTrue(accepted[0]>walked);
+            loaded.close();
+            
+            // bundled templates
+            final CopyrightHeaderRegistry bundled = CopyrightHeaderRegistry.load(traceId, getClass().getClassLoader(), "headers");
+            assertEquals(new LinkedHashSet<>(Arrays.asList("java", "js", "sh")), bundled.getIndex().keySet());
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            Files.write(sourcesDir.resolve("A.java"), "class A {}\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(CopyrightWriter.appendCopyrightText(
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightHeaderRegistry(bundled)
+            ));
+            assertTrue(new String(Files.readAllBytes(sourcesDir.resolve("A.java")), StandardCharsets.UTF_8).startsWith("/**"));
+            registry.close();
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to use copyright header registry - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.axelfox.junit.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.axelfox.common.util.writer.ChannelPrependWriter;
+import org.axelfox.common.util.writer.CopyrightWriter;
+import org.axelfox.common.util.writer.CopyrightWriterReport;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
+
+public class CopyrightPresenceJUnitTest
+{
+    private static final byte[] bom = { (byte)0xef, (byte)0xbb, (byte)0xbf };
+    private static final byte[] body = "echo\n".getBytes(StandardCharsets.UTF_8);
+
+    public CopyrightPresenceJUnitTest() {}
+
+    @BeforeClass
+    public static void setUpClass() { setUpLogging(); }
+
+    @AfterClass
+    public static void tearDownClass() {}
+
+    @Before
+    public void setUp() {}
+
+    @After
+    public void tearDown() {}
+
+    @Test
+    public void startsWith()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path target = workDir.resolve("target.sh");
+            final ByteBuffer header = ByteBuffer.wrap("# header\n".getBytes(StandardCharsets.UTF_8));
+
+            // only the header length is compared, in buffer order; the buffers are not consumed
+            Files.write(target, "# header\necho\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(ChannelPrependWriter.startsWith(target, header));
+            assertEquals(9, header.remaining());
+            assertTrue(ChannelPrependWriter.startsWith(target,
+            ByteBuffer.wrap("# hea".getBytes(StandardCharsets.UTF_8)), ByteBuffer.wrap("der\n".getBytes(StandardCharsets.UTF_8))));
+            assertTrue(ChannelPrependWriter.regionMatches(target, 9l, ByteBuffer.wrap(body)));
+            assertTrue(ChannelPrependWriter.startsWith(target));
+
+            // near matches; a byte off, the line break missing, cut short
+            Files.write(target, "# headeR\necho\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(ChannelPrependWriter.startsWith(target, header));
+            Files.write(target, "# header".getBytes(StandardCharsets.UTF_8));
+            assertFalse(ChannelPrependWriter.startsWith(target, header));
+            Files.write(target, "# header\r\necho\n".getBytes(StandardCharsets.UTF_8));
+            assertFalse(ChannelPrependWriter.startsWith(target, header));
+            Files.write(target, new byte[0]);
+            assertFalse(ChannelPrependWriter.startsWith(target, header));
+
+            // past a byte order mark only as asked
+            Files.write(target, concat(bom, "# header\n".getBytes(StandardCharsets.UTF_8)));
+            assertFalse(ChannelPrependWriter.startsWith(target, header));
+            assertTrue(ChannelPrependWriter.regionMatches(target, bom.length, header));
+            assertFalse(ChannelPrependWriter.regionMatches(target, bom.length+1, header));
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to check leading content - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+
+    @Test
+    public void skipPresent()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.sh.h.txt"),
+            "@@CWT|sh@@\n# header line one\n# header line two\n".getBytes(StandardCharsets.UTF_8));
+            for(CopyrightWriter.ExecutionMode executionMode:new CopyrightWriter.ExecutionMode[]{
+                CopyrightWriter.ExecutionMode.SEQUENTIAL,
+                CopyrightWriter.ExecutionMode.ASYNC
+            })
+            {
+                // the header as written, whatever the platform line separator
+                final Path seedDir = Files.createDirectories(workDir.resolve("seed-"+executionMode));
+                final Path seed = seedDir.resolve("seed.sh");
+                Files.write(seed, body);
+                final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec =
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(seedDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setExecutionMode(executionMode)
+                ;
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                final byte[] stamped = Files.readAllBytes(seed);
+                final byte[] header = Arrays.copyOf(stamped, stamped.length-body.length);
+                assertTrue(new String(header, StandardCharsets.UTF_8).startsWith("# header line one"));
+
+                final Path sourcesDir = Files.createDirectories(workDir.resolve("sources-"+executionMode));
+                final String[] present = { "present.sh", "bom-present.sh", "header-only.sh" };
+                Files.write(sourcesDir.resolve("present.sh"), concat(header, body));
+                Files.write(sourcesDir.resolve("bom-present.sh"), concat(bom, concat(header, body)));
+                Files.write(sourcesDir.resolve("header-only.sh"), header);
+
+                final byte[] offByOne = header.clone();
+                offByOne[2] ^= 0x20; // "# Header line one"
+                final String[] missing = { "near.sh", "cut.sh", "bom-missing.sh", "later.sh", "empty.sh" };
+                final byte[][] contents = {
+                    concat(offByOne, body),
+                    Arrays.copyOf(header, header.length-1),
+                    concat(bom, body),
+                    concat(body, header),
+                    new byte[0],
+                };
+                for(int i=0;i<missing.length;i++)
+                    Files.write(sourcesDir.resolve(missing[i]), contents[i]);
+                parameterSpec.setAppendToTargetFile(sourcesDir.toFile());
+
+                final CopyrightWriterReport plan = CopyrightWriter.planCopyrightText(parameterSpec).object();
+                assertEquals(plan.toString(), present.length, plan.getCount(CopyrightWriterReport.Outcome.PRESENT));
+                assertEquals(plan.toString(), missing.length, plan.getCount(CopyrightWriterReport.Outcome.SUCCESS));
+                for(String name:present)
+                    assertEquals(executionMode+" "+name, "ALREADY PRESENT", plan.getEntry(sourcesDir.resolve(name).toFile()).getReason());
+
+                final byte[][] before = new byte[present.length][];
+                for(int i=0;i<present.length;i++)
+                    before[i] = Files.readAllBytes(sourcesDir.resolve(present[i]));
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(int i=0;i<present.length;i++)
+                    assertArrayEquals(executionMode+" "+present[i], before[i], Files.readAllBytes(sourcesDir.resolve(present[i])));
+                for(int i=0;i<missing.length;i++)
+                {
+                    final byte[] expected = i==2?concat(bom, concat(header, body)):concat(header, contents[i]);
+                    assertArrayEquals(executionMode+" "+missing[i], expected, Files.readAllBytes(sourcesDir.resolve(missing[i])));
+                }
+
+                // and they are present from now on
+                final CopyrightWriterReport rerun = CopyrightWriter.planCopyrightText(parameterSpec).object();
+                assertEquals(rerun.toString(), present.length+missing.length, rerun.getCount(CopyrightWriterReport.Outcome.PRESENT));
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to skip targets with the header present - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.axelfox.junit.test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+/**
+ * Fixtures shared by the writer tests; the logging set up, the staged header
+ * templates and the work directories.
+ * @author christopher
+ */
+public final class CopyrightWriterFixture
+{
+    private CopyrightWriterFixture() {}
+
+    // http://tutorials.jenkov.com/java-logging/configuration.html
+    public static void setUpLogging()
+    {
+        final URL loggingPropsURL = Thread.currentThread().getContextClassLoader().getResource("logging.properties");
+        assertNotNull("Unable to get resource \"logging.properties\" returned null", loggingPropsURL);
+        try
+        {
+            final String loggingPropsFilePath = new File(loggingPropsURL.toURI()).getPath();
+            System.setProperty("java.util.logging.config.file", loggingPropsFilePath);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to setup JUnit Test class --- "+t.getMessage());
+        }
+    }
+
+    public static Path copyHeaders(final Path headersDir)
+           throws Exception
+    {
+        final URL headersURL = Thread.currentThread().getContextClassLoader().getResource("headers");
+        assertNotNull("Unable to get resource \"headers\" returned null", headersURL);
+        Files.createDirectories(headersDir);
+        // staged as *.h.txt; the tests refer to them by that name
+        for(File header:new File(headersURL.toURI()).listFiles())
+            Files.copy(header.toPath(), headersDir.resolve(header.getName()+".txt"));
+        return headersDir;
+    }
+
+    public static byte[] concat(final byte[] head,
+                                final byte[] tail)
+    {
+        final byte[] concat = Arrays.copyOf(head, head.length+tail.length);
+        System.arraycopy(tail, 0, concat, head.length, tail.length);
+        return concat;
+    }
+
+    public static void delete(final Path path)
+    {
+        if(path==null)
+            return;
+        final File[] children = path.toFile().listFiles();
+        if(children!=null)
+            for(File child:children)
+                delete(child.toPath());
+        path.toFile().delete();
+    }
+}
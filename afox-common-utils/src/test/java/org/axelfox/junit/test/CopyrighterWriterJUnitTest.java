@@ -1,40 +1,68 @@
 package org.axelfox.junit.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.axelfox.common.util.writer.ChannelPrependWriter;
+import org.axelfox.common.object.response.DefaultResponseCode;
+import org.axelfox.common.util.LatencyHistogram;
+import org.axelfox.common.util.SpanRecorder;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.TraceLogger;
+import org.axelfox.common.util.TraceSpan;
+import org.axelfox.common.util.reader.ContentTypeSniffer;
+import org.axelfox.common.util.reader.CopyrightHeaderTags;
+import org.axelfox.common.util.reader.CopyrightHeaderTemplate;
+import org.axelfox.common.util.reader.CopyrightReaderContentFilter;
+import org.axelfox.common.util.reader.CopyrightReaderContentHeader;
+import org.axelfox.common.util.reader.inf.ContentReader;
 import org.axelfox.common.util.writer.CopyrightWriter;
+import org.axelfox.common.util.writer.CopyrightWriterMetrics;
+import org.axelfox.common.util.writer.CopyrightWriterReport;
+import org.axelfox.common.util.writer.CopyrightWriterWatch;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
 import org.junit.Ignore;
 
 public class CopyrighterWriterJUnitTest
 {
     public CopyrighterWriterJUnitTest() {}
     
-    // http://tutorials.jenkov.com/java-logging/configuration.html
     @BeforeClass
-    public static void setUpClass()
-    {
-        final URL loggingPropsURL = Thread.currentThread().getContextClassLoader().getResource("logging.properties");
-        assertNotNull("Unable to get resource \"logging.properties\" returned null", loggingPropsURL);
-        try
-        {
-            final String loggingPropsFilePath = new File(loggingPropsURL.toURI()).getPath();
-            System.setProperty("java.util.logging.config.file", loggingPropsFilePath);
-        }
-        catch(Throwable t)
-        {
-            t.printStackTrace(System.err);
-            fail("ERROR: Failed to setup JUnit Test class --- "+t.getMessage());
-        }
-    }
+    public static void setUpClass() { setUpLogging(); }
     
     @AfterClass
     public static void tearDownClass() {}
@@ -105,4 +133,1463 @@ public class CopyrighterWriterJUnitTest
             fail("ERROR: Failed to append copyright text - "+t.getMessage());
         }
     }
+    
+    @Test
+    public void appendCopyrightTextParallel()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final int sourceFiles = 50;
+            for(int i=0;i<sourceFiles;i++)
+            {
+                final Path packageDir = Files.createDirectories(sourcesDir.resolve("p"+(i%5)));
+                Files.write(packageDir.resolve("Sample"+i+".java"), 
+                ("public class Sample"+i+"\n{\n}\n").getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(sourcesDir.resolve("readme.txt"), "no header for me\n".getBytes(StandardCharsets.UTF_8));
+            
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setExecutionMode(CopyrightWriter.ExecutionMode.FIXED_POOL)
+                .setParallelism(4)
+            ;
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            for(int i=0;i<sourceFiles;i++)
+            {
+                final String content = new String(Files.readAllBytes(
+                    sourcesDir.resolve("p"+(i%5)).resolve("Sample"+i+".java")), StandardCharsets.UTF_8);
+                assertTrue("Missing header in Sample"+i, content.startsWith("/**"));
+                assertTrue("Body damaged in Sample"+i, content.endsWith("public class Sample"+i+"\n{\n}\n"));
+            }
+            assertEquals("no header for me\n", 
+            new String(Files.readAllBytes(sourcesDir.resolve("readme.txt")), StandardCharsets.UTF_8));
+            
+            // a re-run finds the header already present and leaves the files alone
+            final Path sample = sourcesDir.resolve("p0").resolve("Sample0.java");
+            final byte[] stamped = Files.readAllBytes(sample);
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertArrayEquals(stamped, Files.readAllBytes(sample));
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text in parallel - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextAsync()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final String[] modes = { "SEQUENTIAL", "ASYNC", "VIRTUAL_THREAD" };
+            final StringBuilder large = new StringBuilder("#!/bin/sh\n");
+            while(large.length()<200*1024)
+                large.append("echo ").append(large.length()).append('\n');
+            // lines longer than the scan and copy blocks; the line far in, or none and the header at the end
+            final StringBuilder longLine = new StringBuilder("#");
+            while(longLine.length()<100*1024)
+                longLine.append("0123456789");
+            for(String mode:modes)
+            {
+                final Path sourcesDir = Files.createDirectories(workDir.resolve(mode));
+                Files.write(sourcesDir.resolve("large.sh"), large.toString().getBytes(StandardCharsets.UTF_8));
+                Files.write(sourcesDir.resolve("wide.sh"), (longLine+"\necho\n").getBytes(StandardCharsets.UTF_8));
+                Files.write(sourcesDir.resolve("oneline.sh"), longLine.toString().getBytes(StandardCharsets.UTF_8));
+                Files.write(sourcesDir.resolve("short.sh"), "#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+                Files.write(sourcesDir.resolve("empty.sh"), new byte[0]);
+                for(int i=0;i<20;i++)
+                    Files.write(sourcesDir.resolve("Sample"+i+".java"), 
+                    ("package p;\npublic class Sample"+i+"\n{\n}\n").getBytes(StandardCharsets.UTF_8));
+                
+                final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(2)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setExecutionMode(CopyrightWriter.ExecutionMode.valueOf(mode))
+                    .setParallelism(2)
+                ;
+                assertTrue(mode, CopyrightWriter.appendCopyrightText(parameterSpec));
+                
+                // and only once, short and empty targets too
+                final File[] targets = sourcesDir.toFile().listFiles();
+                final byte[][] stamped = new byte[targets.length][];
+                for(int i=0;i<targets.length;i++)
+                    stamped[i] = Files.readAllBytes(targets[i].toPath());
+                assertTrue(mode, CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(int i=0;i<targets.length;i++)
+                    assertArrayEquals(mode+" "+targets[i].getName(), stamped[i], Files.readAllBytes(targets[i].toPath()));
+            }
+            
+            final String wide = new String(Files.readAllBytes(workDir.resolve(modes[0]).resolve("wide.sh")), StandardCharsets.UTF_8);
+            assertTrue(wide.startsWith(longLine+"\n####"));
+            assertTrue(wide.endsWith("\necho\n"));
+            final String oneLine = new String(Files.readAllBytes(workDir.resolve(modes[0]).resolve("oneline.sh")), StandardCharsets.UTF_8);
+            assertTrue(oneLine.startsWith(longLine+"\n####"));
+            
+            // same bytes whatever the mode
+            for(File expected:workDir.resolve(modes[0]).toFile().listFiles())
+            {
+                for(int i=1;i<modes.length;i++)
+                    assertArrayEquals(modes[i]+" "+expected.getName(), Files.readAllBytes(expected.toPath()), 
+                    Files.readAllBytes(workDir.resolve(modes[i]).resolve(expected.getName())));
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text asynchronously - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextManifest()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final int sourceFiles = 10;
+            for(int i=0;i<sourceFiles;i++)
+                Files.write(sourcesDir.resolve("Sample"+i+".java"), 
+                ("public class Sample"+i+"\n{\n}\n").getBytes(StandardCharsets.UTF_8));
+            final Path manifest = workDir.resolve("cwt.manifest");
+            
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setManifestFile(manifest.toFile())
+            ;
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(1+sourceFiles, Files.readAllLines(manifest, StandardCharsets.UTF_8).size());
+            
+            // nothing changed; nothing recorded
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(1+sourceFiles, Files.readAllLines(manifest, StandardCharsets.UTF_8).size());
+            
+            // one file touched; one entry appended
+            final Path touched = sourcesDir.resolve("Sample0.java");
+            Files.write(touched, "// more\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Files.setLastModifiedTime(touched, FileTime.fromMillis(System.currentTimeMillis()+60000l));
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(1+sourceFiles+1, Files.readAllLines(manifest, StandardCharsets.UTF_8).size());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text with manifest - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void planCopyrightText()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final Path source = sourcesDir.resolve("Sample.java");
+            final byte[] content = "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8);
+            Files.write(source, content);
+            final Path other = sourcesDir.resolve("notes.md");
+            Files.write(other, "# notes\n".getBytes(StandardCharsets.UTF_8));
+            final Path manifest = workDir.resolve("cwt.manifest");
+            
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setManifestFile(manifest.toFile())
+            ;
+            final CopyrightWriter.CopyrightWriterResponse response = CopyrightWriter.planCopyrightText(parameterSpec);
+            assertEquals(DefaultResponseCode.OK_SUCCESS, response.code());
+            final CopyrightWriterReport report = response.object();
+            assertTrue(report.toString(), report.toString().contains("\n\tPlan: true"));
+            assertTrue(report.toString(), report.toString().contains("[SUCCESS] Total To Append Source File(s): 1"));
+            assertTrue(report.isPlan());
+            assertEquals(2l, report.getFiles());
+            assertEquals(1l, report.getCount(CopyrightWriterReport.Outcome.SUCCESS));
+            assertEquals(1l, report.getCount(CopyrightWriterReport.Outcome.IGNORED));
+            final CopyrightWriterReport.Entry entry = report.getEntry(source.toFile());
+            assertEquals(CopyrightWriterReport.Outcome.SUCCESS, entry.getOutcome());
+            assertTrue(entry.getHeaderBytes()>0l);
+            assertEquals(entry.getHeaderBytes()+content.length, entry.getBytesWritten());
+            assertTrue(report.getPhaseNanos(CopyrightWriterReport.Phase.TOTAL)>0l);
+            
+            // running totals; per-file entries only as a plan or when asked for
+            assertTrue(report.isKeepingEntries());
+            assertEquals(entry.getBytesWritten(), report.getBytesWritten());
+            assertEquals(Long.valueOf(1l), report.getReasonCounts().get("SUCCESS PLANNED"));
+            assertEquals(Long.valueOf(1l), report.getReasonCounts().get("IGNORED NO MATCHING COPYRIGHT HEADER CONTENT"));
+            assertEquals(2, report.getReasonCounts().size());
+            assertFalse(new CopyrightWriterReport(false).isKeepingEntries());
+            assertTrue(new CopyrightWriterReport(false).getEntries().isEmpty());
+            assertTrue(new CopyrightWriterReport(false, true).isKeepingEntries());
+            
+            // nothing touched
+            assertArrayEquals(content, Files.readAllBytes(source));
+            assertFalse(Files.exists(manifest));
+            
+            // the plan matches the run
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(entry.getBytesWritten(), Files.size(source));
+            
+            // bad parameters come back as a response code
+            assertEquals(DefaultResponseCode.ERR_ILLEGAL_ARGUMENT, 
+            CopyrightWriter.planCopyrightText(null).code());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to plan copyright text - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextHeaderChange()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            final Path header = headersDir.resolve("for.java.h.txt");
+            Files.write(header, "@@CWT|java@@\n// first {current.year}\n".getBytes(StandardCharsets.UTF_8));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final Path first = sourcesDir.resolve("First.java");
+            Files.write(first, "class First {}\n".getBytes(StandardCharsets.UTF_8));
+            
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+            ;
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            final String stamped = new String(Files.readAllBytes(first), StandardCharsets.UTF_8);
+            assertTrue(stamped, stamped.startsWith("// first "));
+            
+            // the cached header is only re-used while the header file is unchanged
+            Files.write(header, "@@CWT|java@@\n// second {current.year}\n".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(header, FileTime.fromMillis(System.currentTimeMillis()+60000l));
+            final Path second = sourcesDir.resolve("Second.java");
+            Files.write(second, "class Second {}\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            final String restamped = new String(Files.readAllBytes(second), StandardCharsets.UTF_8);
+            assertTrue(restamped, restamped.startsWith("// second "));
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text after header change - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextAtLineNo()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            
+            // line offsets across word and block boundaries
+            final Path lines = workDir.resolve("lines.txt");
+            final StringBuilder content = new StringBuilder();
+            final long[] offsets = new long[2000];
+            for(int i=0;i<offsets.length;i++)
+            {
+                offsets[i] = content.length();
+                for(int j=0;j<(i%13);j++)
+                    content.append((char)('a'+j));
+                content.append(i%3==0?"\r\n":"\n");
+            }
+            Files.write(lines, content.toString().getBytes(StandardCharsets.UTF_8));
+            for(int i=0;i<offsets.length;i++)
+                assertEquals("Offset of line "+(i+1), offsets[i], ChannelPrependWriter.offsetOfLine(lines, i+1));
+            assertEquals(-1l, ChannelPrependWriter.offsetOfLine(lines, offsets.length+2));
+            
+            // header after the shebang
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final Path script = sourcesDir.resolve("run.sh");
+            Files.write(script, "#!/bin/sh\necho hello\n".getBytes(StandardCharsets.UTF_8));
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(2)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+            ;
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            final String stamped = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+            assertTrue(stamped, stamped.startsWith("#!/bin/sh\n####"));
+            assertTrue(stamped, stamped.endsWith("\necho hello\n"));
+            
+            // and only once
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(stamped, new String(Files.readAllBytes(script), StandardCharsets.UTF_8));
+            
+            // short and empty targets get it at the end; re-runs find it there, though line no. N now falls in it
+            final Path shortDir = Files.createDirectories(workDir.resolve("short"));
+            final String[] contents = { "a\n", "a", "" };
+            for(int i=0;i<contents.length;i++)
+                Files.write(shortDir.resolve("short"+i+".sh"), contents[i].getBytes(StandardCharsets.UTF_8));
+            for(int lineNo=2;lineNo<=4;lineNo++)
+            {
+                parameterSpec.setAppendAtLineNo(lineNo).setAppendToTargetFile(shortDir.toFile());
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                final String[] stampedShort = new String[contents.length];
+                for(int i=0;i<contents.length;i++)
+                    stampedShort[i] = new String(Files.readAllBytes(shortDir.resolve("short"+i+".sh")), StandardCharsets.UTF_8);
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(int i=0;i<contents.length;i++)
+                {
+                    assertEquals("Line no. "+lineNo+" of short"+i, stampedShort[i], 
+                    new String(Files.readAllBytes(shortDir.resolve("short"+i+".sh")), StandardCharsets.UTF_8));
+                    assertTrue(stampedShort[i], stampedShort[i].startsWith(contents[i].isEmpty()?"####":"a\n####"));
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text at line no. - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void headerTemplate()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final File header = headersDir.resolve("for.java.h.txt").toFile();
+            
+            final CopyrightHeaderTemplate template = CopyrightHeaderTemplate.of(null, header);
+            assertTrue(template.isPlainText());
+            assertEquals("@@CWT|java,js@@", template.getHeaderLine());
+            assertEquals(new LinkedHashSet<>(Arrays.asList("java", "js")), template.getExtensions());
+            assertTrue(template.getBody(), template.getBody().startsWith("/**"));
+            assertFalse(template.getTags().isEmpty());
+            final CopyrightHeaderTemplate.Tag tag = template.getTags().get(0);
+            assertEquals("{current.year}", tag.getName());
+            assertEquals(tag.getName(), template.getBody().substring(tag.getStart(), tag.getEnd()));
+            
+            // rendered with literal values; unknown tags are left alone
+            final String rendered = template.render(Collections.singletonMap("{current.year}", "$2099\\"));
+            assertTrue(rendered, rendered.contains("[2006] - [$2099\\]"));
+            assertEquals(template.getBody(), template.render(null));
+            
+            // one parse shared by the filter, the reader and the writer while the file is unchanged
+            assertTrue(new CopyrightReaderContentFilter(null).accept(header));
+            assertSame(template, new CopyrightReaderContentHeader(null, header).getTemplate());
+            assertSame(template, CopyrightHeaderTemplate.of(null, header));
+            Files.write(header.toPath(), "@@CWT|sh@@\n# {current.year}\n".getBytes(StandardCharsets.UTF_8));
+            header.setLastModified(System.currentTimeMillis()+60000l);
+            final CopyrightHeaderTemplate changed = CopyrightHeaderTemplate.of(null, header);
+            assertNotSame(template, changed);
+            assertEquals(Collections.singleton("sh"), changed.getExtensions());
+            assertEquals("# {current.year}", changed.getBody());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to parse header template - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextFileTags()
+    {
+        Path workDir = null;
+        try
+        {
+            // static tags resolve on lookup; file tags per target
+            assertEquals(System.getProperty("user.name"), CopyrightHeaderTags.getStaticTags().get("{user.name}"));
+            assertTrue(CopyrightHeaderTags.getStaticTags().containsKey("{current.year}"));
+            assertTrue(CopyrightHeaderTags.isFileTag("{file.name}"));
+            assertFalse(CopyrightHeaderTags.isFileTag("{current.year}"));
+            
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.sh.h.txt"), 
+            "@@CWT|sh@@\n# {file.name} - [{file.modified.year}] {os.name} {unknown.tag}\n".getBytes(StandardCharsets.UTF_8));
+            final String newline = System.getProperty("line.separator");
+            for(CopyrightWriter.ExecutionMode executionMode:new CopyrightWriter.ExecutionMode[]{ 
+                CopyrightWriter.ExecutionMode.SEQUENTIAL, 
+                CopyrightWriter.ExecutionMode.ASYNC 
+            })
+            {
+                final Path sourcesDir = Files.createDirectories(workDir.resolve("sources-"+executionMode));
+                final Calendar modified = Calendar.getInstance();
+                modified.set(2001, Calendar.JUNE, 1);
+                final String[] names = { "a.sh", "longer-name.sh" };
+                for(String name:names)
+                {
+                    final Path source = sourcesDir.resolve(name);
+                    Files.write(source, "echo\n".getBytes(StandardCharsets.UTF_8));
+                    Files.setLastModifiedTime(source, FileTime.fromMillis(modified.getTimeInMillis()));
+                }
+                final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setExecutionMode(executionMode)
+                    .setManifestFile(workDir.resolve("cwt-"+executionMode+".manifest").toFile())
+                ;
+                final CopyrightWriterReport plan = CopyrightWriter.planCopyrightText(parameterSpec).object();
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(String name:names)
+                {
+                    final String expected = "# "+name+" - [2001] "+System.getProperty("os.name")+" {unknown.tag}"+newline+"echo\n";
+                    final Path source = sourcesDir.resolve(name);
+                    assertEquals(executionMode+" "+name, expected, new String(Files.readAllBytes(source), StandardCharsets.UTF_8));
+                    assertEquals(Files.size(source), plan.getEntry(source.toFile()).getBytesWritten());
+                }
+                
+                // writing moves the modified year on; re-runs skip unchanged targets by the manifest
+                final CopyrightWriterReport rerun = CopyrightWriter.planCopyrightText(parameterSpec).object();
+                assertEquals(names.length, rerun.getCount(CopyrightWriterReport.Outcome.PRESENT));
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text with file tags - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextFileTagsRerun()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.sh.h.txt"), 
+            "@@CWT|sh@@\n# {file.name} [{file.created.year}-{file.modified.year}]\n# all rights reserved\n".getBytes(StandardCharsets.UTF_8));
+            for(CopyrightWriter.ExecutionMode executionMode:new CopyrightWriter.ExecutionMode[]{ 
+                CopyrightWriter.ExecutionMode.SEQUENTIAL, 
+                CopyrightWriter.ExecutionMode.ASYNC 
+            })
+            {
+                // no manifest; the header is recognized in the target although writing moved its times on
+                final Path sourcesDir = Files.createDirectories(workDir.resolve("sources-"+executionMode));
+                final Calendar modified = Calendar.getInstance();
+                modified.set(2001, Calendar.JUNE, 1);
+                final String[] names = { "short.sh", "long.sh", "unterminated.sh" };
+                final String[] contents = { "echo\n", "#!/bin/sh\necho\necho\n", "echo" };
+                for(int i=0;i<names.length;i++)
+                {
+                    final Path source = sourcesDir.resolve(names[i]);
+                    Files.write(source, contents[i].getBytes(StandardCharsets.UTF_8));
+                    Files.setLastModifiedTime(source, FileTime.fromMillis(modified.getTimeInMillis()));
+                }
+                final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(2)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setExecutionMode(executionMode)
+                ;
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                final String[] written = new String[names.length];
+                for(int i=0;i<names.length;i++)
+                {
+                    written[i] = new String(Files.readAllBytes(sourcesDir.resolve(names[i])), StandardCharsets.UTF_8);
+                    assertTrue(executionMode+" "+written[i], written[i].contains("# "+names[i]+" ["));
+                    assertTrue(executionMode+" "+written[i], written[i].contains("-2001]"));
+                }
+                
+                final CopyrightWriterReport rerun = CopyrightWriter.planCopyrightText(parameterSpec).object();
+                assertEquals(rerun.toString(), names.length, rerun.getCount(CopyrightWriterReport.Outcome.PRESENT));
+                assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+                for(int i=0;i<names.length;i++)
+                    assertEquals(executionMode+" "+names[i], written[i], 
+                    new String(Files.readAllBytes(sourcesDir.resolve(names[i])), StandardCharsets.UTF_8));
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to re-run copyright text with file tags - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void appendCopyrightTextTargetEncoding()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.src.h.txt"), 
+            "@@CWT|sh,java@@\n# line one\n# line two \u00e9\n".getBytes(StandardCharsets.UTF_8));
+            final String newline = System.getProperty("line.separator");
+            final Charset platform = Charset.defaultCharset();
+            final byte[] bom = { (byte)0xef, (byte)0xbb, (byte)0xbf };
+            final byte[] utf16Bom = { (byte)0xff, (byte)0xfe };
+            final byte[] latin1 = { 'e', 'c', 'h', 'o', ' ', (byte)0xe9, '\n' };
+            for(CopyrightWriter.ExecutionMode executionMode:new CopyrightWriter.ExecutionMode[]{ 
+                CopyrightWriter.ExecutionMode.SEQUENTIAL, 
+                CopyrightWriter.ExecutionMode.ASYNC 
+            })
+            {
+                for(CopyrightWriter.TargetEncoding targetEncoding:CopyrightWriter.TargetEncoding.values())
+                {
+                    final Path sourcesDir = Files.createDirectories(workDir.resolve("sources-"+executionMode+"-"+targetEncoding));
+                    Files.write(sourcesDir.resolve("crlf.sh"), "echo\r\necho\r\n".getBytes(StandardCharsets.UTF_8));
+                    Files.write(sourcesDir.resolve("bom.java"), concat(bom, "class A {}\n".getBytes(StandardCharsets.UTF_8)));
+                    Files.write(sourcesDir.resolve("wide.java"), concat(utf16Bom, "class A {}\r\n".getBytes(StandardCharsets.UTF_16LE)));
+                    Files.write(sourcesDir.resolve("latin1.sh"), latin1);
+                    
+                    final CopyrightWriterReport report = CopyrightWriter.planCopyrightText(
+                        new CopyrightWriter.CopyrighterWriterParameterSpec()
+                            .setAppendAtLineNo(1)
+                            .setAppendToTargetFile(sourcesDir.toFile())
+                            .setCopyrightContentFile(headersDir.toFile())
+                            .setExecutionMode(executionMode)
+                            .setTargetEncoding(targetEncoding)
+                    ).object();
+                    assertTrue(CopyrightWriter.appendCopyrightText(
+                        new CopyrightWriter.CopyrighterWriterParameterSpec()
+                            .setAppendAtLineNo(1)
+                            .setAppendToTargetFile(sourcesDir.toFile())
+                            .setCopyrightContentFile(headersDir.toFile())
+                            .setExecutionMode(executionMode)
+                            .setTargetEncoding(targetEncoding)
+                    ));
+                    final String message = executionMode+" "+targetEncoding;
+                    final boolean detect = targetEncoding==CopyrightWriter.TargetEncoding.DETECT;
+                    
+                    // bodies are copied as is; the header goes past the BOM
+                    final String crlf = detect?"\r\n":newline;
+                    final String lf = detect?"\n":newline;
+                    assertArrayEquals(message, 
+                    concat(("# line one"+crlf+"# line two \u00e9"+crlf).getBytes(detect?StandardCharsets.UTF_8:platform), "echo\r\necho\r\n".getBytes(StandardCharsets.UTF_8)), 
+                    Files.readAllBytes(sourcesDir.resolve("crlf.sh")));
+                    assertArrayEquals(message, 
+                    concat(bom, concat(("# line one"+lf+"# line two \u00e9"+lf).getBytes(detect?StandardCharsets.UTF_8:platform), "class A {}\n".getBytes(StandardCharsets.UTF_8))), 
+                    Files.readAllBytes(sourcesDir.resolve("bom.java")));
+                    assertArrayEquals(message, 
+                    concat(("# line one"+lf+"# line two \u00e9"+lf).getBytes(platform), latin1), 
+                    Files.readAllBytes(sourcesDir.resolve("latin1.sh")));
+                    final byte[] wide = Files.readAllBytes(sourcesDir.resolve("wide.java"));
+                    if(detect)
+                    {
+                        assertEquals(message, CopyrightWriterReport.Outcome.SUCCESS, report.getEntry(sourcesDir.resolve("wide.java").toFile()).getOutcome());
+                        assertArrayEquals(message, 
+                        concat(utf16Bom, "# line one\r\n# line two \u00e9\r\nclass A {}\r\n".getBytes(StandardCharsets.UTF_16LE)), wide);
+                    }
+                    else
+                    {
+                        assertEquals(message, "UNSUPPORTED ENCODING", report.getEntry(sourcesDir.resolve("wide.java").toFile()).getReason());
+                        assertArrayEquals(message, concat(utf16Bom, "class A {}\r\n".getBytes(StandardCharsets.UTF_16LE)), wide);
+                    }
+                    
+                    // and found again in whatever encoding it was written
+                    final CopyrightWriterReport rerun = CopyrightWriter.planCopyrightText(
+                        new CopyrightWriter.CopyrighterWriterParameterSpec()
+                            .setAppendAtLineNo(1)
+                            .setAppendToTargetFile(sourcesDir.toFile())
+                            .setCopyrightContentFile(headersDir.toFile())
+                            .setTargetEncoding(targetEncoding)
+                    ).object();
+                    assertEquals(message, detect?4l:3l, rerun.getCount(CopyrightWriterReport.Outcome.PRESENT));
+                }
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to append copyright text by target encoding - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void watchCopyrightText()
+    {
+        Path workDir = null;
+        CopyrightWriterWatch watch = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.src.h.txt"), "@@CWT|sh,java@@\n# header\n".getBytes(StandardCharsets.UTF_8));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            watch = CopyrightWriter.watchCopyrightText(
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setWatchDebounceMillis(50l)
+            );
+            
+            // new files, in new directories too, get the header once
+            final String header = "# header"+System.getProperty("line.separator");
+            final Path created = sourcesDir.resolve("A.java");
+            Files.write(created, "class A {}\n".getBytes(StandardCharsets.UTF_8));
+            final Path nested = Files.createDirectories(sourcesDir.resolve("a/b")).resolve("b.sh");
+            Files.write(nested, "echo\n".getBytes(StandardCharsets.UTF_8));
+            final long deadline = System.currentTimeMillis()+30000l;
+            while((!new String(Files.readAllBytes(created), StandardCharsets.UTF_8).startsWith(header)||
+                   !new String(Files.readAllBytes(nested), StandardCharsets.UTF_8).startsWith(header))&&
+                   System.currentTimeMillis()<deadline)
+                Thread.sleep(50l);
+            assertEquals(header+"class A {}\n", new String(Files.readAllBytes(created), StandardCharsets.UTF_8));
+            assertEquals(header+"echo\n", new String(Files.readAllBytes(nested), StandardCharsets.UTF_8));
+            assertTrue(watch.getBatches()>0);
+            assertFalse(watch.isClosed());
+            
+            // our own writes don't bring them back
+            Thread.sleep(500l);
+            assertEquals(header+"class A {}\n", new String(Files.readAllBytes(created), StandardCharsets.UTF_8));
+            watch.close();
+            assertTrue(watch.isClosed());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to watch copyright text - "+t.getMessage());
+        }
+        finally
+        {
+            if(watch!=null)
+                watch.close();
+            delete(workDir);
+        }
+    }
+
+    @Test
+    public void updateCopyrightText()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = Files.createDirectories(workDir.resolve("headers"));
+            Files.write(headersDir.resolve("for.java.h.txt"), 
+            "@@CWT|java@@\n// (c) {current.year} Acme\n// {file.name}\n".getBytes(StandardCharsets.UTF_8));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final String newline = System.getProperty("line.separator");
+            final String year = String.valueOf(Calendar.getInstance().get(Calendar.YEAR));
+            final String body = "class A {}\n";
+            Files.write(sourcesDir.resolve("Same.java"), 
+            ("// (c) 1999 Acme"+newline+"// Same.java"+newline+body).getBytes(StandardCharsets.UTF_8));
+            Files.write(sourcesDir.resolve("Longer.java"), 
+            ("// (c) 1999-2001 Acme"+newline+"// Longer.java"+newline+body).getBytes(StandardCharsets.UTF_8));
+            Files.write(sourcesDir.resolve("Other.java"), 
+            ("// (c) 1999 Other"+newline+body).getBytes(StandardCharsets.UTF_8));
+            Files.write(sourcesDir.resolve("None.java"), body.getBytes(StandardCharsets.UTF_8));
+            
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setWriteMode(CopyrightWriter.WriteMode.UPDATE)
+            ;
+            final CopyrightWriterReport plan = CopyrightWriter.planCopyrightText(parameterSpec).object();
+            assertEquals("PLANNED UPDATE", plan.getEntry(sourcesDir.resolve("Same.java").toFile()).getReason());
+            assertEquals(plan.getEntry(sourcesDir.resolve("Same.java").toFile()).getHeaderBytes(), 
+            plan.getEntry(sourcesDir.resolve("Same.java").toFile()).getBytesWritten());
+            assertEquals("PLANNED UPDATE", plan.getEntry(sourcesDir.resolve("Longer.java").toFile()).getReason());
+            assertEquals("PLANNED", plan.getEntry(sourcesDir.resolve("Other.java").toFile()).getReason());
+            
+            // same length in place, other lengths staged, no header (or another one) inserted
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            for(String name:new String[]{ "Same.java", "Longer.java", "None.java" })
+                assertEquals(name, "// (c) "+year+" Acme"+newline+"// "+name+newline+body, 
+                new String(Files.readAllBytes(sourcesDir.resolve(name)), StandardCharsets.UTF_8));
+            assertEquals("// (c) "+year+" Acme"+newline+"// Other.java"+newline+"// (c) 1999 Other"+newline+body, 
+            new String(Files.readAllBytes(sourcesDir.resolve("Other.java")), StandardCharsets.UTF_8));
+            
+            // current now
+            final CopyrightWriterReport rerun = CopyrightWriter.planCopyrightText(parameterSpec).object();
+            assertEquals(4l, rerun.getCount(CopyrightWriterReport.Outcome.PRESENT));
+            
+            // in place under group commit; forced and reported with its group, here the last one on close
+            Files.write(sourcesDir.resolve("Same.java"), 
+            ("// (c) 1999 Acme"+newline+"// Same.java"+newline+body).getBytes(StandardCharsets.UTF_8));
+            final SpanRecorder recorder = new SpanRecorder(1024);
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec
+                .setDurability(CopyrightWriter.Durability.GROUP)
+                .setGroupCommitFiles(100)
+                .setGroupCommitMillis(60000l)
+                .setSpanRecorder(recorder)
+            ));
+            assertEquals("// (c) "+year+" Acme"+newline+"// Same.java"+newline+body, 
+            new String(Files.readAllBytes(sourcesDir.resolve("Same.java")), StandardCharsets.UTF_8));
+            int groups = 0;
+            for(TraceSpan span:recorder.snapshot())
+            {
+                if(span.getName().equals("group commit"))
+                {
+                    assertEquals("1 files", span.getDetail());
+                    groups++;
+                }
+            }
+            assertEquals(1, groups);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to update copyright text - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+
+    @Test
+    public void sniffContentType()
+    {
+        Path workDir = null;
+        try
+        {
+            // verdicts from the prefix alone
+            assertTrue(ContentTypeSniffer.sniff(ByteBuffer.wrap(new byte[0]), false).isText());
+            final ContentTypeSniffer.Verdict ascii = ContentTypeSniffer.sniff(ByteBuffer.wrap("class A {}\n".getBytes(StandardCharsets.UTF_8)), false);
+            assertEquals("text/plain", ascii.getMimeType());
+            assertEquals(StandardCharsets.UTF_8, ascii.getCharset());
+            final ContentTypeSniffer.Verdict bom = ContentTypeSniffer.sniff(ByteBuffer.wrap(new byte[]{ (byte)0xef, (byte)0xbb, (byte)0xbf, 'a' }), false);
+            assertEquals(StandardCharsets.UTF_8, bom.getCharset());
+            assertEquals(3, bom.getBomLength());
+            final ContentTypeSniffer.Verdict utf16 = ContentTypeSniffer.sniff(ByteBuffer.wrap(new byte[]{ (byte)0xff, (byte)0xfe, 'a', 0 }), false);
+            assertTrue(utf16.isText());
+            assertEquals(StandardCharsets.UTF_16LE, utf16.getCharset());
+            assertFalse(ContentTypeSniffer.sniff(ByteBuffer.wrap(new byte[]{ 'P', 'K', 3, 4, 0, 0 }), false).isText());
+            // a multi-byte sequence cut by the prefix is fine; at the end of the file it is not UTF-8
+            final byte[] cut = { 'a', (byte)0xe2, (byte)0x82 };
+            assertEquals(StandardCharsets.UTF_8, ContentTypeSniffer.sniff(ByteBuffer.wrap(cut), true).getCharset());
+            final ContentTypeSniffer.Verdict latin1 = ContentTypeSniffer.sniff(ByteBuffer.wrap(cut), false);
+            assertTrue(latin1.isText());
+            assertNull(latin1.getCharset());
+            
+            // binaries with a bound extension are skipped, text targets are not
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            final Path source = sourcesDir.resolve("Sample.java");
+            Files.write(source, "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8));
+            final Path binary = sourcesDir.resolve("Sample.js");
+            final byte[] binaryContent = { (byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe, 0, 0, 0, 52, '\n' };
+            Files.write(binary, binaryContent);
+            assertEquals("application/octet-stream", ContentTypeSniffer.sniff(null, binary).getMimeType());
+            assertSame(ContentTypeSniffer.sniff(null, binary), ContentTypeSniffer.sniff(null, binary));
+            
+            final CopyrightWriterReport report = CopyrightWriter.planCopyrightText(
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+            ).object();
+            assertEquals(CopyrightWriterReport.Outcome.SUCCESS, report.getEntry(source.toFile()).getOutcome());
+            assertEquals(CopyrightWriterReport.Outcome.IGNORED, report.getEntry(binary.toFile()).getOutcome());
+            assertEquals("BINARY CONTENT", report.getEntry(binary.toFile()).getReason());
+            assertArrayEquals(binaryContent, Files.readAllBytes(binary));
+            
+            // header files are sniffed by content, whatever their name
+            final Path header = headersDir.resolve("for.java.h.txt");
+            final Path renamed = Files.copy(header, headersDir.resolve("renamed.h"));
+            assertEquals("text/plain", new CopyrightReaderContentHeader(null, renamed.toFile()).getMimeType());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to sniff content type - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void contentReaderChunks()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path file = workDir.resolve("large.txt");
+            final StringBuilder text = new StringBuilder();
+            for(int i=0;i<20000;i++)
+                text.append("line ").append(i).append(" \u00e9\u20ac\ud83d\ude00\n");
+            final byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            Files.write(file, bytes);
+            final ContentReader reader = new CopyrightReaderContentHeader(null, file.toFile());
+            
+            // chunks in order, heap and mapped; parallel splits on chunk boundaries
+            for(boolean mapped:new boolean[]{ false, true })
+            {
+                final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+                final Stream<ByteBuffer> chunks = reader.byteChunks(4096, mapped);
+                try
+                {
+                    final Iterator<ByteBuffer> iterator = chunks.iterator();
+                    while(iterator.hasNext())
+                    {
+                        final ByteBuffer chunk = iterator.next();
+                        final byte[] _chunk = new byte[chunk.remaining()];
+                        chunk.get(_chunk);
+                        joined.write(_chunk);
+                    }
+                }
+                finally
+                {
+                    chunks.close();
+                }
+                assertArrayEquals(bytes, joined.toByteArray());
+                
+                final Stream<ByteBuffer> parallel = reader.byteChunks(4096, mapped).parallel();
+                try
+                {
+                    assertEquals(bytes.length, parallel.mapToLong(new ToLongFunction<ByteBuffer>()
+                    {
+                        @Override
+                        public long applyAsLong(final ByteBuffer chunk) { return chunk.remaining(); }
+                    }).sum());
+                }
+                finally
+                {
+                    parallel.close();
+                }
+            }
+            
+            // characters cut by a chunk boundary are carried over
+            final StringBuilder decoded = new StringBuilder();
+            final Stream<CharBuffer> charChunks = reader.charChunks(StandardCharsets.UTF_8, 7);
+            try
+            {
+                final Iterator<CharBuffer> iterator = charChunks.iterator();
+                while(iterator.hasNext())
+                    decoded.append(iterator.next());
+            }
+            finally
+            {
+                charChunks.close();
+            }
+            assertEquals(text.toString(), decoded.toString());
+            
+            final ByteBuffer region = reader.map(5l, 10l);
+            assertTrue(region.isReadOnly());
+            assertEquals(10, region.remaining());
+            assertEquals(bytes[5], region.get(0));
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to stream content reader chunks - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void prependChannel()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path target = workDir.resolve("Sample.java");
+            final byte[] body = "package sources;\n\npublic class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8);
+            final byte[] header = "/* header */\n".getBytes(StandardCharsets.UTF_8);
+            Files.write(target, body);
+            
+            final long written = ChannelPrependWriter.prepend(null, target, ByteBuffer.wrap(header));
+            assertEquals(header.length+body.length, written);
+            
+            final byte[] expected = Arrays.copyOf(header, header.length+body.length);
+            System.arraycopy(body, 0, expected, header.length, body.length);
+            assertArrayEquals(expected, Files.readAllBytes(target));
+            assertEquals("Staging file left behind", 1, workDir.toFile().list().length);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to prepend via channel - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void prependChannelKeepsFile()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path target = workDir.resolve("Sample.java");
+            final Path link = workDir.resolve("Link.java");
+            final byte[] body = "package sources;\n\npublic class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8);
+            final byte[] header = "/* header */\n".getBytes(StandardCharsets.UTF_8);
+            Files.write(target, body);
+            Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rwxr-x---"));
+            // a different owner and group only takes where the process may give files away, e.g. as root
+            final UserPrincipalLookupService lookup = workDir.getFileSystem().getUserPrincipalLookupService();
+            boolean chowned = false;
+            try
+            {
+                Files.setOwner(target, lookup.lookupPrincipalByName("nobody"));
+                Files.getFileAttributeView(target, PosixFileAttributeView.class).setGroup(lookup.lookupPrincipalByGroupName("nogroup"));
+                chowned = true;
+            }
+            catch(Throwable t) {}
+            final PosixFileAttributes before = Files.readAttributes(target, PosixFileAttributes.class);
+            
+            // swapped in, with the permissions, owner and group of the original
+            ChannelPrependWriter.prepend(null, target, ByteBuffer.wrap(header));
+            assertArrayEquals(concat(header, body), Files.readAllBytes(target));
+            PosixFileAttributes after = Files.readAttributes(target, PosixFileAttributes.class);
+            assertEquals(before.permissions(), after.permissions());
+            if(chowned)
+            {
+                assertEquals(before.owner(), after.owner());
+                assertEquals(before.group(), after.group());
+            }
+            
+            // hard linked; rewritten in place so every link sees the header
+            Files.createLink(link, target);
+            final Object fileKey = Files.readAttributes(target, PosixFileAttributes.class).fileKey();
+            ChannelPrependWriter.prepend(null, target, ByteBuffer.wrap(header));
+            assertArrayEquals(concat(header, concat(header, body)), Files.readAllBytes(target));
+            assertArrayEquals(concat(header, concat(header, body)), Files.readAllBytes(link));
+            after = Files.readAttributes(target, PosixFileAttributes.class);
+            assertEquals(fileKey, after.fileKey());
+            assertEquals(before.permissions(), after.permissions());
+            assertEquals(before.owner(), after.owner());
+            assertEquals(before.group(), after.group());
+            assertEquals("Staging file left behind", 2, workDir.toFile().list().length);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to keep the file prepended via channel - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void traceId()
+    {
+        try
+        {
+            final TraceId traceId = new TraceId();
+            assertEquals(32, traceId.getId().length());
+            assertSame(traceId.getId(), traceId.getId());
+            assertNotEquals(0l, traceId.getHigh());
+            assertEquals(16, traceId.toBytes().length);
+            
+            // side effect free
+            assertEquals(traceId.getId(), traceId.toString());
+            assertNull(traceId.getEnd());
+            assertTrue(traceId.getElapsedMillis()>=0l);
+            assertNotNull(traceId.getEnd());
+            
+            // copies and hex strings keep the binary form; other strings are kept as is
+            final TraceId copy = new TraceId(null, "", traceId);
+            assertEquals(traceId.getId(), copy.getId());
+            assertEquals(traceId.getLow(), copy.getLow());
+            final TraceId parsed = new TraceId(traceId.getId());
+            assertEquals(traceId.getHigh(), parsed.getHigh());
+            assertEquals(traceId.getLow(), parsed.getLow());
+            assertEquals("request-1", new TraceId("request-1").getId());
+            assertEquals(0l, new TraceId("request-1").getLow());
+            
+            final TraceId short64 = TraceId.random64();
+            assertEquals(16, short64.getId().length());
+            assertEquals(8, short64.toBytes().length);
+            assertEquals("00000000000000010000000000000002", TraceId.of(1l, 2l).getId());
+            assertEquals("ffffffffffffffff", TraceId.of(0l, -1l).getId());
+            assertEquals(-1l, new TraceId("FFFFFFFFFFFFFFFF").getLow());
+            
+            // unique across threads
+            final Set<String> ids = Collections.synchronizedSet(new java.util.HashSet<String>());
+            final Thread[] threads = new Thread[4];
+            for(int i=0;i<threads.length;i++)
+            {
+                threads[i] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for(int j=0;j<10000;j++)
+                            ids.add(new TraceId().getId());
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread:threads)
+                thread.join();
+            assertEquals(threads.length*10000, ids.size());
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to generate trace IDs - "+t.getMessage());
+        }
+    }
+    
+    @Test
+    public void traceSpans()
+    {
+        Path workDir = null;
+        try
+        {
+            // off unless enabled; a full ring keeps the newest
+            assertSame(TraceSpan.NOOP, TraceSpan.start(new SpanRecorder(4).setEnabled(false), new TraceId(), "run", null));
+            assertSame(TraceSpan.NOOP, TraceSpan.NOOP.child("step", null));
+            final SpanRecorder ring = new SpanRecorder(3);
+            assertEquals(4, ring.getCapacity());
+            final TraceSpan root = TraceSpan.start(ring, new TraceId(), "run", null);
+            for(int i=0;i<9;i++)
+                root.child("step"+i, null).end();
+            assertTrue(root.end()>=0l);
+            assertEquals(10l, ring.getRecorded());
+            assertEquals(6l, ring.getDropped());
+            final java.util.List<TraceSpan> kept = ring.snapshot();
+            assertEquals(4, kept.size());
+            assertEquals("step6", kept.get(0).getName());
+            assertEquals(root, kept.get(3));
+            assertEquals(root.getSpanId(), kept.get(0).getParentId());
+            // cleared, counted over
+            ring.clear();
+            assertTrue(ring.snapshot().isEmpty());
+            assertEquals(0l, ring.getRecorded());
+            assertEquals(0l, ring.getDropped());
+            TraceSpan.start(ring, new TraceId(), "again", null).end();
+            assertEquals(1, ring.snapshot().size());
+            assertEquals(0l, ring.getDropped());
+            
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            for(int i=0;i<3;i++)
+                Files.write(sourcesDir.resolve("Sample"+i+".java"), "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8));
+            final SpanRecorder recorder = new SpanRecorder(1024).setJfrEnabled(true);
+            jdk.jfr.Recording recording = null;
+            if(SpanRecorder.isJfrAvailable())
+            {
+                recording = new jdk.jfr.Recording();
+                recording.enable("org.axelfox.TraceSpan");
+                recording.start();
+            }
+            assertTrue(CopyrightWriter.appendCopyrightText(
+                new CopyrightWriter.CopyrighterWriterParameterSpec()
+                    .setAppendAtLineNo(1)
+                    .setAppendToTargetFile(sourcesDir.toFile())
+                    .setCopyrightContentFile(headersDir.toFile())
+                    .setDurability(CopyrightWriter.Durability.PER_FILE)
+                    .setSpanRecorder(recorder)
+            ));
+            
+            // run > template, scan, file > check, write > fsync, commit > fsync
+            final java.util.List<TraceSpan> spans = recorder.snapshot();
+            TraceSpan run = null;
+            for(TraceSpan span:spans)
+            {
+                if(span.getParentId()==0l)
+                    run = span;
+            }
+            assertNotNull(run);
+            assertEquals("appendCopyrightText", run.getName());
+            final Map<String, Integer> counts = new java.util.TreeMap<>();
+            final Set<Long> files = new java.util.HashSet<>();
+            for(TraceSpan span:spans)
+            {
+                assertEquals(run.getTraceId(), span.getTraceId());
+                assertTrue(span.getDurationNanos()>=0l);
+                final Integer count = counts.get(span.getName());
+                counts.put(span.getName(), count!=null?count+1:1);
+                if(span.getName().equals("file"))
+                {
+                    assertEquals(run.getSpanId(), span.getParentId());
+                    files.add(span.getSpanId());
+                }
+            }
+            for(TraceSpan span:spans)
+            {
+                if(span.getName().equals("check")||span.getName().equals("write")||span.getName().equals("commit"))
+                    assertTrue(span.toString(), files.contains(span.getParentId()));
+            }
+            assertEquals(counts.toString(), Integer.valueOf(1), counts.get("appendCopyrightText"));
+            assertEquals(Integer.valueOf(1), counts.get("template"));
+            assertEquals(Integer.valueOf(1), counts.get("scan"));
+            assertEquals(Integer.valueOf(3), counts.get("file"));
+            assertEquals(Integer.valueOf(3), counts.get("check"));
+            assertEquals(Integer.valueOf(3), counts.get("write"));
+            assertEquals(Integer.valueOf(3), counts.get("commit"));
+            assertEquals(Integer.valueOf(6), counts.get("fsync")); // staging file and directory, per file
+            
+            final String json = recorder.toJson();
+            assertTrue(json, json.startsWith("{\"traceEvents\":["));
+            assertTrue(json.endsWith("],\"displayTimeUnit\":\"ns\"}"));
+            assertEquals(spans.size(), json.split("\"ph\":\"X\"", -1).length-1);
+            assertTrue(json.contains("\"traceId\":\""+run.getTraceId().getId()+"\""));
+            
+            if(recording!=null)
+            {
+                recording.stop();
+                final Path jfr = workDir.resolve("spans.jfr");
+                recording.dump(jfr);
+                recording.close();
+                int events = 0;
+                for(jdk.jfr.consumer.RecordedEvent event:jdk.jfr.consumer.RecordingFile.readAllEvents(jfr))
+                {
+                    if(event.getEventType().getName().equals("org.axelfox.TraceSpan")&&
+                       run.getTraceId().getId().equals(event.getString("traceId")))
+                        events++;
+                }
+                assertEquals(spans.size()-1, events); // all but the scan, timed after the fact
+            }
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to trace spans - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Test
+    public void writerMetrics()
+    {
+        Path workDir = null;
+        try
+        {
+            // log linear buckets; within 12.5% of the exact percentile
+            final LatencyHistogram histogram = new LatencyHistogram();
+            for(long nanos=1l;nanos<=100000l;nanos++)
+                histogram.record(nanos*1000l);
+            assertEquals(100000l, histogram.getCount());
+            assertEquals(100000000l, histogram.getMaxNanos());
+            assertEquals(50000500l, histogram.getMeanNanos());
+            final long p50 = histogram.getPercentileNanos(50d);
+            final long p999 = histogram.getPercentileNanos(99.9d);
+            assertTrue(String.valueOf(p50), p50>=50000000l&&p50<=50000000l*1125l/1000l);
+            assertTrue(String.valueOf(p999), p999>=99900000l&&p999<=100000000l);
+            assertEquals(0l, new LatencyHistogram().getPercentileNanos(99d));
+            histogram.reset();
+            assertEquals(0l, histogram.getCount());
+            
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            for(int i=0;i<4;i++)
+                Files.write(sourcesDir.resolve("Sample"+i+".java"), "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(sourcesDir.resolve("notes.md"), "# notes\n".getBytes(StandardCharsets.UTF_8));
+            final CopyrightWriterMetrics metrics = new CopyrightWriterMetrics();
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+                .setExecutionMode(CopyrightWriter.ExecutionMode.FIXED_POOL)
+                .setMetrics(metrics)
+            ;
+            // plans are not recorded
+            CopyrightWriter.planCopyrightText(parameterSpec);
+            assertEquals(0l, metrics.getRuns());
+            assertEquals(0l, metrics.getFiles());
+            
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertTrue(metrics.toString(), metrics.toString().contains("\n\tRuns: 2\n\tFiles: 10"));
+            assertEquals(2l, metrics.getRuns());
+            assertEquals(10l, metrics.getFiles());
+            assertEquals(4l, metrics.getFilesSucceeded());
+            assertEquals(4l, metrics.getFilesPresent());
+            assertEquals(2l, metrics.getFilesIgnored());
+            assertEquals(0l, metrics.getFilesFailed());
+            assertEquals(0d, metrics.getFailureRate(), 0d);
+            long bytesWritten = 0l;
+            for(int i=0;i<4;i++)
+                bytesWritten += Files.size(sourcesDir.resolve("Sample"+i+".java"));
+            assertEquals(bytesWritten, metrics.getBytesWritten());
+            assertEquals(2l, metrics.getLatency(CopyrightWriterReport.Phase.TOTAL).getCount());
+            assertEquals(Long.valueOf(2l), metrics.getLatencyCount().get("TEMPLATE"));
+            assertTrue(metrics.getLatency(CopyrightWriterReport.Phase.CHECK).getCount()>=8l);
+            assertTrue(metrics.getLatencyMaxMicros().get("TOTAL")>=metrics.getLatencyP50Micros().get("TOTAL"));
+            metrics.setEnabled(false);
+            assertTrue(CopyrightWriter.appendCopyrightText(parameterSpec));
+            assertEquals(2l, metrics.getRuns());
+            
+            // the default one is published
+            final CopyrightWriterMetrics defaults = CopyrightWriterMetrics.getDefault();
+            assertSame(defaults, CopyrightWriterMetrics.getDefault());
+            final javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            final javax.management.ObjectName name = new javax.management.ObjectName(CopyrightWriterMetrics.OBJECT_NAME);
+            assertTrue(server.isRegistered(name));
+            assertEquals(defaults.getRuns(), server.getAttribute(name, "Runs"));
+            assertTrue(server.getAttribute(name, "LatencyP99Micros") instanceof javax.management.openmbean.TabularData);
+            assertTrue(server.getAttribute(name, "FilesPerSecond") instanceof Double);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to record writer metrics - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    @Ignore
+    @Test
+    public void prependThroughput()
+    {
+        final int files = 200;
+        final int fileSize = 64*1024;
+        final byte[] header = new byte[1024];
+        Arrays.fill(header, (byte)'#');
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final byte[] body = new byte[fileSize];
+            Arrays.fill(body, (byte)'x');
+            final File[] targets = new File[files];
+            for(int i=0;i<files;i++)
+            {
+                targets[i] = workDir.resolve("Sample"+i+".java").toFile();
+                Files.write(targets[i].toPath(), body);
+            }
+            
+            long start = System.nanoTime();
+            for(File target:targets)
+                legacyPrepend(target, header);
+            final long legacyNanos = System.nanoTime()-start;
+            
+            start = System.nanoTime();
+            for(File target:targets)
+                ChannelPrependWriter.prepend(null, target.toPath(), ByteBuffer.wrap(header));
+            final long channelNanos = System.nanoTime()-start;
+            
+            // legacy pass reads+writes N bytes twice (backup, restore) plus the header
+            final double mb = (double)files*(fileSize+header.length)/(1024d*1024d);
+            System.out.println("INFO: Prepend throughput over ["+files+"] files of ["+fileSize+"] bytes --- "+
+            "\n\tLegacy byte loop: "+String.format("%.2f", mb/(legacyNanos/1e9d))+" MB/s ("+(legacyNanos/1000000l)+" ms)"+
+            "\n\tFileChannel     : "+String.format("%.2f", mb/(channelNanos/1e9d))+" MB/s ("+(channelNanos/1000000l)+" ms)");
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to compare prepend throughput - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+    
+    /**
+     * Allocation comparison of eager, string concatenated log calls against
+     * the level gated {@link TraceLogger}, with the per-file level turned off;
+     * and the allocation per file of a plan run. Run manually.
+     */
+    @Ignore
+    @Test
+    public void loggingAllocation()
+    {
+        final int calls = 100000;
+        final int files = 500;
+        final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            System.out.println("WARNING: Thread allocation counters not available; skipping");
+            return;
+        }
+        final com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean)threads;
+        final long threadId = Thread.currentThread().getId();
+        final Logger eager = Logger.getLogger(CopyrightWriter.class.getName());
+        final TraceLogger gated = TraceLogger.getLogger(CopyrightWriter.class);
+        final Level level = eager.getLevel();
+        Path workDir = null;
+        try
+        {
+            eager.setLevel(Level.WARNING);
+            final TraceId traceId = new TraceId();
+            final File target = new File("Sample.java");
+            final String content = "/*\n * Copyright (c) 2026 Sample\n */\n";
+            
+            long start = 0l;
+            for(int pass=0;pass<2;pass++) // first pass warms up
+            {
+                start = allocation.getThreadAllocatedBytes(threadId);
+                for(int i=0;i<calls;i++)
+                    eager.info("# "+traceId+" # checkTarget() : Got target source file ["+target+
+                    "] extension [java], copyright header content to append --- \n"+content+"\n");
+            }
+            final long eagerBytes = allocation.getThreadAllocatedBytes(threadId)-start;
+            
+            for(int pass=0;pass<2;pass++)
+            {
+                start = allocation.getThreadAllocatedBytes(threadId);
+                for(int i=0;i<calls;i++)
+                    if(gated.isFinest())
+                        gated.finest(traceId, "checkTarget", "Got target source file ["+target+
+                        "] extension [java], copyright header content to append --- \n"+content+"\n");
+            }
+            final long gatedBytes = allocation.getThreadAllocatedBytes(threadId)-start;
+            
+            workDir = Files.createTempDirectory("cwt");
+            final Path headersDir = copyHeaders(workDir.resolve("headers"));
+            final Path sourcesDir = Files.createDirectories(workDir.resolve("sources"));
+            for(int i=0;i<files;i++)
+                Files.write(sourcesDir.resolve("Sample"+i+".java"), "public class Sample\n{\n}\n".getBytes(StandardCharsets.UTF_8));
+            final CopyrightWriter.CopyrighterWriterParameterSpec parameterSpec = 
+            new CopyrightWriter.CopyrighterWriterParameterSpec()
+                .setAppendAtLineNo(1)
+                .setAppendToTargetFile(sourcesDir.toFile())
+                .setCopyrightContentFile(headersDir.toFile())
+            ;
+            final long[] runBytes = new long[2];
+            final Level[] runLevels = {Level.WARNING, Level.FINEST};
+            for(int run=0;run<runLevels.length;run++)
+            {
+                eager.setLevel(runLevels[run]);
+                CopyrightWriter.planCopyrightText(parameterSpec); // warm up
+                start = allocation.getThreadAllocatedBytes(threadId);
+                assertEquals(DefaultResponseCode.OK_SUCCESS, CopyrightWriter.planCopyrightText(parameterSpec).code());
+                runBytes[run] = allocation.getThreadAllocatedBytes(threadId)-start;
+            }
+            
+            System.out.println("INFO: Logging allocation over ["+calls+"] disabled calls --- "+
+            "\n\tEager concatenation: "+eagerBytes+" bytes ("+(eagerBytes/calls)+" per call)"+
+            "\n\tLevel gated        : "+gatedBytes+" bytes ("+(gatedBytes/calls)+" per call)"+
+            "\nINFO: Plan run allocation over ["+files+"] files --- "+
+            "\n\tLevel WARNING: "+runBytes[0]+" bytes ("+(runBytes[0]/files)+" per file)"+
+            "\n\tLevel FINEST : "+runBytes[1]+" bytes ("+(runBytes[1]/files)+" per file)");
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to compare logging allocation - "+t.getMessage());
+        }
+        finally
+        {
+            eager.setLevel(level);
+            delete(workDir);
+        }
+    }
+    
+    // the pre-channel implementation, kept here only as the benchmark baseline
+    private static void legacyPrepend(final File target,
+                                      final byte[] header)
+            throws Exception
+    {
+        final File temp = File.createTempFile(target.getName(), ".bak");
+        final FileOutputStream fos = new FileOutputStream(temp);
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try
+        {
+            int data = raf.read();
+            while(data!=-1)
+            {
+                fos.write(data);
+                data = raf.read();
+            }
+            fos.close();
+            raf.seek(0);
+            raf.write(header);
+            final FileInputStream fis = new FileInputStream(temp);
+            try
+            {
+                data = fis.read();
+                while(data!=-1)
+                {
+                    raf.write(data);
+                    data = fis.read();
+                }
+            }
+            finally
+            {
+                fis.close();
+            }
+        }
+        finally
+        {
+            try { fos.close(); } catch(Throwable t) {}
+            try { raf.close(); } catch(Throwable t) {}
+            temp.delete();
+        }
+    }
 }
@@ -0,0 +1,209 @@
+package org.axelfox.junit.test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashSet;
+import java.util.Set;
+import org.axelfox.common.util.TraceId;
+import org.axelfox.common.util.reader.FileTreeWalker;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.axelfox.junit.test.CopyrightWriterFixture.*;
+
+public class FileTreeWalkerJUnitTest
+{
+    public FileTreeWalkerJUnitTest() {}
+
+    @BeforeClass
+    public static void setUpClass() { setUpLogging(); }
+
+    @AfterClass
+    public static void tearDownClass() {}
+
+    @Before
+    public void setUp() {}
+
+    @After
+    public void tearDown() {}
+
+    @Test
+    public void skipUnreadable()
+    {
+        Path workDir = null;
+        Path locked = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path root = Files.createDirectories(workDir.resolve("root"));
+            Files.write(Files.createDirectories(root.resolve("a")).resolve("x.txt"), "x\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(Files.createDirectories(root.resolve("b")).resolve("z.txt"), "z\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(Files.createDirectories(root.resolve("skipped")).resolve("s.txt"), "s\n".getBytes(StandardCharsets.UTF_8));
+            // links are followed; one back to the root is a loop, visited as a failure
+            Files.createSymbolicLink(root.resolve("loop"), root);
+            locked = Files.createDirectories(root.resolve("locked"));
+            Files.write(locked.resolve("y.txt"), "y\n".getBytes(StandardCharsets.UTF_8));
+            Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("---------"));
+            // e.g. not when running as root
+            final boolean unreadable = !locked.toFile().canRead();
+
+            final FileTreeWalker walker = new FileTreeWalker(new TraceId(), root.toFile(), new FileFilter()
+            {
+                @Override
+                public boolean accept(final File file) { return !file.getName().equals("skipped"); }
+            }).start();
+            final Set<String> found = new HashSet<>();
+            try
+            {
+                File file;
+                while((file=walker.take())!=null)
+                    found.add(root.relativize(file.toPath()).toString());
+            }
+            finally
+            {
+                walker.close();
+            }
+            assertTrue(found.toString(), found.contains("a"+File.separator+"x.txt"));
+            assertTrue(found.toString(), found.contains("b"+File.separator+"z.txt"));
+            assertFalse(found.toString(), found.contains("skipped"+File.separator+"s.txt"));
+            assertEquals(found.size(), walker.getFound());
+            if(unreadable)
+            {
+                assertEquals(found.toString(), 2, found.size());
+                assertEquals(2l, walker.getFailed());
+            }
+            else
+                assertEquals(1l, walker.getFailed());
+            assertTrue(walker.getElapsedNanos()>0l);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to walk past unreadable entries - "+t.getMessage());
+        }
+        finally
+        {
+            try { if(locked!=null) Files.setPosixFilePermissions(locked, PosixFilePermissions.fromString("rwx------")); }
+            catch(Throwable t) {}
+            delete(workDir);
+        }
+    }
+
+    @Test
+    public void boundedQueue()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path root = Files.createDirectories(workDir.resolve("root"));
+            final int files = 50;
+            for(int i=0;i<files;i++)
+                Files.write(Files.createDirectories(root.resolve("d"+(i%5))).resolve("f"+i+".txt"), new byte[]{ 'x' });
+
+            // the walker blocks on a full queue until the consumer takes
+            final int capacity = 4;
+            final FileTreeWalker walker = new FileTreeWalker(null, root.toFile(), null, capacity).start();
+            final Set<File> taken = new HashSet<>();
+            try
+            {
+                final long deadline = System.currentTimeMillis()+5000l;
+                while(walker.getFound()<capacity&&System.currentTimeMillis()<deadline)
+                    Thread.sleep(10l);
+                Thread.sleep(100l);
+                assertEquals(capacity, walker.getFound());
+
+                File file;
+                while((file=walker.take())!=null)
+                {
+                    assertTrue(file.getPath(), taken.add(file));
+                    assertTrue(walker.getFound()<=taken.size()+capacity);
+                }
+            }
+            finally
+            {
+                walker.close();
+            }
+            assertEquals(files, taken.size());
+            assertEquals(files, walker.getFound());
+            assertEquals(0l, walker.getFailed());
+            assertNull(walker.take());
+
+            try
+            {
+                new FileTreeWalker(null, root.toFile(), null, 0);
+                fail("Expecting a capacity of [0] to be rejected");
+            }
+            catch(IllegalArgumentException e) {}
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to hand files over a bounded queue - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+
+    @Test
+    public void consumerFailure()
+    {
+        Path workDir = null;
+        try
+        {
+            workDir = Files.createTempDirectory("cwt");
+            final Path root = Files.createDirectories(workDir.resolve("root"));
+            final int files = 50;
+            for(int i=0;i<files;i++)
+                Files.write(root.resolve("f"+i+".txt"), new byte[]{ 'x' });
+
+            // the consumer gives up after the first file and closes the walker, as the writer does
+            final FileTreeWalker walker = new FileTreeWalker(null, root.toFile(), null, 1).start();
+            try
+            {
+                assertNotNull(walker.take());
+                throw new IllegalStateException("consumer failed");
+            }
+            catch(IllegalStateException e)
+            {
+                assertEquals("consumer failed", e.getMessage());
+            }
+            finally
+            {
+                walker.close();
+            }
+
+            // the walk ends rather than blocking on the queue; its time stops
+            final long deadline = System.currentTimeMillis()+5000l;
+            long elapsed = walker.getElapsedNanos();
+            while(System.currentTimeMillis()<deadline)
+            {
+                Thread.sleep(200l);
+                final long _elapsed = walker.getElapsedNanos();
+                if(_elapsed==elapsed)
+                    break;
+                elapsed = _elapsed;
+            }
+            assertEquals(elapsed, walker.getElapsedNanos());
+            assertTrue(String.valueOf(walker.getFound()), walker.getFound()<files);
+        }
+        catch(Throwable t)
+        {
+            t.printStackTrace(System.err);
+            fail("ERROR: Failed to end the walk of a failed consumer - "+t.getMessage());
+        }
+        finally
+        {
+            delete(workDir);
+        }
+    }
+}